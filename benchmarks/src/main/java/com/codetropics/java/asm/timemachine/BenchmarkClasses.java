@@ -0,0 +1,247 @@
+package com.codetropics.java.asm.timemachine;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.util.Collections;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+
+import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate.Milliseconds;
+
+
+/**
+ * Generates and loads the classes used by the benchmarks.
+ */
+final class BenchmarkClasses
+{
+	static final Milliseconds SHIFT = new Milliseconds(true, 24L * 60 * 60 * 1000);
+
+
+	private BenchmarkClasses()
+	{
+	}
+
+	/**
+	 * @return
+	 * 		A transformer accepting every class with {@link #SHIFT} as the time shift.
+	 */
+	static TimeMachineTransformer transformer(RewriteMode mode)
+	{
+		return
+			new TimeMachineTransformer(
+				new ClassFilter(
+					ClassNameMatcher.compile(
+						Collections.<String>emptyList(),
+						Collections.<String>emptyList()
+					),
+					false
+				),
+				SHIFT,
+				mode,
+				null
+			);
+	}
+
+	/**
+	 * @return
+	 * 		A class file of {@code bench/Clock} implementing {@link ClockSource}.
+	 */
+	static byte[] clock()
+	{
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(
+			V17,
+			ACC_PUBLIC,
+			"bench/Clock",
+			null,
+			"java/lang/Object",
+			new String[] { "com/codetropics/java/asm/timemachine/ClockSource" }
+		);
+		constructor(cw);
+
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "millis", "()J", null, null);
+		mv.visitCode();
+		mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "currentTimeMillis", "()J", false);
+		mv.visitInsn(LRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		mv = cw.visitMethod(ACC_PUBLIC, "calendar", "()Ljava/lang/Object;", null, null);
+		mv.visitCode();
+		mv.visitMethodInsn(
+			INVOKESTATIC,
+			"java/util/Calendar",
+			"getInstance",
+			"()Ljava/util/Calendar;",
+			false
+		);
+		mv.visitInsn(ARETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		mv = cw.visitMethod(ACC_PRIVATE | ACC_STATIC, "seconds", "()J", null, null);
+		mv.visitCode();
+		mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "currentTimeMillis", "()J", false);
+		mv.visitLdcInsn(1000L);
+		mv.visitInsn(LDIV);
+		mv.visitInsn(LRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		mv = cw.visitMethod(ACC_PUBLIC, "inlined", "()J", null, null);
+		mv.visitCode();
+		mv.visitInsn(LCONST_0);
+		for(int i = 0; i < 16; i++) {
+			mv.visitMethodInsn(INVOKESTATIC, "bench/Clock", "seconds", "()J", false);
+			mv.visitInsn(LADD);
+		}
+		mv.visitInsn(LRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	/**
+	 * Generates a class of a given size.
+	 *
+	 * @param methods
+	 * 		Number of the methods, each having some arithmetic and a loop.
+	 *
+	 * @param timeCalls
+	 * 		{@code true} if every tenth method calls {@code System.currentTimeMillis()}.
+	 */
+	static byte[] synthetic(int methods, boolean timeCalls)
+	{
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(V17, ACC_PUBLIC, "bench/Synthetic", null, "java/lang/Object", null);
+		constructor(cw);
+		for(int i = 0; i < methods; i++) {
+			MethodVisitor mv =
+				cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "m" + i, "(I)J", null, null);
+			mv.visitCode();
+			if(timeCalls && i % 10 == 0)
+				mv.visitMethodInsn(
+					INVOKESTATIC,
+					"java/lang/System",
+					"currentTimeMillis",
+					"()J",
+					false
+				);
+			else
+				mv.visitInsn(LCONST_0);
+			mv.visitVarInsn(LSTORE, 1);
+			Label loop = new Label();
+			Label end = new Label();
+			mv.visitLabel(loop);
+			mv.visitVarInsn(ILOAD, 0);
+			mv.visitJumpInsn(IFLE, end);
+			mv.visitVarInsn(LLOAD, 1);
+			mv.visitVarInsn(ILOAD, 0);
+			mv.visitInsn(I2L);
+			mv.visitLdcInsn((long)i);
+			mv.visitInsn(LMUL);
+			mv.visitInsn(LADD);
+			mv.visitVarInsn(LSTORE, 1);
+			mv.visitIincInsn(0, -1);
+			mv.visitJumpInsn(GOTO, loop);
+			mv.visitLabel(end);
+			mv.visitVarInsn(LLOAD, 1);
+			mv.visitInsn(LRETURN);
+			mv.visitMaxs(0, 0);
+			mv.visitEnd();
+		}
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	/**
+	 * Generates a class of a synthetic application (see {@link StartupProbe}) with a static
+	 * method {@code run()J} which does some arithmetic.
+	 *
+	 * @param timeCalls
+	 * 		{@code true} if {@code run} also calls {@code System.currentTimeMillis()} and
+	 * 		{@code new Date()}.
+	 */
+	static byte[] app(int index, boolean timeCalls)
+	{
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(V17, ACC_PUBLIC, StartupProbe.className(index), null, "java/lang/Object", null);
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "run", "()J", null, null);
+		mv.visitCode();
+		mv.visitLdcInsn((long)index);
+		mv.visitLdcInsn(31L);
+		mv.visitInsn(LMUL);
+		if(timeCalls) {
+			mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "currentTimeMillis", "()J", false);
+			mv.visitInsn(LADD);
+			mv.visitTypeInsn(NEW, "java/util/Date");
+			mv.visitInsn(DUP);
+			mv.visitMethodInsn(INVOKESPECIAL, "java/util/Date", "<init>", "()V", false);
+			mv.visitMethodInsn(INVOKEVIRTUAL, "java/util/Date", "getTime", "()J", false);
+			mv.visitInsn(LADD);
+		}
+		mv.visitInsn(LRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	/**
+	 * Recomputes the maximum stack sizes, which undoes the safety margin added by
+	 * {@link TimeMachineAdapter#visitMaxs(int, int)}.
+	 */
+	static byte[] exactMaxs(byte[] classFile)
+	{
+		ClassReader cr = new ClassReader(classFile);
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cr.accept(cw, 0);
+		return cw.toByteArray();
+	}
+
+	/**
+	 * Loads {@link #clock()} in a class loader of its own.
+	 */
+	static ClockSource load(byte[] classFile)
+		throws
+			ReflectiveOperationException
+	{
+		return
+			(ClockSource)new BenchmarkClassLoader()
+				.define(classFile)
+				.getDeclaredConstructor()
+				.newInstance();
+	}
+
+	private static void constructor(ClassWriter cw)
+	{
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+
+	private static final class BenchmarkClassLoader
+		extends
+			ClassLoader
+	{
+		BenchmarkClassLoader()
+		{
+			super(BenchmarkClasses.class.getClassLoader());
+		}
+
+		Class<?> define(byte[] b)
+		{
+			return defineClass(null, b, 0, b.length);
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package com.codetropics.java.asm.timemachine;
+
+
+/**
+ * Implemented by the class generated by {@link BenchmarkClasses#clock()}, so that
+ * the benchmarks call the original and the instrumented code the same way.
+ */
+public interface ClockSource
+{
+	/**
+	 * @return
+	 * 		{@code System.currentTimeMillis()}.
+	 */
+	long millis();
+
+	/**
+	 * @return
+	 * 		{@code Calendar.getInstance()}.
+	 */
+	Object calendar();
+
+	/**
+	 * @return
+	 * 		The sum of 16 calls to a small static method calling
+	 * 		{@code System.currentTimeMillis()}, which the JIT compiler should inline.
+	 */
+	long inlined();
+}
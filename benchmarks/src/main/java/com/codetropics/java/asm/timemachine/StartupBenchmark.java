@@ -0,0 +1,242 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+
+/**
+ * Measures how much startup time the agent adds. Synthetic applications of different sizes
+ * (see {@link BenchmarkClasses#app(int, boolean)}) are launched as child JVMs without
+ * the agent and with the agent in every {@link RewriteMode}. For every configuration
+ * the median of several runs is reported for:
+ * 	<ul>
+ * 		<li>{@code timeToMain} JVM uptime when the main method is entered, in milliseconds.</li>
+ * 		<li>{@code app} Time to load, initialise and run every generated class once.</li>
+ * 		<li>{@code classLoading} Time the JVM has spent in loading classes in total.</li>
+ * 		<li>{@code wall} Time from launching the child JVM until it has exited.</li>
+ * 		<li>{@code rss} Resident set size at the end, in kilobytes (Linux only).</li>
+ * 		<li>{@code codeCache} Used code cache at the end, in kilobytes.</li>
+ * 	</ul>
+ *
+ * The results are printed and appended as CSV to a file, labelled with the commit, so that
+ * runs of different commits can be compared:
+ * <xmp>
+ * 	java -cp benchmarks/target/benchmarks.jar \
+ * 		com.codetropics.java.asm.timemachine.StartupBenchmark
+ * 		--agent target/timemachine-delegate-3.1.0-SNAPSHOT.jar
+ * 		--classes 1000,10000,50000 --density 0.1 --runs 5 --out startup.csv
+ * </xmp>
+ */
+public final class StartupBenchmark
+{
+	private static final String HEADER =
+		"label,java,classes,density,config,runs,timeToMain,app,classLoading,wall,rss,codeCache";
+	private static final List<String> METRICS =
+		Arrays.asList("timeToMain", "app", "classLoading", "wall", "rss", "codeCache");
+
+	/**
+	 * Agent arguments of the configurations. {@code null} runs without the agent.
+	 */
+	private static final Map<String, String> CONFIGS = new LinkedHashMap<>();
+	static {
+		CONFIGS.put("none", null);
+		CONFIGS.put("constant", "shift=+1d;mode=constant");
+		CONFIGS.put("dynamic", "shift=+1d;mode=dynamic");
+		CONFIGS.put("jdk", "shift=+1d;mode=jdk");
+	}
+
+
+	private StartupBenchmark()
+	{
+	}
+
+	public static void main(String[] args)
+		throws
+			Exception
+	{
+		Path agent = null;
+		int[] sizes = { 1000, 10000, 50000 };
+		double density = 0.1;
+		int runs = 5;
+		Path out = Paths.get("startup.csv");
+		Path work = Paths.get(System.getProperty("java.io.tmpdir"), "timemachine-startup");
+		String label = null;
+		for(int i = 0; i + 1 < args.length; i += 2)
+			switch(args[i]) {
+				case "--agent" : agent = Paths.get(args[i + 1]); break;
+				case "--classes" : sizes = parseSizes(args[i + 1]); break;
+				case "--density" : density = Double.parseDouble(args[i + 1]); break;
+				case "--runs" : runs = Integer.parseInt(args[i + 1]); break;
+				case "--out" : out = Paths.get(args[i + 1]); break;
+				case "--work" : work = Paths.get(args[i + 1]); break;
+				case "--label" : label = args[i + 1]; break;
+				default : throw new IllegalArgumentException("Unknown option: " + args[i]);
+			}
+		if(agent == null || !Files.isRegularFile(agent))
+			throw new IllegalArgumentException("--agent <timemachine-delegate.jar> is required.");
+		if(label == null)
+			label = gitCommit();
+
+		Files.createDirectories(work);
+		String java = System.getProperty("java.version");
+		System.out.println(HEADER);
+		if(!Files.exists(out))
+			Files.write(out, (HEADER + "\n").getBytes(StandardCharsets.UTF_8));
+		for(int size : sizes) {
+			Path app = generate(work, size, density);
+			for(Map.Entry<String, String> config : CONFIGS.entrySet()) {
+				List<Map<String, Long>> results = new ArrayList<>();
+				for(int run = 0; run < runs; run++)
+					results.add(launch(app, size, agent, config.getValue()));
+				StringBuilder line = new StringBuilder();
+				line.append(label).append(',').append(java).append(',').append(size).append(',')
+					.append(String.format(Locale.ROOT, "%.3f", density)).append(',')
+					.append(config.getKey()).append(',').append(runs);
+				for(String metric : METRICS)
+					line.append(',').append(median(results, metric));
+				System.out.println(line);
+				Files.write(
+					out,
+					(line + "\n").getBytes(StandardCharsets.UTF_8),
+					StandardOpenOption.APPEND
+				);
+			}
+		}
+	}
+
+	/**
+	 * Writes a jar of a synthetic application unless it exists already.
+	 *
+	 * @param density
+	 * 		Share of the classes having time calls.
+	 */
+	static Path generate(Path work, int size, double density)
+		throws
+			IOException
+	{
+		Path jar = work.resolve(String.format(Locale.ROOT, "app-%d-%.3f.jar", size, density));
+		if(Files.exists(jar))
+			return jar;
+
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, StartupProbe.class.getName());
+		Path tmp = Files.createTempFile(work, null, ".tmp");
+		try(JarOutputStream out = new JarOutputStream(Files.newOutputStream(tmp), manifest)) {
+			String probe = StartupProbe.class.getName().replace('.', '/') + ".class";
+			out.putNextEntry(new JarEntry(probe));
+			try(InputStream in = StartupProbe.class.getClassLoader().getResourceAsStream(probe)) {
+				in.transferTo(out);
+			}
+			for(int i = 0; i < size; i++) {
+				// Spreads the classes with time calls evenly.
+				boolean timeCalls = (int)((i + 1) * density) > (int)(i * density);
+				out.putNextEntry(new JarEntry(StartupProbe.className(i) + ".class"));
+				out.write(BenchmarkClasses.app(i, timeCalls));
+			}
+		}
+		Files.move(tmp, jar);
+		return jar;
+	}
+
+	/**
+	 * Runs a synthetic application in a child JVM.
+	 *
+	 * @param agentArgs
+	 * 		Agent arguments or {@code null} to run without the agent.
+	 *
+	 * @return
+	 * 		The measurements.
+	 */
+	static Map<String, Long> launch(Path app, int size, Path agent, String agentArgs)
+		throws
+			IOException,
+			InterruptedException
+	{
+		List<String> command = new ArrayList<>();
+		command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+		command.add("--add-exports=java.management/sun.management=ALL-UNNAMED");
+		if(agentArgs != null)
+			command.add("-javaagent:" + agent.toAbsolutePath() + "=" + agentArgs);
+		command.add("-jar");
+		command.add(app.toAbsolutePath().toString());
+		command.add(Integer.toString(size));
+
+		long start = System.nanoTime();
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		String result = null;
+		StringBuilder output = new StringBuilder();
+		try(
+			BufferedReader in =
+				new BufferedReader(
+					new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8)
+				)
+		) {
+			for(String line; (line = in.readLine()) != null; )
+				if(line.startsWith(StartupProbe.PREFIX))
+					result = line.substring(StartupProbe.PREFIX.length());
+				else
+					output.append(line).append('\n');
+		}
+		int exit = process.waitFor();
+		long wall = (System.nanoTime() - start) / 1000000;
+		if(exit != 0 || result == null)
+			throw new IllegalStateException("The child JVM failed (" + exit + "):\n" + output);
+
+		Map<String, Long> metrics = new LinkedHashMap<>();
+		for(String pair : result.split(" ")) {
+			int equals = pair.indexOf('=');
+			metrics.put(pair.substring(0, equals), Long.parseLong(pair.substring(equals + 1)));
+		}
+		metrics.put("wall", wall);
+		return metrics;
+	}
+
+	private static int[] parseSizes(String sizes)
+	{
+		return Arrays.stream(sizes.split(",")).mapToInt(s -> Integer.parseInt(s.trim())).toArray();
+	}
+
+	private static long median(List<Map<String, Long>> results, String metric)
+	{
+		long[] values = results.stream().mapToLong(r -> r.get(metric)).sorted().toArray();
+		return values[values.length / 2];
+	}
+
+	private static String gitCommit()
+	{
+		try {
+			Process process =
+				new ProcessBuilder("git", "rev-parse", "--short", "HEAD")
+					.redirectErrorStream(true)
+					.start();
+			String commit =
+				new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8).trim();
+			return process.waitFor() == 0 ? commit : "unknown";
+		}
+		catch(IOException e) {
+			return "unknown";
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return "unknown";
+		}
+	}
+}
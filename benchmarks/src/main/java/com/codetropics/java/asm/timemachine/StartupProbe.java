@@ -0,0 +1,116 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+
+/**
+ * Main class of the synthetic applications launched by {@link StartupBenchmark}. It loads,
+ * initialises and runs every generated class once, like an application starting up, and
+ * prints one line of measurements for the parent process.
+ * <p>
+ *
+ * The probe is in the agent package, which is never instrumented, so its own time
+ * measurements are not shifted. It only depends on the JDK because it is copied into
+ * the generated jar.
+ */
+public final class StartupProbe
+{
+	static final String PREFIX = "STARTUP ";
+
+	private StartupProbe()
+	{
+	}
+
+	/**
+	 * @param args
+	 * 		The number of the generated classes.
+	 */
+	public static void main(String[] args)
+		throws
+			Throwable
+	{
+		long timeToMain = ManagementFactory.getRuntimeMXBean().getUptime();
+
+		int classes = Integer.parseInt(args[0]);
+		long start = System.nanoTime();
+		long sum = 0;
+		MethodType type = MethodType.methodType(long.class);
+		for(int i = 0; i < classes; i++) {
+			Class<?> c = Class.forName(className(i).replace('/', '.'));
+			MethodHandle run = MethodHandles.publicLookup().findStatic(c, "run", type);
+			sum += (long)run.invokeExact();
+		}
+		long app = (System.nanoTime() - start) / 1000000;
+
+		long codeCache = 0;
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if(pool.getName().startsWith("CodeHeap") || pool.getName().equals("Code Cache"))
+				codeCache += pool.getUsage().getUsed();
+
+		System.out.println(
+			PREFIX
+				+ "timeToMain=" + timeToMain
+				+ " app=" + app
+				+ " classLoading=" + classLoadingTime()
+				+ " classes=" + ManagementFactory.getClassLoadingMXBean().getTotalLoadedClassCount()
+				+ " rss=" + rss()
+				+ " codeCache=" + codeCache / 1024
+				+ " checksum=" + (sum & 0xff)
+		);
+	}
+
+	/**
+	 * @return
+	 * 		The internal name of a generated class.
+	 */
+	static String className(int index)
+	{
+		return "bench/app/C" + index;
+	}
+
+	/**
+	 * @return
+	 * 		The total time the JVM has spent in loading classes in milliseconds, or {@code -1}
+	 * 		if the HotSpot counter is not accessible ({@code sun.management} is not exported).
+	 */
+	private static long classLoadingTime()
+	{
+		try {
+			Object bean =
+				Class.forName("sun.management.ManagementFactoryHelper")
+					.getMethod("getHotspotClassLoadingMBean")
+					.invoke(null);
+			return
+				(long)Class.forName("sun.management.HotspotClassLoadingMBean")
+					.getMethod("getClassLoadingTime")
+					.invoke(bean);
+		}
+		catch(ReflectiveOperationException | RuntimeException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return
+	 * 		The resident set size in kilobytes or {@code -1} if not on Linux.
+	 */
+	private static long rss()
+	{
+		try {
+			for(String line : Files.readAllLines(Paths.get("/proc/self/status")))
+				if(line.startsWith("VmRSS:"))
+					return Long.parseLong(line.replaceAll("[^0-9]", ""));
+		}
+		catch(IOException | NumberFormatException e) {
+			// Not available.
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,90 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Per-call cost of the code {@link TimeMachineAdapter} emits, compared with the original
+ * code. Run with {@code -prof gc} to see the allocation per call.
+ * <p>
+ *
+ * The {@code variant} parameter selects:
+ * 	<ul>
+ * 		<li>{@code original} The uninstrumented class.</li>
+ * 		<li>{@code constant}, {@code dynamic} The class rewritten in that mode.</li>
+ * 		<li>
+ * 			{@code constant-exact} The class rewritten in constant mode with the maximum stack
+ * 			sizes recomputed, which tells whether the stack margin added by
+ * 			{@link TimeMachineAdapter#visitMaxs(int, int)} changes the JIT inlining decisions
+ * 			(compare {@link #inlined()}, and add
+ * 			{@code -jvmArgsAppend -XX:+UnlockDiagnosticVMOptions -XX:+PrintInlining} to see
+ * 			them).
+ * 		</li>
+ * 	</ul>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimeCallBenchmark
+{
+	@Param({ "original", "constant", "constant-exact", "dynamic" })
+	public String variant;
+
+	private ClockSource _clock;
+
+	@Setup
+	public void setUp()
+		throws
+			Exception
+	{
+		byte[] classFile = BenchmarkClasses.clock();
+		RewriteMode mode =
+			"dynamic".equals(variant) ? RewriteMode.DYNAMIC : RewriteMode.CONSTANT;
+		TimeMachine.install(mode, BenchmarkClasses.SHIFT);
+		if(!"original".equals(variant))
+			classFile =
+				BenchmarkClasses.transformer(mode).transform(
+					TimeCallBenchmark.class.getClassLoader(),
+					"bench/Clock",
+					null,
+					null,
+					classFile
+				);
+		if("constant-exact".equals(variant))
+			classFile = BenchmarkClasses.exactMaxs(classFile);
+		_clock = BenchmarkClasses.load(classFile);
+	}
+
+	@Benchmark
+	public long currentTimeMillis()
+	{
+		return _clock.millis();
+	}
+
+	@Benchmark
+	public Object calendarGetInstance()
+	{
+		return _clock.calendar();
+	}
+
+	@Benchmark
+	public long inlined()
+	{
+		return _clock.inlined();
+	}
+}
@@ -0,0 +1,60 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.lang.instrument.IllegalClassFormatException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Throughput of {@link TimeMachineTransformer#transform} for classes of different sizes with
+ * and without system time queries. A class without time queries only goes through
+ * the constant pool scan of {@link TimeCallScanner}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransformBenchmark
+{
+	private static final ClassLoader LOADER = TransformBenchmark.class.getClassLoader();
+
+	@Param({ "5", "50", "500" })
+	public int methods;
+
+	@Param({ "true", "false" })
+	public boolean timeCalls;
+
+	@Param({ "constant", "dynamic" })
+	public String mode;
+
+	private TimeMachineTransformer _transformer;
+	private byte[] _classFile;
+
+	@Setup
+	public void setUp()
+	{
+		_transformer = BenchmarkClasses.transformer(RewriteMode.parse(mode));
+		_classFile = BenchmarkClasses.synthetic(methods, timeCalls);
+	}
+
+	@Benchmark
+	public byte[] transform()
+		throws
+			IllegalClassFormatException
+	{
+		return _transformer.transform(LOADER, "bench/Synthetic", null, null, _classFile);
+	}
+}
@@ -1,9 +1,18 @@
 package com.codetropics.java.agent;
 
+import com.codetropics.java.asm.timemachine.AgentOptions;
+import com.codetropics.java.asm.timemachine.ScenarioLauncher;
+import com.codetropics.java.asm.timemachine.TimeMachine;
 import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.instrument.Instrumentation;
-import java.util.regex.Pattern;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class TimeMachineAgent {
 
@@ -13,16 +22,94 @@ public class TimeMachineAgent {
             return;
         }
 
-        String config = agentArgs; // Simplest case
-        Pattern[] includePatterns = new Pattern[] { Pattern.compile(".*") }; // All classes
-        Pattern[] excludePatterns = new Pattern[0]; // None
+        AgentOptions options;
+        try {
+            options = AgentOptions.parse(agentArgs);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Couldn't start the TimeMachine agent. " + e.getMessage());
+            printHelp();
+            return;
+        }
+
+        TimeMachineAgentDelegate.premain(options, inst);
+    }
+
+    public static void agentmain(String agentArgs, Instrumentation inst) {
+        if (agentArgs != null && agentArgs.trim().equalsIgnoreCase("undo")) {
+            TimeMachineAgentDelegate.undo(inst);
+            return;
+        }
+        if (agentArgs == null || agentArgs.trim().equalsIgnoreCase("help") || agentArgs.trim().equalsIgnoreCase("-h")) {
+            printHelp();
+            return;
+        }
+
+        AgentOptions options;
+        try {
+            options = AgentOptions.parse(agentArgs);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Couldn't attach the TimeMachine agent. " + e.getMessage());
+            return;
+        }
+
+        TimeMachineAgentDelegate.agentmain(options, inst);
+    }
+
+    public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("scenarios")) {
+            System.exit(ScenarioLauncher.launch(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        if (args.length == 4 && args[0].equals("instrument")) {
+            instrument(args[1], Paths.get(args[2]), Paths.get(args[3]));
+            return;
+        }
+        if (args.length == 3 && args[0].equals("analyze")) {
+            analyze(args[1], args[2]);
+            return;
+        }
+        if (args.length < 2 || args.length > 3 || !args[0].equals("clock")) {
+            System.err.println("Usage: java -jar timemachine-delegate.jar clock <file> [<time-shift>]");
+            System.err.println("       java -jar timemachine-delegate.jar instrument <options> <input> <output>");
+            System.err.println("       java -jar timemachine-delegate.jar analyze <options> <class-path>");
+            System.err.println("       java -jar timemachine-delegate.jar scenarios --shifts <shift>,... -- <command>");
+            System.exit(2);
+        }
 
-        TimeMachineAgentDelegate.premain(
-                includePatterns,
-                excludePatterns,
-                config,
-                inst
-        );
+        Path file = Paths.get(args[1]);
+        try {
+            if (args.length == 3) {
+                TimeMachine.setTimeShift(file, args[2]);
+            }
+            System.out.println(TimeMachine.getTimeShift(file));
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Couldn't use the clock file " + file + ". " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void instrument(String agentArgs, Path input, Path output) {
+        try {
+            int count = TimeMachineAgentDelegate.instrument(AgentOptions.parse(agentArgs), input, output);
+            System.out.println("TimeMachine rewrote " + count + " classes of " + input + " into " + output + ".");
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Couldn't instrument " + input + ". " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void analyze(String agentArgs, String classPath) {
+        List<Path> elements = new ArrayList<>();
+        for (String element : classPath.split(File.pathSeparator)) {
+            if (!element.isEmpty()) {
+                elements.add(Paths.get(element));
+            }
+        }
+        try {
+            TimeMachineAgentDelegate.analyze(AgentOptions.parse(agentArgs), elements, System.out);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Couldn't analyze the class path. " + e.getMessage());
+            System.exit(1);
+        }
     }
 
     public static void printHelp() {
@@ -30,19 +117,64 @@ public class TimeMachineAgent {
         System.out.println("Shift the system time for your JVM process without touching the system clock.\n");
         System.out.println("Usage:");
         System.out.println("  -javaagent:timemachine-delegate.jar=<time-shift>");
+        System.out.println("  -javaagent:timemachine-delegate.jar=shift=<time-shift>;<option>=<value>;...");
         System.out.println();
         System.out.println("Time shift can be relative or absolute:");
         System.out.println("  Examples:");
         System.out.println("    -1d         # minus 1 day");
         System.out.println("    +2h30m      # plus 2 hours 30 minutes");
         System.out.println("    -1w2d       # minus 1 week and 2 days");
-        System.out.println("    2025-06-10T14:00:00   # absolute time (YYYY-MM-DDTHH:MM:SS)");
+        System.out.println("    2025-06-10T14:00:00   # absolute start time (YYYY-MM-DDTHH:MM:SS)");
+        System.out.println();
+        System.out.println("Supported units: y (years), mo (months), w (weeks), d (days), h (hours), m (minutes), s (seconds), ms");
+        System.out.println();
+        System.out.println("Options:");
+        System.out.println("  shift=<time-shift>       # the time shift (required)");
+        System.out.println("  frozen=true              # an absolute time stops the clock instead of starting it");
+        System.out.println("  start=<absolute-time>    # start of a dilated time (instead of shift)");
+        System.out.println("  rate=<number>            # dilated time runs this many times as fast");
+        System.out.println("  include=<pattern>,...    # classes to instrument (default: all)");
+        System.out.println("  exclude=<pattern>,...    # classes not to instrument");
+        System.out.println("  rule=<pattern>@<time-shift>|none,...");
+        System.out.println("                           # own time shift for some classes (mode=constant)");
+        System.out.println("  bootstrap=true           # instrument also bootstrap classes");
+        System.out.println("  cache=<dir>              # keep transformed classes between runs");
+        System.out.println("  cacheSize=<size>         # cache size limit, e.g. 512m (default 256m)");
+        System.out.println("  mode=constant|dynamic|jdk");
+        System.out.println("                           # dynamic allows changing the shift at runtime,");
+        System.out.println("                           # jdk hooks the JDK clocks instead of every class");
+        System.out.println("  timeline=<file>          # time jumps to apply during the run (mode=dynamic)");
+        System.out.println("  clock=<file>             # time shift shared by the JVMs of a host (mode=dynamic)");
+        System.out.println("  virtual=skip|idle        # fast-forward sleeps and timed waits (mode=dynamic)");
+        System.out.println("  record=<file>            # record the time values read (mode=dynamic)");
+        System.out.println("  replay=<file>            # read the recorded time values again (mode=dynamic)");
+        System.out.println("  schedulers=true          # let the JDK schedulers follow time jumps (mode=dynamic)");
+        System.out.println("  rescope=true             # allow changing include/exclude at runtime");
+        System.out.println("  batchSize=<n>            # classes retransformed at once when attached (default 100)");
+        System.out.println("  batchPause=<time>        # pause between the batches, e.g. 50ms (default 10ms)");
+        System.out.println("  warmup=true              # rewrite the class path jars ahead of time in parallel");
+        System.out.println("  metrics=true             # publish the transform counters as a JMX MBean");
+        System.out.println("  census=true|<file>       # count the executions of every rewritten call site");
+        System.out.println();
+        System.out.println("Patterns use internal class names: com/acme/Foo, com/acme/* (package),");
+        System.out.println("com/acme/** (package and subpackages). @<file> reads one pattern per line.");
+        System.out.println();
+        System.out.println("The agent can also be attached to a running JVM with the same options, and");
+        System.out.println("attaching it again with the argument undo restores the original classes.");
+        System.out.println();
+        System.out.println("Change the time shift of every JVM using a clock file:");
+        System.out.println("  java -jar timemachine-delegate.jar clock <file> [<time-shift>]");
+        System.out.println();
+        System.out.println("Rewrite a jar or a class directory ahead of time, with the same options:");
+        System.out.println("  java -jar timemachine-delegate.jar instrument <options> <input> <output>");
         System.out.println();
-        System.out.println("Supported units: y (years), mo (months), w (weeks), d (days), h (hours), m (minutes), s (seconds)");
+        System.out.println("Report the call sites the agent would rewrite, without rewriting them:");
+        System.out.println("  java -jar timemachine-delegate.jar analyze <options> <class-path>");
         System.out.println();
         System.out.println("Show this help:");
         System.out.println("  -javaagent:timemachine-delegate.jar=help\n");
         System.out.println("Example:");
-        System.out.println("  java -javaagent:timemachine-delegate.jar=+3h -jar yourapp.jar\n");
+        System.out.println("  java -javaagent:timemachine-delegate.jar=+3h -jar yourapp.jar");
+        System.out.println("  java \"-javaagent:timemachine-delegate.jar=shift=+2d;include=com/acme/**;exclude=com/acme/log/**\" -jar yourapp.jar\n");
     }
 }
@@ -0,0 +1,583 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * {@code AgentOptions} holds the options given as the agent argument string of
+ * {@code -javaagent:timemachine-delegate.jar=<options>}.
+ * <p>
+ *
+ * The options are {@code key=value} pairs separated by semicolons, for example:
+ * <blockquote>
+ * 		{@code shift=+2d;include=com/acme/**;exclude=com/acme/log/**}
+ * </blockquote>
+ *
+ * The recognised keys are:
+ * 	<ul>
+ * 		<li>
+ * 			{@code shift} Time shift in the format accepted by
+ * 			{@link TimeMachineAgentDelegate}. An absolute time is where the clock starts from
+ * 			and the clock advances with the real time from there.
+ * 		</li>
+ * 		<li>
+ * 			{@code frozen} {@code true} if an absolute time is to freeze the clock instead.
+ * 			Default is {@code false}.
+ * 		</li>
+ * 		<li>
+ * 			{@code start} Absolute time from which a dilated time starts. Cannot be used with
+ * 			{@code shift}.
+ * 		</li>
+ * 		<li>
+ * 			{@code rate} How many times as fast as the real time the dilated time advances,
+ * 			e.g. {@code 60} or {@code 0.5}. The time starts from {@code start} or, if not
+ * 			given, from the shifted time at startup. Default is {@code 1} with {@code start}
+ * 			and no dilation without it.
+ * 		</li>
+ * 		<li>
+ * 			{@code include} Class name patterns (see {@link ClassNameTrie}) of the classes to be
+ * 			instrumented. All classes are included by default.
+ * 		</li>
+ * 		<li>{@code exclude} Class name patterns of the classes not to be instrumented.</li>
+ * 		<li>
+ * 			{@code rule} {@code <pattern>@<time-shift>} gives the classes matching a class name
+ * 			pattern a time shift of their own, or the real time with {@code <pattern>@none}
+ * 			(see {@link ShiftRules}). Needs {@code mode=constant}.
+ * 		</li>
+ * 		<li>
+ * 			{@code bootstrap} {@code true} if classes loaded by the bootstrap class loader are to
+ * 			be instrumented. Default is {@code false}.
+ * 		</li>
+ * 		<li>
+ * 			{@code cache} Directory for caching the transformed class files between JVM runs
+ * 			(see {@link TransformCache}). Not used by default.
+ * 		</li>
+ * 		<li>
+ * 			{@code cacheSize} Maximum size of the cache with an optional {@code k}, {@code m}
+ * 			or {@code g} suffix. Default is {@code 256m}.
+ * 		</li>
+ * 		<li>
+ * 			{@code mode} {@code constant} (default) embeds the time shift into the byte code.
+ * 			{@code dynamic} allows changing the time shift at runtime with {@link TimeMachine}.
+ * 			{@code jdk} hooks the JDK clocks instead of every class (see {@link RewriteMode}).
+ * 		</li>
+ * 		<li>
+ * 			{@code timeline} File with a schedule of time jumps to be applied during the run
+ * 			(see {@link Timeline}). Needs {@code mode=dynamic}.
+ * 		</li>
+ * 		<li>
+ * 			{@code clock} File shared by the JVMs of a host which holds their common time
+ * 			shift (see {@link SharedClock}). Needs {@code mode=dynamic}. Not used by default.
+ * 		</li>
+ * 		<li>
+ * 			{@code virtual} {@code skip} or {@code idle} if the sleeps and timed waits of
+ * 			the instrumented classes are to fast-forward the clock instead of waiting (see
+ * 			{@link VirtualClock}). Needs {@code mode=dynamic}. Not used by default.
+ * 		</li>
+ * 		<li>
+ * 			{@code record} File into which every value returned by the rewritten time queries
+ * 			is recorded (see {@link ClockRecorder}). Needs {@code mode=dynamic}. Not used by
+ * 			default.
+ * 		</li>
+ * 		<li>
+ * 			{@code replay} File recorded with {@code record} whose values the rewritten time
+ * 			queries return again (see {@link ClockReplay}). Needs {@code mode=dynamic}. Not used
+ * 			by default.
+ * 		</li>
+ * 		<li>
+ * 			{@code schedulers} {@code true} if the JDK schedulers are to follow the jumps of
+ * 			the time shift (see {@link SchedulerHook}). Needs {@code mode=dynamic}. Default is
+ * 			{@code false}.
+ * 		</li>
+ * 		<li>
+ * 			{@code rescope} {@code true} if the include and exclude rules are to be changeable
+ * 			at runtime with {@link TimeMachine#include(String)} and the like (see
+ * 			{@link Rescoper}). Default is {@code false}.
+ * 		</li>
+ * 		<li>
+ * 			{@code batchSize} When attached to a running JVM or rescoping, the maximum number of
+ * 			loaded classes retransformed at once (see {@link Retransformer}). Default is
+ * 			{@code 100}.
+ * 		</li>
+ * 		<li>
+ * 			{@code batchPause} When attached to a running JVM, the time to wait between two
+ * 			batches, e.g. {@code 50ms}. Default is {@code 10ms}.
+ * 		</li>
+ * 		<li>
+ * 			{@code warmup} {@code true} if the classes of the class path jars are to be
+ * 			rewritten ahead of time in parallel (see {@link Warmup}). Default is {@code false}.
+ * 		</li>
+ * 		<li>
+ * 			{@code metrics} {@code true} if the transform counters are to be registered as
+ * 			a JMX MBean (see {@link TransformMetrics}). Default is {@code false}.
+ * 		</li>
+ * 		<li>
+ * 			{@code census} {@code true} or a file name if the executions of every rewritten
+ * 			call site are to be counted and reported at exit to the standard error or to
+ * 			the file (see {@link CallSiteCensus}). Not used by default.
+ * 		</li>
+ * 	</ul>
+ *
+ * {@code include}, {@code exclude} and {@code rule} can be given several times and each of
+ * them can have several comma separated values. A value starting with {@code @} is a name
+ * of a file having one value per line. Empty lines and lines starting with {@code #} are ignored.
+ * <p>
+ *
+ * For backward compatibility, an argument string without any {@code =} characters is taken
+ * as the time shift alone (e.g. {@code -javaagent:timemachine-delegate.jar=+3h}).
+ */
+public final class AgentOptions
+{
+	static final String SHIFT = "shift";
+	static final String INCLUDE = "include";
+	static final String EXCLUDE = "exclude";
+	static final String BOOTSTRAP = "bootstrap";
+	static final String CACHE = "cache";
+	static final String CACHE_SIZE = "cacheSize";
+	static final String MODE = "mode";
+	static final String START = "start";
+	static final String RATE = "rate";
+	static final String TIMELINE = "timeline";
+	static final String BATCH_SIZE = "batchSize";
+	static final String BATCH_PAUSE = "batchPause";
+	static final String WARMUP = "warmup";
+	static final String METRICS = "metrics";
+	static final String CENSUS = "census";
+	static final String FROZEN = "frozen";
+	static final String CLOCK = "clock";
+	static final String RULE = "rule";
+	static final String VIRTUAL = "virtual";
+	static final String RESCOPE = "rescope";
+	static final String RECORD = "record";
+	static final String REPLAY = "replay";
+	static final String SCHEDULERS = "schedulers";
+
+	private static final Set<String> KEYS =
+		new HashSet<>(
+			Arrays.asList(
+				SHIFT,
+				INCLUDE,
+				EXCLUDE,
+				BOOTSTRAP,
+				CACHE,
+				CACHE_SIZE,
+				MODE,
+				START,
+				RATE,
+				TIMELINE,
+				BATCH_SIZE,
+				BATCH_PAUSE,
+				WARMUP,
+				METRICS,
+				CENSUS,
+				FROZEN,
+				CLOCK,
+				RULE,
+				VIRTUAL,
+				RESCOPE,
+				RECORD,
+				REPLAY,
+				SCHEDULERS
+			)
+		);
+	private static final Set<String> LIST_KEYS = new HashSet<>(Arrays.asList(INCLUDE, EXCLUDE, RULE));
+
+	/**
+	 * The options which only work with the call sites of {@link RewriteMode#DYNAMIC}.
+	 */
+	private static final List<String> DYNAMIC_KEYS =
+		Arrays.asList(TIMELINE, CLOCK, VIRTUAL, RECORD, REPLAY, SCHEDULERS);
+
+	private final Map<String, List<String>> _values;
+
+
+	private AgentOptions(Map<String, List<String>> values)
+	{
+		_values = values;
+	}
+
+	/**
+	 * Parses the agent argument string.
+	 *
+	 * @param agentArgs
+	 * 		Agent argument string as given to {@code premain}.
+	 *
+	 * @return
+	 * 		Parsed options.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the argument string has unknown keys or a pattern file cannot be read.
+	 */
+	public static AgentOptions parse(String agentArgs)
+	{
+		Map<String, List<String>> values = new LinkedHashMap<>();
+		if(agentArgs == null || agentArgs.trim().isEmpty())
+			return new AgentOptions(values);
+
+		if(agentArgs.indexOf('=') < 0) {
+			values.put(SHIFT, new ArrayList<>(Collections.singletonList(agentArgs.trim())));
+			return new AgentOptions(values);
+		}
+
+		for(String option : agentArgs.split(";")) {
+			option = option.trim();
+			if(option.isEmpty())
+				continue;
+
+			int i = option.indexOf('=');
+			if(i < 0)
+				throw new IllegalArgumentException("Option has no value: " + option);
+			String key = option.substring(0, i).trim();
+			String value = option.substring(i + 1).trim();
+			if(!KEYS.contains(key))
+				throw new IllegalArgumentException("Unknown option: " + key);
+
+			List<String> list = values.computeIfAbsent(key, k -> new ArrayList<>());
+			if(LIST_KEYS.contains(key))
+				list.addAll(parseList(value));
+			else {
+				list.clear();
+				list.add(value);
+			}
+		}
+		return new AgentOptions(values);
+	}
+
+	/**
+	 * @param value
+	 * 		Comma separated values, of which the ones starting with {@code @} are names of files
+	 * 		having one value per line.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If a file cannot be read.
+	 */
+	static List<String> parseList(String value)
+	{
+		List<String> list = new ArrayList<>();
+		for(String item : value.split(","))
+			addListItem(list, item.trim());
+		return list;
+	}
+
+	private static void addListItem(List<String> list, String item)
+	{
+		if(item.isEmpty())
+			return;
+		if(!item.startsWith("@")) {
+			list.add(item);
+			return;
+		}
+
+		try {
+			for(String line : Files.readAllLines(Paths.get(item.substring(1)), StandardCharsets.UTF_8)) {
+				line = line.trim();
+				if(!line.isEmpty() && !line.startsWith("#"))
+					list.add(line);
+			}
+		}
+		catch(IOException e) {
+			throw new IllegalArgumentException("Couldn't read " + item.substring(1), e);
+		}
+	}
+
+	/**
+	 * @return
+	 * 		The value of an option or {@code null} if the option is not given.
+	 */
+	String get(String key)
+	{
+		List<String> list = _values.get(key);
+		return list == null || list.isEmpty() ? null : list.get(list.size() - 1);
+	}
+
+	/**
+	 * @return
+	 * 		All the values of a list option. Never {@code null}.
+	 */
+	List<String> getAll(String key)
+	{
+		List<String> list = _values.get(key);
+		return list == null ? Collections.<String>emptyList() : Collections.unmodifiableList(list);
+	}
+
+	boolean getBoolean(String key)
+	{
+		return Boolean.parseBoolean(get(key));
+	}
+
+	/**
+	 * @return
+	 * 		A size in bytes given with an optional {@code k}, {@code m} or {@code g} suffix.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the value is not a valid size.
+	 */
+	long getSize(String key, long defaultValue)
+	{
+		String value = get(key);
+		return value == null ? defaultValue : parseSize(key, value);
+	}
+
+	/**
+	 * @param name
+	 * 		The name of the value for the error message.
+	 *
+	 * @param value
+	 * 		A size in bytes with an optional {@code k}, {@code m} or {@code g} suffix.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the value is not a valid size.
+	 */
+	static long parseSize(String name, String value)
+	{
+		String number = value.toLowerCase();
+		if(number.isEmpty())
+			throw new IllegalArgumentException("Invalid size for " + name + ": " + value);
+		long unit = 1;
+		switch(number.charAt(number.length() - 1)) {
+			case 'k': unit = 1024L; break;
+			case 'm': unit = 1024L * 1024; break;
+			case 'g': unit = 1024L * 1024 * 1024; break;
+		}
+		if(unit > 1)
+			number = number.substring(0, number.length() - 1);
+		try {
+			return Long.parseLong(number.trim()) * unit;
+		}
+		catch(NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid size for " + name + ": " + value);
+		}
+	}
+
+	/**
+	 * @return
+	 * 		The time shift or {@code null} if not given.
+	 */
+	public String getShift()
+	{
+		return get(SHIFT);
+	}
+
+	public List<String> getIncludes()
+	{
+		return getAll(INCLUDE);
+	}
+
+	public List<String> getExcludes()
+	{
+		return getAll(EXCLUDE);
+	}
+
+	/**
+	 * @return
+	 * 		The time shift rules as {@code <pattern>@<time-shift>} strings. Never {@code null}.
+	 */
+	public List<String> getRules()
+	{
+		return getAll(RULE);
+	}
+
+	public boolean isBootstrapClasses()
+	{
+		return getBoolean(BOOTSTRAP);
+	}
+
+	/**
+	 * @return
+	 * 		The cache directory or {@code null} if not given.
+	 */
+	public String getCacheDirectory()
+	{
+		return get(CACHE);
+	}
+
+	public long getCacheSize()
+	{
+		return getSize(CACHE_SIZE, 256L * 1024 * 1024);
+	}
+
+	/**
+	 * @return
+	 * 		The rewrite mode or {@code null} if not given.
+	 */
+	public String getMode()
+	{
+		return get(MODE);
+	}
+
+	/**
+	 * Parses the rewrite mode and checks that the other options can be used with it.
+	 *
+	 * @return
+	 * 		The rewrite mode, {@link RewriteMode#CONSTANT} if not given.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the mode is unknown or the options need another mode or conflict.
+	 */
+	RewriteMode checkMode()
+	{
+		RewriteMode mode = RewriteMode.parse(getMode());
+		if(mode != RewriteMode.DYNAMIC)
+			for(String key : DYNAMIC_KEYS)
+				if(key.equals(SCHEDULERS) ? isSchedulers() : get(key) != null)
+					throw new IllegalArgumentException(key + " needs mode=dynamic.");
+		if(mode != RewriteMode.CONSTANT && !getRules().isEmpty())
+			throw new IllegalArgumentException(RULE + " needs mode=constant.");
+		if(getRecord() != null && getReplay() != null)
+			throw new IllegalArgumentException("record and replay cannot be used together.");
+		return mode;
+	}
+
+	/**
+	 * @return
+	 * 		The start time of a dilated time or {@code null} if not given.
+	 */
+	public String getStart()
+	{
+		return get(START);
+	}
+
+	/**
+	 * @return
+	 * 		The rate of a dilated time or {@code null} if not given.
+	 */
+	public String getRate()
+	{
+		return get(RATE);
+	}
+
+	/**
+	 * @return
+	 * 		The timeline file or {@code null} if not given.
+	 */
+	public String getTimeline()
+	{
+		return get(TIMELINE);
+	}
+
+	/**
+	 * @return
+	 * 		The shared clock file or {@code null} if not given.
+	 */
+	public String getClock()
+	{
+		return get(CLOCK);
+	}
+
+	/**
+	 * @return
+	 * 		The policy of the virtual clock or {@code null} if not given.
+	 */
+	public String getVirtual()
+	{
+		return get(VIRTUAL);
+	}
+
+	public boolean isFrozen()
+	{
+		return getBoolean(FROZEN);
+	}
+
+	public boolean isWarmup()
+	{
+		return getBoolean(WARMUP);
+	}
+
+	/**
+	 * @return
+	 * 		The file to record the time queries into or {@code null} if not given.
+	 */
+	public String getRecord()
+	{
+		return get(RECORD);
+	}
+
+	/**
+	 * @return
+	 * 		The recording to replay or {@code null} if not given.
+	 */
+	public String getReplay()
+	{
+		return get(REPLAY);
+	}
+
+	public boolean isRescope()
+	{
+		return getBoolean(RESCOPE);
+	}
+
+	public boolean isSchedulers()
+	{
+		return getBoolean(SCHEDULERS);
+	}
+
+	public boolean isMetrics()
+	{
+		return getBoolean(METRICS);
+	}
+
+	/**
+	 * @return
+	 * 		{@code true}, a report file name or {@code null} if the census is not enabled.
+	 */
+	public String getCensus()
+	{
+		String census = get(CENSUS);
+		return census == null || census.equalsIgnoreCase("false") ? null : census;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 * 		If the value is not a positive integer.
+	 */
+	public int getBatchSize()
+	{
+		String value = get(BATCH_SIZE);
+		if(value == null)
+			return 100;
+		try {
+			int batchSize = Integer.parseInt(value);
+			if(batchSize > 0)
+				return batchSize;
+		}
+		catch(NumberFormatException e) {
+			// Reported below.
+		}
+		throw new IllegalArgumentException("Invalid " + BATCH_SIZE + ": " + value);
+	}
+
+	/**
+	 * @return
+	 * 		The pause between the retransformation batches in milliseconds.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the value is not a non-negative relative time.
+	 */
+	public long getBatchPause()
+	{
+		String value = get(BATCH_PAUSE);
+		if(value == null)
+			return 10;
+		TimeMachineAgentDelegate.Milliseconds pause = TimeMachineAgentDelegate.parseTime(value);
+		if(!pause.isRelative() || pause.getTime() < 0)
+			throw new IllegalArgumentException("Invalid " + BATCH_PAUSE + ": " + value);
+		return pause.getTime();
+	}
+
+	@Override
+	public String toString()
+	{
+		return _values.toString();
+	}
+}
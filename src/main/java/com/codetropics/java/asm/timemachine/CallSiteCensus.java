@@ -0,0 +1,164 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * {@code CallSiteCensus} counts how often every rewritten system time query is executed.
+ * With the {@code census} option, {@link TimeMachineAdapter} gives every call site it rewrites
+ * an ID and emits a call to {@link #hit(int)} in front of it. The report tells where the time
+ * is read under real load, e.g. hot loops calling {@code System.currentTimeMillis()}.
+ * <p>
+ *
+ * The counters are preallocated {@code long} arrays indexed by the site ID, one array per
+ * stripe so that threads on different stripes never write the same cache lines. The stripe is
+ * picked by the identity hash code of the thread. The increments are plain, so two threads
+ * sharing a stripe may occasionally lose a hit, which does not matter for a census. The call
+ * sites beyond {@link #CAPACITY} are not counted.
+ * <p>
+ *
+ * This class must be public because the instrumented classes refer to it.
+ */
+public final class CallSiteCensus
+{
+	static final int CAPACITY = 1 << 15;
+
+	private static final int STRIPES =
+		Math.min(8, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+	private static final long[][] COUNTS = new long[STRIPES][CAPACITY];
+	private static final List<Site> SITES = new ArrayList<>();
+
+
+	private CallSiteCensus()
+	{
+	}
+
+	/**
+	 * Called by the instrumented classes in front of every counted call site.
+	 */
+	public static void hit(int site)
+	{
+		int h = System.identityHashCode(Thread.currentThread());
+		COUNTS[(h ^ (h >>> 16)) & (STRIPES - 1)][site]++;
+	}
+
+	/**
+	 * Assigns an ID to a call site. Called when the call site is rewritten.
+	 *
+	 * @param line
+	 * 		The source line or {@code -1} if not known.
+	 *
+	 * @return
+	 * 		The ID or {@code -1} if the census is full.
+	 */
+	static synchronized int register(String className, String methodName, int line, TimeCall call)
+	{
+		if(SITES.size() == CAPACITY)
+			return -1;
+		SITES.add(new Site(className, methodName, line, call));
+		return SITES.size() - 1;
+	}
+
+	static synchronized long hits(int site)
+	{
+		long hits = 0;
+		for(long[] counts : COUNTS)
+			hits += counts[site];
+		return hits;
+	}
+
+	/**
+	 * @return
+	 * 		The call sites having any hits, the most hit first.
+	 */
+	public static String report()
+	{
+		StringBuilder report = new StringBuilder();
+		List<long[]> hits = new ArrayList<>();
+		long total = 0;
+		int size;
+		synchronized(CallSiteCensus.class) {
+			size = SITES.size();
+		}
+		for(int i = 0; i < size; i++) {
+			long h = hits(i);
+			if(h > 0)
+				hits.add(new long[] { h, i });
+			total += h;
+		}
+		Collections.sort(hits, (a, b) -> Long.compare(b[0], a[0]));
+
+		report.append("TimeMachine call-site census: ").append(size).append(" sites, ")
+			.append(total).append(" hits\n");
+		for(long[] h : hits) {
+			Site site;
+			synchronized(CallSiteCensus.class) {
+				site = SITES.get((int)h[1]);
+			}
+			report.append(String.format("%14d  %s%n", h[0], site));
+		}
+		return report.toString();
+	}
+
+	/**
+	 * Writes the report when the JVM exits.
+	 *
+	 * @param target
+	 * 		{@code true} for the standard error or a file name.
+	 */
+	static void reportAtShutdown(String target)
+	{
+		Runtime.getRuntime().addShutdownHook(
+			new Thread(
+				() -> {
+					if("true".equalsIgnoreCase(target)) {
+						System.err.print(report());
+						return;
+					}
+					try(
+						PrintStream out = new PrintStream(Files.newOutputStream(Paths.get(target)))
+					) {
+						out.print(report());
+					}
+					catch(IOException e) {
+						System.err.println(
+							"Couldn't write TimeMachine census to " + target + ". " + e
+						);
+					}
+				},
+				"TimeMachine census"
+			)
+		);
+	}
+
+
+	private static final class Site
+	{
+		final String className;
+		final String methodName;
+		final int line;
+		final TimeCall call;
+
+		Site(String className, String methodName, int line, TimeCall call)
+		{
+			this.className = className;
+			this.methodName = methodName;
+			this.line = line;
+			this.call = call;
+		}
+
+		@Override
+		public String toString()
+		{
+			return
+				className.replace('/', '.') + "." + methodName + ":"
+					+ (line < 0 ? "?" : String.valueOf(line)) + "  " + call;
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package com.codetropics.java.asm.timemachine;
+
+
+/**
+ * {@code ClassFilter} makes the final decision whether {@link TimeMachineTransformer} should
+ * look at a class at all. On top of the {@link ClassNameMatcher} rules it always skips:
+ * 	<ul>
+ * 		<li>the classes of the TimeMachine agent itself,</li>
+ * 		<li>hidden classes and lambda proxies,</li>
+ * 		<li>classes of the bootstrap class loader unless explicitly requested.</li>
+ * 	</ul>
+ *
+ * The decisions are not cached. A class is decided on about once per load or retransformation
+ * and the matcher is a single trie walk, so a cache would only grow with every class seen.
+ */
+final class ClassFilter
+{
+	private static final String[] AGENT_PACKAGES = {
+		"com/codetropics/java/asm/timemachine/",
+		"com/codetropics/java/agent/"
+	};
+
+	private final ClassNameMatcher _matcher;
+	private final boolean _bootstrapClasses;
+
+
+	/**
+	 * @param matcher
+	 * 		Include and exclude rules.
+	 *
+	 * @param bootstrapClasses
+	 * 		{@code true} if classes defined by the bootstrap class loader are to be instrumented.
+	 */
+	ClassFilter(ClassNameMatcher matcher, boolean bootstrapClasses)
+	{
+		_matcher = matcher;
+		_bootstrapClasses = bootstrapClasses;
+	}
+
+	/**
+	 * @return
+	 * 		A filter with other include and exclude rules but otherwise the same as this one.
+	 */
+	ClassFilter withMatcher(ClassNameMatcher matcher)
+	{
+		return new ClassFilter(matcher, _bootstrapClasses);
+	}
+
+	/**
+	 * @param loader
+	 * 		The defining loader of the class or {@code null} for the bootstrap class loader.
+	 *
+	 * @param className
+	 * 		Class name in the internal form as given to
+	 * 		{@link java.lang.instrument.ClassFileTransformer}.
+	 *
+	 * @return
+	 * 		{@code true} if the class is to be instrumented.
+	 */
+	boolean accept(ClassLoader loader, String className)
+	{
+		if(className == null || (loader == null && !_bootstrapClasses) || isGenerated(className))
+			return false;
+
+		return !isAgentClass(className) && _matcher.matches(className);
+	}
+
+	/**
+	 * Lambda proxies and other hidden classes get their names from the JVM and they cannot
+	 * be meaningfully instrumented.
+	 */
+	static boolean isGenerated(String className)
+	{
+		return className.contains("$$Lambda") || className.contains("/0x");
+	}
+
+	private static boolean isAgentClass(String className)
+	{
+		for(String agentPackage : AGENT_PACKAGES)
+			if(className.startsWith(agentPackage))
+				return true;
+		return false;
+	}
+}
@@ -0,0 +1,102 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.util.Collection;
+import java.util.regex.Pattern;
+
+
+/**
+ * {@code ClassNameMatcher} decides by a class name if a class is to be instrumented.
+ * <p>
+ *
+ * Include and exclude rules given as class name patterns (see {@link ClassNameTrie}) are
+ * compiled into a single trie so that a decision costs the same regardless of the number
+ * of rules. The most specific rule wins, and if an include and an exclude rule are exactly
+ * the same the exclude rule wins. If no include rules are given every class is included.
+ * <p>
+ *
+ * The regular expression based filters of the {@code com.hapiware.agent.Agent} configuration
+ * are supported by {@link #fromPatterns(Pattern[], Pattern[])}.
+ */
+abstract class ClassNameMatcher
+{
+	/**
+	 * @param className
+	 * 		Class name in the internal form (e.g. {@code com/acme/Foo}).
+	 *
+	 * @return
+	 * 		{@code true} if the class is to be instrumented.
+	 */
+	abstract boolean matches(String className);
+
+	/**
+	 * Compiles include and exclude rules into a matcher.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If some of the rules is not a valid class name pattern.
+	 */
+	static ClassNameMatcher compile(Collection<String> includes, Collection<String> excludes)
+	{
+		ClassNameTrie<Boolean> trie = new ClassNameTrie<>();
+		if(includes.isEmpty())
+			trie.put("**", Boolean.TRUE);
+		for(String include : includes)
+			trie.put(include, Boolean.TRUE);
+		for(String exclude : excludes)
+			trie.put(exclude, Boolean.FALSE);
+		return new TrieMatcher(trie);
+	}
+
+	/**
+	 * Creates a matcher from regular expressions. A class is included if it does not match
+	 * any of the exclude patterns and it matches some of the include patterns.
+	 */
+	static ClassNameMatcher fromPatterns(Pattern[] includePatterns, Pattern[] excludePatterns)
+	{
+		return new PatternMatcher(includePatterns, excludePatterns);
+	}
+
+
+	private static final class TrieMatcher
+		extends
+			ClassNameMatcher
+	{
+		private final ClassNameTrie<Boolean> _trie;
+
+		TrieMatcher(ClassNameTrie<Boolean> trie)
+		{
+			_trie = trie;
+		}
+
+		@Override
+		boolean matches(String className)
+		{
+			return _trie.find(className) == Boolean.TRUE;
+		}
+	}
+
+	private static final class PatternMatcher
+		extends
+			ClassNameMatcher
+	{
+		private final Pattern[] _includePatterns;
+		private final Pattern[] _excludePatterns;
+
+		PatternMatcher(Pattern[] includePatterns, Pattern[] excludePatterns)
+		{
+			_includePatterns = includePatterns;
+			_excludePatterns = excludePatterns;
+		}
+
+		@Override
+		boolean matches(String className)
+		{
+			for(Pattern p : _excludePatterns)
+				if(p.matcher(className).matches())
+					return false;
+			for(Pattern p : _includePatterns)
+				if(p.matcher(className).matches())
+					return true;
+			return false;
+		}
+	}
+}
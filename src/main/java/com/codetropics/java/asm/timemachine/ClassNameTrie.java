@@ -0,0 +1,207 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.util.Arrays;
+
+
+/**
+ * {@code ClassNameTrie} maps class name patterns to values and finds the most specific
+ * pattern for a class name in a single pass over the name. The cost of a lookup depends
+ * only on the length of the class name and not on the number of patterns.
+ * <p>
+ *
+ * Class names are given in the internal form (e.g. {@code com/acme/Foo}). Patterns may
+ * also use dots as separators. The supported pattern forms are:
+ * 	<ul>
+ * 		<li>{@code com/acme/Foo} matches exactly the given class.</li>
+ * 		<li>
+ * 			{@code com/acme/*} matches every class directly in the {@code com/acme} package.
+ * 			{@code com/acme/Foo*} matches every class in the {@code com/acme} package with
+ * 			a name starting with {@code Foo} (e.g. the inner classes of {@code Foo}).
+ * 		</li>
+ * 		<li>
+ * 			{@code com/acme/**} matches every class in the {@code com/acme} package and all
+ * 			its subpackages. A single {@code **} matches every class.
+ * 		</li>
+ * 	</ul>
+ * Wildcards are allowed only at the end of a pattern.
+ * <p>
+ *
+ * When several patterns match, the one with the longest literal part wins. If the literal
+ * parts are equal, an exact pattern wins over {@code *} which wins over {@code **}.
+ *
+ * @param <V>
+ * 		Type of the values.
+ */
+final class ClassNameTrie<V>
+{
+	private static final int PREFIX = 0;
+	private static final int SEGMENT = 1;
+	private static final int EXACT = 2;
+
+	private final Node<V> _root = new Node<>();
+	private int _size;
+
+
+	/**
+	 * Adds a pattern. An existing value for the same pattern is replaced.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the pattern has wildcards anywhere else but at the end.
+	 */
+	void put(String pattern, V value)
+	{
+		Key key = Key.parse(pattern);
+		if(key.kind == EXACT && key.literal.isEmpty())
+			throw new IllegalArgumentException("Empty class name pattern.");
+
+		Node<V> node = _root;
+		for(int i = 0; i < key.literal.length(); i++)
+			node = node.child(key.literal.charAt(i), true);
+		if(node.values[key.kind] == null)
+			_size++;
+		node.values[key.kind] = value;
+	}
+
+	/**
+	 * Removes a pattern.
+	 *
+	 * @return
+	 * 		{@code true} if the pattern existed.
+	 */
+	boolean remove(String pattern)
+	{
+		Key key = Key.parse(pattern);
+		Node<V> node = _root;
+		for(int i = 0; i < key.literal.length() && node != null; i++)
+			node = node.child(key.literal.charAt(i), false);
+		if(node == null || node.values[key.kind] == null)
+			return false;
+		node.values[key.kind] = null;
+		_size--;
+		return true;
+	}
+
+	/**
+	 * Finds the value of the most specific pattern matching the class name.
+	 *
+	 * @param className
+	 * 		Class name in the internal form.
+	 *
+	 * @return
+	 * 		The value or {@code null} if no pattern matches.
+	 */
+	V find(String className)
+	{
+		int lastSlash = className.lastIndexOf('/');
+		Node<V> node = _root;
+		V found = null;
+		for(int i = 0; ; i++) {
+			if(node.values[PREFIX] != null)
+				found = node.values[PREFIX];
+			if(node.values[SEGMENT] != null && lastSlash < i)
+				found = node.values[SEGMENT];
+			if(i == className.length()) {
+				if(node.values[EXACT] != null)
+					found = node.values[EXACT];
+				return found;
+			}
+			node = node.child(className.charAt(i), false);
+			if(node == null)
+				return found;
+		}
+	}
+
+	int size()
+	{
+		return _size;
+	}
+
+	/**
+	 * @return
+	 * 		The literal part of a pattern in the internal form. Every class name matched by
+	 * 		the pattern starts with it.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the pattern has wildcards anywhere else but at the end.
+	 */
+	static String prefix(String pattern)
+	{
+		return Key.parse(pattern).literal;
+	}
+
+
+	/**
+	 * A pattern split to its literal part and the kind of its trailing wildcard.
+	 */
+	private static final class Key
+	{
+		final String literal;
+		final int kind;
+
+		private Key(String literal, int kind)
+		{
+			this.literal = literal;
+			this.kind = kind;
+		}
+
+		/**
+		 * @throws IllegalArgumentException
+		 * 		If the pattern has wildcards anywhere else but at the end.
+		 */
+		static Key parse(String pattern)
+		{
+			String literal = pattern.trim().replace('.', '/');
+			int kind = EXACT;
+			if(literal.endsWith("**")) {
+				kind = PREFIX;
+				literal = literal.substring(0, literal.length() - 2);
+			}
+			else
+				if(literal.endsWith("*")) {
+					kind = SEGMENT;
+					literal = literal.substring(0, literal.length() - 1);
+				}
+			if(literal.indexOf('*') >= 0 || literal.indexOf('?') >= 0)
+				throw new IllegalArgumentException(
+					"Wildcards are allowed only at the end of a class name pattern: " + pattern
+				);
+			return new Key(literal, kind);
+		}
+	}
+
+	private static final class Node<V>
+	{
+		private static final char[] NO_KEYS = new char[0];
+
+		@SuppressWarnings("unchecked")
+		final V[] values = (V[])new Object[3];
+		private char[] _keys = NO_KEYS;
+		private Node<?>[] _children;
+
+		@SuppressWarnings("unchecked")
+		Node<V> child(char c, boolean create)
+		{
+			int i = Arrays.binarySearch(_keys, c);
+			if(i >= 0)
+				return (Node<V>)_children[i];
+			if(!create)
+				return null;
+
+			i = -i - 1;
+			char[] keys = new char[_keys.length + 1];
+			Node<?>[] children = new Node<?>[keys.length];
+			System.arraycopy(_keys, 0, keys, 0, i);
+			System.arraycopy(_keys, i, keys, i + 1, _keys.length - i);
+			if(_children != null) {
+				System.arraycopy(_children, 0, children, 0, i);
+				System.arraycopy(_children, i, children, i + 1, _keys.length - i);
+			}
+			Node<V> node = new Node<>();
+			keys[i] = c;
+			children[i] = node;
+			_keys = keys;
+			_children = children;
+			return node;
+		}
+	}
+}
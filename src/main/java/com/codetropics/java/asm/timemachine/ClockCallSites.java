@@ -0,0 +1,521 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.invoke.SwitchPoint;
+
+import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate.Milliseconds;
+
+
+/**
+ * {@code ClockCallSites} links the {@code invokedynamic} instructions emitted by
+ * {@link TimeMachineAdapter} in {@link RewriteMode#DYNAMIC} mode.
+ * <p>
+ *
+ * Every call site takes the original system time value ({@code currentTimeMillis} or
+ * {@code nanoTime}) and returns the shifted value. The call site is bound to a method handle
+ * having the current time shift as a bound constant, which the JIT compiler folds exactly like
+ * the constant emitted in {@link RewriteMode#CONSTANT} mode. The binding is guarded by
+ * a {@link SwitchPoint}. When the time shift is changed the switch point is invalidated and
+ * every call site relinks itself to the new time shift on its next call. No classes are
+ * retransformed.
+ * <p>
+ *
+ * Once the first {@link TimeContext} scope is opened, the call sites are relinked to a method
+ * handle which looks up the scoped time shift before falling back to the global one.
+ * <p>
+ *
+ * With a {@link VirtualClock}, the call sites add the time skipped by the virtual clock to
+ * the system time value before shifting it.
+ * <p>
+ *
+ * The call sites emitted for {@code record} or {@code replay} carry a name, and they pass
+ * the values they return to a {@link ClockRecorder}, or return the values of
+ * a {@link ClockReplay} instead.
+ * <p>
+ *
+ * Every change of the time shift is passed on to {@link SchedulerHook}.
+ * <p>
+ *
+ * With a {@link SharedClock}, every call site also checks that the sequence number of
+ * the clock file is still the one its time shift was read with. When another JVM has changed
+ * the time shift, the call site reads the new one and relinks itself.
+ * <p>
+ *
+ * This class must be public because the instrumented classes refer to it.
+ *
+ * @see TimeMachine
+ */
+public final class ClockCallSites
+{
+	static final String MILLIS = "millis";
+	static final String NANOS = "nanos";
+
+	static final String BOOTSTRAP_DESC =
+		MethodType.methodType(
+			CallSite.class,
+			MethodHandles.Lookup.class,
+			String.class,
+			MethodType.class
+		).toMethodDescriptorString();
+	static final String NAMED_BOOTSTRAP_DESC =
+		MethodType.methodType(
+			CallSite.class,
+			MethodHandles.Lookup.class,
+			String.class,
+			MethodType.class,
+			String.class
+		).toMethodDescriptorString();
+
+	private static final MethodHandle ADD;
+	private static final MethodHandle DILATE;
+	private static final MethodHandle RELINK;
+	private static final MethodHandle CONTEXT;
+	private static final MethodHandle CONTEXT_NANOS;
+	private static final MethodHandle SHARED_CURRENT;
+	private static final MethodHandle VIRTUAL_MILLIS;
+	private static final MethodHandle VIRTUAL_NANOS;
+	static {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			ADD =
+				lookup.findStatic(
+					ClockCallSites.class,
+					"add",
+					MethodType.methodType(long.class, long.class, long.class)
+				);
+			DILATE =
+				lookup.findStatic(
+					ClockCallSites.class,
+					"dilate",
+					MethodType.methodType(
+						long.class,
+						long.class,
+						long.class,
+						long.class,
+						long.class,
+						long.class
+					)
+				);
+			RELINK =
+				lookup.findStatic(
+					ClockCallSites.class,
+					"relink",
+					MethodType.methodType(long.class, ClockCallSite.class, long.class)
+				);
+			CONTEXT =
+				lookup.findStatic(
+					TimeContext.class,
+					"millis",
+					MethodType.methodType(long.class, long.class, Milliseconds.class)
+				);
+			CONTEXT_NANOS =
+				lookup.findStatic(
+					TimeContext.class,
+					"nanos",
+					MethodType.methodType(long.class, long.class, Milliseconds.class, long.class)
+				);
+			SHARED_CURRENT =
+				lookup.findVirtual(
+					SharedClock.class,
+					"isCurrent",
+					MethodType.methodType(boolean.class, long.class)
+				);
+			VIRTUAL_MILLIS =
+				lookup.findStatic(
+					VirtualClock.class,
+					"millis",
+					MethodType.methodType(long.class, long.class)
+				);
+			VIRTUAL_NANOS =
+				lookup.findStatic(
+					VirtualClock.class,
+					"nanos",
+					MethodType.methodType(long.class, long.class)
+				);
+		}
+		catch(ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * Starts with the time shift of the offline instrumented classes, if any, which
+	 * the agent replaces when it is started.
+	 */
+	private static volatile Binding _binding =
+		new Binding(initialTimeShift(), new SwitchPoint(), null, 0);
+
+	private static volatile boolean _timeContexts;
+	private static volatile boolean _virtualClock;
+	private static volatile ClockRecorder _recorder;
+	private static volatile ClockReplay _replay;
+
+
+	private ClockCallSites()
+	{
+	}
+
+	/**
+	 * Bootstrap method for the {@code invokedynamic} instructions.
+	 *
+	 * @param lookup
+	 * 		Lookup of the instrumented class.
+	 *
+	 * @param name
+	 * 		Kind of the system time value, {@code "millis"} or {@code "nanos"}.
+	 *
+	 * @param type
+	 * 		Always {@code (J)J}.
+	 *
+	 * @return
+	 * 		A call site bound to the current time shift.
+	 */
+	public static CallSite bootstrap(MethodHandles.Lookup lookup, String name, MethodType type)
+	{
+		return bootstrap(lookup, name, type, null);
+	}
+
+	/**
+	 * Bootstrap method for the {@code invokedynamic} instructions of the call sites which
+	 * can be recorded and replayed.
+	 *
+	 * @param site
+	 * 		Name of the call site within its method, which is prefixed with the name of
+	 * 		the instrumented class (see {@link TimeMachineAdapter#recordable(String)}).
+	 *
+	 * @see #bootstrap(MethodHandles.Lookup, String, MethodType)
+	 */
+	public static CallSite bootstrap(
+		MethodHandles.Lookup lookup,
+		String name,
+		MethodType type,
+		String site
+	)
+	{
+		if(!MILLIS.equals(name) && !NANOS.equals(name))
+			throw new IllegalArgumentException("Unknown time value: " + name);
+		ClockCallSite callSite =
+			new ClockCallSite(
+				type,
+				NANOS.equals(name),
+				site == null
+					? null
+					: lookup.lookupClass().getName().replace('.', '/') + "." + site
+			);
+		bind(callSite, _binding);
+		return callSite;
+	}
+
+	/**
+	 * Shifts a system time value using the current time shift without a call site. This is
+	 * used for class files too old for {@code invokedynamic}.
+	 */
+	public static long millis(long millis)
+	{
+		checkSharedClock();
+		if(_virtualClock)
+			millis = VirtualClock.millis(millis);
+		if(_timeContexts)
+			return TimeContext.millis(millis, _binding.shift);
+		return _binding.shift.apply(millis);
+	}
+
+	/**
+	 * Shifts a {@code System.nanoTime()} value without a call site.
+	 *
+	 * @see #bootstrap(MethodHandles.Lookup, String, MethodType)
+	 */
+	public static long nanos(long nanos)
+	{
+		checkSharedClock();
+		if(_virtualClock)
+			nanos = VirtualClock.nanos(nanos);
+		Binding binding = _binding;
+		if(_timeContexts)
+			return TimeContext.nanos(nanos, binding.shift, binding.nanoShift);
+		if(binding.shift.isDilated())
+			return binding.shift.dilateNanos(nanos);
+		return nanos + binding.nanoShift;
+	}
+
+	/**
+	 * Changes the time shift of every call site.
+	 */
+	static synchronized void setTimeShift(Milliseconds shift)
+	{
+		Binding old = _binding;
+		_binding = new Binding(shift, new SwitchPoint(), old.clock, old.sequence);
+		SwitchPoint.invalidateAll(new SwitchPoint[] { old.switchPoint });
+		if(shift != old.shift)
+			SchedulerHook.jumped(_binding.nanoShift);
+	}
+
+	/**
+	 * Takes the time shift from a shared clock from now on, or stops using one.
+	 *
+	 * @param clock
+	 * 		The shared clock or {@code null}.
+	 */
+	static synchronized void setSharedClock(SharedClock clock)
+	{
+		Binding old = _binding;
+		if(clock == null)
+			_binding = new Binding(old.shift, new SwitchPoint(), null, 0);
+		else {
+			long sequence;
+			Milliseconds shift;
+			// Bounded by SharedClock.STALE_NANOS unless other writers keep changing the clock.
+			do {
+				sequence = clock.stableSequence();
+				shift = clock.read(sequence);
+			}
+			while(shift == null);
+			_binding = new Binding(shift, new SwitchPoint(), clock, sequence);
+		}
+		SwitchPoint.invalidateAll(new SwitchPoint[] { old.switchPoint });
+		if(_binding.shift != old.shift)
+			SchedulerHook.jumped(_binding.nanoShift);
+	}
+
+	static SharedClock getSharedClock()
+	{
+		return _binding.clock;
+	}
+
+	/**
+	 * Reads the time shift of the shared clock again if it has been changed.
+	 */
+	private static void checkSharedClock()
+	{
+		Binding binding = _binding;
+		if(binding.clock != null && !binding.clock.isCurrent(binding.sequence))
+			synchronized(ClockCallSites.class) {
+				if(_binding.clock != null && !_binding.clock.isCurrent(_binding.sequence))
+					setSharedClock(_binding.clock);
+			}
+	}
+
+	static Milliseconds getTimeShift()
+	{
+		return _binding.shift;
+	}
+
+	/**
+	 * Relinks every call site to look up the scoped time shift of {@link TimeContext}. Called
+	 * when a scope is opened; only the first call has any effect.
+	 */
+	static void enableTimeContexts()
+	{
+		if(_timeContexts)
+			return;
+		synchronized(ClockCallSites.class) {
+			if(_timeContexts)
+				return;
+			_timeContexts = true;
+			setTimeShift(_binding.shift);
+		}
+	}
+
+	/**
+	 * Relinks every call site to add the time skipped by {@link VirtualClock}, or not.
+	 */
+	static synchronized void setVirtualClock(boolean virtualClock)
+	{
+		if(_virtualClock == virtualClock)
+			return;
+		_virtualClock = virtualClock;
+		setTimeShift(_binding.shift);
+	}
+
+	/**
+	 * Relinks the named call sites to record the values they return, or stops recording.
+	 * The previous recorder is closed.
+	 */
+	static synchronized void setRecorder(ClockRecorder recorder)
+	{
+		ClockRecorder old = _recorder;
+		if(old == recorder)
+			return;
+		_recorder = recorder;
+		setTimeShift(_binding.shift);
+		if(old != null)
+			old.close();
+	}
+
+	/**
+	 * Relinks the named call sites to return the values of a recording, or stops replaying.
+	 */
+	static synchronized void setReplay(ClockReplay replay)
+	{
+		if(_replay == replay)
+			return;
+		_replay = replay;
+		setTimeShift(_binding.shift);
+	}
+
+	private static void bind(ClockCallSite site, Binding binding)
+	{
+		Milliseconds shift = binding.shift;
+		MethodHandle target;
+		if(site.nanos)
+			if(_timeContexts)
+				target = MethodHandles.insertArguments(CONTEXT_NANOS, 1, shift, binding.nanoShift);
+			else if(shift.isDilated())
+				target =
+					MethodHandles.insertArguments(
+						DILATE,
+						1,
+						shift.getNanoBaseline(),
+						shift.getNanoBaseline(),
+						shift.getRateWhole(),
+						shift.getRateFraction()
+					);
+			else
+				target = MethodHandles.insertArguments(ADD, 1, binding.nanoShift);
+		else if(_timeContexts)
+			target = MethodHandles.insertArguments(CONTEXT, 1, shift);
+		else if(shift.isDilated())
+			target =
+				MethodHandles.insertArguments(
+					DILATE,
+					1,
+					shift.getBaseline(),
+					shift.getTime(),
+					shift.getRateWhole(),
+					shift.getRateFraction()
+				);
+		else if(shift.isRelative())
+			target = MethodHandles.insertArguments(ADD, 1, shift.getTime());
+		else
+			target =
+				MethodHandles.dropArguments(
+					MethodHandles.constant(long.class, shift.getTime()),
+					0,
+					long.class
+				);
+		if(_virtualClock)
+			target =
+				MethodHandles.filterArguments(
+					target,
+					0,
+					site.nanos ? VIRTUAL_NANOS : VIRTUAL_MILLIS
+				);
+		if(site.name != null) {
+			ClockRecorder recorder = _recorder;
+			ClockReplay replay = _replay;
+			if(recorder != null)
+				target = recorder.record(site.name, target);
+			if(replay != null)
+				target = replay.replay(site.name, target);
+		}
+		MethodHandle relink = RELINK.bindTo(site);
+		if(binding.clock != null) {
+			MethodHandle current =
+				MethodHandles.insertArguments(SHARED_CURRENT, 0, binding.clock, binding.sequence);
+			target = MethodHandles.guardWithTest(current, target, relink);
+		}
+		site.setTarget(binding.switchPoint.guardWithTest(target, relink));
+	}
+
+	private static long add(long millis, long offset)
+	{
+		return millis + offset;
+	}
+
+	private static long dilate(
+		long value,
+		long baseline,
+		long start,
+		long rateWhole,
+		long rateFraction
+	)
+	{
+		return start + Milliseconds.dilate(value - baseline, rateWhole, rateFraction);
+	}
+
+	/**
+	 * Called once per call site after the time shift has changed.
+	 */
+	private static long relink(ClockCallSite site, long value)
+		throws
+			Throwable
+	{
+		checkSharedClock();
+		bind(site, _binding);
+		return (long)site.getTarget().invokeExact(value);
+	}
+
+	private static Milliseconds initialTimeShift()
+	{
+		Milliseconds offline = OfflineInstrumenter.timeShift(ClockCallSites.class.getClassLoader());
+		return offline == null ? new Milliseconds(true, 0) : offline;
+	}
+
+	/**
+	 * @see Binding#nanoShift
+	 */
+	static long nanoShift(Milliseconds shift)
+	{
+		if(shift.isDilated())
+			return 0;
+		long millis =
+			shift.isRelative() ? shift.getTime() : shift.getTime() - System.currentTimeMillis();
+		return millis * 1000000L;
+	}
+
+
+	private static final class ClockCallSite
+		extends
+			MutableCallSite
+	{
+		final boolean nanos;
+
+		/**
+		 * The name for {@link ClockRecorder} and {@link ClockReplay} or {@code null}.
+		 */
+		final String name;
+
+		ClockCallSite(MethodType type, boolean nanos, String name)
+		{
+			super(type);
+			this.nanos = nanos;
+			this.name = name;
+		}
+	}
+
+
+	private static final class Binding
+	{
+		final Milliseconds shift;
+		final SwitchPoint switchPoint;
+
+		/**
+		 * The shared clock the time shift was read from and its sequence number then, or
+		 * {@code null} and {@code 0}.
+		 */
+		final SharedClock clock;
+		final long sequence;
+
+		/**
+		 * Offset of {@code System.nanoTime()}. A relative time shift moves the nano time as
+		 * much as the wall clock. An absolute time shift moves it as much as the wall clock
+		 * jumped when the shift was set, after which the nano time keeps running so that
+		 * the code waiting for a deadline does not hang. A dilated time dilates the nano time
+		 * too instead.
+		 */
+		final long nanoShift;
+
+		Binding(Milliseconds shift, SwitchPoint switchPoint, SharedClock clock, long sequence)
+		{
+			this.shift = shift;
+			this.switchPoint = switchPoint;
+			this.clock = clock;
+			this.sequence = sequence;
+			this.nanoShift = nanoShift(shift);
+		}
+	}
+}
@@ -0,0 +1,372 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.WeakReference;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * {@code ClockRecorder} records every value returned by the named call sites of
+ * {@link ClockCallSites} into a log file, which {@link ClockReplay} plays back in a later run
+ * so that the timing of a load test or an incident can be reproduced.
+ * <p>
+ *
+ * Every thread appends to a ring buffer of its own. The thread owning a buffer is its only
+ * writer and a background thread is its only reader, so a recorded value costs a thread local
+ * lookup, two array stores and an ordered store of the tail, without locks or atomic
+ * read-modify-write instructions. When a buffer is full, because the background thread has
+ * fallen behind, the value is dropped and counted instead of waiting. The background thread
+ * drains the buffers every {@value #DRAIN_MILLIS} milliseconds into a memory mapped file,
+ * which is extended a region at a time, and updates the length in the header of the file
+ * after every round so that the log is readable up to the last round even if the JVM dies.
+ * <p>
+ *
+ * The layout of the file, in the big-endian byte order:
+ * <xmp>
+ * 	 0  int    magic
+ * 	 4  int    version
+ * 	 8  long   length of the records
+ * 	16  long   number of the dropped values
+ * 	24  long   reserved
+ * 	32         records
+ * </xmp>
+ * A record is either a value, {@code int site, int thread, long value}, or the name of a call
+ * site or a thread, {@code int -1 (site) or -2 (thread), int id, int length, byte[] UTF-8}.
+ * The IDs are given in the order the call sites are linked and the threads first read
+ * the time, so they differ between runs. The names of the call sites are stable
+ * (see {@link TimeMachineAdapter#recordable(String)}) and they connect the recordings
+ * of different runs.
+ */
+final class ClockRecorder
+{
+	static final int MAGIC = 0x544d524c;
+	static final int VERSION = 1;
+	static final int HEADER = 32;
+	static final int LENGTH = 8;
+	static final int DROPPED = 16;
+	static final int SITE = -1;
+	static final int THREAD = -2;
+	static final int VALUE_SIZE = 16;
+
+	static final int BUFFER_SIZE = 8192;
+	static final long DRAIN_MILLIS = 10;
+	private static final int REGION = 16 << 20;
+
+	private static final MethodHandle RECORD;
+	private static final VarHandle HEAD;
+	private static final VarHandle TAIL;
+	private static final VarHandle BUFFER_DROPPED;
+	static {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			RECORD =
+				lookup.findVirtual(
+					ClockRecorder.class,
+					"record",
+					MethodType.methodType(long.class, int.class, long.class)
+				);
+			HEAD = lookup.findVarHandle(Buffer.class, "head", long.class);
+			TAIL = lookup.findVarHandle(Buffer.class, "tail", long.class);
+			BUFFER_DROPPED = lookup.findVarHandle(Buffer.class, "dropped", long.class);
+		}
+		catch(ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private final FileChannel _channel;
+	private final MappedByteBuffer _header;
+	private final int _bufferSize;
+	private final ThreadLocal<Buffer> _buffers = ThreadLocal.withInitial(this::newBuffer);
+	private final CopyOnWriteArrayList<Buffer> _allBuffers = new CopyOnWriteArrayList<>();
+	private final Queue<Name> _names = new ConcurrentLinkedQueue<>();
+	private final Map<String, Integer> _sites = new HashMap<>();
+	private final AtomicInteger _threads = new AtomicInteger();
+	private final Thread _writer;
+	private MappedByteBuffer _region;
+	private long _regionStart;
+	private long _length;
+	private long _dropped;
+	private volatile boolean _closed;
+
+
+	private ClockRecorder(FileChannel channel, int bufferSize)
+		throws
+			IOException
+	{
+		_channel = channel;
+		_bufferSize = bufferSize;
+		_header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+		_header.putInt(4, VERSION);
+		_header.putLong(LENGTH, 0);
+		_header.putLong(DROPPED, 0);
+		_header.putInt(0, MAGIC);
+		_regionStart = HEADER;
+		_region = channel.map(FileChannel.MapMode.READ_WRITE, _regionStart, REGION);
+		_writer = new Thread(this::drainPeriodically, "TimeMachine clock recorder");
+		_writer.setDaemon(true);
+	}
+
+	/**
+	 * Creates a log file, replacing an existing one, and starts recording into it.
+	 */
+	static ClockRecorder open(Path file)
+		throws
+			IOException
+	{
+		return open(file, BUFFER_SIZE);
+	}
+
+	/**
+	 * @param bufferSize
+	 * 		Number of values a ring buffer of a thread can hold. A power of two.
+	 */
+	static ClockRecorder open(Path file, int bufferSize)
+		throws
+			IOException
+	{
+		if(Integer.bitCount(bufferSize) != 1)
+			throw new IllegalArgumentException("Buffer size must be a power of two: " + bufferSize);
+		FileChannel channel =
+			FileChannel.open(
+				file,
+				StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ,
+				StandardOpenOption.WRITE
+			);
+		try {
+			ClockRecorder recorder = new ClockRecorder(channel, bufferSize);
+			recorder._writer.start();
+			return recorder;
+		}
+		catch(IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Makes a call site target record the values it returns. Called when a call site is
+	 * linked.
+	 *
+	 * @param site
+	 * 		The name of the call site.
+	 */
+	MethodHandle record(String site, MethodHandle target)
+	{
+		int id;
+		synchronized(_sites) {
+			Integer known = _sites.get(site);
+			if(known == null) {
+				known = _sites.size();
+				_sites.put(site, known);
+				_names.add(new Name(SITE, known, site));
+			}
+			id = known;
+		}
+		return
+			MethodHandles.filterReturnValue(
+				target,
+				MethodHandles.insertArguments(RECORD, 0, this, id)
+			);
+	}
+
+	/**
+	 * Appends a value to the ring buffer of the current thread, or drops it if the buffer
+	 * is full.
+	 *
+	 * @return
+	 * 		The value.
+	 */
+	private long record(int site, long value)
+	{
+		Buffer buffer = _buffers.get();
+		long tail = buffer.tail;
+		if(tail - buffer.cachedHead >= buffer.capacity) {
+			buffer.cachedHead = (long)HEAD.getAcquire(buffer);
+			if(tail - buffer.cachedHead >= buffer.capacity) {
+				BUFFER_DROPPED.setOpaque(buffer, buffer.dropped + 1);
+				return value;
+			}
+		}
+		int i = ((int)tail & buffer.mask) << 1;
+		buffer.entries[i] = site;
+		buffer.entries[i + 1] = value;
+		TAIL.setRelease(buffer, tail + 1);
+		return value;
+	}
+
+	private Buffer newBuffer()
+	{
+		Buffer buffer = new Buffer(Thread.currentThread(), _threads.getAndIncrement(), _bufferSize);
+		_names.add(new Name(THREAD, buffer.thread, Thread.currentThread().getName()));
+		_allBuffers.add(buffer);
+		return buffer;
+	}
+
+	/**
+	 * Stops recording, writes what is left in the buffers and truncates the file to its
+	 * content.
+	 */
+	void close()
+	{
+		synchronized(this) {
+			if(_closed)
+				return;
+			_closed = true;
+		}
+		_writer.interrupt();
+		try {
+			_writer.join();
+			drain();
+			_channel.truncate(HEADER + _length);
+			_channel.close();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch(IOException e) {
+			System.err.println("TimeMachine couldn't close the clock recording. " + e);
+		}
+	}
+
+	/**
+	 * @return
+	 * 		The number of the values dropped because a buffer was full.
+	 */
+	synchronized long dropped()
+	{
+		long dropped = _dropped;
+		for(Buffer buffer : _allBuffers)
+			dropped += (long)BUFFER_DROPPED.getOpaque(buffer);
+		return dropped;
+	}
+
+	private void drainPeriodically()
+	{
+		while(!_closed) {
+			try {
+				drain();
+				Thread.sleep(DRAIN_MILLIS);
+			}
+			catch(InterruptedException e) {
+				return;
+			}
+			catch(IOException e) {
+				System.err.println("TimeMachine stopped recording the clock. " + e);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Moves the names and the values of every buffer to the file. The buffers of the threads
+	 * which have ended are dropped once they are empty.
+	 */
+	synchronized void drain()
+		throws
+			IOException
+	{
+		for(Name name; (name = _names.poll()) != null; ) {
+			byte[] bytes = name.name.getBytes(StandardCharsets.UTF_8);
+			ensure(12 + bytes.length);
+			_region.putInt(name.kind).putInt(name.id).putInt(bytes.length).put(bytes);
+		}
+		for(Buffer buffer : _allBuffers) {
+			long head = buffer.head;
+			long tail = (long)TAIL.getAcquire(buffer);
+			for(long h = head; h < tail; h++) {
+				int i = ((int)h & buffer.mask) << 1;
+				ensure(VALUE_SIZE);
+				_region.putInt((int)buffer.entries[i]).putInt(buffer.thread)
+					.putLong(buffer.entries[i + 1]);
+			}
+			HEAD.setRelease(buffer, tail);
+			Thread owner = buffer.owner.get();
+			if((owner == null || !owner.isAlive()) && (long)TAIL.getAcquire(buffer) == tail) {
+				_dropped += (long)BUFFER_DROPPED.getOpaque(buffer);
+				_allBuffers.remove(buffer);
+			}
+		}
+		_length = _regionStart + _region.position() - HEADER;
+		_header.putLong(DROPPED, dropped());
+		_header.putLong(LENGTH, _length);
+	}
+
+	/**
+	 * Maps the next region of the file if the current one has less room than needed.
+	 */
+	private void ensure(int bytes)
+		throws
+			IOException
+	{
+		if(_region.remaining() >= bytes)
+			return;
+		_regionStart += _region.position();
+		_region =
+			_channel.map(FileChannel.MapMode.READ_WRITE, _regionStart, Math.max(REGION, bytes));
+	}
+
+
+	/**
+	 * A single producer, single consumer ring buffer of {@code (site, value)} pairs.
+	 */
+	private static final class Buffer
+	{
+		final WeakReference<Thread> owner;
+		final int thread;
+		final long[] entries;
+		final int capacity;
+		final int mask;
+
+		/**
+		 * Written by the owner only.
+		 */
+		long tail;
+		long cachedHead;
+		long dropped;
+
+		/**
+		 * Written by the background thread only.
+		 */
+		long head;
+
+		Buffer(Thread owner, int thread, int capacity)
+		{
+			this.owner = new WeakReference<>(owner);
+			this.thread = thread;
+			this.entries = new long[capacity * 2];
+			this.capacity = capacity;
+			this.mask = capacity - 1;
+		}
+	}
+
+	private static final class Name
+	{
+		final int kind;
+		final int id;
+		final String name;
+
+		Name(int kind, int id, String name)
+		{
+			this.kind = kind;
+			this.id = id;
+			this.name = name;
+		}
+	}
+}
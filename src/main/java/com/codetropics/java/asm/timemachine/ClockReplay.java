@@ -0,0 +1,176 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * {@code ClockReplay} plays back a log written by {@link ClockRecorder}. Every named call site
+ * of {@link ClockCallSites} returns the values recorded for the call site of the same name,
+ * in the order they were recorded, instead of the time. A call site returns the time again
+ * when its recorded values run out, and the call sites without recorded values are not
+ * affected at all.
+ * <p>
+ *
+ * The values of a call site are handed out with a single atomic increment. If several threads
+ * share a call site, they share its values in the order they ask for them, which is not
+ * necessarily the order of the recorded threads.
+ */
+final class ClockReplay
+{
+	private static final MethodHandle REPLAY;
+	static {
+		try {
+			REPLAY =
+				MethodHandles.lookup().findStatic(
+					ClockReplay.class,
+					"replay",
+					MethodType.methodType(long.class, Values.class, long.class)
+				);
+		}
+		catch(ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private final Map<String, Values> _sites;
+	private final long _dropped;
+
+
+	private ClockReplay(Map<String, Values> sites, long dropped)
+	{
+		_sites = sites;
+		_dropped = dropped;
+	}
+
+	/**
+	 * Reads a log file.
+	 *
+	 * @throws IOException
+	 * 		If the file cannot be read or it is not a clock recording.
+	 */
+	static ClockReplay read(Path file)
+		throws
+			IOException
+	{
+		ByteBuffer log;
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if(channel.size() < ClockRecorder.HEADER)
+				throw new IOException(file + " is not a TimeMachine clock recording.");
+			if(channel.size() > Integer.MAX_VALUE)
+				throw new IOException(file + " is too large to be replayed.");
+			log = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if(
+			log.getInt(0) != ClockRecorder.MAGIC ||
+			log.getInt(4) != ClockRecorder.VERSION
+		)
+			throw new IOException(file + " is not a TimeMachine clock recording.");
+		long length = log.getLong(ClockRecorder.LENGTH);
+		if(length > log.capacity() - ClockRecorder.HEADER)
+			throw new IOException(file + " is truncated.");
+		log.position(ClockRecorder.HEADER).limit(ClockRecorder.HEADER + (int)length);
+
+		// The values may come before the name of their call site.
+		Map<Integer, String> names = new HashMap<>();
+		Map<Integer, Values> values = new HashMap<>();
+		while(log.hasRemaining()) {
+			int kind = log.getInt();
+			if(kind == ClockRecorder.SITE || kind == ClockRecorder.THREAD) {
+				int id = log.getInt();
+				byte[] name = new byte[log.getInt()];
+				log.get(name);
+				if(kind == ClockRecorder.SITE)
+					names.put(id, new String(name, StandardCharsets.UTF_8));
+			}
+			else {
+				log.getInt();
+				values.computeIfAbsent(kind, k -> new Values()).add(log.getLong());
+			}
+		}
+
+		Map<String, Values> sites = new HashMap<>();
+		for(Map.Entry<Integer, Values> site : values.entrySet()) {
+			String name = names.get(site.getKey());
+			if(name != null)
+				sites.put(name, site.getValue().trim());
+		}
+		return new ClockReplay(sites, log.getLong(ClockRecorder.DROPPED));
+	}
+
+	/**
+	 * Makes a call site target return the recorded values of the call site. Called when
+	 * a call site is linked.
+	 *
+	 * @param site
+	 * 		The name of the call site.
+	 */
+	MethodHandle replay(String site, MethodHandle target)
+	{
+		Values values = _sites.get(site);
+		if(values == null)
+			return target;
+		return MethodHandles.filterReturnValue(target, REPLAY.bindTo(values));
+	}
+
+	/**
+	 * @return
+	 * 		The number of the recorded values of a call site.
+	 */
+	int size(String site)
+	{
+		Values values = _sites.get(site);
+		return values == null ? 0 : values.values.length;
+	}
+
+	/**
+	 * @return
+	 * 		The number of the values the recorder had to drop. The replay of the affected call
+	 * 		sites is not exact if this is not zero.
+	 */
+	long dropped()
+	{
+		return _dropped;
+	}
+
+	private static long replay(Values values, long live)
+	{
+		// Checked first so that the counter of a used up call site does not overflow.
+		if(values.next.get() >= values.values.length)
+			return live;
+		int i = values.next.getAndIncrement();
+		return i < values.values.length ? values.values[i] : live;
+	}
+
+
+	private static final class Values
+	{
+		final AtomicInteger next = new AtomicInteger();
+		long[] values = new long[16];
+		int size;
+
+		void add(long value)
+		{
+			if(size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+		}
+
+		Values trim()
+		{
+			values = Arrays.copyOf(values, size);
+			return this;
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate.Milliseconds;
+
+
+/**
+ * {@code JdkHook} implements {@link RewriteMode#JDK}. Instead of rewriting the call sites in
+ * every application class, it retransforms the JDK classes through which all the time APIs
+ * query the system time:
+ * 	<ul>
+ * 		<li>
+ * 			{@code java.time.Clock} and its system clock, used by {@code Instant.now()},
+ * 			the {@code now()} methods of the other {@code java.time} types and
+ * 			{@code Clock.systemUTC()}.
+ * 		</li>
+ * 		<li>{@code java.util.Date} for {@code new Date()}.</li>
+ * 		<li>
+ * 			{@code java.util.GregorianCalendar}, {@code java.util.JapaneseImperialCalendar} and
+ * 			the calendar provider of the JDK for {@code Calendar.getInstance()} and
+ * 			{@code new GregorianCalendar()}.
+ * 		</li>
+ * 	</ul>
+ *
+ * The time shift is embedded as a constant, so the hooked classes never refer to the agent
+ * classes, which are not visible to the bootstrap class loader.
+ * <p>
+ *
+ * {@code System.currentTimeMillis()} and {@code jdk.internal.misc.VM.getNanoTimeAdjustment()}
+ * are native and cannot be hooked. The calls of the hooked classes to them are rewritten
+ * instead, and the application classes calling {@code System.currentTimeMillis()} directly
+ * are still instrumented by {@link TimeMachineTransformer}.
+ */
+final class JdkHook
+{
+	/**
+	 * The hooked classes. Every one of them must exist and call the system time, except for
+	 * the {@link #OPTIONAL} ones.
+	 */
+	static final List<String> CLASSES =
+		Collections.unmodifiableList(
+			Arrays.asList(
+				"java/time/Clock",
+				"java/time/Clock$SystemClock",
+				"java/util/Date",
+				"java/util/GregorianCalendar",
+				"java/util/JapaneseImperialCalendar",
+				"sun/util/locale/provider/CalendarProviderImpl"
+			)
+		);
+
+	private static final List<String> OPTIONAL =
+		Arrays.asList(
+			"java/util/JapaneseImperialCalendar",
+			"sun/util/locale/provider/CalendarProviderImpl"
+		);
+
+
+	private static TimeMachineTransformer _transformer;
+	private static Class<?>[] _classes;
+
+
+	private JdkHook()
+	{
+	}
+
+	/**
+	 * Retransforms the hooked classes.
+	 *
+	 * @return
+	 * 		{@code false} if this JVM cannot be hooked, in which case nothing has been changed.
+	 */
+	static boolean install(Instrumentation instrumentation, Milliseconds timeShift)
+	{
+		List<Class<?>> classes = findClasses(instrumentation);
+		if(classes == null)
+			return false;
+
+		TimeMachineTransformer transformer =
+			new TimeMachineTransformer(
+				new ClassFilter(
+					ClassNameMatcher.compile(CLASSES, Collections.<String>emptyList()),
+					true
+				),
+				timeShift,
+				RewriteMode.JDK,
+				instrumentation
+			);
+		instrumentation.addTransformer(transformer, true);
+		try {
+			Class<?>[] hooked = classes.toArray(new Class<?>[0]);
+			instrumentation.retransformClasses(hooked);
+			_transformer = transformer;
+			_classes = hooked;
+			return true;
+		}
+		catch(UnmodifiableClassException | RuntimeException | LinkageError e) {
+			instrumentation.removeTransformer(transformer);
+			return false;
+		}
+	}
+
+	/**
+	 * Restores the original byte code of the hooked classes if they have been hooked.
+	 *
+	 * @throws UnmodifiableClassException
+	 * 		Never in practice, because the classes have been retransformed before.
+	 */
+	static void uninstall(Instrumentation instrumentation)
+		throws
+			UnmodifiableClassException
+	{
+		TimeMachineTransformer transformer = _transformer;
+		if(transformer == null)
+			return;
+		Class<?>[] classes = _classes;
+		_transformer = null;
+		_classes = null;
+		instrumentation.removeTransformer(transformer);
+		instrumentation.retransformClasses(classes);
+	}
+
+	/**
+	 * @return
+	 * 		The classes to be retransformed or {@code null} if some of them cannot be hooked,
+	 * 		either because this JVM does not support it or because the JDK queries the time
+	 * 		some other way.
+	 */
+	static List<Class<?>> findClasses(Instrumentation instrumentation)
+	{
+		if(!instrumentation.isRetransformClassesSupported())
+			return null;
+
+		TimeCallScanner scanner = new TimeCallScanner(TimeCall.rewrittenIn(RewriteMode.JDK));
+		List<Class<?>> classes = new ArrayList<>(CLASSES.size());
+		for(String name : CLASSES) {
+			Class<?> c;
+			try {
+				c = Class.forName(name.replace('/', '.'), false, null);
+			}
+			catch(ClassNotFoundException e) {
+				if(OPTIONAL.contains(name))
+					continue;
+				return null;
+			}
+			byte[] classFile = readClassFile(name);
+			if(
+				!instrumentation.isModifiableClass(c) ||
+				classFile == null ||
+				scanner.scan(classFile) == null
+			)
+				return null;
+			classes.add(c);
+		}
+		return classes;
+	}
+
+	static byte[] readClassFile(String name)
+	{
+		try(InputStream in = ClassLoader.getSystemResourceAsStream(name + ".class")) {
+			return in == null ? null : in.readAllBytes();
+		}
+		catch(IOException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * {@code LoadedClassIndex} keeps the names of the loaded classes sorted so that
+ * {@link Rescoper} finds the classes a changed pattern can affect by the literal prefix of
+ * the pattern instead of going through {@code Instrumentation.getAllLoadedClasses()} on every
+ * change.
+ * <p>
+ *
+ * The index is filled once from the classes loaded before the agent and after that by
+ * {@link TimeMachineTransformer}, which calls {@link #loaded(ClassLoader, String)} for every
+ * class it sees being loaded. The transformer runs before the class is defined, so only
+ * the name and the loader are queued there. The queue is moved to the sorted names every
+ * {@link #DRAIN_INTERVAL} classes by the loading thread, unless {@link #find(String)} is busy.
+ * <p>
+ *
+ * The {@code Class} is looked up the first time the name is found by {@link #find(String)},
+ * among {@code Instrumentation.getInitiatedClasses(loader)}. Unlike {@code Class.forName},
+ * this never loads a class or calls into a class loader. Neither the classes nor their
+ * loaders are kept alive by the index.
+ */
+final class LoadedClassIndex
+{
+	private static final int DRAIN_INTERVAL = 1024;
+
+	private final Instrumentation _instrumentation;
+	private final Queue<Entry> _queue = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger _queued = new AtomicInteger();
+	private final ReentrantLock _lock = new ReentrantLock();
+	private final TreeMap<String, List<Entry>> _names = new TreeMap<>();
+
+
+	/**
+	 * @param instrumentation
+	 * 		Looks up the classes of the names.
+	 */
+	LoadedClassIndex(Instrumentation instrumentation)
+	{
+		_instrumentation = instrumentation;
+	}
+
+	/**
+	 * Adds the classes loaded so far, e.g. the result of
+	 * {@code Instrumentation.getAllLoadedClasses()}. Arrays, primitives and hidden classes
+	 * are skipped.
+	 */
+	void addAll(Class<?>[] classes)
+	{
+		for(Class<?> c : classes) {
+			if(c.isArray() || c.isPrimitive() || c.isHidden())
+				continue;
+			String name = c.getName().replace('.', '/');
+			if(!ClassFilter.isGenerated(name))
+				_queue.add(new Entry(name, c.getClassLoader(), c));
+		}
+	}
+
+	/**
+	 * Records a class being loaded.
+	 *
+	 * @param loader
+	 * 		The defining loader of the class or {@code null} for the bootstrap class loader.
+	 *
+	 * @param className
+	 * 		Class name in the internal form.
+	 */
+	void loaded(ClassLoader loader, String className)
+	{
+		if(className == null || ClassFilter.isGenerated(className))
+			return;
+		_queue.add(new Entry(className, loader, null));
+		if(_queued.incrementAndGet() % DRAIN_INTERVAL == 0 && _lock.tryLock())
+			try {
+				drain();
+			}
+			finally {
+				_lock.unlock();
+			}
+	}
+
+	/**
+	 * Finds the loaded classes having a name starting with a prefix. The entries of
+	 * the unloaded classes, and of the classes which were never defined, are dropped on
+	 * the way. A class still being defined is dropped too, but it is transformed with
+	 * the filter of the caller anyway.
+	 *
+	 * @param prefix
+	 * 		Prefix of the class names in the internal form. An empty prefix finds every class.
+	 */
+	List<Class<?>> find(String prefix)
+	{
+		_lock.lock();
+		try {
+			drain();
+			Map<ClassLoader, Map<String, Class<?>>> defined = new IdentityHashMap<>();
+			List<Class<?>> classes = new ArrayList<>();
+			Iterator<Map.Entry<String, List<Entry>>> i =
+				_names.tailMap(prefix, true).entrySet().iterator();
+			while(i.hasNext()) {
+				Map.Entry<String, List<Entry>> names = i.next();
+				if(!names.getKey().startsWith(prefix))
+					break;
+				for(Iterator<Entry> j = names.getValue().iterator(); j.hasNext(); ) {
+					Class<?> c = resolve(j.next(), defined);
+					if(c == null)
+						j.remove();
+					else
+						classes.add(c);
+				}
+				if(names.getValue().isEmpty())
+					i.remove();
+			}
+			return classes;
+		}
+		finally {
+			_lock.unlock();
+		}
+	}
+
+	int size()
+	{
+		_lock.lock();
+		try {
+			drain();
+			int size = 0;
+			for(List<Entry> entries : _names.values())
+				size += entries.size();
+			return size;
+		}
+		finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * @param defined
+	 * 		The classes defined by the loaders looked at so far.
+	 *
+	 * @return
+	 * 		The class or {@code null} if it has been unloaded or it was never defined.
+	 */
+	private Class<?> resolve(Entry entry, Map<ClassLoader, Map<String, Class<?>>> defined)
+	{
+		if(entry.type != null)
+			return entry.type.get();
+
+		ClassLoader loader = entry.getLoader();
+		if(loader == null && !entry.isBootstrap())
+			return null;
+		Class<?> c = defined.computeIfAbsent(loader, this::definedClasses).get(entry.name);
+		if(c != null)
+			entry.type = new WeakReference<>(c);
+		return c;
+	}
+
+	/**
+	 * @return
+	 * 		The classes defined by a loader by their names in the internal form.
+	 */
+	private Map<String, Class<?>> definedClasses(ClassLoader loader)
+	{
+		Map<String, Class<?>> classes = new HashMap<>();
+		for(Class<?> c : _instrumentation.getInitiatedClasses(loader))
+			// The loader may delegate to a parent having a class of the same name.
+			if(c.getClassLoader() == loader && !c.isArray())
+				classes.put(c.getName().replace('.', '/'), c);
+		return classes;
+	}
+
+	/**
+	 * Moves the queued classes to the sorted names. A class seen twice with the same loader,
+	 * e.g. both in {@link #addAll(Class[])} and {@link #loaded(ClassLoader, String)}, is kept
+	 * once. Must be called with the lock held.
+	 */
+	private void drain()
+	{
+		for(Entry entry; (entry = _queue.poll()) != null; ) {
+			List<Entry> entries = _names.computeIfAbsent(entry.name, n -> new ArrayList<>(1));
+			boolean known = false;
+			for(Entry e : entries)
+				if(e.getLoader() == entry.getLoader() && e.isBootstrap() == entry.isBootstrap()) {
+					known = true;
+					break;
+				}
+			if(!known)
+				entries.add(entry);
+		}
+	}
+
+
+	private static final class Entry
+	{
+		final String name;
+		final WeakReference<ClassLoader> loader;
+		WeakReference<Class<?>> type;
+
+		Entry(String name, ClassLoader loader, Class<?> type)
+		{
+			this.name = name;
+			this.loader = loader == null ? null : new WeakReference<>(loader);
+			this.type = type == null ? null : new WeakReference<>(type);
+		}
+
+		boolean isBootstrap()
+		{
+			return this.loader == null;
+		}
+
+		ClassLoader getLoader()
+		{
+			return this.loader == null ? null : this.loader.get();
+		}
+	}
+}
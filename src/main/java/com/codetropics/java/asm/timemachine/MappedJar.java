@@ -0,0 +1,185 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+
+/**
+ * {@code MappedJar} reads the entries of a jar file through a memory mapping. Unlike
+ * {@code java.util.zip.ZipFile}, which serialises the reads of one file, any number of
+ * threads can read entries of the same jar at the same time.
+ * <p>
+ *
+ * Only what {@link Warmup} needs is supported: stored and deflated entries of jar files
+ * smaller than 2 GB without the ZIP64 extensions.
+ */
+final class MappedJar
+{
+	private static final int END_SIGNATURE = 0x06054b50;
+	private static final int CENTRAL_SIGNATURE = 0x02014b50;
+	private static final int LOCAL_SIGNATURE = 0x04034b50;
+	private static final int END_SIZE = 22;
+	private static final int MAX_COMMENT = 0xffff;
+	private static final int STORED = 0;
+	private static final int DEFLATED = 8;
+
+	private final Path _file;
+	private final ByteBuffer _buffer;
+	private final List<Entry> _entries;
+
+
+	private MappedJar(Path file, ByteBuffer buffer, List<Entry> entries)
+	{
+		_file = file;
+		_buffer = buffer;
+		_entries = entries;
+	}
+
+	/**
+	 * Maps a jar file and reads its central directory.
+	 *
+	 * @throws IOException
+	 * 		If the file cannot be read or it is not a supported jar file.
+	 */
+	static MappedJar open(Path file)
+		throws
+			IOException
+	{
+		ByteBuffer buffer;
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if(channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Too large: " + file);
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+		int end = findEnd(buffer);
+		if(end < 0)
+			throw new IOException("Not a jar file: " + file);
+		int count = buffer.getShort(end + 10) & 0xffff;
+		long offset = buffer.getInt(end + 16) & 0xffffffffL;
+		if(count == 0xffff || offset == 0xffffffffL)
+			throw new IOException("ZIP64 is not supported: " + file);
+
+		List<Entry> entries = new ArrayList<>(count);
+		int position = (int)offset;
+		for(int i = 0; i < count; i++) {
+			if(buffer.getInt(position) != CENTRAL_SIGNATURE)
+				throw new IOException("Corrupted central directory: " + file);
+			int nameLength = buffer.getShort(position + 28) & 0xffff;
+			byte[] name = new byte[nameLength];
+			buffer.get(position + 46, name);
+			entries.add(
+				new Entry(
+					new String(name, StandardCharsets.UTF_8),
+					buffer.getShort(position + 10) & 0xffff,
+					buffer.getInt(position + 16),
+					buffer.getInt(position + 20),
+					buffer.getInt(position + 24),
+					buffer.getInt(position + 42)
+				)
+			);
+			position +=
+				46 + nameLength
+					+ (buffer.getShort(position + 30) & 0xffff)
+					+ (buffer.getShort(position + 32) & 0xffff);
+		}
+		return new MappedJar(file, buffer, entries);
+	}
+
+	private static int findEnd(ByteBuffer buffer)
+	{
+		int last = buffer.limit() - END_SIZE;
+		for(int i = last; i >= 0 && i >= last - MAX_COMMENT; i--)
+			if(buffer.getInt(i) == END_SIGNATURE)
+				return i;
+		return -1;
+	}
+
+	List<Entry> getEntries()
+	{
+		return _entries;
+	}
+
+	/**
+	 * Reads the uncompressed content of an entry. Can be called from any thread.
+	 *
+	 * @throws IOException
+	 * 		If the entry is corrupted or its compression method is not supported.
+	 */
+	byte[] read(Entry entry)
+		throws
+			IOException
+	{
+		int local = entry.localOffset;
+		if(_buffer.getInt(local) != LOCAL_SIGNATURE)
+			throw new IOException("Corrupted entry " + entry.name + " in " + _file);
+		int data =
+			local + 30
+				+ (_buffer.getShort(local + 26) & 0xffff)
+				+ (_buffer.getShort(local + 28) & 0xffff);
+		byte[] content = new byte[entry.size];
+		switch(entry.method) {
+			case STORED:
+				_buffer.get(data, content);
+				return content;
+
+			case DEFLATED:
+				Inflater inflater = new Inflater(true);
+				try {
+					inflater.setInput(_buffer.slice(data, entry.compressedSize));
+					int n = 0;
+					while(n < content.length && !inflater.finished()) {
+						int inflated = inflater.inflate(content, n, content.length - n);
+						if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+							break;
+						n += inflated;
+					}
+					if(n != content.length)
+						throw new IOException("Truncated entry " + entry.name + " in " + _file);
+					return content;
+				}
+				catch(DataFormatException e) {
+					throw new IOException("Corrupted entry " + entry.name + " in " + _file, e);
+				}
+				finally {
+					inflater.end();
+				}
+
+			default:
+				throw new IOException(
+					"Unsupported compression " + entry.method + " of " + entry.name + " in " + _file
+				);
+		}
+	}
+
+
+	static final class Entry
+	{
+		final String name;
+		final int method;
+		final int crc;
+		final int compressedSize;
+		final int size;
+		final int localOffset;
+
+		Entry(String name, int method, int crc, int compressedSize, int size, int localOffset)
+		{
+			this.name = name;
+			this.method = method;
+			this.crc = crc;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.localOffset = localOffset;
+		}
+	}
+}
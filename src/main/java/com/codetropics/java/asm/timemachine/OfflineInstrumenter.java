@@ -0,0 +1,432 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate.Milliseconds;
+
+
+/**
+ * {@code OfflineInstrumenter} applies the rewrite of {@link TimeMachineTransformer} to a jar
+ * file or a class directory at build time, so that the application runs shifted without
+ * {@code -javaagent} and without any class file transformation at startup. This also keeps
+ * the classes usable in an AppCDS archive.
+ * <p>
+ *
+ * The input is read as a stream and written to the output in the same order. The class files
+ * are rewritten in parallel, with a bounded number of them in flight. The classes are selected
+ * with the same include and exclude patterns as by the agent, and the classes of multi-release
+ * jars are rewritten too. The signature files of a signed jar are left out because the jar is
+ * not signed any more.
+ * <p>
+ *
+ * Two files are added to the output:
+ * 	<ul>
+ * 		<li>
+ * 			{@value #CALLS} lists the rewritten classes with the number of the rewritten calls
+ * 			of every {@link TimeCall}.
+ * 		</li>
+ * 		<li>
+ * 			{@value #PROPERTIES} holds the time shift. {@link ClockCallSites} reads it, if
+ * 			the agent is not running, so that {@link ShiftedClock} has the same time shift as
+ * 			the rewritten byte code. The classes calling {@code Clock.systemUTC()} and the like
+ * 			need the agent jar on the class path.
+ * 		</li>
+ * 	</ul>
+ *
+ * Only {@code mode=constant} is supported, with a relative time shift or a frozen absolute
+ * time, because anything else depends on when the JVM is started.
+ */
+final class OfflineInstrumenter
+{
+	static final String CALLS = "META-INF/timemachine/calls.txt";
+	static final String PROPERTIES = "META-INF/timemachine/timemachine.properties";
+
+	private static final String CLASS_SUFFIX = ".class";
+	private static final String VERSIONS = "META-INF/versions/";
+	private static final String SHIFT = "shift";
+	private static final String RELATIVE = "relative";
+
+	private final TimeMachineTransformer _transformer;
+	private final Milliseconds _timeShift;
+	private final int _parallelism;
+	private final Map<String, String> _calls = new TreeMap<>();
+	private int _classes;
+
+
+	/**
+	 * @param transformer
+	 * 		A transformer in {@link RewriteMode#CONSTANT} mode.
+	 *
+	 * @param timeShift
+	 * 		The time shift of the transformer.
+	 *
+	 * @param parallelism
+	 * 		Number of the threads rewriting the classes.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the transformer or the time shift cannot be used ahead of time.
+	 */
+	OfflineInstrumenter(TimeMachineTransformer transformer, Milliseconds timeShift, int parallelism)
+	{
+		if(transformer.getMode() != RewriteMode.CONSTANT)
+			throw new IllegalArgumentException("Offline instrumentation needs mode=constant.");
+		if(timeShift.isDilated())
+			throw new IllegalArgumentException(
+				"A dilated time cannot be used in offline instrumentation."
+			);
+		_transformer = transformer;
+		_timeShift = timeShift;
+		_parallelism = parallelism;
+	}
+
+	/**
+	 * Reads the time shift written by the offline instrumentation. Several instrumented jars
+	 * or class directories can be on the class path, as long as they have the same time shift.
+	 *
+	 * @return
+	 * 		The time shift of the instrumented jars and class directories visible to the class
+	 * 		loader, or {@code null} if there are none.
+	 *
+	 * @throws IllegalStateException
+	 * 		If they have been instrumented with different time shifts.
+	 */
+	static Milliseconds timeShift(ClassLoader loader)
+	{
+		Enumeration<URL> urls;
+		try {
+			urls =
+				loader == null
+					? ClassLoader.getSystemResources(PROPERTIES)
+					: loader.getResources(PROPERTIES);
+		}
+		catch(IOException e) {
+			return null;
+		}
+
+		Milliseconds timeShift = null;
+		URL first = null;
+		while(urls.hasMoreElements()) {
+			URL url = urls.nextElement();
+			Milliseconds other = readTimeShift(url);
+			if(other == null)
+				continue;
+			if(timeShift == null) {
+				timeShift = other;
+				first = url;
+			}
+			else if(
+				other.isRelative() != timeShift.isRelative() ||
+				!other.getTime().equals(timeShift.getTime())
+			)
+				throw new IllegalStateException(
+					"Classes instrumented with different time shifts: " + first + ", " + url
+				);
+		}
+		return timeShift;
+	}
+
+	private static Milliseconds readTimeShift(URL url)
+	{
+		try(InputStream in = url.openStream()) {
+			Properties properties = new Properties();
+			properties.load(in);
+			return
+				new Milliseconds(
+					Boolean.parseBoolean(properties.getProperty(RELATIVE)),
+					Long.parseLong(properties.getProperty(SHIFT))
+				);
+		}
+		catch(IOException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Instruments a jar file or a class directory.
+	 *
+	 * @param input
+	 * 		A jar file or a directory.
+	 *
+	 * @param output
+	 * 		The jar file or the directory to be written. Must not be the input.
+	 *
+	 * @return
+	 * 		The number of the rewritten classes.
+	 *
+	 * @throws IOException
+	 * 		If the input cannot be read or the output cannot be written.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the input has been instrumented already.
+	 */
+	int instrument(Path input, Path output)
+		throws
+			IOException
+	{
+		if(Files.exists(output) && Files.isSameFile(input, output))
+			throw new IllegalArgumentException("The output cannot be the input: " + output);
+		ExecutorService executor =
+			Executors.newFixedThreadPool(
+				_parallelism,
+				task -> {
+					Thread thread = new Thread(task, "TimeMachine offline instrumentation");
+					thread.setDaemon(true);
+					return thread;
+				}
+			);
+		try {
+			if(Files.isDirectory(input))
+				instrumentDirectory(input, output, executor);
+			else
+				instrumentJar(input, output, executor);
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		return _classes;
+	}
+
+	/**
+	 * @return
+	 * 		The rewritten classes with the number of the rewritten calls in the format of
+	 * 		{@value #CALLS}.
+	 */
+	Map<String, String> getCalls()
+	{
+		return _calls;
+	}
+
+	private void instrumentJar(Path input, Path output, ExecutorService executor)
+		throws
+			IOException
+	{
+		Path tmp = Files.createTempFile(output.toAbsolutePath().getParent(), null, ".tmp");
+		try(
+			ZipInputStream in =
+				new ZipInputStream(new BufferedInputStream(Files.newInputStream(input)));
+			ZipOutputStream out =
+				new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))
+		) {
+			Deque<Pending> pending = new ArrayDeque<>();
+			for(ZipEntry entry; (entry = in.getNextEntry()) != null; ) {
+				String name = entry.getName();
+				if(name.equals(PROPERTIES))
+					throw new IllegalArgumentException(input + " has been instrumented already.");
+				if(isSignature(name))
+					continue;
+				pending.add(
+					entry.isDirectory()
+						? new Pending(entry, new byte[0], null)
+						: submit(entry, name, in.readAllBytes(), executor)
+				);
+				while(pending.size() > _parallelism * 4)
+					write(out, pending.poll());
+			}
+			while(!pending.isEmpty())
+				write(out, pending.poll());
+
+			out.putNextEntry(new ZipEntry(CALLS));
+			out.write(calls());
+			out.putNextEntry(new ZipEntry(PROPERTIES));
+			out.write(properties());
+			out.closeEntry();
+		}
+		catch(IOException | RuntimeException | Error e) {
+			Files.deleteIfExists(tmp);
+			throw e;
+		}
+		Files.move(tmp, output, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private void instrumentDirectory(Path input, Path output, ExecutorService executor)
+		throws
+			IOException
+	{
+		if(Files.exists(input.resolve(PROPERTIES)))
+			throw new IllegalArgumentException(input + " has been instrumented already.");
+
+		List<Path> files;
+		try(Stream<Path> stream = Files.walk(input)) {
+			files = stream.filter(Files::isRegularFile).collect(Collectors.toList());
+		}
+		List<Future<Path>> written = new ArrayList<>(files.size());
+		String separator = input.getFileSystem().getSeparator();
+		for(Path file : files) {
+			String relative = input.relativize(file).toString();
+			String name = relative.replace(separator, "/");
+			Path target = output.resolve(relative);
+			written.add(
+				executor.submit(
+					() -> {
+						byte[] bytes = Files.readAllBytes(file);
+						byte[] transformed = rewrite(name, bytes);
+						Files.createDirectories(target.getParent());
+						Files.write(target, transformed == null ? bytes : transformed);
+						return target;
+					}
+				)
+			);
+		}
+		for(Future<Path> future : written)
+			get(future);
+
+		Files.createDirectories(output.resolve(PROPERTIES).getParent());
+		Files.write(output.resolve(CALLS), calls());
+		Files.write(output.resolve(PROPERTIES), properties());
+	}
+
+	private Pending submit(ZipEntry entry, String name, byte[] bytes, ExecutorService executor)
+	{
+		if(!name.endsWith(CLASS_SUFFIX))
+			return new Pending(entry, bytes, null);
+		return new Pending(entry, bytes, executor.submit(() -> rewrite(name, bytes)));
+	}
+
+	private void write(ZipOutputStream out, Pending pending)
+		throws
+			IOException
+	{
+		byte[] transformed = pending.transformed == null ? null : get(pending.transformed);
+		ZipEntry entry = new ZipEntry(pending.entry.getName());
+		entry.setTime(pending.entry.getTime());
+		if(pending.entry.getExtra() != null)
+			entry.setExtra(pending.entry.getExtra());
+		out.putNextEntry(entry);
+		out.write(transformed == null ? pending.bytes : transformed);
+		out.closeEntry();
+	}
+
+	/**
+	 * @return
+	 * 		The rewritten class file or {@code null} if the file is not a selected class file
+	 * 		or it has no system time queries.
+	 */
+	private byte[] rewrite(String name, byte[] bytes)
+	{
+		if(!name.endsWith(CLASS_SUFFIX) || name.endsWith("module-info.class"))
+			return null;
+		String className = name.substring(0, name.length() - CLASS_SUFFIX.length());
+		if(className.startsWith(VERSIONS)) {
+			int slash = className.indexOf('/', VERSIONS.length());
+			if(slash < 0)
+				return null;
+			className = className.substring(slash + 1);
+		}
+		else if(className.startsWith("META-INF/"))
+			return null;
+		if(!_transformer.accepts(ClassLoader.getSystemClassLoader(), className, null))
+			return null;
+
+		int[] callSites = new int[TimeCall.values().length];
+		byte[] transformed = _transformer.rewrite(className, bytes, callSites);
+		if(transformed != null) {
+			StringBuilder line = new StringBuilder();
+			for(TimeCall call : TimeCall.values())
+				if(callSites[call.ordinal()] != 0)
+					line.append(' ').append(call).append('=').append(callSites[call.ordinal()]);
+			synchronized(this) {
+				_calls.put(name, line.toString());
+				_classes++;
+			}
+		}
+		return transformed;
+	}
+
+	private byte[] calls()
+	{
+		StringBuilder calls = new StringBuilder();
+		calls.append("# Rewritten classes and the number of the rewritten calls\n");
+		for(Map.Entry<String, String> entry : _calls.entrySet())
+			calls.append(entry.getKey()).append(entry.getValue()).append('\n');
+		return calls.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Written without {@code Properties.store}, which adds the current date, to keep
+	 * the output reproducible.
+	 */
+	private byte[] properties()
+	{
+		return
+			("# TimeMachine offline instrumentation\n"
+				+ SHIFT + "=" + _timeShift.getTime() + "\n"
+				+ RELATIVE + "=" + _timeShift.isRelative() + "\n"
+			).getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private static boolean isSignature(String name)
+	{
+		if(!name.startsWith("META-INF/") || name.indexOf('/', 9) >= 0)
+			return false;
+		String upper = name.toUpperCase();
+		return
+			upper.endsWith(".SF") ||
+			upper.endsWith(".RSA") ||
+			upper.endsWith(".DSA") ||
+			upper.endsWith(".EC") ||
+			upper.startsWith("META-INF/SIG-");
+	}
+
+	private static <T> T get(Future<T> future)
+		throws
+			IOException
+	{
+		try {
+			return future.get();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted.", e);
+		}
+		catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException)
+				throw (IOException)cause;
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if(cause instanceof Error)
+				throw (Error)cause;
+			throw new IOException(cause);
+		}
+	}
+
+
+	private static final class Pending
+	{
+		final ZipEntry entry;
+		final byte[] bytes;
+		final Future<byte[]> transformed;
+
+		Pending(ZipEntry entry, byte[] bytes, Future<byte[]> transformed)
+		{
+			this.entry = entry;
+			this.bytes = bytes;
+			this.transformed = transformed;
+		}
+	}
+}
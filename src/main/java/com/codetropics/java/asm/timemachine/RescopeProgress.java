@@ -0,0 +1,135 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * {@code RescopeProgress} tells how far the retransformation of a scope change made with
+ * {@link TimeMachine#include(String)}, {@link TimeMachine#exclude(String)} or
+ * {@link TimeMachine#removeScopeRule(String)} has got. The change of the filters itself is
+ * in effect for the classes loaded after the call already, but the loaded classes are
+ * retransformed in the background.
+ */
+public final class RescopeProgress
+{
+	private final String _change;
+	private final CountDownLatch _done = new CountDownLatch(1);
+	private final List<String> _failures = Collections.synchronizedList(new ArrayList<>());
+	private volatile int _candidates = -1;
+	private volatile int _total = -1;
+	private volatile int _retransformed;
+
+
+	RescopeProgress(String change)
+	{
+		_change = change;
+	}
+
+	/**
+	 * @return
+	 * 		The change, e.g. {@code include com/acme/scheduler/**}.
+	 */
+	public String getChange()
+	{
+		return _change;
+	}
+
+	/**
+	 * @return
+	 * 		The number of the loaded classes having a name the changed pattern can match or
+	 * 		{@code -1} if they have not been looked up yet.
+	 */
+	public int getCandidates()
+	{
+		return _candidates;
+	}
+
+	/**
+	 * @return
+	 * 		The number of the classes to be retransformed, i.e. the classes changing their
+	 * 		scope and having system time queries, or {@code -1} if they have not been looked
+	 * 		up yet.
+	 */
+	public int getTotal()
+	{
+		return _total;
+	}
+
+	/**
+	 * @return
+	 * 		The number of the classes retransformed so far.
+	 */
+	public int getRetransformed()
+	{
+		return _retransformed;
+	}
+
+	/**
+	 * @return
+	 * 		The classes which couldn't be retransformed, with the reason.
+	 */
+	public List<String> getFailures()
+	{
+		synchronized(_failures) {
+			return new ArrayList<>(_failures);
+		}
+	}
+
+	public boolean isDone()
+	{
+		return _done.getCount() == 0;
+	}
+
+	/**
+	 * Waits until every class has been retransformed or has failed.
+	 *
+	 * @return
+	 * 		{@code true} if done, {@code false} if the time ran out.
+	 */
+	public boolean await(long timeout, TimeUnit unit)
+		throws
+			InterruptedException
+	{
+		return _done.await(timeout, unit);
+	}
+
+	void found(int candidates, int total)
+	{
+		_candidates = candidates;
+		_total = total;
+	}
+
+	void retransformed(int count)
+	{
+		_retransformed += count;
+	}
+
+	void failed(Class<?> c, Throwable cause)
+	{
+		_failures.add(c.getName() + ": " + cause);
+	}
+
+	void done()
+	{
+		_done.countDown();
+	}
+
+	/**
+	 * @return
+	 * 		The progress in one line, e.g.
+	 * 		{@code include com/acme/** - 40/120 retransformed, 1 failed}.
+	 */
+	@Override
+	public String toString()
+	{
+		if(_total < 0)
+			return _change + " - pending";
+		return
+			_change + " - " + _retransformed + "/" + _total + " retransformed, "
+				+ _failures.size() + " failed" + (isDone() ? "" : ", running");
+	}
+}
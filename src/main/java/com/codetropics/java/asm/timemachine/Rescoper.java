@@ -0,0 +1,220 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/**
+ * {@code Rescoper} changes the include and exclude rules of a registered
+ * {@link TimeMachineTransformer} at runtime and retransforms the loaded classes whose
+ * scope changes, e.g. a scheduler library which turns out to need the shifted time too:
+ * <xmp>
+ * 	TimeMachine.include("org/quartz/**");
+ * </xmp>
+ *
+ * The new rules apply to the classes loaded after the call at once. The loaded classes
+ * the changed pattern can match are found by the literal prefix of the pattern from
+ * {@link LoadedClassIndex}. Of them only the classes whose decision changes and which have
+ * system time queries are retransformed, in the background in batches of
+ * {@link Retransformer}. An excluded class is retransformed without the transformer
+ * rewriting it, which restores its original byte code. The changes are applied one at a time
+ * in the order they were made.
+ * <p>
+ *
+ * The transformer must be registered as retransformation capable, which is done with
+ * the {@code rescope=true} option.
+ */
+final class Rescoper
+{
+	private final TimeMachineTransformer _transformer;
+	private final LoadedClassIndex _index;
+	private final Retransformer _retransformer;
+	private final Set<String> _includes;
+	private final Set<String> _excludes;
+	private final ExecutorService _executor =
+		Executors.newSingleThreadExecutor(
+			r -> {
+				Thread thread = new Thread(r, "TimeMachine rescoping");
+				thread.setDaemon(true);
+				return thread;
+			}
+		);
+	private volatile RescopeProgress _last;
+
+
+	/**
+	 * @param includes
+	 * 		The include rules the filter of the transformer was compiled from.
+	 *
+	 * @param excludes
+	 * 		The exclude rules the filter of the transformer was compiled from.
+	 */
+	Rescoper(
+		TimeMachineTransformer transformer,
+		LoadedClassIndex index,
+		Retransformer retransformer,
+		List<String> includes,
+		List<String> excludes
+	)
+	{
+		_transformer = transformer;
+		_index = index;
+		_retransformer = retransformer;
+		_includes = new LinkedHashSet<>(includes);
+		_excludes = new LinkedHashSet<>(excludes);
+	}
+
+	/**
+	 * Adds an include rule. An exclude rule with the same pattern is removed.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the pattern is not valid.
+	 */
+	synchronized RescopeProgress include(String pattern)
+	{
+		String prefix = prefix(pattern);
+		boolean noIncludes = _includes.isEmpty();
+		_includes.add(pattern);
+		_excludes.remove(pattern);
+		return change("include " + pattern, prefix, noIncludes);
+	}
+
+	/**
+	 * Adds an exclude rule. An include rule with the same pattern is removed.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the pattern is not valid.
+	 */
+	synchronized RescopeProgress exclude(String pattern)
+	{
+		String prefix = prefix(pattern);
+		boolean noIncludes = _includes.isEmpty();
+		_excludes.add(pattern);
+		_includes.remove(pattern);
+		return change("exclude " + pattern, prefix, noIncludes);
+	}
+
+	/**
+	 * Removes the include and the exclude rule of a pattern.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the pattern is not valid.
+	 */
+	synchronized RescopeProgress remove(String pattern)
+	{
+		String prefix = prefix(pattern);
+		boolean noIncludes = _includes.isEmpty();
+		_excludes.remove(pattern);
+		_includes.remove(pattern);
+		return change("remove " + pattern, prefix, noIncludes);
+	}
+
+	synchronized List<String> getIncludes()
+	{
+		return new ArrayList<>(_includes);
+	}
+
+	synchronized List<String> getExcludes()
+	{
+		return new ArrayList<>(_excludes);
+	}
+
+	/**
+	 * @return
+	 * 		The progress of the latest change or {@code null} if there is none.
+	 */
+	RescopeProgress getLastProgress()
+	{
+		return _last;
+	}
+
+	/**
+	 * Stops the retransformations not yet started.
+	 */
+	void shutdown()
+	{
+		_executor.shutdownNow();
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 * 		If the pattern is not valid.
+	 */
+	private static String prefix(String pattern)
+	{
+		if(pattern == null || pattern.trim().isEmpty())
+			throw new IllegalArgumentException("Empty class name pattern.");
+		return ClassNameTrie.prefix(pattern);
+	}
+
+	/**
+	 * Swaps the filter of the transformer and retransforms the changed classes in
+	 * the background.
+	 *
+	 * @param prefix
+	 * 		The literal prefix of the changed pattern. Every loaded class having a name
+	 * 		starting with it is a candidate.
+	 *
+	 * @param noIncludes
+	 * 		{@code true} if there were no include rules before the change. Going from no
+	 * 		include rules, which includes every class, to some or back makes every loaded
+	 * 		class a candidate.
+	 */
+	private RescopeProgress change(String change, String prefix, boolean noIncludes)
+	{
+		ClassFilter before = _transformer.getFilter();
+		ClassFilter after = before.withMatcher(ClassNameMatcher.compile(_includes, _excludes));
+		_transformer.setFilter(after);
+		String candidates = noIncludes == _includes.isEmpty() ? prefix : "";
+
+		RescopeProgress progress = new RescopeProgress(change);
+		_last = progress;
+		_executor.execute(
+			() -> {
+				try {
+					List<Class<?>> found = _index.find(candidates);
+					List<Class<?>> changed = changed(found, before, after);
+					progress.found(found.size(), changed.size());
+					_retransformer.retransform(changed, progress);
+				}
+				catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				finally {
+					progress.done();
+				}
+			}
+		);
+		return progress;
+	}
+
+	/**
+	 * @return
+	 * 		The classes for which the two filters decide differently and which have system
+	 * 		time queries.
+	 */
+	private List<Class<?>> changed(List<Class<?>> classes, ClassFilter before, ClassFilter after)
+	{
+		List<Class<?>> changed = new ArrayList<>();
+		for(Class<?> c : classes) {
+			ClassLoader loader = c.getClassLoader();
+			String name = c.getName().replace('.', '/');
+			boolean included = after.accept(loader, name);
+			if(
+				before.accept(loader, name) != included &&
+				_transformer.accepts(
+					included ? after : before,
+					loader,
+					name,
+					Retransformer.readClassFile(c)
+				)
+			)
+				changed.add(c);
+		}
+		return changed;
+	}
+}
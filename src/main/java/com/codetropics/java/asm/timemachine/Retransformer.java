@@ -0,0 +1,268 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * {@code Retransformer} applies {@link TimeMachineTransformer} to the classes which were
+ * loaded before the transformer was registered, as happens when the agent is attached to
+ * a running JVM.
+ * <p>
+ *
+ * Every {@code retransformClasses} call stops the JVM at a safepoint for as long as it takes
+ * to rewrite the classes given to it. The classes are therefore retransformed in batches of
+ * a limited size with a pause in between, which bounds the length of a single pause and lets
+ * the application run between the batches. Only the classes passing the filters of
+ * the transformer and having system time queries are retransformed at all.
+ * <p>
+ *
+ * When the agent is attached, the batches run on a thread of their own (see
+ * {@link #start()}) so that the attach call returns at once instead of waiting for all
+ * the pauses. {@link #undo()} removes the transformer and retransforms the same classes again,
+ * which restores their original byte code. The classes rewritten by the transformer while
+ * being loaded after that are remembered in a {@link LoadedClassIndex}, which keeps neither
+ * the classes nor their loaders alive, and they are restored too.
+ */
+final class Retransformer
+{
+	private final Instrumentation _instrumentation;
+	private final TimeMachineTransformer _transformer;
+	private final int _batchSize;
+	private final long _pauseMillis;
+	private final Set<Class<?>> _classes = new LinkedHashSet<>();
+	private final LoadedClassIndex _rewritten;
+
+
+	/**
+	 * @param transformer
+	 * 		The transformer. It is registered as retransformation capable by
+	 * 		{@link #retransform()}.
+	 *
+	 * @param batchSize
+	 * 		Maximum number of classes retransformed in one call.
+	 *
+	 * @param pauseMillis
+	 * 		Real time to wait between the batches.
+	 */
+	Retransformer(
+		Instrumentation instrumentation,
+		TimeMachineTransformer transformer,
+		int batchSize,
+		long pauseMillis
+	)
+	{
+		if(batchSize < 1)
+			throw new IllegalArgumentException("Invalid batch size: " + batchSize);
+		if(pauseMillis < 0)
+			throw new IllegalArgumentException("Invalid pause between batches: " + pauseMillis);
+		_instrumentation = instrumentation;
+		_transformer = transformer;
+		_batchSize = batchSize;
+		_pauseMillis = pauseMillis;
+		_rewritten = new LoadedClassIndex(instrumentation);
+	}
+
+	/**
+	 * Registers the transformer and retransforms the already loaded classes having system
+	 * time queries.
+	 *
+	 * @return
+	 * 		The number of the retransformed classes.
+	 *
+	 * @throws InterruptedException
+	 * 		If interrupted between two batches. The classes retransformed so far stay
+	 * 		transformed and can be restored with {@link #undo()}.
+	 */
+	synchronized int retransform()
+		throws
+			InterruptedException
+	{
+		register();
+		retransformInBatches(findClasses(), null);
+		return _classes.size();
+	}
+
+	/**
+	 * Registers the transformer and retransforms the already loaded classes having system
+	 * time queries on a daemon thread. Interrupting the thread stops it between two batches.
+	 *
+	 * @return
+	 * 		The started thread.
+	 */
+	Thread start()
+	{
+		register();
+		Thread thread =
+			new Thread(
+				() -> {
+					try {
+						int count;
+						synchronized(this) {
+							retransformInBatches(findClasses(), null);
+							count = _classes.size();
+						}
+						System.out.println(
+							"TimeMachine retransformed " + count + " loaded classes."
+						);
+					}
+					catch(InterruptedException e) {
+						// Undone. The classes retransformed so far are restored by undo().
+					}
+				},
+				"TimeMachine retransformation"
+			);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Retransforms the given classes, e.g. after {@link Rescoper} has changed the filters of
+	 * the already registered transformer.
+	 *
+	 * @param progress
+	 * 		Told about the retransformed and the failed classes.
+	 *
+	 * @throws InterruptedException
+	 * 		If interrupted between two batches.
+	 */
+	synchronized void retransform(List<Class<?>> classes, RescopeProgress progress)
+		throws
+			InterruptedException
+	{
+		List<Class<?>> modifiable = new ArrayList<>(classes.size());
+		for(Class<?> c : classes)
+			if(_instrumentation.isModifiableClass(c))
+				modifiable.add(c);
+		retransformInBatches(modifiable, progress);
+	}
+
+	/**
+	 * Removes the transformer and restores the original byte code of the retransformed
+	 * classes and of the classes rewritten while being loaded after {@link #retransform()} or
+	 * {@link #start()}. Waits for a running batch of {@link #start()}, whose thread is to be
+	 * interrupted first.
+	 *
+	 * @throws InterruptedException
+	 * 		If interrupted between two batches.
+	 */
+	synchronized void undo()
+		throws
+			InterruptedException
+	{
+		_instrumentation.removeTransformer(_transformer);
+		Set<Class<?>> classes = new LinkedHashSet<>(_classes);
+		classes.addAll(_rewritten.find(""));
+		retransformInBatches(new ArrayList<>(classes), null);
+		_classes.clear();
+	}
+
+	TimeMachineTransformer getTransformer()
+	{
+		return _transformer;
+	}
+
+	/**
+	 * @return
+	 * 		The loaded classes to be retransformed.
+	 */
+	List<Class<?>> findClasses()
+	{
+		List<Class<?>> classes = new ArrayList<>();
+		for(Class<?> c : _instrumentation.getAllLoadedClasses()) {
+			if(c.isArray() || c.isPrimitive() || !_instrumentation.isModifiableClass(c))
+				continue;
+			String name = c.getName().replace('.', '/');
+			if(_transformer.accepts(c.getClassLoader(), name, readClassFile(c)))
+				classes.add(c);
+		}
+		return classes;
+	}
+
+	private void register()
+	{
+		_transformer.setRewritten(_rewritten);
+		_instrumentation.addTransformer(_transformer, true);
+	}
+
+	/**
+	 * Retransforms the classes in batches with a pause in between. The successfully
+	 * retransformed classes are remembered for {@link #undo()}.
+	 */
+	private void retransformInBatches(List<Class<?>> classes, RescopeProgress progress)
+		throws
+			InterruptedException
+	{
+		for(int i = 0; i < classes.size(); i += _batchSize) {
+			if(i > 0)
+				TimeUnit.MILLISECONDS.sleep(_pauseMillis);
+			List<Class<?>> batch = classes.subList(i, Math.min(i + _batchSize, classes.size()));
+			List<Class<?>> retransformed = retransformBatch(batch, progress);
+			_classes.addAll(retransformed);
+			if(progress != null)
+				progress.retransformed(retransformed.size());
+		}
+	}
+
+	/**
+	 * Retransforms a batch. If the batch fails as a whole, every class is tried alone so that
+	 * a single unmodifiable class does not prevent the others from being retransformed.
+	 *
+	 * @return
+	 * 		The classes successfully retransformed.
+	 */
+	private List<Class<?>> retransformBatch(List<Class<?>> batch, RescopeProgress progress)
+	{
+		try {
+			_instrumentation.retransformClasses(batch.toArray(new Class<?>[0]));
+			return batch;
+		}
+		catch(UnmodifiableClassException | RuntimeException | LinkageError e) {
+			if(batch.size() == 1) {
+				System.err.println(
+					"TimeMachine couldn't retransform " + batch.get(0).getName() + ". " + e
+				);
+				if(progress != null)
+					progress.failed(batch.get(0), e);
+				return Collections.emptyList();
+			}
+		}
+
+		List<Class<?>> retransformed = new ArrayList<>(batch.size());
+		for(Class<?> c : batch)
+			retransformed.addAll(retransformBatch(Arrays.<Class<?>>asList(c), progress));
+		return retransformed;
+	}
+
+	/**
+	 * @return
+	 * 		The class file of a loaded class as found by its class loader or {@code null} if
+	 * 		the class has no class file (e.g. it was generated at runtime).
+	 */
+	static byte[] readClassFile(Class<?> c)
+	{
+		String resource = c.getName().replace('.', '/') + ".class";
+		ClassLoader loader = c.getClassLoader();
+		try(
+			InputStream in =
+				loader == null
+					? ClassLoader.getSystemResourceAsStream(resource)
+					: loader.getResourceAsStream(resource)
+		) {
+			return in == null ? null : in.readAllBytes();
+		}
+		catch(IOException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,500 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.objectweb.asm.ClassReader;
+
+
+/**
+ * {@code RewriteAnalyzer} tells which call sites of a class path the agent would rewrite,
+ * without defining or writing any class:
+ * <xmp>
+ * 	java -jar timemachine-delegate.jar analyze "mode=dynamic;include=com/acme/**" \
+ * 		app.jar:lib/dependency.jar:target/classes
+ * </xmp>
+ *
+ * Every class is selected with the filters of {@link TimeMachineTransformer} and rewritten in
+ * memory with the same {@link TimeMachineAdapter}s as by the agent, so the report is what
+ * the agent would do with the same options. For every class which would be rewritten, it lists
+ * the rewritten calls of every {@link TimeCall}, the growth of the class file and, for every
+ * method with a rewritten call, the calls and the length of its byte code before and after
+ * the rewrite. A method is flagged when the rewrite makes its byte code longer than one of
+ * the HotSpot limits:
+ * 	<ul>
+ * 		<li>
+ * 			{@code MaxInlineSize} ({@value #MAX_INLINE_SIZE} bytes): not inlined any more
+ * 			unless it is called often.
+ * 		</li>
+ * 		<li>
+ * 			{@code FreqInlineSize} ({@value #FREQ_INLINE_SIZE} bytes): not inlined any more
+ * 			even if it is called often.
+ * 		</li>
+ * 		<li>
+ * 			{@code HugeMethodLimit} ({@value #HUGE_METHOD_LIMIT} bytes): not compiled at all.
+ * 		</li>
+ * 	</ul>
+ *
+ * The limits are the defaults of HotSpot on 64-bit platforms. A JVM started with other values
+ * inlines differently.
+ * <p>
+ *
+ * The jar files are read with {@link MappedJar} and both the jars and the class directories
+ * are split into slices of class files, which are analyzed by a {@link ForkJoinPool}. Every
+ * thread holds one class file at a time, and the cheap scan of {@link TimeCallScanner} rejects
+ * most of them before anything is parsed, so the memory only grows with the report. Jar files
+ * which cannot be mapped (e.g. ZIP64 ones) are read sequentially. Nested jars are not looked
+ * into.
+ */
+final class RewriteAnalyzer
+{
+	static final int MAX_INLINE_SIZE = 35;
+	static final int FREQ_INLINE_SIZE = 325;
+	static final int HUGE_METHOD_LIMIT = 8000;
+
+	private static final int[] LIMITS = { MAX_INLINE_SIZE, FREQ_INLINE_SIZE, HUGE_METHOD_LIMIT };
+	private static final String[] LIMIT_NAMES =
+		{ "MaxInlineSize", "FreqInlineSize", "HugeMethodLimit" };
+	private static final int TIME_CALLS = TimeCall.values().length;
+	private static final int SLICE = 256;
+	private static final String CLASS_SUFFIX = ".class";
+	private static final String VERSIONS = "META-INF/versions/";
+
+	private final TimeMachineTransformer _transformer;
+	private final int _parallelism;
+	private final List<Path> _sources = new ArrayList<>();
+
+	/**
+	 * The report lines of the rewritten classes of every source, by the class file name.
+	 */
+	private final List<Map<String, String>> _reports = new ArrayList<>();
+	private final List<String> _unreadable = new ArrayList<>();
+	private final int[] _callSites = new int[TIME_CALLS];
+	private final int[] _overLimits = new int[LIMITS.length];
+	private int _scanned;
+	private int _rewritten;
+	private int _failed;
+	private int _methods;
+	private long _codeGrowth;
+	private long _classFileGrowth;
+
+
+	/**
+	 * @param transformer
+	 * 		The transformer configured like the one of the agent.
+	 *
+	 * @param parallelism
+	 * 		Number of the threads analyzing the classes.
+	 */
+	RewriteAnalyzer(TimeMachineTransformer transformer, int parallelism)
+	{
+		_transformer = transformer;
+		_parallelism = parallelism;
+	}
+
+	/**
+	 * Analyzes the jar files and the class directories of a class path.
+	 *
+	 * @return
+	 * 		The number of the classes which would be rewritten.
+	 *
+	 * @throws IOException
+	 * 		If a directory cannot be listed.
+	 */
+	int analyze(List<Path> classPath)
+		throws
+			IOException
+	{
+		List<RecursiveAction> tasks = new ArrayList<>();
+		for(Path element : classPath) {
+			int source = _sources.size();
+			_sources.add(element);
+			_reports.add(new ConcurrentSkipListMap<>());
+			if(Files.isDirectory(element))
+				tasks.addAll(directorySlices(source, element));
+			else if(Files.isRegularFile(element))
+				tasks.add(new JarTask(source, element));
+			else
+				_unreadable.add(element + " does not exist.");
+		}
+
+		ForkJoinPool pool =
+			new ForkJoinPool(
+				_parallelism,
+				p -> {
+					ForkJoinWorkerThread thread =
+						ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+					thread.setName("TimeMachine analysis " + thread.getPoolIndex());
+					thread.setDaemon(true);
+					return thread;
+				},
+				null,
+				false
+			);
+		try {
+			pool.invoke(
+				new RecursiveAction()
+				{
+					@Override
+					protected void compute()
+					{
+						invokeAll(tasks);
+					}
+				}
+			);
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		return _rewritten;
+	}
+
+	/**
+	 * Prints the rewritten classes of every source and the totals.
+	 */
+	void print(PrintStream out)
+	{
+		for(int i = 0; i < _sources.size(); i++) {
+			if(_reports.get(i).isEmpty())
+				continue;
+			out.println(_sources.get(i));
+			for(String lines : _reports.get(i).values())
+				out.print(lines);
+		}
+		for(String unreadable : _unreadable)
+			out.println(unreadable);
+		out.println();
+		out.println("Rewritten calls:" + calls(_callSites));
+		out.println(
+			"Growth: " + signed(_codeGrowth) + " bytes of byte code in " + _methods
+				+ " methods, " + signed(_classFileGrowth) + " bytes of class files."
+		);
+		StringBuilder limits = new StringBuilder("Methods growing over");
+		for(int i = 0; i < LIMITS.length; i++)
+			limits.append(i == 0 ? " " : ", ").append(LIMIT_NAMES[i]).append(" (")
+				.append(LIMITS[i]).append("): ").append(_overLimits[i]);
+		out.println(limits.append('.'));
+		out.println(
+			"TimeMachine would rewrite " + _rewritten + " of " + _scanned + " classes"
+				+ (_failed == 0 ? "." : ", " + _failed + " classes cannot be rewritten.")
+		);
+	}
+
+	/**
+	 * @return
+	 * 		The number of the rewritten calls of every {@link TimeCall}, indexed by the ordinal.
+	 */
+	int[] getCallSites()
+	{
+		return _callSites;
+	}
+
+	/**
+	 * @return
+	 * 		The number of the methods growing over {@link #MAX_INLINE_SIZE},
+	 * 		{@link #FREQ_INLINE_SIZE} and {@link #HUGE_METHOD_LIMIT}.
+	 */
+	int[] getOverLimits()
+	{
+		return _overLimits;
+	}
+
+	private List<RecursiveAction> directorySlices(int source, Path directory)
+		throws
+			IOException
+	{
+		List<Path> files;
+		try(Stream<Path> stream = Files.walk(directory)) {
+			files =
+				stream
+					.filter(file -> file.toString().endsWith(CLASS_SUFFIX))
+					.filter(Files::isRegularFile)
+					.collect(Collectors.toList());
+		}
+		String separator = directory.getFileSystem().getSeparator();
+		List<RecursiveAction> slices = new ArrayList<>();
+		for(int i = 0; i < files.size(); i += SLICE) {
+			List<Path> slice = files.subList(i, Math.min(i + SLICE, files.size()));
+			slices.add(
+				new RecursiveAction()
+				{
+					@Override
+					protected void compute()
+					{
+						for(Path file : slice) {
+							String name =
+								directory.relativize(file).toString().replace(separator, "/");
+							try {
+								analyze(source, name, Files.readAllBytes(file));
+							}
+							catch(IOException e) {
+								unreadable(file + " cannot be read. " + e.getMessage());
+							}
+						}
+					}
+				}
+			);
+		}
+		return slices;
+	}
+
+	/**
+	 * Analyzes a class file, if it is a selected one, and adds it to the report.
+	 */
+	private void analyze(int source, String name, byte[] classFile)
+	{
+		String className = className(name);
+		if(className == null)
+			return;
+		if(!_transformer.accepts(ClassLoader.getSystemClassLoader(), className, null)) {
+			scanned();
+			return;
+		}
+		// The name of a class of a multi-release jar keeps the version directory.
+		String label = name.substring(0, name.length() - CLASS_SUFFIX.length());
+
+		int[] callSites = new int[TIME_CALLS];
+		Map<String, int[]> methodCallSites = new LinkedHashMap<>();
+		byte[] transformed;
+		try {
+			transformed = _transformer.rewrite(className, classFile, callSites, methodCallSites);
+		}
+		catch(Error e) {
+			String cause = e.getCause() == null ? e.toString() : e.getCause().toString();
+			failed(source, name, "\t" + label + " cannot be rewritten. " + cause + "\n");
+			return;
+		}
+		if(transformed == null || sum(callSites) == 0) {
+			scanned();
+			return;
+		}
+
+		Map<String, Integer> before = codeLengths(classFile);
+		Map<String, Integer> after = codeLengths(transformed);
+		StringBuilder lines = new StringBuilder();
+		lines.append('\t').append(label).append(calls(callSites)).append(", ")
+			.append(signed(transformed.length - classFile.length)).append(" bytes\n");
+		int methods = 0;
+		long codeGrowth = 0;
+		int[] overLimits = new int[LIMITS.length];
+		for(Map.Entry<String, int[]> method : methodCallSites.entrySet()) {
+			if(sum(method.getValue()) == 0)
+				continue;
+			int oldLength = before.getOrDefault(method.getKey(), 0);
+			int newLength = after.getOrDefault(method.getKey(), 0);
+			methods++;
+			codeGrowth += newLength - oldLength;
+			lines.append("\t\t").append(method.getKey()).append(calls(method.getValue()))
+				.append(", ").append(oldLength).append(" -> ").append(newLength)
+				.append(" bytes");
+			for(int i = 0; i < LIMITS.length; i++)
+				if(oldLength <= LIMITS[i] && newLength > LIMITS[i]) {
+					overLimits[i]++;
+					lines.append(", over ").append(LIMIT_NAMES[i]);
+				}
+			lines.append('\n');
+		}
+		_reports.get(source).put(name, lines.toString());
+		synchronized(this) {
+			_scanned++;
+			_rewritten++;
+			_methods += methods;
+			_codeGrowth += codeGrowth;
+			_classFileGrowth += transformed.length - classFile.length;
+			for(int i = 0; i < TIME_CALLS; i++)
+				_callSites[i] += callSites[i];
+			for(int i = 0; i < LIMITS.length; i++)
+				_overLimits[i] += overLimits[i];
+		}
+	}
+
+	/**
+	 * @return
+	 * 		The internal name of the class of a class file name or {@code null} if the file is
+	 * 		not a class the agent would see.
+	 */
+	private static String className(String name)
+	{
+		if(!name.endsWith(CLASS_SUFFIX) || name.endsWith("module-info.class"))
+			return null;
+		String className = name.substring(0, name.length() - CLASS_SUFFIX.length());
+		if(className.startsWith(VERSIONS)) {
+			int slash = className.indexOf('/', VERSIONS.length());
+			return slash < 0 ? null : className.substring(slash + 1);
+		}
+		return className.startsWith("META-INF/") ? null : className;
+	}
+
+	/**
+	 * @return
+	 * 		The length of the byte code of every method with code, by the name and
+	 * 		the descriptor of the method.
+	 */
+	static Map<String, Integer> codeLengths(byte[] classFile)
+	{
+		ClassReader cr = new ClassReader(classFile);
+		char[] buffer = new char[cr.getMaxStringLength()];
+		// access_flags, this_class, super_class and interfaces
+		int p = cr.header + 8 + 2 * cr.readUnsignedShort(cr.header + 6);
+		int fieldCount = cr.readUnsignedShort(p);
+		p += 2;
+		for(int i = 0; i < fieldCount; i++)
+			p = skipAttributes(cr, p + 6);
+
+		Map<String, Integer> lengths = new HashMap<>();
+		int methodCount = cr.readUnsignedShort(p);
+		p += 2;
+		for(int i = 0; i < methodCount; i++) {
+			String method = cr.readUTF8(p + 2, buffer) + cr.readUTF8(p + 4, buffer);
+			int attributeCount = cr.readUnsignedShort(p + 6);
+			p += 8;
+			for(int j = 0; j < attributeCount; j++) {
+				if("Code".equals(cr.readUTF8(p, buffer)))
+					lengths.put(method, cr.readInt(p + 10));
+				p += 6 + cr.readInt(p + 2);
+			}
+		}
+		return lengths;
+	}
+
+	private static int skipAttributes(ClassReader cr, int p)
+	{
+		int attributeCount = cr.readUnsignedShort(p);
+		p += 2;
+		for(int i = 0; i < attributeCount; i++)
+			p += 6 + cr.readInt(p + 2);
+		return p;
+	}
+
+	private synchronized void scanned()
+	{
+		_scanned++;
+	}
+
+	private synchronized void failed(int source, String name, String line)
+	{
+		_reports.get(source).put(name, line);
+		_scanned++;
+		_failed++;
+	}
+
+	private synchronized void unreadable(String line)
+	{
+		_unreadable.add(line);
+	}
+
+	private static String calls(int[] callSites)
+	{
+		StringBuilder calls = new StringBuilder();
+		for(TimeCall call : TimeCall.values())
+			if(callSites[call.ordinal()] != 0)
+				calls.append(' ').append(call).append('=').append(callSites[call.ordinal()]);
+		return calls.toString();
+	}
+
+	private static int sum(int[] callSites)
+	{
+		int sum = 0;
+		for(int count : callSites)
+			sum += count;
+		return sum;
+	}
+
+	private static String signed(long bytes)
+	{
+		return String.format(Locale.ROOT, "%+d", bytes);
+	}
+
+
+	private final class JarTask
+		extends
+			RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int _source;
+		private final Path _jar;
+
+		JarTask(int source, Path jar)
+		{
+			_source = source;
+			_jar = jar;
+		}
+
+		@Override
+		protected void compute()
+		{
+			MappedJar jar;
+			try {
+				jar = MappedJar.open(_jar);
+			}
+			catch(IOException e) {
+				readSequentially();
+				return;
+			}
+
+			List<MappedJar.Entry> classes = new ArrayList<>();
+			for(MappedJar.Entry entry : jar.getEntries())
+				if(entry.name.endsWith(CLASS_SUFFIX) && entry.size > 0)
+					classes.add(entry);
+
+			List<RecursiveAction> slices = new ArrayList<>();
+			for(int i = 0; i < classes.size(); i += SLICE) {
+				List<MappedJar.Entry> slice =
+					classes.subList(i, Math.min(i + SLICE, classes.size()));
+				slices.add(
+					new RecursiveAction()
+					{
+						@Override
+						protected void compute()
+						{
+							for(MappedJar.Entry entry : slice)
+								try {
+									analyze(_source, entry.name, jar.read(entry));
+								}
+								catch(IOException e) {
+									unreadable(e.getMessage());
+								}
+						}
+					}
+				);
+			}
+			invokeAll(slices);
+		}
+
+		private void readSequentially()
+		{
+			try(ZipFile zip = new ZipFile(_jar.toFile())) {
+				for(Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+					ZipEntry entry = e.nextElement();
+					if(!entry.getName().endsWith(CLASS_SUFFIX) || entry.isDirectory())
+						continue;
+					try(InputStream in = zip.getInputStream(entry)) {
+						analyze(_source, entry.getName(), in.readAllBytes());
+					}
+				}
+			}
+			catch(IOException e) {
+				unreadable(_jar + " cannot be read. " + e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package com.codetropics.java.asm.timemachine;
+
+
+/**
+ * {@code RewriteMode} defines how {@link TimeMachineAdapter} applies the time shift to
+ * the system time queries.
+ */
+enum RewriteMode
+{
+	/**
+	 * The time shift is embedded into the byte code as a constant. Changing the time shift
+	 * needs a JVM restart.
+	 */
+	CONSTANT,
+
+	/**
+	 * The time shift is applied through an {@code invokedynamic} call site linked by
+	 * {@link ClockCallSites}. The time shift can be changed at runtime with {@link TimeMachine}.
+	 */
+	DYNAMIC,
+
+	/**
+	 * The few JDK classes every time API goes through are retransformed with the time shift
+	 * embedded as a constant (see {@link JdkHook}). The application classes are only
+	 * instrumented for their direct calls to {@code System.currentTimeMillis()}, which is
+	 * native and cannot be hooked. Falls back to {@link #CONSTANT} if the JDK classes cannot
+	 * be retransformed.
+	 */
+	JDK;
+
+	/**
+	 * @throws IllegalArgumentException
+	 * 		If the name is not a valid rewrite mode.
+	 */
+	static RewriteMode parse(String name)
+	{
+		if(name == null)
+			return CONSTANT;
+		try {
+			return valueOf(name.trim().toUpperCase());
+		}
+		catch(IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown mode: " + name);
+		}
+	}
+}
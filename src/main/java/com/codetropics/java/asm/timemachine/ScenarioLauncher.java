@@ -0,0 +1,380 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * {@code ScenarioLauncher} runs the same command once per time shift, every run in a child JVM
+ * of its own with the agent attached, several of them at the same time:
+ * <xmp>
+ * 	java -jar timemachine-delegate.jar scenarios --shifts @month-ends.txt \
+ * 		--options "mode=dynamic" --report scenarios.csv -- java -jar yourapp.jar
+ * </xmp>
+ *
+ * The agent argument {@code shift=<shift>} and the {@code --options} are added to the command
+ * right after the {@code java} launcher. A command starting with an option is run with
+ * the {@code java} launcher of this JVM. {@value #SHIFT_PLACEHOLDER} in the command is replaced
+ * with the time shift of the run, e.g. to give every run an output file of its own.
+ * <p>
+ *
+ * The number of the runs at the same time is the {@code --parallel} value, by default
+ * the number of the cores, but never more than the cores and not more than fit into
+ * the physical memory with {@code --memory} per child JVM. {@code --memory} defaults to
+ * the {@code -Xmx} of the command, or {@value #DEFAULT_MEMORY} without one. Every line
+ * the children print to the standard output or the standard error is printed with the time
+ * shift of the child as a prefix. When all the runs have ended, the exit codes and the wall
+ * times are printed in the order of the time shifts and written as CSV to the
+ * {@code --report} file, if any.
+ */
+public final class ScenarioLauncher
+{
+	static final String SHIFT_PLACEHOLDER = "{shift}";
+	static final String DEFAULT_MEMORY = "512m";
+
+	private static final String USAGE =
+		"Usage: java -jar timemachine-delegate.jar scenarios --shifts <shift>,...|@<file>"
+			+ " [--options <options>] [--parallel <n>] [--memory <size>] [--report <file>]"
+			+ " [--agent <jar>] -- <command>";
+
+	private final List<String> _command;
+	private final List<String> _shifts;
+	private final Path _agent;
+	private final String _options;
+	private final int _parallelism;
+	private final PrintStream _out;
+
+
+	/**
+	 * @param command
+	 * 		The command of the child JVMs.
+	 *
+	 * @param shifts
+	 * 		The time shifts, one child JVM each.
+	 *
+	 * @param agent
+	 * 		The agent jar.
+	 *
+	 * @param options
+	 * 		Agent options added to the time shift or {@code null}.
+	 *
+	 * @param parallelism
+	 * 		The maximum number of the child JVMs running at the same time.
+	 *
+	 * @param out
+	 * 		Where the output of the child JVMs is printed.
+	 */
+	ScenarioLauncher(
+		List<String> command,
+		List<String> shifts,
+		Path agent,
+		String options,
+		int parallelism,
+		PrintStream out
+	)
+	{
+		_command = command;
+		_shifts = shifts;
+		_agent = agent;
+		_options = options;
+		_parallelism = parallelism;
+		_out = out;
+	}
+
+	/**
+	 * Parses the command line, runs the scenarios and prints the report.
+	 *
+	 * @return
+	 * 		{@code 0} if every child JVM exited with {@code 0}, {@code 1} if some did not and
+	 * 		{@code 2} if the command line is not valid.
+	 */
+	public static int launch(String[] args)
+	{
+		List<String> shifts = new ArrayList<>();
+		String options = null;
+		Integer parallel = null;
+		long perJvm;
+		String memory = null;
+		Path report = null;
+		Path agent = null;
+		List<String> command = null;
+		try {
+			for(int i = 0; i < args.length; i++) {
+				if(args[i].equals("--")) {
+					command = Arrays.asList(args).subList(i + 1, args.length);
+					break;
+				}
+				if(i + 1 >= args.length)
+					throw new IllegalArgumentException("Option has no value: " + args[i]);
+				String value = args[++i];
+				switch(args[i - 1]) {
+					case "--shifts" : shifts.addAll(AgentOptions.parseList(value)); break;
+					case "--options" : options = value; break;
+					case "--parallel" : parallel = Integer.parseInt(value); break;
+					case "--memory" : memory = value; break;
+					case "--report" : report = Paths.get(value); break;
+					case "--agent" : agent = Paths.get(value); break;
+					default : throw new IllegalArgumentException("Unknown option: " + args[i - 1]);
+				}
+			}
+			if(command == null || command.isEmpty())
+				throw new IllegalArgumentException("The command is missing.");
+			if(shifts.isEmpty())
+				throw new IllegalArgumentException("No time shifts given.");
+			for(String shift : shifts)
+				TimeMachineAgentDelegate.parseTime(shift);
+			if(options != null)
+				AgentOptions.parse(options);
+			if(agent == null)
+				agent = agentJar();
+			if(parallel != null && parallel < 1)
+				throw new IllegalArgumentException("Invalid parallelism: " + parallel);
+			perJvm = AgentOptions.parseSize("--memory", memory == null ? memory(command) : memory);
+		}
+		catch(IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			return 2;
+		}
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		int parallelism =
+			parallelism(parallel == null ? cores : parallel, cores, physicalMemory(), perJvm);
+		System.out.println(
+			"TimeMachine runs " + shifts.size() + " scenarios, " + parallelism + " at a time."
+		);
+		List<Result> results =
+			new ScenarioLauncher(command, shifts, agent, options, parallelism, System.out).run();
+		System.out.println();
+		System.out.print(summary(results));
+		if(report != null)
+			try {
+				Files.write(report, csv(results).getBytes(StandardCharsets.UTF_8));
+			}
+			catch(IOException e) {
+				System.err.println("Couldn't write the report " + report + ". " + e);
+			}
+		for(Result result : results)
+			if(result.exit != 0)
+				return 1;
+		return 0;
+	}
+
+	/**
+	 * Runs every scenario and waits until all of them have ended.
+	 *
+	 * @return
+	 * 		The results in the order of the time shifts.
+	 */
+	List<Result> run()
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(_parallelism);
+		try {
+			List<Future<Result>> futures = new ArrayList<>();
+			for(String shift : _shifts)
+				futures.add(executor.submit(() -> run(shift)));
+			List<Result> results = new ArrayList<>();
+			for(Future<Result> future : futures)
+				results.add(future.get());
+			return results;
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return Collections.emptyList();
+		}
+		catch(ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Runs a child JVM and prints its output with the time shift as a prefix.
+	 */
+	private Result run(String shift)
+		throws
+			InterruptedException
+	{
+		String prefix = "[" + shift + "] ";
+		long start = System.nanoTime();
+		int exit;
+		try {
+			Process process = new ProcessBuilder(command(shift)).redirectErrorStream(true).start();
+			try(
+				BufferedReader in =
+					new BufferedReader(
+						new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8)
+					)
+			) {
+				for(String line; (line = in.readLine()) != null; )
+					_out.println(prefix + line);
+			}
+			catch(IOException e) {
+				_out.println(prefix + "Couldn't read the output. " + e);
+			}
+			exit = process.waitFor();
+		}
+		catch(IOException e) {
+			_out.println(prefix + "Couldn't start the child JVM. " + e.getMessage());
+			exit = -1;
+		}
+		long millis = (System.nanoTime() - start) / 1000000;
+		_out.println(prefix + "Exited with " + exit + " after " + seconds(millis) + " s.");
+		return new Result(shift, exit, millis);
+	}
+
+	/**
+	 * @return
+	 * 		The command of the child JVM of a time shift.
+	 */
+	List<String> command(String shift)
+	{
+		List<String> command = new ArrayList<>(_command.size() + 2);
+		int first = 0;
+		if(_command.get(0).startsWith("-"))
+			command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+		else
+			command.add(_command.get(first++));
+		command.add(
+			"-javaagent:" + _agent.toAbsolutePath() + "=shift=" + shift
+				+ (_options == null || _options.trim().isEmpty() ? "" : ";" + _options)
+		);
+		for(String arg : _command.subList(first, _command.size()))
+			command.add(arg.replace(SHIFT_PLACEHOLDER, shift));
+		return command;
+	}
+
+	/**
+	 * @return
+	 * 		The requested parallelism bounded by the cores and the memory, at least one.
+	 */
+	static int parallelism(int requested, int cores, long physicalMemory, long perJvm)
+	{
+		long byMemory = physicalMemory <= 0 ? cores : physicalMemory / Math.max(1, perJvm);
+		return (int)Math.max(1, Math.min(requested, Math.min(cores, byMemory)));
+	}
+
+	/**
+	 * @return
+	 * 		The {@code -Xmx} of a command or {@value #DEFAULT_MEMORY}.
+	 */
+	static String memory(List<String> command)
+	{
+		String memory = DEFAULT_MEMORY;
+		for(String arg : command)
+			if(arg.startsWith("-Xmx"))
+				memory = arg.substring(4);
+		return memory;
+	}
+
+	/**
+	 * @return
+	 * 		The size of the physical memory or {@code 0} if not known.
+	 */
+	private static long physicalMemory()
+	{
+		if(
+			ManagementFactory.getOperatingSystemMXBean()
+				instanceof com.sun.management.OperatingSystemMXBean os
+		)
+			return os.getTotalMemorySize();
+		return 0;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 * 		If this class is not loaded from a jar file.
+	 */
+	private static Path agentJar()
+	{
+		try {
+			CodeSource source = ScenarioLauncher.class.getProtectionDomain().getCodeSource();
+			Path jar = Paths.get(source.getLocation().toURI());
+			if(Files.isRegularFile(jar))
+				return jar;
+		}
+		catch(URISyntaxException | RuntimeException e) {
+		}
+		throw new IllegalArgumentException("The agent jar is not known. Give it with --agent.");
+	}
+
+	static String summary(List<Result> results)
+	{
+		int width = "shift".length();
+		for(Result result : results)
+			width = Math.max(width, result.shift.length());
+		String format = "%-" + width + "s  %5s  %10s%n";
+		StringBuilder summary = new StringBuilder();
+		summary.append(String.format(Locale.ROOT, format, "shift", "exit", "seconds"));
+		int failed = 0;
+		for(Result result : results) {
+			summary.append(
+				String.format(
+					Locale.ROOT,
+					format,
+					result.shift,
+					result.exit,
+					seconds(result.millis)
+				)
+			);
+			if(result.exit != 0)
+				failed++;
+		}
+		summary.append(results.size() - failed).append(" passed, ").append(failed)
+			.append(" failed.").append(System.lineSeparator());
+		return summary.toString();
+	}
+
+	static String csv(List<Result> results)
+	{
+		StringBuilder csv = new StringBuilder("shift,exit,millis\n");
+		for(Result result : results)
+			csv.append(result.shift).append(',').append(result.exit).append(',')
+				.append(result.millis).append('\n');
+		return csv.toString();
+	}
+
+	private static String seconds(long millis)
+	{
+		return String.format(Locale.ROOT, "%.1f", millis / 1000.0);
+	}
+
+
+	static final class Result
+	{
+		final String shift;
+
+		/**
+		 * The exit code or {@code -1} if the child JVM could not be started.
+		 */
+		final int exit;
+		final long millis;
+
+		Result(String shift, int exit, long millis)
+		{
+			this.shift = shift;
+			this.exit = exit;
+			this.millis = millis;
+		}
+	}
+}
@@ -0,0 +1,403 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate.Milliseconds;
+import com.codetropics.java.asm.timemachine.boot.SchedulerClock;
+
+
+/**
+ * {@code SchedulerHook} makes the JDK schedulers follow the jumps of the time shift in
+ * {@link RewriteMode#DYNAMIC} mode. Shifting the time of the application classes does not
+ * move the work already scheduled: {@code ScheduledThreadPoolExecutor} keeps its deadlines in
+ * the unshifted {@code System.nanoTime()}, {@code java.util.Timer} in the unshifted
+ * {@code System.currentTimeMillis()}, and the workers of both, like the takers of
+ * a {@code DelayQueue}, sleep until the deadline they saw when they started waiting.
+ * <p>
+ *
+ * The hook retransforms the scheduler classes in {@link #CLASSES} so that they read
+ * {@link SchedulerClock} instead of the system time, and wait through it. The clock runs with
+ * the offset of the current time shift (see {@link ClockCallSites#nanoShift(Milliseconds)}),
+ * so a forward jump brings every queued deadline closer by the length of the jump. After
+ * a forward jump every waiting worker is woken in the background, evaluates its deadline
+ * again and takes a due task at once, so the tasks which fell due during the jump are
+ * released together instead of one wake-up at a time. The elements of a {@code DelayQueue}
+ * compute their delays themselves, which follow the jump if they are instrumented.
+ * <p>
+ *
+ * The hooked classes are loaded by the bootstrap class loader, which does not see the agent
+ * classes. {@link SchedulerClock} is therefore added to the bootstrap class path from
+ * a temporary jar file, and {@code java.base} is made to read its module.
+ * <p>
+ *
+ * A dilated time and the time shifts of {@link TimeContext} scopes are not followed.
+ */
+final class SchedulerHook
+{
+	/**
+	 * The hooked classes. Every one of them must exist and call the system time or wait.
+	 */
+	static final List<String> CLASSES =
+		Collections.unmodifiableList(
+			Arrays.asList(
+				"java/util/concurrent/ScheduledThreadPoolExecutor",
+				"java/util/concurrent/ScheduledThreadPoolExecutor$ScheduledFutureTask",
+				"java/util/concurrent/ScheduledThreadPoolExecutor$DelayedWorkQueue",
+				"java/util/concurrent/DelayQueue",
+				"java/util/Timer",
+				"java/util/TimerThread"
+			)
+		);
+
+	/**
+	 * The hooked classes waiting on a condition of their {@code lock} field.
+	 */
+	private static final List<String> LOCKED_QUEUES =
+		Arrays.asList(
+			"java/util/concurrent/ScheduledThreadPoolExecutor$DelayedWorkQueue",
+			"java/util/concurrent/DelayQueue"
+		);
+
+	private static final String CLOCK = "com/codetropics/java/asm/timemachine/boot/SchedulerClock";
+	private static final String CONDITION = "java/util/concurrent/locks/Condition";
+	private static final String LOCK = "Ljava/util/concurrent/locks/ReentrantLock;";
+
+
+	private static ClassFileTransformer _transformer;
+	private static Class<?>[] _classes;
+	private static ExecutorService _wakeUps;
+	private static boolean _bootClassPath;
+
+
+	private SchedulerHook()
+	{
+	}
+
+	/**
+	 * Puts {@link SchedulerClock} on the bootstrap class path and retransforms the hooked
+	 * classes.
+	 *
+	 * @return
+	 * 		{@code false} if this JVM cannot be hooked, in which case the hooked classes have not
+	 * 		been changed.
+	 */
+	static synchronized boolean install(Instrumentation instrumentation, Milliseconds timeShift)
+	{
+		if(_transformer != null)
+			return true;
+		List<Class<?>> classes = findClasses(instrumentation);
+		if(classes == null || !addToBootClassPath(instrumentation))
+			return false;
+
+		SchedulerClock.setOffset(ClockCallSites.nanoShift(timeShift));
+		ClassFileTransformer transformer =
+			new ClassFileTransformer()
+			{
+				@Override
+				public byte[] transform(
+					ClassLoader loader,
+					String className,
+					Class<?> classBeingRedefined,
+					ProtectionDomain protectionDomain,
+					byte[] classFileBuffer
+				)
+				{
+					if(loader != null || !CLASSES.contains(className))
+						return null;
+					return rewrite(className, classFileBuffer);
+				}
+			};
+		Class<?>[] hooked = classes.toArray(new Class<?>[0]);
+		instrumentation.addTransformer(transformer, true);
+		try {
+			instrumentation.retransformClasses(hooked);
+		}
+		catch(UnmodifiableClassException | RuntimeException | LinkageError e) {
+			instrumentation.removeTransformer(transformer);
+			return false;
+		}
+		_wakeUps =
+			Executors.newSingleThreadExecutor(
+				r -> {
+					Thread thread = new Thread(r, "TimeMachine scheduler wake-up");
+					thread.setDaemon(true);
+					return thread;
+				}
+			);
+		_transformer = transformer;
+		_classes = hooked;
+		return true;
+	}
+
+	/**
+	 * Restores the original byte code of the hooked classes if they have been hooked.
+	 * {@link SchedulerClock} stays on the bootstrap class path.
+	 *
+	 * @throws UnmodifiableClassException
+	 * 		Never in practice, because the classes have been retransformed before.
+	 */
+	static synchronized void uninstall(Instrumentation instrumentation)
+		throws
+			UnmodifiableClassException
+	{
+		ClassFileTransformer transformer = _transformer;
+		if(transformer == null)
+			return;
+		Class<?>[] classes = _classes;
+		_transformer = null;
+		_classes = null;
+		_wakeUps.shutdown();
+		instrumentation.removeTransformer(transformer);
+		instrumentation.retransformClasses(classes);
+		SchedulerClock.setOffset(0);
+		SchedulerClock.wakeUp();
+	}
+
+	/**
+	 * Called by {@link ClockCallSites} when the time shift has been changed. Wakes
+	 * the waiting workers in the background if the clock of the schedulers jumped forward,
+	 * so that the caller never waits for the locks of the schedulers.
+	 *
+	 * @param nanoShift
+	 * 		The new offset of {@code System.nanoTime()}.
+	 */
+	static synchronized void jumped(long nanoShift)
+	{
+		if(_transformer != null && SchedulerClock.setOffset(nanoShift))
+			_wakeUps.execute(SchedulerClock::wakeUp);
+	}
+
+	/**
+	 * @return
+	 * 		The classes to be retransformed or {@code null} if some of them cannot be hooked,
+	 * 		either because this JVM does not support it or because the schedulers of the JDK
+	 * 		are implemented some other way.
+	 */
+	static List<Class<?>> findClasses(Instrumentation instrumentation)
+	{
+		if(
+			!instrumentation.isRetransformClassesSupported() ||
+			!instrumentation.isModifiableModule(Object.class.getModule())
+		)
+			return null;
+
+		List<Class<?>> classes = new ArrayList<>(CLASSES.size());
+		for(String name : CLASSES) {
+			Class<?> c;
+			try {
+				c = Class.forName(name.replace('/', '.'), false, null);
+				if(
+					LOCKED_QUEUES.contains(name) &&
+					c.getDeclaredField("lock").getType() != ReentrantLock.class
+				)
+					return null;
+			}
+			catch(ClassNotFoundException | NoSuchFieldException e) {
+				return null;
+			}
+			byte[] classFile = JdkHook.readClassFile(name);
+			if(
+				!instrumentation.isModifiableClass(c) ||
+				classFile == null ||
+				rewrite(name, classFile) == null
+			)
+				return null;
+			classes.add(c);
+		}
+		return classes;
+	}
+
+	/**
+	 * Writes the class file of {@link SchedulerClock} into a temporary jar file, appends it to
+	 * the bootstrap class path and lets {@code java.base} read the unnamed module of
+	 * the bootstrap class loader. This is done once per JVM.
+	 *
+	 * @return
+	 * 		{@code false} if {@link SchedulerClock} is not loaded by the bootstrap class loader.
+	 */
+	private static boolean addToBootClassPath(Instrumentation instrumentation)
+	{
+		if(!_bootClassPath) {
+			try(
+				InputStream in =
+					SchedulerHook.class.getClassLoader().getResourceAsStream(CLOCK + ".class")
+			) {
+				if(in == null)
+					return false;
+				Path jar = Files.createTempFile("timemachine-boot", ".jar");
+				jar.toFile().deleteOnExit();
+				try(
+					OutputStream out = Files.newOutputStream(jar);
+					JarOutputStream jarOut = new JarOutputStream(out)
+				) {
+					jarOut.putNextEntry(new JarEntry(CLOCK + ".class"));
+					in.transferTo(jarOut);
+					jarOut.closeEntry();
+				}
+				instrumentation.appendToBootstrapClassLoaderSearch(new JarFile(jar.toFile()));
+			}
+			catch(IOException e) {
+				System.err.println("TimeMachine couldn't write its boot class path jar. " + e);
+				return false;
+			}
+			_bootClassPath = true;
+		}
+		if(SchedulerClock.class.getClassLoader() != null)
+			return false;
+		instrumentation.redefineModule(
+			Object.class.getModule(),
+			Set.of(SchedulerClock.class.getModule()),
+			Map.of(),
+			Map.of(),
+			Set.of(),
+			Map.of()
+		);
+		return true;
+	}
+
+	/**
+	 * Rewrites a hooked class to use {@link SchedulerClock}.
+	 *
+	 * @param className
+	 * 		One of {@link #CLASSES}.
+	 *
+	 * @return
+	 * 		The rewritten class file or {@code null} if there was nothing to rewrite.
+	 */
+	static byte[] rewrite(String className, byte[] classFile)
+	{
+		boolean lockedQueue = LOCKED_QUEUES.contains(className);
+		int[] rewritten = new int[1];
+		ClassReader cr = new ClassReader(classFile);
+		ClassWriter cw = new ClassWriter(cr, 0);
+		cr.accept(
+			new ClassVisitor(Opcodes.ASM9, cw)
+			{
+				@Override
+				public MethodVisitor visitMethod(
+					int access,
+					String name,
+					String desc,
+					String signature,
+					String[] exceptions
+				)
+				{
+					MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+					boolean locked = lockedQueue && (access & Opcodes.ACC_STATIC) == 0;
+					return new SchedulerAdapter(className, locked, rewritten, mv);
+				}
+			},
+			0
+		);
+		return rewritten[0] == 0 ? null : cw.toByteArray();
+	}
+
+
+	private static final class SchedulerAdapter
+		extends
+			MethodVisitor
+	{
+		private final String _owner;
+		private final boolean _locked;
+		private final int[] _rewritten;
+
+		/**
+		 * @param locked
+		 * 		{@code true} if the condition waits are to be rewritten, which needs the lock
+		 * 		from the {@code lock} field of {@code this}.
+		 *
+		 * @param rewritten
+		 * 		Counter of the rewritten instructions.
+		 */
+		SchedulerAdapter(String owner, boolean locked, int[] rewritten, MethodVisitor mv)
+		{
+			super(Opcodes.ASM9, mv);
+			_owner = owner;
+			_locked = locked;
+			_rewritten = rewritten;
+		}
+
+		@Override
+		public void visitMethodInsn(
+			int opcode,
+			String owner,
+			String name,
+			String desc,
+			boolean itf
+		)
+		{
+			if(opcode == Opcodes.INVOKESTATIC && owner.equals("java/lang/System")) {
+				if(name.equals("nanoTime") || name.equals("currentTimeMillis")) {
+					rewritten(Opcodes.INVOKESTATIC, name, desc);
+					return;
+				}
+			}
+			else if(opcode == Opcodes.INVOKEINTERFACE && owner.equals(CONDITION) && _locked) {
+				if(name.equals("awaitNanos") && desc.equals("(J)J")) {
+					loadLock();
+					rewritten(Opcodes.INVOKESTATIC, name, "(L" + CONDITION + ";J" + LOCK + ")J");
+					return;
+				}
+				if(name.equals("await") && desc.equals("()V")) {
+					loadLock();
+					rewritten(Opcodes.INVOKESTATIC, name, "(L" + CONDITION + ";" + LOCK + ")V");
+					return;
+				}
+			}
+			else if(
+				opcode == Opcodes.INVOKEVIRTUAL &&
+				owner.equals("java/lang/Object") &&
+				name.equals("wait") &&
+				desc.equals("(J)V")
+			) {
+				rewritten(Opcodes.INVOKESTATIC, name, "(Ljava/lang/Object;J)V");
+				return;
+			}
+			super.visitMethodInsn(opcode, owner, name, desc, itf);
+		}
+
+		@Override
+		public void visitMaxs(int maxStack, int maxLocals)
+		{
+			super.visitMaxs(maxStack + 1, maxLocals);
+		}
+
+		private void loadLock()
+		{
+			super.visitVarInsn(Opcodes.ALOAD, 0);
+			super.visitFieldInsn(Opcodes.GETFIELD, _owner, "lock", LOCK);
+		}
+
+		private void rewritten(int opcode, String name, String desc)
+		{
+			super.visitMethodInsn(opcode, CLOCK, name, desc, false);
+			_rewritten[0]++;
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate.Milliseconds;
+
+
+/**
+ * {@code SharedClock} keeps a time shift in a small memory mapped file so that every JVM of
+ * a host started with the same {@code clock=<file>} option sees the same time, also after
+ * a restart. A change made by any of them (or by {@code java -jar timemachine-delegate.jar
+ * clock <file> <time-shift>}) moves all of them at once.
+ * <p>
+ *
+ * The file is a seqlock: a writer makes the sequence number odd, writes the time shift and
+ * makes the sequence number even again. A reader reads the sequence number, the time shift
+ * and the sequence number again and retries if the two differ. {@link ClockCallSites} binds
+ * its call sites to the sequence number seen when the shift was read, so checking for
+ * a change costs one volatile load of the mapped memory per call. Nothing is locked and no
+ * system calls are made on the read path.
+ * <p>
+ *
+ * A writer which dies in the middle of a change, e.g. a JVM killed at the wrong moment, leaves
+ * an odd sequence number behind. If the sequence number stays the same odd number for
+ * {@link #STALE_NANOS}, the change is considered abandoned: readers take the time shift as it
+ * is and the next writer takes over the sequence number.
+ * <p>
+ *
+ * The layout of the file, in the native byte order:
+ * <xmp>
+ * 	 0  int    magic
+ * 	 4  int    version
+ * 	 8  long   sequence number
+ * 	16  long   kind: 0 relative, 1 absolute, 2 dilated
+ * 	24  long   time (the offset, the absolute time or the start of a dilated time)
+ * 	32  long   system time when a dilated time was started
+ * 	40  double rate of a dilated time
+ * </xmp>
+ */
+final class SharedClock
+{
+	static final int SIZE = 64;
+
+	/**
+	 * Time after which a change being written is considered abandoned. Far longer than any
+	 * write, including a pause of the writing JVM.
+	 */
+	static final long STALE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private static final int MAGIC = 0x544d434b;
+	private static final int VERSION = 1;
+	private static final int SEQUENCE = 8;
+	private static final int KIND = 16;
+	private static final int TIME = 24;
+	private static final int BASELINE = 32;
+	private static final int RATE = 40;
+
+	private static final long RELATIVE = 0;
+	private static final long ABSOLUTE = 1;
+	private static final long DILATED = 2;
+
+	private static final VarHandle LONGS =
+		MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	private final MappedByteBuffer _buffer;
+
+
+	private SharedClock(MappedByteBuffer buffer)
+	{
+		_buffer = buffer;
+	}
+
+	/**
+	 * Opens a clock file or creates it if it does not exist yet.
+	 *
+	 * @param file
+	 * 		The clock file.
+	 *
+	 * @param initial
+	 * 		The time shift of a new clock file. An existing file keeps its time shift.
+	 *
+	 * @throws IOException
+	 * 		If the file cannot be opened or it is not a clock file.
+	 */
+	static SharedClock open(Path file, Milliseconds initial)
+		throws
+			IOException
+	{
+		try(
+			FileChannel channel =
+				FileChannel.open(
+					file,
+					StandardOpenOption.CREATE,
+					StandardOpenOption.READ,
+					StandardOpenOption.WRITE
+				)
+		) {
+			// Released when the channel is closed.
+			channel.lock();
+			boolean created = channel.size() == 0;
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+			buffer.order(ByteOrder.nativeOrder());
+			SharedClock clock = new SharedClock(buffer);
+			if(created) {
+				buffer.putInt(4, VERSION);
+				clock.write(initial);
+				buffer.putInt(0, MAGIC);
+				buffer.force();
+			}
+			else if(buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+				throw new IOException(file + " is not a TimeMachine clock file.");
+			return clock;
+		}
+	}
+
+	/**
+	 * @return
+	 * 		The sequence number, which changes whenever the time shift is changed. An odd
+	 * 		number means that a change is being written.
+	 */
+	long sequence()
+	{
+		return (long)LONGS.getVolatile(_buffer, SEQUENCE);
+	}
+
+	/**
+	 * Waits until no change is being written, or until the change being written has been
+	 * abandoned.
+	 *
+	 * @return
+	 * 		The sequence number, which is only odd if a change has been abandoned.
+	 */
+	long stableSequence()
+	{
+		long sequence = sequence();
+		long since = System.nanoTime();
+		while((sequence & 1) != 0 && System.nanoTime() - since < STALE_NANOS) {
+			Thread.onSpinWait();
+			long current = sequence();
+			if(current != sequence) {
+				sequence = current;
+				since = System.nanoTime();
+			}
+		}
+		return sequence;
+	}
+
+	/**
+	 * @return
+	 * 		{@code true} if the sequence number is still the given one.
+	 */
+	boolean isCurrent(long sequence)
+	{
+		return (long)LONGS.getVolatile(_buffer, SEQUENCE) == sequence;
+	}
+
+	/**
+	 * Reads the time shift written with the given sequence number.
+	 *
+	 * @param sequence
+	 * 		A sequence number read with {@link #stableSequence()}.
+	 *
+	 * @return
+	 * 		The time shift or {@code null} if it was changed in the middle of reading.
+	 */
+	Milliseconds read(long sequence)
+	{
+		long kind = (long)LONGS.getVolatile(_buffer, KIND);
+		long time = (long)LONGS.getVolatile(_buffer, TIME);
+		long baseline = (long)LONGS.getVolatile(_buffer, BASELINE);
+		long rate = (long)LONGS.getVolatile(_buffer, RATE);
+		if(!isCurrent(sequence))
+			return null;
+		if(kind == DILATED)
+			return Milliseconds.dilated(time, Double.longBitsToDouble(rate), baseline);
+		return new Milliseconds(kind == RELATIVE, time);
+	}
+
+	/**
+	 * @return
+	 * 		The current time shift.
+	 */
+	Milliseconds read()
+	{
+		while(true) {
+			Milliseconds timeShift = read(stableSequence());
+			if(timeShift != null)
+				return timeShift;
+		}
+	}
+
+	/**
+	 * Changes the time shift of every JVM using this clock file. Concurrent writers, also in
+	 * other processes, take turns.
+	 */
+	void write(Milliseconds timeShift)
+	{
+		long sequence;
+		long writing;
+		do {
+			sequence = stableSequence();
+			// An abandoned change is taken over, keeping the sequence number odd.
+			writing = (sequence & 1) == 0 ? sequence + 1 : sequence + 2;
+		}
+		while(!LONGS.compareAndSet(_buffer, SEQUENCE, sequence, writing));
+
+		LONGS.setVolatile(
+			_buffer,
+			KIND,
+			timeShift.isDilated() ? DILATED : timeShift.isRelative() ? RELATIVE : ABSOLUTE
+		);
+		LONGS.setVolatile(_buffer, TIME, (long)timeShift.getTime());
+		LONGS.setVolatile(_buffer, BASELINE, timeShift.getBaseline());
+		LONGS.setVolatile(_buffer, RATE, Double.doubleToRawLongBits(timeShift.getRate()));
+		// Fails only if the change has been taken over, in which case the new writer finishes.
+		LONGS.compareAndSet(_buffer, SEQUENCE, writing, writing + 1);
+	}
+}
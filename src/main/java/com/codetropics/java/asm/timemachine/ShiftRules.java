@@ -0,0 +1,126 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.util.List;
+
+import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate.Milliseconds;
+
+
+/**
+ * {@code ShiftRules} gives the classes matching a class name pattern a time shift of their
+ * own instead of the global one, so that for example billing can run at the end of a month
+ * while the scheduler and logging of the same JVM keep the real time:
+ * <blockquote>
+ * 		{@code rule=com/acme/billing/**@2026-01-31T23:00:00,com/acme/scheduler/**@none}
+ * </blockquote>
+ *
+ * A rule is {@code <pattern>@<time-shift>} where the pattern is a {@link ClassNameTrie}
+ * pattern and the time shift is relative or absolute, or {@code none} for the real time.
+ * The most specific pattern wins. The classes without a matching rule get the global time
+ * shift.
+ * <p>
+ *
+ * The rule of a class is looked up once when the class is transformed and its time shift is
+ * embedded into the rewritten byte code as a constant, exactly like the global time shift
+ * in {@link RewriteMode#CONSTANT} mode, which is the only mode supported by the rules.
+ * The classes with {@code none} are not rewritten at all.
+ */
+final class ShiftRules
+{
+	/**
+	 * The time shift of the {@code none} rule.
+	 */
+	static final Milliseconds NONE = new Milliseconds(true, 0);
+
+	private final ClassNameTrie<Milliseconds> _rules = new ClassNameTrie<>();
+	private final StringBuilder _key = new StringBuilder();
+	private boolean _advancing;
+
+
+	private ShiftRules()
+	{
+	}
+
+	/**
+	 * Parses the rules.
+	 *
+	 * @param rules
+	 * 		The rules as {@code <pattern>@<time-shift>} strings.
+	 *
+	 * @param frozen
+	 * 		{@code true} if an absolute time freezes the clock. Otherwise the clock advances
+	 * 		with the real time from the absolute time given in a rule.
+	 *
+	 * @return
+	 * 		The rules or {@code null} if there are none.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If a rule is not valid.
+	 */
+	static ShiftRules parse(List<String> rules, boolean frozen)
+	{
+		if(rules.isEmpty())
+			return null;
+
+		ShiftRules parsed = new ShiftRules();
+		for(String rule : rules) {
+			int at = rule.lastIndexOf('@');
+			if(at <= 0 || at == rule.length() - 1)
+				throw new IllegalArgumentException(
+					"Invalid rule, <pattern>@<time-shift> expected: " + rule
+				);
+			String pattern = rule.substring(0, at).trim();
+			String shift = rule.substring(at + 1).trim();
+			Milliseconds timeShift;
+			if(shift.equalsIgnoreCase("none"))
+				timeShift = NONE;
+			else {
+				timeShift = TimeMachineAgentDelegate.parseTime(shift);
+				if(!frozen && !timeShift.isRelative()) {
+					timeShift = timeShift.advancing();
+					parsed._advancing = true;
+				}
+			}
+			parsed._rules.put(pattern, timeShift);
+			parsed._key
+				.append(parsed._key.length() == 0 ? "" : ",")
+				.append(pattern)
+				.append('@')
+				.append(
+					timeShift == NONE
+						? "none"
+						: (timeShift.isRelative() ? "relative:" : "absolute:") + timeShift.getTime()
+				);
+		}
+		return parsed;
+	}
+
+	/**
+	 * @return
+	 * 		The time shift of the most specific rule matching a class, {@link #NONE} if
+	 * 		the class is to keep the real time or {@code null} if no rule matches.
+	 */
+	Milliseconds find(String className)
+	{
+		return _rules.find(className);
+	}
+
+	/**
+	 * @return
+	 * 		{@code true} if an absolute time of a rule was turned into an offset from
+	 * 		the current time, which makes the rewritten byte code different in every JVM run.
+	 */
+	boolean isAdvancing()
+	{
+		return _advancing;
+	}
+
+	/**
+	 * @return
+	 * 		A string identifying the rules for the {@link TransformCache} key.
+	 */
+	@Override
+	public String toString()
+	{
+		return _key.toString();
+	}
+}
@@ -0,0 +1,169 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate.Milliseconds;
+
+
+/**
+ * {@code ShiftedClock} replaces the system clocks returned by {@link Clock#systemUTC()},
+ * {@link Clock#systemDefaultZone()} and {@link Clock#system(ZoneId)} in the instrumented
+ * classes. It reads the time shift from {@link ClockCallSites} on every call, so it follows
+ * the changes made with {@link TimeMachine} and the scopes of {@link TimeContext}. The clocks
+ * of the classes having a {@link ShiftRules rule} of their own have a fixed time shift
+ * instead.
+ * <p>
+ *
+ * The instants keep the sub-millisecond precision of the system clock: the real instant is
+ * moved by the time shift in whole milliseconds.
+ * <p>
+ *
+ * This class must be public because the instrumented classes refer to it.
+ */
+public final class ShiftedClock
+	extends
+		Clock
+{
+	private static final ShiftedClock UTC = new ShiftedClock(ZoneOffset.UTC);
+
+	private final ZoneId _zone;
+	private final Milliseconds _timeShift;
+
+
+	private ShiftedClock(ZoneId zone)
+	{
+		this(zone, null);
+	}
+
+	private ShiftedClock(ZoneId zone, Milliseconds timeShift)
+	{
+		_zone = zone;
+		_timeShift = timeShift;
+	}
+
+	/**
+	 * Replaces {@link Clock#systemUTC()}. Returns a singleton like the original.
+	 */
+	public static Clock systemUTC()
+	{
+		return UTC;
+	}
+
+	/**
+	 * Replaces {@link Clock#systemDefaultZone()}.
+	 */
+	public static Clock systemDefaultZone()
+	{
+		return new ShiftedClock(ZoneId.systemDefault());
+	}
+
+	/**
+	 * Replaces {@link Clock#system(ZoneId)}.
+	 */
+	public static Clock system(ZoneId zone)
+	{
+		if(zone == null)
+			throw new NullPointerException("zone");
+		return zone == ZoneOffset.UTC ? UTC : new ShiftedClock(zone);
+	}
+
+	/**
+	 * Replaces {@link Clock#systemUTC()} in a class having a rule of its own.
+	 *
+	 * @param time
+	 * 		The offset or the absolute time of the rule.
+	 *
+	 * @param relative
+	 * 		{@code true} if the time is an offset.
+	 */
+	public static Clock systemUTC(long time, boolean relative)
+	{
+		return new ShiftedClock(ZoneOffset.UTC, new Milliseconds(relative, time));
+	}
+
+	/**
+	 * Replaces {@link Clock#systemDefaultZone()} in a class having a rule of its own.
+	 *
+	 * @see #systemUTC(long, boolean)
+	 */
+	public static Clock systemDefaultZone(long time, boolean relative)
+	{
+		return new ShiftedClock(ZoneId.systemDefault(), new Milliseconds(relative, time));
+	}
+
+	/**
+	 * Replaces {@link Clock#system(ZoneId)} in a class having a rule of its own.
+	 *
+	 * @see #systemUTC(long, boolean)
+	 */
+	public static Clock system(ZoneId zone, long time, boolean relative)
+	{
+		if(zone == null)
+			throw new NullPointerException("zone");
+		return new ShiftedClock(zone, new Milliseconds(relative, time));
+	}
+
+	@Override
+	public ZoneId getZone()
+	{
+		return _zone;
+	}
+
+	@Override
+	public Clock withZone(ZoneId zone)
+	{
+		if(zone.equals(_zone))
+			return this;
+		return _timeShift == null ? system(zone) : new ShiftedClock(zone, _timeShift);
+	}
+
+	@Override
+	public long millis()
+	{
+		return shift(System.currentTimeMillis());
+	}
+
+	@Override
+	public Instant instant()
+	{
+		Instant instant = Instant.now();
+		long millis = instant.toEpochMilli();
+		return instant.plusMillis(shift(millis) - millis);
+	}
+
+	private long shift(long millis)
+	{
+		return _timeShift == null ? ClockCallSites.millis(millis) : _timeShift.apply(millis);
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if(!(obj instanceof ShiftedClock))
+			return false;
+		ShiftedClock other = (ShiftedClock)obj;
+		if(!_zone.equals(other._zone))
+			return false;
+		if(_timeShift == null || other._timeShift == null)
+			return _timeShift == other._timeShift;
+		return
+			_timeShift.isRelative() == other._timeShift.isRelative() &&
+			_timeShift.getTime().equals(other._timeShift.getTime());
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return _zone.hashCode() + (_timeShift == null ? 1 : Long.hashCode(_timeShift.getTime()));
+	}
+
+	@Override
+	public String toString()
+	{
+		return
+			"ShiftedClock[" + _zone + (_timeShift == null ? "" : ", " + _timeShift.getTime()) + "]";
+	}
+}
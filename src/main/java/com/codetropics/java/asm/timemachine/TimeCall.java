@@ -0,0 +1,407 @@
+package com.codetropics.java.asm.timemachine;
+
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * {@code TimeCall} lists the system time queries {@link TimeMachineAdapter} knows how to
+ * manipulate. Every constant names the method reference as it appears in the byte code
+ * so that both the adapter and {@link TimeCallScanner} can recognise a call site without
+ * any further resolution.
+ * <p>
+ *
+ * Every constant also names the {@link Template} the adapter uses for rewriting the call.
+ * None of the templates allocates more objects than the original call.
+ *
+ * @see TimeMachineAdapter
+ * @see TimeCallScanner
+ */
+enum TimeCall
+{
+	CURRENT_TIME_MILLIS(
+		INVOKESTATIC,
+		"java/lang/System",
+		"currentTimeMillis",
+		"()J",
+		Template.SHIFT_MILLIS
+	),
+	NANO_TIME(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", Template.SHIFT_NANOS),
+	NEW_DATE(INVOKESPECIAL, "java/util/Date", "<init>", "()V", Template.NEW_DATE),
+	CALENDAR_GET_INSTANCE(
+		INVOKESTATIC,
+		"java/util/Calendar",
+		"getInstance",
+		"()Ljava/util/Calendar;",
+		Template.SET_CALENDAR
+	),
+	CALENDAR_GET_INSTANCE_ZONE(
+		INVOKESTATIC,
+		"java/util/Calendar",
+		"getInstance",
+		"(Ljava/util/TimeZone;)Ljava/util/Calendar;",
+		Template.SET_CALENDAR
+	),
+	CALENDAR_GET_INSTANCE_LOCALE(
+		INVOKESTATIC,
+		"java/util/Calendar",
+		"getInstance",
+		"(Ljava/util/Locale;)Ljava/util/Calendar;",
+		Template.SET_CALENDAR
+	),
+	CALENDAR_GET_INSTANCE_ZONE_LOCALE(
+		INVOKESTATIC,
+		"java/util/Calendar",
+		"getInstance",
+		"(Ljava/util/TimeZone;Ljava/util/Locale;)Ljava/util/Calendar;",
+		Template.SET_CALENDAR
+	),
+	INSTANT_NOW(
+		INVOKESTATIC,
+		"java/time/Instant",
+		"now",
+		"()Ljava/time/Instant;",
+		Template.INSTANT
+	),
+	LOCAL_DATE_NOW(
+		INVOKESTATIC,
+		"java/time/LocalDate",
+		"now",
+		"()Ljava/time/LocalDate;",
+		Template.OF_INSTANT
+	),
+	LOCAL_DATE_NOW_ZONE(
+		INVOKESTATIC,
+		"java/time/LocalDate",
+		"now",
+		"(Ljava/time/ZoneId;)Ljava/time/LocalDate;",
+		Template.OF_INSTANT
+	),
+	LOCAL_TIME_NOW(
+		INVOKESTATIC,
+		"java/time/LocalTime",
+		"now",
+		"()Ljava/time/LocalTime;",
+		Template.OF_INSTANT
+	),
+	LOCAL_TIME_NOW_ZONE(
+		INVOKESTATIC,
+		"java/time/LocalTime",
+		"now",
+		"(Ljava/time/ZoneId;)Ljava/time/LocalTime;",
+		Template.OF_INSTANT
+	),
+	LOCAL_DATE_TIME_NOW(
+		INVOKESTATIC,
+		"java/time/LocalDateTime",
+		"now",
+		"()Ljava/time/LocalDateTime;",
+		Template.OF_INSTANT
+	),
+	LOCAL_DATE_TIME_NOW_ZONE(
+		INVOKESTATIC,
+		"java/time/LocalDateTime",
+		"now",
+		"(Ljava/time/ZoneId;)Ljava/time/LocalDateTime;",
+		Template.OF_INSTANT
+	),
+	OFFSET_TIME_NOW(
+		INVOKESTATIC,
+		"java/time/OffsetTime",
+		"now",
+		"()Ljava/time/OffsetTime;",
+		Template.OF_INSTANT
+	),
+	OFFSET_TIME_NOW_ZONE(
+		INVOKESTATIC,
+		"java/time/OffsetTime",
+		"now",
+		"(Ljava/time/ZoneId;)Ljava/time/OffsetTime;",
+		Template.OF_INSTANT
+	),
+	OFFSET_DATE_TIME_NOW(
+		INVOKESTATIC,
+		"java/time/OffsetDateTime",
+		"now",
+		"()Ljava/time/OffsetDateTime;",
+		Template.OF_INSTANT
+	),
+	OFFSET_DATE_TIME_NOW_ZONE(
+		INVOKESTATIC,
+		"java/time/OffsetDateTime",
+		"now",
+		"(Ljava/time/ZoneId;)Ljava/time/OffsetDateTime;",
+		Template.OF_INSTANT
+	),
+	ZONED_DATE_TIME_NOW(
+		INVOKESTATIC,
+		"java/time/ZonedDateTime",
+		"now",
+		"()Ljava/time/ZonedDateTime;",
+		Template.OF_INSTANT
+	),
+	ZONED_DATE_TIME_NOW_ZONE(
+		INVOKESTATIC,
+		"java/time/ZonedDateTime",
+		"now",
+		"(Ljava/time/ZoneId;)Ljava/time/ZonedDateTime;",
+		Template.OF_INSTANT
+	),
+	CLOCK_SYSTEM_UTC(
+		INVOKESTATIC,
+		"java/time/Clock",
+		"systemUTC",
+		"()Ljava/time/Clock;",
+		Template.SHIFTED_CLOCK
+	),
+	CLOCK_SYSTEM_DEFAULT_ZONE(
+		INVOKESTATIC,
+		"java/time/Clock",
+		"systemDefaultZone",
+		"()Ljava/time/Clock;",
+		Template.SHIFTED_CLOCK
+	),
+	CLOCK_SYSTEM(
+		INVOKESTATIC,
+		"java/time/Clock",
+		"system",
+		"(Ljava/time/ZoneId;)Ljava/time/Clock;",
+		Template.SHIFTED_CLOCK
+	),
+
+	/**
+	 * Used by {@code java.time.Clock} for the current instant. Only rewritten in the JDK
+	 * classes hooked by {@link JdkHook}.
+	 */
+	VM_NANO_TIME_ADJUSTMENT(
+		INVOKESTATIC,
+		"jdk/internal/misc/VM",
+		"getNanoTimeAdjustment",
+		"(J)J",
+		Template.SHIFT_NANO_ADJUSTMENT
+	),
+
+	/**
+	 * This and the rest of the calls are waits fast-forwarded by {@link VirtualClock}. They
+	 * are only rewritten with a virtual clock.
+	 */
+	THREAD_SLEEP(INVOKESTATIC, "java/lang/Thread", "sleep", "(J)V", Template.VIRTUAL_WAIT),
+	THREAD_SLEEP_NANOS(INVOKESTATIC, "java/lang/Thread", "sleep", "(JI)V", Template.VIRTUAL_WAIT),
+	THREAD_SLEEP_DURATION(
+		INVOKESTATIC,
+		"java/lang/Thread",
+		"sleep",
+		"(Ljava/time/Duration;)V",
+		Template.VIRTUAL_WAIT
+	),
+	TIME_UNIT_SLEEP(
+		INVOKEVIRTUAL,
+		"java/util/concurrent/TimeUnit",
+		"sleep",
+		"(J)V",
+		Template.VIRTUAL_WAIT
+	),
+	PARK_NANOS(
+		INVOKESTATIC,
+		"java/util/concurrent/locks/LockSupport",
+		"parkNanos",
+		"(J)V",
+		Template.VIRTUAL_WAIT
+	),
+	PARK_NANOS_BLOCKER(
+		INVOKESTATIC,
+		"java/util/concurrent/locks/LockSupport",
+		"parkNanos",
+		"(Ljava/lang/Object;J)V",
+		Template.VIRTUAL_WAIT
+	),
+	PARK_UNTIL(
+		INVOKESTATIC,
+		"java/util/concurrent/locks/LockSupport",
+		"parkUntil",
+		"(J)V",
+		Template.VIRTUAL_WAIT
+	),
+	PARK_UNTIL_BLOCKER(
+		INVOKESTATIC,
+		"java/util/concurrent/locks/LockSupport",
+		"parkUntil",
+		"(Ljava/lang/Object;J)V",
+		Template.VIRTUAL_WAIT
+	),
+	OBJECT_WAIT(INVOKEVIRTUAL, "java/lang/Object", "wait", "(J)V", Template.VIRTUAL_WAIT),
+	OBJECT_WAIT_NANOS(INVOKEVIRTUAL, "java/lang/Object", "wait", "(JI)V", Template.VIRTUAL_WAIT);
+
+	/**
+	 * How {@link TimeMachineAdapter} rewrites a call.
+	 */
+	enum Template
+	{
+		/**
+		 * The returned {@code long} is shifted.
+		 */
+		SHIFT_MILLIS,
+
+		/**
+		 * The returned {@code long} is shifted by the nanoseconds the wall clock has been
+		 * shifted at runtime so that intervals measured with {@code nanoTime} agree with
+		 * the shifted wall clock. A constant time shift does not change any interval, so
+		 * this is only done in {@link RewriteMode#DYNAMIC} mode.
+		 */
+		SHIFT_NANOS,
+
+		/**
+		 * The returned nanosecond adjustment to the offset given as the argument is shifted
+		 * so that the instant made of the offset and the adjustment is shifted. The JDK
+		 * checks the result for {@code -1} (offset out of range), which cannot happen to
+		 * the offset the JDK keeps current.
+		 */
+		SHIFT_NANO_ADJUSTMENT,
+
+		/**
+		 * {@code new Date()} is replaced with {@code new Date(long)} with the shifted time.
+		 * {@code Date()} itself calls {@code currentTimeMillis}, which would be shifted twice
+		 * if the bootstrap classes were instrumented too.
+		 */
+		NEW_DATE,
+
+		/**
+		 * The time of the returned {@code Calendar} is set to the shifted time.
+		 */
+		SET_CALENDAR,
+
+		/**
+		 * The {@code Instant} is moved by the time shift in whole milliseconds, so that it
+		 * keeps the sub-millisecond precision of the system clock. A frozen time is replaced
+		 * with {@code Instant.ofEpochMilli(long)}.
+		 */
+		INSTANT,
+
+		/**
+		 * {@code now()} and {@code now(ZoneId)} are replaced with {@code ofInstant(Instant,
+		 * ZoneId)} with the shifted {@code Instant} (see {@link #INSTANT}) and the given or
+		 * the default time zone.
+		 */
+		OF_INSTANT,
+
+		/**
+		 * The call is replaced with the corresponding factory of {@link ShiftedClock}.
+		 */
+		SHIFTED_CLOCK,
+
+		/**
+		 * The call is replaced with the method of {@link VirtualClock} having the same name.
+		 * The receiver of an instance method becomes the first argument.
+		 */
+		VIRTUAL_WAIT
+	}
+
+	private static final Map<String, TimeCall> CALLS = new HashMap<>();
+	static {
+		for(TimeCall call : values())
+			CALLS.put(key(call.opcode, call.owner, call.name, call.desc), call);
+	}
+
+	final int opcode;
+	final String owner;
+	final String name;
+	final String desc;
+	final Template template;
+
+	/**
+	 * UTF-8 forms of {@link #owner}, {@link #name} and {@link #desc} for comparing against
+	 * raw constant pool entries. All the names are plain ASCII so that modified UTF-8 used
+	 * by class files and the standard UTF-8 are the same.
+	 */
+	final byte[] ownerBytes;
+	final byte[] nameBytes;
+	final byte[] descBytes;
+
+
+	TimeCall(int opcode, String owner, String name, String desc, Template template)
+	{
+		this.opcode = opcode;
+		this.owner = owner;
+		this.name = name;
+		this.desc = desc;
+		this.template = template;
+		this.ownerBytes = owner.getBytes(StandardCharsets.UTF_8);
+		this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		this.descBytes = desc.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return
+	 * 		The time call of a method instruction or {@code null} if the instruction is not
+	 * 		a time call.
+	 */
+	static TimeCall find(int opcode, String owner, String name, String desc)
+	{
+		return CALLS.get(key(opcode, owner, name, desc));
+	}
+
+	/**
+	 * @return
+	 * 		{@code true} if this call is rewritten in the given mode.
+	 */
+	boolean isRewrittenIn(RewriteMode mode)
+	{
+		if(template == Template.VIRTUAL_WAIT)
+			return false;
+		switch(mode) {
+			case CONSTANT :
+				return this != NANO_TIME && this != VM_NANO_TIME_ADJUSTMENT;
+			case DYNAMIC :
+				return this != VM_NANO_TIME_ADJUSTMENT;
+			case JDK :
+				// Everything else is handled by the hooked JDK classes.
+				return this == CURRENT_TIME_MILLIS || this == VM_NANO_TIME_ADJUSTMENT;
+		}
+		return false;
+	}
+
+	/**
+	 * @param virtualClock
+	 * 		{@code true} if the waits are fast-forwarded by {@link VirtualClock}.
+	 *
+	 * @return
+	 * 		{@code true} if this call is rewritten in the given mode.
+	 */
+	boolean isRewrittenIn(RewriteMode mode, boolean virtualClock)
+	{
+		return template == Template.VIRTUAL_WAIT ? virtualClock : isRewrittenIn(mode);
+	}
+
+	/**
+	 * @return
+	 * 		The time calls rewritten in the given mode.
+	 */
+	static EnumSet<TimeCall> rewrittenIn(RewriteMode mode)
+	{
+		return rewrittenIn(mode, false);
+	}
+
+	/**
+	 * @return
+	 * 		The time calls rewritten in the given mode, with or without a virtual clock.
+	 */
+	static EnumSet<TimeCall> rewrittenIn(RewriteMode mode, boolean virtualClock)
+	{
+		EnumSet<TimeCall> calls = EnumSet.noneOf(TimeCall.class);
+		for(TimeCall call : values())
+			if(call.isRewrittenIn(mode, virtualClock))
+				calls.add(call);
+		return calls;
+	}
+
+	private static String key(int opcode, String owner, String name, String desc)
+	{
+		return opcode + owner + '.' + name + desc;
+	}
+}
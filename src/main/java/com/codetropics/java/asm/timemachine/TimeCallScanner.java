@@ -0,0 +1,259 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.util.BitSet;
+import java.util.Collection;
+
+
+/**
+ * {@code TimeCallScanner} decides from the raw class file bytes whether a class has to be
+ * run through {@link TimeMachineAdapter} at all. It walks the constant pool looking for
+ * method references to any of the configured {@link TimeCall}s and, if there are some,
+ * checks the {@code Code} attribute of every method for an invoke instruction using those
+ * references.
+ * <p>
+ *
+ * The scan never creates {@code String}s or any ASM objects, which makes it cheap enough to
+ * be done for every class the JVM loads. The result is conservative: a method may be reported
+ * even though the matching bytes are operands of some other instruction but a method with
+ * a system time query is never missed.
+ *
+ * @see TimeMachineTransformer
+ */
+final class TimeCallScanner
+{
+	/**
+	 * Returned when the class file cannot be scanned (e.g. an unknown constant pool tag from
+	 * a newer class file version) and every method has to be handled as a candidate.
+	 */
+	static final BitSet EVERY_METHOD = new BitSet();
+	static {
+		EVERY_METHOD.set(0, 0xFFFF);
+	}
+
+	private static final byte[] CODE = { 'C', 'o', 'd', 'e' };
+
+	private final TimeCall[] _calls;
+
+
+	TimeCallScanner(Collection<TimeCall> calls)
+	{
+		_calls = calls.toArray(new TimeCall[0]);
+	}
+
+	/**
+	 * Scans the class file for system time queries.
+	 *
+	 * @param b
+	 * 		Class file bytes.
+	 *
+	 * @return
+	 * 		{@code null} if the class does not contain any system time queries. Otherwise
+	 * 		a set of method indexes (in class file order) containing a possible system time
+	 * 		query.
+	 */
+	BitSet scan(byte[] b)
+	{
+		try {
+			return doScan(b);
+		}
+		catch(IndexOutOfBoundsException e) {
+			// Let the ClassReader report the broken class file.
+			return EVERY_METHOD;
+		}
+	}
+
+	private BitSet doScan(byte[] b)
+	{
+		if(readInt(b, 0) != 0xCAFEBABE)
+			return EVERY_METHOD;
+
+		int count = readUnsignedShort(b, 8);
+		int[] offsets = new int[count];
+		boolean candidate = false;
+		int p = 10;
+		for(int i = 1; i < count; i++) {
+			offsets[i] = p + 1;
+			switch(b[p]) {
+				case 1:
+					int length = readUnsignedShort(b, p + 1);
+					if(!candidate && isMethodName(b, p + 3, length))
+						candidate = true;
+					p += 3 + length;
+					break;
+
+				case 3:
+				case 4:
+					p += 5;
+					break;
+
+				case 5:
+				case 6:
+					p += 9;
+					i++;
+					break;
+
+				case 7:
+				case 8:
+				case 16:
+				case 19:
+				case 20:
+					p += 3;
+					break;
+
+				case 15:
+					p += 4;
+					break;
+
+				case 9:
+				case 10:
+				case 11:
+				case 12:
+				case 17:
+				case 18:
+					p += 5;
+					break;
+
+				default:
+					return EVERY_METHOD;
+			}
+		}
+		if(!candidate)
+			return null;
+
+		int[] references = new int[4];
+		int referenceCount = 0;
+		for(int i = 1; i < count; i++) {
+			int offset = offsets[i];
+			if(offset == 0 || (b[offset - 1] != 10 && b[offset - 1] != 11))
+				continue;
+			if(isTimeCall(b, offsets, offset)) {
+				if(referenceCount == references.length) {
+					int[] tmp = new int[referenceCount * 2];
+					System.arraycopy(references, 0, tmp, 0, referenceCount);
+					references = tmp;
+				}
+				references[referenceCount++] = i;
+			}
+		}
+		if(referenceCount == 0)
+			return null;
+
+		// access_flags, this_class, super_class and interfaces
+		p += 8 + 2 * readUnsignedShort(b, p + 6);
+
+		int fieldCount = readUnsignedShort(b, p);
+		p += 2;
+		for(int i = 0; i < fieldCount; i++)
+			p = skipAttributes(b, p + 6);
+
+		BitSet methods = new BitSet();
+		int methodCount = readUnsignedShort(b, p);
+		p += 2;
+		for(int i = 0; i < methodCount; i++) {
+			int attributeCount = readUnsignedShort(b, p + 6);
+			p += 8;
+			for(int j = 0; j < attributeCount; j++) {
+				int length = readInt(b, p + 2);
+				if(isUtf8(b, offsets[readUnsignedShort(b, p)], CODE)) {
+					int codeStart = p + 14;
+					int codeEnd = codeStart + readInt(b, p + 10);
+					if(containsInvoke(b, codeStart, codeEnd, references, referenceCount))
+						methods.set(i);
+				}
+				p += 6 + length;
+			}
+		}
+		return methods.isEmpty() ? null : methods;
+	}
+
+	private boolean isMethodName(byte[] b, int offset, int length)
+	{
+		for(TimeCall call : _calls)
+			if(equals(b, offset, length, call.nameBytes))
+				return true;
+		return false;
+	}
+
+	private boolean isTimeCall(byte[] b, int[] offsets, int offset)
+	{
+		int classOffset = offsets[readUnsignedShort(b, offset)];
+		int nameAndTypeOffset = offsets[readUnsignedShort(b, offset + 2)];
+		int ownerOffset = offsets[readUnsignedShort(b, classOffset)];
+		int nameOffset = offsets[readUnsignedShort(b, nameAndTypeOffset)];
+		int descOffset = offsets[readUnsignedShort(b, nameAndTypeOffset + 2)];
+		for(TimeCall call : _calls)
+			if(
+				isUtf8(b, nameOffset, call.nameBytes) &&
+				isUtf8(b, ownerOffset, call.ownerBytes) &&
+				isUtf8(b, descOffset, call.descBytes)
+			)
+				return true;
+		return false;
+	}
+
+	private static boolean containsInvoke(
+		byte[] b,
+		int start,
+		int end,
+		int[] references,
+		int referenceCount
+	)
+	{
+		for(int i = start; i < end - 2; i++) {
+			int opcode = b[i] & 0xFF;
+			// invokevirtual, invokespecial, invokestatic and invokeinterface
+			if(opcode >= 0xB6 && opcode <= 0xB9) {
+				int index = readUnsignedShort(b, i + 1);
+				for(int j = 0; j < referenceCount; j++)
+					if(references[j] == index)
+						return true;
+			}
+		}
+		return false;
+	}
+
+	private static int skipAttributes(byte[] b, int p)
+	{
+		int attributeCount = readUnsignedShort(b, p);
+		p += 2;
+		for(int i = 0; i < attributeCount; i++)
+			p += 6 + readInt(b, p + 2);
+		return p;
+	}
+
+	/**
+	 * @param offset
+	 * 		Offset of an {@code CONSTANT_Utf8_info} structure right after its tag byte.
+	 */
+	private static boolean isUtf8(byte[] b, int offset, byte[] expected)
+	{
+		return
+			offset != 0 &&
+			b[offset - 1] == 1 &&
+			equals(b, offset + 2, readUnsignedShort(b, offset), expected);
+	}
+
+	private static boolean equals(byte[] b, int offset, int length, byte[] expected)
+	{
+		if(length != expected.length)
+			return false;
+		for(int i = 0; i < length; i++)
+			if(b[offset + i] != expected[i])
+				return false;
+		return true;
+	}
+
+	private static int readUnsignedShort(byte[] b, int offset)
+	{
+		return ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+	}
+
+	private static int readInt(byte[] b, int offset)
+	{
+		return
+			((b[offset] & 0xFF) << 24) |
+			((b[offset + 1] & 0xFF) << 16) |
+			((b[offset + 2] & 0xFF) << 8) |
+			(b[offset + 3] & 0xFF);
+	}
+}
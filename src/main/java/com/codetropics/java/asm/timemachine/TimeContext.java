@@ -0,0 +1,460 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate.Milliseconds;
+
+
+/**
+ * {@code TimeContext} runs code with a time shift of its own. The scoped time shift replaces
+ * the global time shift (see {@link TimeMachine}) for the current thread until the scope ends,
+ * which lets parallel tests run different dates in one JVM:
+ * <xmp>
+ * 	TimeContext.run("2024-02-29T12:00:00", () -> leapYearSuite());
+ * 	TimeContext.run("+1mo", () -> monthEndSuite());
+ * </xmp>
+ *
+ * Scopes can be nested. The context is not inherited by new threads but it can be carried
+ * into tasks of an {@link ExecutorService} with {@link #propagating(ExecutorService)}.
+ * <p>
+ *
+ * The context is held in a {@code java.lang.ScopedValue} where available and in
+ * a {@code ThreadLocal} otherwise. Both work with virtual threads.
+ * <p>
+ *
+ * Only the call sites rewritten in {@code mode=dynamic} see the scoped time shift. Until
+ * the first scope is opened, the call sites are bound as described in {@link ClockCallSites}.
+ * After that, every call site checks the context first. A count of the active scopes is
+ * checked before the carrier, so that the check costs one volatile load and one branch when
+ * no thread is in a scope, and it never allocates.
+ */
+public final class TimeContext
+{
+	private static final Carrier CARRIER = Carrier.create();
+
+	/**
+	 * The scopes being run by any thread. A thread in a scope always sees at least its own.
+	 */
+	private static final AtomicInteger ACTIVE = new AtomicInteger();
+
+
+	private TimeContext()
+	{
+	}
+
+	/**
+	 * Runs a task with a scoped time shift.
+	 *
+	 * @param timeShift
+	 * 		Relative or absolute time shift in the format documented in
+	 * 		{@link TimeMachineAgentDelegate}. The clock advances from an absolute time like
+	 * 		with {@link TimeMachine#setTimeShift(String)}.
+	 *
+	 * @param task
+	 * 		The task to be run.
+	 */
+	public static void run(String timeShift, Runnable task)
+	{
+		run(TimeMachine.resolve(TimeMachineAgentDelegate.parseTime(timeShift)), task);
+	}
+
+	/**
+	 * Runs a task with a scoped time shift.
+	 */
+	public static void run(Milliseconds timeShift, Runnable task)
+	{
+		ClockCallSites.enableTimeContexts();
+		ACTIVE.incrementAndGet();
+		try {
+			CARRIER.run(timeShift, task);
+		}
+		finally {
+			ACTIVE.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Calls a task with a scoped time shift.
+	 *
+	 * @return
+	 * 		The result of the task.
+	 *
+	 * @throws Exception
+	 * 		Anything thrown by the task.
+	 */
+	public static <T> T call(String timeShift, Callable<T> task)
+		throws
+			Exception
+	{
+		return call(TimeMachine.resolve(TimeMachineAgentDelegate.parseTime(timeShift)), task);
+	}
+
+	/**
+	 * Calls a task with a scoped time shift.
+	 *
+	 * @return
+	 * 		The result of the task.
+	 *
+	 * @throws Exception
+	 * 		Anything thrown by the task.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T call(Milliseconds timeShift, Callable<T> task)
+		throws
+			Exception
+	{
+		Object[] result = new Object[1];
+		Exception[] exception = new Exception[1];
+		run(
+			timeShift,
+			() -> {
+				try {
+					result[0] = task.call();
+				}
+				catch(Exception e) {
+					exception[0] = e;
+				}
+			}
+		);
+		if(exception[0] != null)
+			throw exception[0];
+		return (T)result[0];
+	}
+
+	/**
+	 * @return
+	 * 		The scoped time shift of the current thread or {@code null} if there is none.
+	 */
+	public static Milliseconds current()
+	{
+		return ACTIVE.get() == 0 ? null : CARRIER.get();
+	}
+
+	/**
+	 * Wraps a task to run with the time shift of the current scope.
+	 *
+	 * @return
+	 * 		The wrapped task or the task itself if no scope is active.
+	 */
+	public static Runnable wrap(Runnable task)
+	{
+		Milliseconds timeShift = current();
+		return timeShift == null ? task : () -> run(timeShift, task);
+	}
+
+	/**
+	 * Wraps a task to run with the time shift of the current scope.
+	 *
+	 * @return
+	 * 		The wrapped task or the task itself if no scope is active.
+	 */
+	public static <T> Callable<T> wrap(Callable<T> task)
+	{
+		Milliseconds timeShift = current();
+		return timeShift == null ? task : () -> call(timeShift, task);
+	}
+
+	/**
+	 * Returns an {@code ExecutorService} which runs every task with the time shift of the
+	 * scope the task was submitted from.
+	 */
+	public static ExecutorService propagating(ExecutorService executor)
+	{
+		return new PropagatingExecutorService(executor);
+	}
+
+	/**
+	 * Shifts a system time value with the scoped time shift or, outside of any scope, with
+	 * the given global time shift. Used by {@link ClockCallSites} once contexts are enabled.
+	 */
+	static long millis(long millis, Milliseconds global)
+	{
+		Milliseconds scoped = current();
+		return (scoped == null ? global : scoped).apply(millis);
+	}
+
+	/**
+	 * Shifts a {@code System.nanoTime()} value with a relative or dilated scoped time shift or,
+	 * otherwise, with the global time shift. An absolute scope does not move the nano time.
+	 */
+	static long nanos(long nanos, Milliseconds global, long globalNanoShift)
+	{
+		Milliseconds scoped = current();
+		if(scoped != null && scoped.isRelative())
+			return nanos + scoped.getTime() * 1000000L;
+		if(scoped != null && scoped.isDilated())
+			return scoped.dilateNanos(nanos);
+		return global.isDilated() ? global.dilateNanos(nanos) : nanos + globalNanoShift;
+	}
+
+
+	/**
+	 * Holds the scoped time shift.
+	 */
+	private abstract static class Carrier
+	{
+		abstract Milliseconds get();
+
+		abstract void run(Milliseconds timeShift, Runnable task);
+
+		static Carrier create()
+		{
+			try {
+				return new ScopedValueCarrier();
+			}
+			catch(Throwable e) {
+				// ScopedValue is not available (before Java 21) or it is a preview API
+				// which has not been enabled.
+				return new ThreadLocalCarrier();
+			}
+		}
+	}
+
+	private static final class ThreadLocalCarrier
+		extends
+			Carrier
+	{
+		private final ThreadLocal<Milliseconds> _timeShift = new ThreadLocal<>();
+
+		@Override
+		Milliseconds get()
+		{
+			return _timeShift.get();
+		}
+
+		@Override
+		void run(Milliseconds timeShift, Runnable task)
+		{
+			Milliseconds previous = _timeShift.get();
+			_timeShift.set(timeShift);
+			try {
+				task.run();
+			}
+			finally {
+				if(previous == null)
+					_timeShift.remove();
+				else
+					_timeShift.set(previous);
+			}
+		}
+	}
+
+	/**
+	 * Uses {@code java.lang.ScopedValue} through method handles because the agent is compiled
+	 * for Java 17. The method handles are static constants so that the JIT compiler can inline
+	 * them.
+	 */
+	private static final class ScopedValueCarrier
+		extends
+			Carrier
+	{
+		/**
+		 * Returned by {@code orElse} when the scoped value is not bound. {@code null} is not
+		 * allowed as the default value in every Java version.
+		 */
+		private static final Milliseconds UNBOUND = new Milliseconds(true, 0);
+
+		private static final MethodHandle OR_ELSE;
+		private static final MethodHandle WHERE;
+		private static final MethodHandle RUN;
+		static {
+			try {
+				Class<?> scopedValueClass = Class.forName("java.lang.ScopedValue");
+				Class<?> carrierClass = Class.forName("java.lang.ScopedValue$Carrier");
+				MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+				Object scopedValue =
+					lookup.findStatic(
+						scopedValueClass,
+						"newInstance",
+						MethodType.methodType(scopedValueClass)
+					).invoke();
+				OR_ELSE =
+					lookup.findVirtual(
+						scopedValueClass,
+						"orElse",
+						MethodType.methodType(Object.class, Object.class)
+					)
+						.bindTo(scopedValue)
+						.asType(MethodType.methodType(Milliseconds.class, Milliseconds.class));
+				WHERE =
+					MethodHandles.insertArguments(
+						lookup.findStatic(
+							scopedValueClass,
+							"where",
+							MethodType.methodType(carrierClass, scopedValueClass, Object.class)
+						),
+						0,
+						scopedValue
+					).asType(MethodType.methodType(Object.class, Milliseconds.class));
+				RUN =
+					lookup.findVirtual(
+						carrierClass,
+						"run",
+						MethodType.methodType(void.class, Runnable.class)
+					).asType(MethodType.methodType(void.class, Object.class, Runnable.class));
+			}
+			catch(Throwable e) {
+				throw new ExceptionInInitializerError(e);
+			}
+		}
+
+		ScopedValueCarrier()
+		{
+			// Fails if ScopedValue is a preview API which has not been enabled.
+			run(UNBOUND, () -> {});
+		}
+
+		@Override
+		Milliseconds get()
+		{
+			try {
+				Milliseconds timeShift = (Milliseconds)OR_ELSE.invokeExact(UNBOUND);
+				return timeShift == UNBOUND ? null : timeShift;
+			}
+			catch(Throwable e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		@Override
+		void run(Milliseconds timeShift, Runnable task)
+		{
+			try {
+				RUN.invokeExact(WHERE.invokeExact(timeShift), task);
+			}
+			catch(RuntimeException | Error e) {
+				throw e;
+			}
+			catch(Throwable e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	private static final class PropagatingExecutorService
+		implements
+			ExecutorService
+	{
+		private final ExecutorService _executor;
+
+		PropagatingExecutorService(ExecutorService executor)
+		{
+			_executor = executor;
+		}
+
+		private static <T> List<Callable<T>> wrapAll(Collection<? extends Callable<T>> tasks)
+		{
+			List<Callable<T>> wrapped = new ArrayList<>(tasks.size());
+			for(Callable<T> task : tasks)
+				wrapped.add(wrap(task));
+			return wrapped;
+		}
+
+		@Override
+		public void execute(Runnable command)
+		{
+			_executor.execute(wrap(command));
+		}
+
+		@Override
+		public <T> Future<T> submit(Callable<T> task)
+		{
+			return _executor.submit(wrap(task));
+		}
+
+		@Override
+		public <T> Future<T> submit(Runnable task, T result)
+		{
+			return _executor.submit(wrap(task), result);
+		}
+
+		@Override
+		public Future<?> submit(Runnable task)
+		{
+			return _executor.submit(wrap(task));
+		}
+
+		@Override
+		public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks)
+			throws
+				InterruptedException
+		{
+			return _executor.invokeAll(wrapAll(tasks));
+		}
+
+		@Override
+		public <T> List<Future<T>> invokeAll(
+			Collection<? extends Callable<T>> tasks,
+			long timeout,
+			TimeUnit unit
+		)
+			throws
+				InterruptedException
+		{
+			return _executor.invokeAll(wrapAll(tasks), timeout, unit);
+		}
+
+		@Override
+		public <T> T invokeAny(Collection<? extends Callable<T>> tasks)
+			throws
+				InterruptedException,
+				ExecutionException
+		{
+			return _executor.invokeAny(wrapAll(tasks));
+		}
+
+		@Override
+		public <T> T invokeAny(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit)
+			throws
+				InterruptedException,
+				ExecutionException,
+				TimeoutException
+		{
+			return _executor.invokeAny(wrapAll(tasks), timeout, unit);
+		}
+
+		@Override
+		public void shutdown()
+		{
+			_executor.shutdown();
+		}
+
+		@Override
+		public List<Runnable> shutdownNow()
+		{
+			return _executor.shutdownNow();
+		}
+
+		@Override
+		public boolean isShutdown()
+		{
+			return _executor.isShutdown();
+		}
+
+		@Override
+		public boolean isTerminated()
+		{
+			return _executor.isTerminated();
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit)
+			throws
+				InterruptedException
+		{
+			return _executor.awaitTermination(timeout, unit);
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package com.codetropics.java.asm.timemachine;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate.Milliseconds;
+
+
+/**
+ * JFR event recorded whenever the time shift is changed at runtime. The events mark the time
+ * jumps on a JFR recording, so that the behaviour of the application can be related to the
+ * simulated time. Recording an event costs nothing unless a recording is running.
+ */
+@Name("com.codetropics.timemachine.TimeJump")
+@Label("Time Jump")
+@Category("TimeMachine")
+@Description("The TimeMachine time shift was changed")
+final class TimeJumpEvent
+	extends
+		Event
+{
+	@Label("Time Shift")
+	String timeShift;
+
+	@Label("Cause")
+	String cause;
+
+
+	/**
+	 * Records an event. Must be called only if {@link TransformMetrics#JFR} is {@code true}.
+	 */
+	static void record(Milliseconds timeShift, String cause)
+	{
+		TimeJumpEvent event = new TimeJumpEvent();
+		if(event.shouldCommit()) {
+			event.timeShift = timeShift.toString();
+			event.cause = cause;
+			event.commit();
+		}
+	}
+}
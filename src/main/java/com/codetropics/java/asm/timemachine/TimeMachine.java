@@ -0,0 +1,296 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate.Milliseconds;
+
+
+/**
+ * {@code TimeMachine} is the runtime API for changing the time shift of a running JVM.
+ * <p>
+ *
+ * The time shift can be changed only if the agent was started in {@code mode=dynamic}
+ * (see {@link RewriteMode#DYNAMIC}). The change takes effect in every instrumented class
+ * without retransforming any of them. The same operations are available over JMX as
+ * {@value TimeMachineControl#OBJECT_NAME}.
+ * <p>
+ *
+ * For example:
+ * <xmp>
+ * 	TimeMachine.setTimeShift("+1mo");
+ * 	TimeMachine.setTimeShift("2026-12-31T23:59:00");
+ * </xmp>
+ *
+ * If the agent was started with a shared clock file ({@code clock=<file>}), the change is
+ * written to the file and every JVM using the file follows it (see {@link SharedClock}).
+ * <p>
+ *
+ * With {@code rescope=true} the classes to be instrumented can be changed at runtime in any
+ * mode. The loaded classes whose scope changes are retransformed in the background:
+ * <xmp>
+ * 	TimeMachine.include("org/quartz/**").await(1, TimeUnit.MINUTES);
+ * </xmp>
+ *
+ * @see ClockCallSites
+ */
+public final class TimeMachine
+{
+	private static volatile RewriteMode _mode;
+	private static volatile boolean _frozen;
+	private static volatile Rescoper _rescoper;
+
+
+	private TimeMachine()
+	{
+	}
+
+	/**
+	 * Called by {@link TimeMachineAgentDelegate} when the agent is started. The time shift is
+	 * given to {@link ClockCallSites} in every mode because {@link ShiftedClock} reads it from
+	 * there.
+	 */
+	static void install(RewriteMode mode, Milliseconds timeShift)
+	{
+		install(mode, timeShift, false);
+	}
+
+	/**
+	 * @param frozen
+	 * 		{@code true} if an absolute time given later as a string freezes the clock instead
+	 * 		of only setting where the clock starts from (see {@link #resolve(Milliseconds)}).
+	 */
+	static void install(RewriteMode mode, Milliseconds timeShift, boolean frozen)
+	{
+		ClockCallSites.setSharedClock(null);
+		VirtualClock.install(null);
+		ClockCallSites.setRecorder(null);
+		ClockCallSites.setReplay(null);
+		setRescoper(null);
+		ClockCallSites.setTimeShift(timeShift);
+		_mode = mode;
+		_frozen = frozen;
+	}
+
+	/**
+	 * Changes the time shift. An absolute time sets where the clock starts from, after which
+	 * the clock advances with the real time, unless the agent was started with
+	 * {@code frozen=true}.
+	 *
+	 * @param timeShift
+	 * 		Relative or absolute time shift in the format documented in
+	 * 		{@link TimeMachineAgentDelegate}.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the time shift is not valid.
+	 *
+	 * @throws IllegalStateException
+	 * 		If the agent is not running in {@code mode=dynamic}.
+	 */
+	public static void setTimeShift(String timeShift)
+	{
+		setTimeShift(resolve(TimeMachineAgentDelegate.parseTime(timeShift)));
+	}
+
+	/**
+	 * Changes the time shift. An absolute {@code Milliseconds} always freezes the clock; see
+	 * {@link Milliseconds#advancing()}.
+	 *
+	 * @throws IllegalStateException
+	 * 		If the agent is not running in {@code mode=dynamic}.
+	 */
+	public static void setTimeShift(Milliseconds timeShift)
+	{
+		setTimeShift(timeShift, "api");
+	}
+
+	/**
+	 * Changes the time shift and records a {@link TimeJumpEvent}.
+	 *
+	 * @param cause
+	 * 		What changed the time shift.
+	 *
+	 * @throws IllegalStateException
+	 * 		If the agent is not running in {@code mode=dynamic}.
+	 */
+	static void setTimeShift(Milliseconds timeShift, String cause)
+	{
+		if(_mode != RewriteMode.DYNAMIC)
+			throw new IllegalStateException(
+				"The time shift can be changed only in mode=dynamic. Current mode is " + _mode + "."
+			);
+		SharedClock clock = ClockCallSites.getSharedClock();
+		if(clock == null)
+			ClockCallSites.setTimeShift(timeShift);
+		else {
+			clock.write(timeShift);
+			ClockCallSites.setSharedClock(clock);
+		}
+		if(TransformMetrics.JFR)
+			TimeJumpEvent.record(timeShift, cause);
+	}
+
+	/**
+	 * Changes the time shift of every JVM using a shared clock file. This works in any JVM,
+	 * also without the agent. An absolute time sets where the clock starts from.
+	 *
+	 * @param clockFile
+	 * 		The clock file given as {@code clock=<file>} to the agents. It is created if it
+	 * 		does not exist.
+	 *
+	 * @param timeShift
+	 * 		Relative or absolute time shift in the format documented in
+	 * 		{@link TimeMachineAgentDelegate}.
+	 *
+	 * @throws IOException
+	 * 		If the file cannot be opened or it is not a clock file.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the time shift is not valid.
+	 */
+	public static void setTimeShift(Path clockFile, String timeShift)
+		throws
+			IOException
+	{
+		Milliseconds shift = TimeMachineAgentDelegate.parseTime(timeShift).advancing();
+		SharedClock.open(clockFile, shift).write(shift);
+	}
+
+	/**
+	 * @return
+	 * 		The time shift of a shared clock file, which is created with no time shift if it
+	 * 		does not exist.
+	 *
+	 * @throws IOException
+	 * 		If the file cannot be opened or it is not a clock file.
+	 */
+	public static Milliseconds getTimeShift(Path clockFile)
+		throws
+			IOException
+	{
+		return SharedClock.open(clockFile, new Milliseconds(true, 0)).read();
+	}
+
+	/**
+	 * Resolves a parsed time shift given by the user at runtime.
+	 *
+	 * @return
+	 * 		The time shift as such if the clock is to be frozen and
+	 * 		{@link Milliseconds#advancing()} otherwise.
+	 */
+	static Milliseconds resolve(Milliseconds timeShift)
+	{
+		return _frozen ? timeShift : timeShift.advancing();
+	}
+
+	static RewriteMode getMode()
+	{
+		return _mode;
+	}
+
+	/**
+	 * @return
+	 * 		The current time shift or {@code null} if the agent is not running in
+	 * 		{@code mode=dynamic}.
+	 */
+	public static Milliseconds getTimeShift()
+	{
+		return _mode == RewriteMode.DYNAMIC ? ClockCallSites.getTimeShift() : null;
+	}
+
+	/**
+	 * Called by {@link TimeMachineAgentDelegate} when the agent is started with
+	 * {@code rescope=true}.
+	 *
+	 * @param rescoper
+	 * 		The rescoper or {@code null} to disable rescoping.
+	 */
+	static void setRescoper(Rescoper rescoper)
+	{
+		Rescoper old = _rescoper;
+		_rescoper = rescoper;
+		if(old != null && old != rescoper)
+			old.shutdown();
+	}
+
+	static boolean isRescopable()
+	{
+		return _rescoper != null;
+	}
+
+	/**
+	 * Starts instrumenting the classes matching a pattern. An exclude rule of the same pattern
+	 * is removed. The classes loaded after the call are instrumented as usual and the loaded
+	 * classes are retransformed in the background.
+	 *
+	 * @param pattern
+	 * 		Class name pattern (see {@link ClassNameTrie}), e.g. {@code org/quartz/**}.
+	 *
+	 * @return
+	 * 		The progress of the retransformation.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the pattern is not valid.
+	 *
+	 * @throws IllegalStateException
+	 * 		If the agent was not started with {@code rescope=true}.
+	 */
+	public static RescopeProgress include(String pattern)
+	{
+		return rescoper().include(pattern);
+	}
+
+	/**
+	 * Stops instrumenting the classes matching a pattern. An include rule of the same pattern
+	 * is removed. The loaded classes get their original byte code back in the background.
+	 *
+	 * @return
+	 * 		The progress of the retransformation.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the pattern is not valid.
+	 *
+	 * @throws IllegalStateException
+	 * 		If the agent was not started with {@code rescope=true}.
+	 */
+	public static RescopeProgress exclude(String pattern)
+	{
+		return rescoper().exclude(pattern);
+	}
+
+	/**
+	 * Removes the include and the exclude rule of a pattern, after which the classes matching
+	 * it are decided by the other rules.
+	 *
+	 * @return
+	 * 		The progress of the retransformation.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the pattern is not valid.
+	 *
+	 * @throws IllegalStateException
+	 * 		If the agent was not started with {@code rescope=true}.
+	 */
+	public static RescopeProgress removeScopeRule(String pattern)
+	{
+		return rescoper().remove(pattern);
+	}
+
+	/**
+	 * @return
+	 * 		The progress of the latest scope change or {@code null} if there is none.
+	 */
+	public static RescopeProgress getRescopeProgress()
+	{
+		Rescoper rescoper = _rescoper;
+		return rescoper == null ? null : rescoper.getLastProgress();
+	}
+
+	private static Rescoper rescoper()
+	{
+		Rescoper rescoper = _rescoper;
+		if(rescoper == null)
+			throw new IllegalStateException("The scope can be changed only with rescope=true.");
+		return rescoper;
+	}
+}
@@ -1,14 +1,28 @@
 package com.codetropics.java.asm.timemachine;
 
 import static org.objectweb.asm.Opcodes.DUP;
+import static org.objectweb.asm.Opcodes.DUP2;
+import static org.objectweb.asm.Opcodes.DUP2_X2;
+import static org.objectweb.asm.Opcodes.H_INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.ICONST_0;
+import static org.objectweb.asm.Opcodes.ICONST_1;
 import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
 import static org.objectweb.asm.Opcodes.INVOKESTATIC;
 import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
 import static org.objectweb.asm.Opcodes.LADD;
+import static org.objectweb.asm.Opcodes.LMUL;
+import static org.objectweb.asm.Opcodes.LNEG;
+import static org.objectweb.asm.Opcodes.LSHL;
+import static org.objectweb.asm.Opcodes.LSUB;
 import static org.objectweb.asm.Opcodes.POP2;
+import static org.objectweb.asm.Opcodes.SWAP;
+import static org.objectweb.asm.Opcodes.V1_7;
 
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
 
 import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate.Milliseconds;
 
@@ -16,6 +30,15 @@ import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate.Millisecond
 /**
  * TimeMachineAdapter is used to catch all the system time queries and manipulate the result
  * to effectively get a shift in time.
+ * <p>
+ * 
+ * In {@link RewriteMode#CONSTANT} mode the time shift is embedded as a constant. In
+ * {@link RewriteMode#DYNAMIC} mode the original system time value is passed to an
+ * {@code invokedynamic} call site linked by {@link ClockCallSites}, or to
+ * {@link ClockCallSites#millis(long)} for class files older than Java 7.
+ * <p>
+ *
+ * The rewrite template of every recognised call is described in {@link TimeCall.Template}.
  *
  * @see TimeMachineAgentDelegate
  * 
@@ -26,20 +49,167 @@ import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate.Millisecond
  */
 public class TimeMachineAdapter extends MethodVisitor
 {
+	private static final String CLOCK_CALL_SITES = Type.getInternalName(ClockCallSites.class);
+	private static final String SHIFTED_CLOCK = Type.getInternalName(ShiftedClock.class);
+	private static final String VIRTUAL_CLOCK = Type.getInternalName(VirtualClock.class);
+	private static final String CALL_SITE_CENSUS = Type.getInternalName(CallSiteCensus.class);
+	private static final String INSTANT = "java/time/Instant";
+	private static final String ZONE_ID = "java/time/ZoneId";
+	
+	private static final Handle BOOTSTRAP =
+		new Handle(
+			H_INVOKESTATIC,
+			CLOCK_CALL_SITES,
+			"bootstrap",
+			ClockCallSites.BOOTSTRAP_DESC,
+			false
+		);
+	private static final Handle NAMED_BOOTSTRAP =
+		new Handle(
+			H_INVOKESTATIC,
+			CLOCK_CALL_SITES,
+			"bootstrap",
+			ClockCallSites.NAMED_BOOTSTRAP_DESC,
+			false
+		);
+
 	private final Milliseconds milliseconds;
+	private final RewriteMode mode;
+	private final boolean invokeDynamic;
+	private boolean fixedClock;
+	private boolean virtualClock;
+	private int[] rewrittenCalls;
+	private String censusClass;
+	private String censusMethod;
+	private String recordedMethod;
+	private int recordedCalls;
+	private String callSite;
+	private int line = -1;
 	
 
 	public TimeMachineAdapter(Milliseconds milliseconds, MethodVisitor mv)
+	{
+		this(milliseconds, RewriteMode.CONSTANT, V1_7, mv);
+	}
+
+	/**
+	 * @param milliseconds
+	 * 		Time shift for {@link RewriteMode#CONSTANT} mode.
+	 * 
+	 * @param mode
+	 * 		How the time shift is applied.
+	 * 
+	 * @param classVersion
+	 * 		Class file version of the instrumented class.
+	 * 
+	 * @param mv
+	 * 		The method visitor to which this adapter delegates calls.
+	 */
+	TimeMachineAdapter(
+		Milliseconds milliseconds,
+		RewriteMode mode,
+		int classVersion,
+		MethodVisitor mv
+	)
 	{
 		// Set the API version for ASM 9+
 		super(Opcodes.ASM9, mv);
 		this.milliseconds = milliseconds;
+		this.mode = mode;
+		this.invokeDynamic = (classVersion & 0xFFFF) >= V1_7;
+	}
+	
+	/**
+	 * Makes this adapter count the rewritten calls.
+	 * 
+	 * @param counts
+	 * 		Incremented at the {@link TimeCall#ordinal()} of every rewritten call.
+	 * 
+	 * @return
+	 * 		This adapter.
+	 */
+	TimeMachineAdapter countCallsIn(int[] counts)
+	{
+		this.rewrittenCalls = counts;
+		return this;
+	}
+	
+	/**
+	 * Makes the replaced {@code java.time.Clock} system clocks use the time shift of this
+	 * adapter instead of the global one (see {@link ShiftRules}). Only for
+	 * {@link RewriteMode#CONSTANT} mode.
+	 * 
+	 * @return
+	 * 		This adapter.
+	 */
+	TimeMachineAdapter fixedClock()
+	{
+		this.fixedClock = true;
+		return this;
+	}
+	
+	/**
+	 * Makes this adapter replace the waits with the methods of {@link VirtualClock}.
+	 * 
+	 * @return
+	 * 		This adapter.
+	 */
+	TimeMachineAdapter virtualClock()
+	{
+		this.virtualClock = true;
+		return this;
+	}
+	
+	/**
+	 * Makes this adapter count the executions of every rewritten call with
+	 * {@link CallSiteCensus}.
+	 * 
+	 * @param className
+	 * 		Name of the instrumented class.
+	 * 
+	 * @param methodName
+	 * 		Name of the instrumented method.
+	 * 
+	 * @return
+	 * 		This adapter.
+	 */
+	TimeMachineAdapter census(String className, String methodName)
+	{
+		this.censusClass = className;
+		this.censusMethod = methodName;
+		return this;
 	}
 	
 	/**
-	 * Catches all the system time queries and manipulates the result either by adding
-	 * (or subtracting) time from it or replacing the system time value altogether with
-	 * absolute time. 
+	 * Makes this adapter name the {@code invokedynamic} call sites so that
+	 * {@link ClockRecorder} and {@link ClockReplay} can tell them apart. The name is
+	 * the method name and descriptor followed by the index of the rewritten call within
+	 * the method, e.g. {@code run()V#2}, which stays the same between JVM runs as long as
+	 * the class does not change. Only for {@link RewriteMode#DYNAMIC} mode.
+	 * 
+	 * @param method
+	 * 		Name and descriptor of the instrumented method.
+	 * 
+	 * @return
+	 * 		This adapter.
+	 */
+	TimeMachineAdapter recordable(String method)
+	{
+		this.recordedMethod = method;
+		return this;
+	}
+	
+	@Override
+	public void visitLineNumber(int line, Label start)
+	{
+		this.line = line;
+		mv.visitLineNumber(line, start);
+	}
+	
+	/**
+	 * Catches all the system time queries (see {@link TimeCall}) and manipulates the result
+	 * either by adding (or subtracting) time from it or replacing the system time value
+	 * altogether with absolute time.
 	 */
 	@Override
 	public void visitMethodInsn(
@@ -49,75 +219,263 @@ public class TimeMachineAdapter extends MethodVisitor
 		String desc,
 		boolean isInterface
 	) {
-		mv.visitMethodInsn(opcode, owner, name, desc, isInterface);
-		switch(opcode) {
-			case INVOKESPECIAL :
-				/*
-				//The no-arg constructor new Date() internally calls System.currentTimeMillis()
-				// thus new Date() gets the shift applied twice.
-				if(
-					owner.equals("java/util/Date") && 
-					name.equals("<init>") &&
-					desc.equals("()V")
-				) {
-
-					mv.visitInsn(DUP);
-					if(milliseconds.isRelative()) {
-						mv.visitInsn(DUP);
-						mv.visitMethodInsn(INVOKEVIRTUAL, "java/util/Date", "getTime", "()J", false);
-						mv.visitLdcInsn(milliseconds.getTime());
-						mv.visitInsn(LADD);
-					}
-					else
-						mv.visitLdcInsn(milliseconds.getTime());
-					mv.visitMethodInsn(INVOKEVIRTUAL, "java/util/Date", "setTime", "(J)V", false);
-
-				} */
+		TimeCall call = TimeCall.find(opcode, owner, name, desc);
+		if(call == null || !call.isRewrittenIn(mode, virtualClock)) {
+			mv.visitMethodInsn(opcode, owner, name, desc, isInterface);
+			return;
+		}
+		if(rewrittenCalls != null)
+			rewrittenCalls[call.ordinal()]++;
+		if(recordedMethod != null)
+			callSite = recordedMethod + "#" + recordedCalls++;
+		if(censusClass != null) {
+			int site = CallSiteCensus.register(censusClass, censusMethod, line, call);
+			if(site >= 0) {
+				mv.visitLdcInsn(site);
+				mv.visitMethodInsn(INVOKESTATIC, CALL_SITE_CENSUS, "hit", "(I)V", false);
+			}
+		}
+
+		switch(call.template) {
+			case SHIFT_MILLIS :
+				mv.visitMethodInsn(opcode, owner, name, desc, isInterface);
+				shiftMillis();
 				break;
-				
-			case INVOKESTATIC :
-				if(
-					owner.equals("java/lang/System") && 
-					name.equals("currentTimeMillis") &&
-					desc.equals("()J")
-				) {
-					if(milliseconds.isRelative()) {
-						mv.visitLdcInsn(milliseconds.getTime());
-						mv.visitInsn(LADD);
-					}
-					else {
-						mv.visitInsn(POP2);
-						mv.visitLdcInsn(milliseconds.getTime());
-					}
+
+			case SHIFT_NANOS :
+				mv.visitMethodInsn(opcode, owner, name, desc, isInterface);
+				if(invokeDynamic)
+					invokeDynamic(ClockCallSites.NANOS);
+				else
+					mv.visitMethodInsn(INVOKESTATIC, CLOCK_CALL_SITES, ClockCallSites.NANOS, "(J)J", false);
+				break;
+
+			case SHIFT_NANO_ADJUSTMENT :
+				if(milliseconds.isDilated()) {
+					// Stack: offset in seconds
+					mv.visitInsn(DUP2);
+					mv.visitMethodInsn(opcode, owner, name, desc, isInterface);
+					// Stack: offset, adjustment
+					mv.visitInsn(DUP2_X2);
+					mv.visitInsn(POP2);
+					mv.visitLdcInsn(1000000000L);
+					mv.visitInsn(LMUL);
+					// Stack: adjustment, offset in nanoseconds
+					mv.visitInsn(DUP2_X2);
+					mv.visitInsn(LADD);
+					// Stack: offset in nanoseconds, system time in nanoseconds
+					dilate(
+						milliseconds.getBaseline() * 1000000L,
+						milliseconds.getTime() * 1000000L
+					);
+					mv.visitInsn(DUP2_X2);
+					mv.visitInsn(POP2);
+					mv.visitInsn(LSUB);
+				}
+				else if(milliseconds.isRelative()) {
+					mv.visitMethodInsn(opcode, owner, name, desc, isInterface);
+					mv.visitLdcInsn(milliseconds.getTime() * 1000000L);
+					mv.visitInsn(LADD);
+				}
+				else {
+					// Stack: offset in seconds
+					mv.visitInsn(DUP2);
+					mv.visitMethodInsn(opcode, owner, name, desc, isInterface);
+					mv.visitInsn(POP2);
+					// absolute time in nanoseconds - offset in nanoseconds
+					mv.visitLdcInsn(1000000000L);
+					mv.visitInsn(LMUL);
+					mv.visitInsn(LNEG);
+					mv.visitLdcInsn(milliseconds.getTime() * 1000000L);
+					mv.visitInsn(LADD);
+				}
+				break;
+
+			case NEW_DATE :
+				// Stack: uninitialised Date
+				pushMillis();
+				mv.visitMethodInsn(INVOKESPECIAL, owner, name, "(J)V", false);
+				break;
+
+			case SET_CALENDAR :
+				mv.visitMethodInsn(opcode, owner, name, desc, isInterface);
+				mv.visitInsn(DUP);
+				pushMillis();
+				mv.visitMethodInsn(INVOKEVIRTUAL, "java/util/Calendar", "setTimeInMillis", "(J)V", false);
+				break;
+
+			case INSTANT :
+				pushInstant();
+				break;
+
+			case OF_INSTANT :
+				pushInstant();
+				if(desc.startsWith("()"))
+					mv.visitMethodInsn(INVOKESTATIC, ZONE_ID, "systemDefault", "()L" + ZONE_ID + ";", false);
+				else
+					// Stack: ZoneId, Instant
+					mv.visitInsn(SWAP);
+				mv.visitMethodInsn(
+					INVOKESTATIC,
+					owner,
+					"ofInstant",
+					"(L" + INSTANT + ";L" + ZONE_ID + ";)" + Type.getReturnType(desc).getDescriptor(),
+					false
+				);
+				break;
+
+			case SHIFTED_CLOCK :
+				if(fixedClock) {
+					mv.visitLdcInsn(milliseconds.getTime());
+					mv.visitInsn(milliseconds.isRelative() ? ICONST_1 : ICONST_0);
+					// Stack: [ZoneId], time, relative
+					String fixedDesc = desc.replace(")", "JZ)");
+					mv.visitMethodInsn(INVOKESTATIC, SHIFTED_CLOCK, name, fixedDesc, false);
 				}
 				else
-					if(
-						owner.equals("java/util/Calendar") && 
-						name.equals("getInstance") &&
-						desc.equals("()Ljava/util/Calendar;")
-					) {
-						mv.visitInsn(DUP);
-						if(milliseconds.isRelative()) {
-							mv.visitInsn(DUP);
-							mv.visitMethodInsn(
-								INVOKEVIRTUAL, "java/util/Calendar", "getTimeInMillis", "()J", false
-							);
-							mv.visitLdcInsn(milliseconds.getTime());
-							mv.visitInsn(LADD);
-						}
-						else
-							mv.visitLdcInsn(milliseconds.getTime());
-						mv.visitMethodInsn(
-							INVOKEVIRTUAL, "java/util/Calendar", "setTimeInMillis", "(J)V", false
-						);
-					}
+					mv.visitMethodInsn(INVOKESTATIC, SHIFTED_CLOCK, name, desc, false);
 				break;
+
+			case VIRTUAL_WAIT :
+				// The receiver of an instance method is on the stack as the first argument.
+				String staticDesc =
+					opcode == INVOKESTATIC ? desc : "(L" + owner + ";" + desc.substring(1);
+				mv.visitMethodInsn(INVOKESTATIC, VIRTUAL_CLOCK, name, staticDesc, false);
+				break;
+		}
+	}
+
+	/**
+	 * Pushes the shifted system time in milliseconds.
+	 */
+	private void pushMillis()
+	{
+		if(isFrozen())
+			mv.visitLdcInsn(milliseconds.getTime());
+		else {
+			mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "currentTimeMillis", "()J", false);
+			shiftMillis();
+		}
+	}
+
+	/**
+	 * Pushes the shifted system time as an {@code Instant}. The real {@code Instant} is moved
+	 * by whole milliseconds, which keeps its sub-millisecond part, unless the clock is frozen.
+	 */
+	private void pushInstant()
+	{
+		String instant = "L" + INSTANT + ";";
+		if(isFrozen()) {
+			mv.visitLdcInsn(milliseconds.getTime());
+			mv.visitMethodInsn(INVOKESTATIC, INSTANT, "ofEpochMilli", "(J)" + instant, false);
+			return;
+		}
+		mv.visitMethodInsn(INVOKESTATIC, INSTANT, "now", "()" + instant, false);
+		mv.visitInsn(DUP);
+		mv.visitMethodInsn(INVOKEVIRTUAL, INSTANT, "toEpochMilli", "()J", false);
+		mv.visitInsn(DUP2);
+		shiftMillis();
+		// Stack: Instant, real time, shifted time
+		mv.visitInsn(LSUB);
+		mv.visitInsn(LNEG);
+		mv.visitMethodInsn(INVOKEVIRTUAL, INSTANT, "plusMillis", "(J)" + instant, false);
+	}
+
+	/**
+	 * @return
+	 * 		{@code true} if the absolute time is embedded as a constant.
+	 */
+	private boolean isFrozen()
+	{
+		return
+			mode != RewriteMode.DYNAMIC &&
+			!milliseconds.isRelative() &&
+			!milliseconds.isDilated();
+	}
+
+	/**
+	 * Replaces the system time value on top of the stack with the shifted value.
+	 */
+	private void shiftMillis()
+	{
+		if(mode == RewriteMode.DYNAMIC)
+			shiftMillisDynamically();
+		else
+			if(milliseconds.isDilated())
+				dilate(milliseconds.getBaseline(), milliseconds.getTime());
+			else if(milliseconds.isRelative()) {
+				mv.visitLdcInsn(milliseconds.getTime());
+				mv.visitInsn(LADD);
+			}
+			else {
+				mv.visitInsn(POP2);
+				mv.visitLdcInsn(milliseconds.getTime());
+			}
+	}
+
+	/**
+	 * Replaces the system time value on top of the stack with the shifted value using
+	 * the time shift bound by {@link ClockCallSites}.
+	 */
+	private void shiftMillisDynamically()
+	{
+		if(invokeDynamic)
+			invokeDynamic(ClockCallSites.MILLIS);
+		else
+			mv.visitMethodInsn(INVOKESTATIC, CLOCK_CALL_SITES, ClockCallSites.MILLIS, "(J)J", false);
+	}
+
+	/**
+	 * Emits an {@code invokedynamic} call site of {@link ClockCallSites}, named if
+	 * the call sites are to be recordable.
+	 */
+	private void invokeDynamic(String value)
+	{
+		if(callSite != null)
+			mv.visitInvokeDynamicInsn(value, "(J)J", NAMED_BOOTSTRAP, callSite);
+		else
+			mv.visitInvokeDynamicInsn(value, "(J)J", BOOTSTRAP);
+	}
+
+	/**
+	 * Replaces the system time value on top of the stack with the dilated time
+	 * {@code start + (value - baseline) * rate}. The rate is applied in fixed point as
+	 * described in {@link Milliseconds}.
+	 */
+	private void dilate(long baseline, long start)
+	{
+		long fraction = milliseconds.getRateFraction();
+		mv.visitLdcInsn(baseline);
+		mv.visitInsn(LSUB);
+		if(fraction != 0) {
+			mv.visitInsn(DUP2);
+			multiply(milliseconds.getRateWhole());
+			mv.visitInsn(DUP2_X2);
+			mv.visitInsn(POP2);
+			// Stack: elapsed * whole, elapsed
+			mv.visitLdcInsn(fraction);
+			mv.visitMethodInsn(INVOKESTATIC, "java/lang/Math", "multiplyHigh", "(JJ)J", false);
+			mv.visitInsn(ICONST_1);
+			mv.visitInsn(LSHL);
+			mv.visitInsn(LADD);
+		}
+		else
+			multiply(milliseconds.getRateWhole());
+		mv.visitLdcInsn(start);
+		mv.visitInsn(LADD);
+	}
+
+	private void multiply(long factor)
+	{
+		if(factor != 1) {
+			mv.visitLdcInsn(factor);
+			mv.visitInsn(LMUL);
 		}
 	}
 
 	@Override
 	public void visitMaxs(int maxStack, int maxLocals)
 	{
-		mv.visitMaxs(maxStack + 6, maxLocals);
+		mv.visitMaxs(maxStack + 10, maxLocals);
 	}
 }
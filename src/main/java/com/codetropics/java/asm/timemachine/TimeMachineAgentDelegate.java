@@ -3,11 +3,16 @@ package com.codetropics.java.asm.timemachine;
 
 import com.codetropics.java.agent.TimeMachineAgent;
 
+import java.io.IOException;
+import java.io.PrintStream;
 import java.lang.instrument.Instrumentation;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -188,7 +193,7 @@ public class TimeMachineAgentDelegate
 	 * Pattern for matching relative time shift expressions, such as "-2d", "+3h", "30m", or combinations thereof.
 	 * <p>
 	 * This pattern will match one or more segments consisting of an optional sign (+ or -), a number,
-	 * and a unit (e.g., y, mo, w, d, h, m, s).
+	 * and a unit (e.g., y, mo, w, d, h, m, s, ms).
 	 * <p>
 	 * Examples of valid inputs:
 	 * <ul>
@@ -201,6 +206,14 @@ public class TimeMachineAgentDelegate
 	 */
 	private static final String RELATIVE_PATTERN = "([+-]?\\d+)([a-zA-Z]+)";
 
+	/**
+	 * Set while the agent is attached with {@link #agentmain(AgentOptions, Instrumentation)}.
+	 */
+	private static Retransformer _attached;
+	private static Thread _timelineThread;
+	private static Thread _retransformThread;
+	private static boolean _metricsRegistered;
+
 	/**
 	 * This method is called by the general agent {@code com.hapiware.agent.Agent} and
 	 * is done before the main method call right after the JVM initialisation. 
@@ -236,12 +249,10 @@ public class TimeMachineAgentDelegate
 		try 
 		{
 			if(config != null) {
+				Milliseconds timeShift = parseTime((String)config);
+				TimeMachine.install(RewriteMode.CONSTANT, timeShift);
 				instrumentation.addTransformer(
-					new TimeMachineTransformer(
-						includePatterns,
-						excludePatterns,
-						parseTime((String)config)
-					)
+					new TimeMachineTransformer(includePatterns, excludePatterns, timeShift)
 				);
 			}
 			else {
@@ -259,6 +270,496 @@ public class TimeMachineAgentDelegate
 		}
 	}
 
+	/**
+	 * This method is called by {@link TimeMachineAgent} with the options parsed from
+	 * the agent argument string (see {@link AgentOptions}).
+	 *
+	 * @param options
+	 * 		Time shift and the include and exclude rules for {@link TimeMachineTransformer}.
+	 *
+	 * @param instrumentation
+	 * 		See {@link java.lang.instrument.Instrumentation}
+	 *
+	 * @see java.lang.instrument
+	 */
+	public static void premain(AgentOptions options, Instrumentation instrumentation)
+	{
+		try
+		{
+			RewriteMode mode = options.checkMode();
+			Timeline timeline = readTimeline(options);
+			TimeMachineTransformer transformer = install(options, mode, instrumentation);
+			if(options.isWarmup()) {
+				Warmup warmup = new Warmup(transformer);
+				transformer.setWarmup(warmup);
+				warmup.start(
+					Warmup.classPathJars(),
+					Math.max(1, Runtime.getRuntime().availableProcessors() - 1)
+				);
+			}
+			LoadedClassIndex index =
+				options.isRescope() ? new LoadedClassIndex(instrumentation) : null;
+			transformer.setIndex(index);
+			instrumentation.addTransformer(transformer, index != null);
+			if(index != null)
+				startRescoping(
+					options,
+					instrumentation,
+					index,
+					new Retransformer(
+						instrumentation,
+						transformer,
+						options.getBatchSize(),
+						options.getBatchPause()
+					)
+				);
+			start(options, transformer.getMode(), timeline);
+		}
+		catch(Exception e)
+		{
+			System.err.println(
+				"Couldn't start the TimeMachine agent delegate due to an exception. "
+					+ e.getMessage()
+			);
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * This method is called by {@link TimeMachineAgent} when the agent is attached to
+	 * a running JVM. On top of what {@link #premain(AgentOptions, Instrumentation)} does, the
+	 * already loaded classes are retransformed in batches (see {@link Retransformer}). The
+	 * batches run in the background, so the attach call does not wait for them.
+	 *
+	 * @param options
+	 * 		The same options as for {@code premain}. {@code batchSize} and {@code batchPause}
+	 * 		control the retransformation.
+	 *
+	 * @param instrumentation
+	 * 		See {@link java.lang.instrument.Instrumentation}
+	 *
+	 * @see #undo(Instrumentation)
+	 */
+	public static synchronized void agentmain(
+		AgentOptions options,
+		Instrumentation instrumentation
+	)
+	{
+		try
+		{
+			if(_attached != null)
+				throw new IllegalStateException("The agent is already attached. Undo it first.");
+
+			RewriteMode mode = options.checkMode();
+			Timeline timeline = readTimeline(options);
+			TimeMachineTransformer transformer = install(options, mode, instrumentation);
+			LoadedClassIndex index =
+				options.isRescope() ? new LoadedClassIndex(instrumentation) : null;
+			transformer.setIndex(index);
+			Retransformer retransformer =
+				new Retransformer(
+					instrumentation,
+					transformer,
+					options.getBatchSize(),
+					options.getBatchPause()
+				);
+			_attached = retransformer;
+			_retransformThread = retransformer.start();
+			if(index != null)
+				startRescoping(options, instrumentation, index, retransformer);
+			_timelineThread = start(options, TimeMachine.getMode(), timeline);
+		}
+		catch(Exception e)
+		{
+			System.err.println(
+				"Couldn't attach the TimeMachine agent delegate due to an exception. "
+					+ e.getMessage()
+			);
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Undoes {@link #agentmain(AgentOptions, Instrumentation)}. The retransformed classes,
+	 * the hooked JDK classes and the hooked schedulers get their original byte code back and
+	 * the time shift is reset so that the objects created by the agent, such as
+	 * {@link ShiftedClock}, show the real time.
+	 *
+	 * @param instrumentation
+	 * 		See {@link java.lang.instrument.Instrumentation}
+	 */
+	public static synchronized void undo(Instrumentation instrumentation)
+	{
+		if(_attached == null) {
+			System.err.println("TimeMachine agent is not attached.");
+			return;
+		}
+
+		try
+		{
+			if(_timelineThread != null)
+				_timelineThread.interrupt();
+			_timelineThread = null;
+			_retransformThread.interrupt();
+			_retransformThread = null;
+			TimeMachineControl.unregister();
+			TimeMachine.setRescoper(null);
+			_attached.undo();
+			_attached = null;
+			JdkHook.uninstall(instrumentation);
+			SchedulerHook.uninstall(instrumentation);
+			TimeMachine.install(RewriteMode.CONSTANT, new Milliseconds(true, 0));
+			System.out.println("TimeMachine restored the original classes.");
+		}
+		catch(Exception e)
+		{
+			System.err.println(
+				"Couldn't undo the TimeMachine agent delegate due to an exception. "
+					+ e.getMessage()
+			);
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Rewrites a jar file or a class directory ahead of time (see {@link OfflineInstrumenter}).
+	 *
+	 * @param options
+	 * 		The time shift and the include and exclude rules like for the agent. Only
+	 * 		{@code mode=constant} is supported, and an absolute time needs {@code frozen=true}.
+	 *
+	 * @param input
+	 * 		A jar file or a class directory.
+	 *
+	 * @param output
+	 * 		The jar file or the class directory to be written.
+	 *
+	 * @return
+	 * 		The number of the rewritten classes.
+	 *
+	 * @throws IOException
+	 * 		If the input cannot be read or the output cannot be written.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the options cannot be used ahead of time.
+	 */
+	public static int instrument(AgentOptions options, Path input, Path output)
+		throws
+			IOException
+	{
+		if(options.getShift() == null)
+			throw new IllegalArgumentException("Time shift configuration is missing.");
+		RewriteMode mode = options.checkMode();
+		Milliseconds timeShift =
+			parseTimeShift(options.getShift(), options.getStart(), options.getRate());
+		if(!timeShift.isRelative() && !timeShift.isDilated() && !options.isFrozen())
+			throw new IllegalArgumentException(
+				"An absolute time needs frozen=true in offline instrumentation."
+			);
+		ShiftRules rules = ShiftRules.parse(options.getRules(), options.isFrozen());
+		if(rules != null && rules.isAdvancing())
+			throw new IllegalArgumentException(
+				"An absolute time of a rule needs frozen=true in offline instrumentation."
+			);
+		TimeMachineTransformer transformer =
+			new TimeMachineTransformer(
+				new ClassFilter(
+					ClassNameMatcher.compile(options.getIncludes(), options.getExcludes()),
+					options.isBootstrapClasses()
+				),
+				timeShift,
+				mode,
+				null
+			);
+		transformer.setRules(rules);
+		return
+			new OfflineInstrumenter(
+				transformer,
+				timeShift,
+				Runtime.getRuntime().availableProcessors()
+			).instrument(input, output);
+	}
+
+	/**
+	 * Reports the call sites the agent would rewrite in a class path, without rewriting it
+	 * (see {@link RewriteAnalyzer}).
+	 *
+	 * @param options
+	 * 		The options of the agent. The time shift is optional.
+	 *
+	 * @param classPath
+	 * 		Jar files and class directories.
+	 *
+	 * @param out
+	 * 		Where the report is printed.
+	 *
+	 * @return
+	 * 		The number of the classes which would be rewritten.
+	 *
+	 * @throws IOException
+	 * 		If a class directory cannot be listed.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the options are not valid.
+	 */
+	public static int analyze(AgentOptions options, List<Path> classPath, PrintStream out)
+		throws
+			IOException
+	{
+		RewriteMode mode = options.checkMode();
+		// The time shift only changes the constants in the rewritten byte code.
+		Milliseconds timeShift =
+			options.getShift() == null && options.getStart() == null && options.getRate() == null
+				? new Milliseconds(true, 0)
+				: parseTimeShift(options.getShift(), options.getStart(), options.getRate());
+		if(!options.isFrozen() && !timeShift.isRelative() && !timeShift.isDilated())
+			timeShift = timeShift.advancing();
+		TimeMachineTransformer transformer =
+			new TimeMachineTransformer(
+				new ClassFilter(
+					ClassNameMatcher.compile(options.getIncludes(), options.getExcludes()),
+					options.isBootstrapClasses()
+				),
+				timeShift,
+				mode,
+				null
+			);
+		transformer.setRules(ShiftRules.parse(options.getRules(), options.isFrozen()));
+		transformer.setVirtualClock(options.getVirtual() != null);
+		transformer.setRecordable(options.getRecord() != null || options.getReplay() != null);
+		transformer.setCensus(options.getCensus() != null);
+		RewriteAnalyzer analyzer =
+			new RewriteAnalyzer(transformer, Runtime.getRuntime().availableProcessors());
+		int rewritten = analyzer.analyze(classPath);
+		analyzer.print(out);
+		return rewritten;
+	}
+
+	/**
+	 * @return
+	 * 		The timeline given in the options or {@code null} if there is none.
+	 */
+	private static Timeline readTimeline(AgentOptions options)
+		throws
+			IOException
+	{
+		if(options.getTimeline() == null)
+			return null;
+		return Timeline.read(Paths.get(options.getTimeline()));
+	}
+
+	/**
+	 * Sets up the time shift and creates the transformer, which is still to be registered.
+	 *
+	 * @param mode
+	 * 		The rewrite mode checked against the options (see {@link AgentOptions#checkMode()}).
+	 */
+	private static TimeMachineTransformer install(
+		AgentOptions options,
+		RewriteMode mode,
+		Instrumentation instrumentation
+	)
+		throws
+			IOException
+	{
+		if(
+			options.getShift() == null &&
+			options.getStart() == null &&
+			options.getRate() == null &&
+			options.getTimeline() == null &&
+			options.getClock() == null
+		) {
+			String ex = "Time shift configuration is missing.";
+			throw new IllegalArgumentException(ex);
+		}
+		VirtualClock.Policy virtual =
+			options.getVirtual() == null ? null : VirtualClock.Policy.parse(options.getVirtual());
+		boolean recordable = options.getRecord() != null || options.getReplay() != null;
+		ClockReplay replay =
+			options.getReplay() == null ? null : ClockReplay.read(Paths.get(options.getReplay()));
+
+		ClassFilter filter =
+			new ClassFilter(
+				ClassNameMatcher.compile(options.getIncludes(), options.getExcludes()),
+				options.isBootstrapClasses()
+			);
+		// A timeline or a new shared clock starts from the real time unless a time shift is
+		// given too, and a rate alone dilates the time from the real time.
+		Milliseconds timeShift =
+			options.getShift() == null && options.getStart() == null && options.getRate() == null
+				? new Milliseconds(true, 0)
+				: parseTimeShift(options.getShift(), options.getStart(), options.getRate());
+		// An absolute time only sets where the clock starts unless a frozen clock is asked for.
+		boolean advancing =
+			!options.isFrozen() && !timeShift.isRelative() && !timeShift.isDilated();
+		if(advancing)
+			timeShift = timeShift.advancing();
+		if(mode == RewriteMode.JDK && !JdkHook.install(instrumentation, timeShift)) {
+			System.err.println(
+				"TimeMachine couldn't hook the JDK time sources of this JVM."
+					+ " Falling back to mode=constant."
+			);
+			mode = RewriteMode.CONSTANT;
+		}
+		TimeMachineTransformer transformer =
+			new TimeMachineTransformer(filter, timeShift, mode, instrumentation);
+		ShiftRules rules = ShiftRules.parse(options.getRules(), options.isFrozen());
+		transformer.setRules(rules);
+		transformer.setVirtualClock(virtual != null);
+		transformer.setRecordable(recordable);
+		if(options.getCensus() != null) {
+			transformer.setCensus(true);
+			CallSiteCensus.reportAtShutdown(options.getCensus());
+		}
+		// The baseline of a dilated time and the offset of an advancing absolute time are
+		// part of the rewritten byte code and they are different in every JVM run, and so
+		// are the call site IDs of the census and the offsets of advancing rules.
+		if(
+			options.getCacheDirectory() != null &&
+			options.getCensus() == null &&
+			(mode == RewriteMode.DYNAMIC || !(timeShift.isDilated() || advancing)) &&
+			(rules == null || !rules.isAdvancing())
+		) {
+			try {
+				transformer.setCache(
+					new TransformCache(
+						Paths.get(options.getCacheDirectory()),
+						options.getCacheSize(),
+						transformer.rewriteKey()
+					)
+				);
+			}
+			catch(IOException e) {
+				System.err.println(
+					"TimeMachine cache " + options.getCacheDirectory()
+						+ " is not used. " + e
+				);
+			}
+		}
+		TimeMachine.install(mode, timeShift, options.isFrozen());
+		if(virtual != null)
+			VirtualClock.install(virtual);
+		if(options.getRecord() != null) {
+			ClockCallSites.setRecorder(ClockRecorder.open(Paths.get(options.getRecord())));
+			Runtime.getRuntime().addShutdownHook(
+				new Thread(() -> ClockCallSites.setRecorder(null), "TimeMachine clock recorder")
+			);
+		}
+		if(replay != null) {
+			ClockCallSites.setReplay(replay);
+			if(replay.dropped() > 0)
+				System.err.println(
+					"TimeMachine replays " + options.getReplay() + " in which "
+						+ replay.dropped() + " values were dropped."
+				);
+		}
+		// An existing clock file keeps its time shift so that a restarted JVM joins the others.
+		if(options.getClock() != null)
+			ClockCallSites.setSharedClock(
+				SharedClock.open(Paths.get(options.getClock()), timeShift)
+			);
+		if(
+			options.isSchedulers() &&
+			!SchedulerHook.install(instrumentation, ClockCallSites.getTimeShift())
+		)
+			System.err.println(
+				"TimeMachine couldn't hook the schedulers of this JVM."
+					+ " The scheduled tasks do not follow the time jumps."
+			);
+		return transformer;
+	}
+
+	/**
+	 * Makes the scope changeable at runtime (see {@link Rescoper}). The transformer must
+	 * already be registered as retransformation capable so that the classes loaded while
+	 * the index is filled are not missed.
+	 */
+	private static void startRescoping(
+		AgentOptions options,
+		Instrumentation instrumentation,
+		LoadedClassIndex index,
+		Retransformer retransformer
+	)
+	{
+		index.addAll(instrumentation.getAllLoadedClasses());
+		TimeMachine.setRescoper(
+			new Rescoper(
+				retransformer.getTransformer(),
+				index,
+				retransformer,
+				options.getIncludes(),
+				options.getExcludes()
+			)
+		);
+	}
+
+	/**
+	 * Starts the JMX beans and the timeline once the transformer is in place.
+	 *
+	 * @return
+	 * 		The timeline thread or {@code null} if there is no timeline.
+	 */
+	private static Thread start(AgentOptions options, RewriteMode mode, Timeline timeline)
+	{
+		if(mode == RewriteMode.DYNAMIC || TimeMachine.isRescopable())
+			TimeMachineControl.registerInBackground();
+		if(options.isMetrics() && !_metricsRegistered) {
+			TransformMetrics.registerInBackground();
+			_metricsRegistered = true;
+		}
+		return timeline == null ? null : timeline.start();
+	}
+
+	/**
+	 * Parses the time shift options (see {@link AgentOptions}).
+	 *
+	 * @param shift
+	 * 		Relative or absolute time shift or {@code null}. A dilated time without
+	 * 		{@code shift} and {@code start} starts from the current time.
+	 *
+	 * @param start
+	 * 		Absolute start time of a dilated time or {@code null}.
+	 *
+	 * @param rate
+	 * 		Rate of a dilated time or {@code null}.
+	 *
+	 * @return
+	 * 		A dilated time if {@code start} or {@code rate} is given and the plain time shift
+	 * 		otherwise.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the options are not valid or they conflict.
+	 */
+	static Milliseconds parseTimeShift(String shift, String start, String rate)
+	{
+		if(start == null && rate == null)
+			return parseTime(shift);
+		if(start != null && shift != null)
+			throw new IllegalArgumentException("shift and start cannot be used together.");
+
+		long startMillis;
+		if(start != null) {
+			Milliseconds startTime = parseTime(start);
+			if(startTime.isRelative())
+				throw new IllegalArgumentException("start must be an absolute time: " + start);
+			startMillis = startTime.getTime();
+		}
+		else if(shift != null)
+			startMillis = parseTime(shift).apply(System.currentTimeMillis());
+		else
+			startMillis = System.currentTimeMillis();
+
+		double r = 1;
+		if(rate != null)
+			try {
+				r = Double.parseDouble(rate.trim());
+			}
+			catch(NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid rate: " + rate);
+			}
+		return Milliseconds.dilated(startMillis, r);
+	}
+
 	/**
 	 * Parses the configuration string as documented in class description
 	 *  
@@ -292,6 +793,7 @@ public class TimeMachineAgentDelegate
 					case "h":  millis += value * 60L * 60 * 1000; break;
 					case "m":  millis += value * 60L * 1000; break;
 					case "s":  millis += value * 1000; break;
+					case "ms": millis += value; break;
 					default:
 						throw new IllegalArgumentException("Unknown time unit: " + unit);
 				}
@@ -326,6 +828,9 @@ public class TimeMachineAgentDelegate
 	 * system time value. In the case of absolute value then the returned system value is to
 	 * be replaced with time hold in {@code Milliseconds}. 
 	 * <p>
+	 * A dilated time (see {@link #dilated(long, double)}) starts from an absolute time and
+	 * advances at a multiple of the real elapsed time.
+	 * <p>
 	 * {@code Milliseconds} class is <b>immutable</b>.
 	 * 
 	 * @author hapi
@@ -348,6 +853,26 @@ public class TimeMachineAgentDelegate
 		 *  @see Milliseconds#isRelative
 		 */
 		private final Long time;
+
+		/**
+		 * {@code true}, if the time is dilated. {@link #time} is then the start time.
+		 */
+		private final boolean isDilated;
+
+		/**
+		 * The system time and the nano time when a dilated time was started.
+		 */
+		private final long baseline;
+		private final long nanoBaseline;
+
+		/**
+		 * The rate of a dilated time as a fixed point number: {@link #rateWhole} is the integer
+		 * part and {@link #rateFraction} the fractional part scaled by 2<sup>63</sup>, which
+		 * lets {@link #dilate(long, long, long)} do without floating point arithmetic.
+		 */
+		private final double rate;
+		private final long rateWhole;
+		private final long rateFraction;
 		
 		
 		/**
@@ -364,6 +889,63 @@ public class TimeMachineAgentDelegate
 		{
 			this.isRelative = isRelative;
 			this.time = time;
+			this.isDilated = false;
+			this.baseline = 0;
+			this.nanoBaseline = 0;
+			this.rate = isRelative ? 1 : 0;
+			this.rateWhole = 0;
+			this.rateFraction = 0;
+		}
+
+		private Milliseconds(long start, double rate, long baseline, long nanoBaseline)
+		{
+			this.isRelative = false;
+			this.time = start;
+			this.isDilated = true;
+			this.baseline = baseline;
+			this.nanoBaseline = nanoBaseline;
+			this.rate = rate;
+			this.rateWhole = (long)Math.floor(rate);
+			double fraction = Math.scalb(rate - rateWhole, 63);
+			this.rateFraction = fraction >= 0x1p63 ? Long.MAX_VALUE : (long)fraction;
+		}
+
+		/**
+		 * Constructs a dilated time which starts now from the given time and advances
+		 * {@code rate} times as fast as the real time.
+		 *
+		 * @param start
+		 * 		Absolute start time in milliseconds.
+		 *
+		 * @param rate
+		 * 		Speed of the time. For example {@code 60} runs an hour in a minute.
+		 *
+		 * @throws IllegalArgumentException
+		 * 		If the rate is negative, too big or not a number.
+		 */
+		public static Milliseconds dilated(long start, double rate)
+		{
+			if(!(rate >= 0 && rate < 0x1p31))
+				throw new IllegalArgumentException("Invalid rate: " + rate);
+			return new Milliseconds(start, rate, System.currentTimeMillis(), System.nanoTime());
+		}
+
+		/**
+		 * Constructs a dilated time which was started at the given system time, possibly in
+		 * another JVM. The nano time baseline is derived from the time elapsed since then.
+		 *
+		 * @param baseline
+		 * 		The system time when the dilated time was started.
+		 *
+		 * @see #dilated(long, double)
+		 */
+		static Milliseconds dilated(long start, double rate, long baseline)
+		{
+			if(!(rate >= 0 && rate < 0x1p31))
+				throw new IllegalArgumentException("Invalid rate: " + rate);
+			long nanoBaseline =
+				System.nanoTime() - (System.currentTimeMillis() - baseline) * 1000000L;
+			return new Milliseconds(start, rate, baseline, nanoBaseline);
 		}
 
 		/**
@@ -393,12 +975,103 @@ public class TimeMachineAgentDelegate
 		{
 			return time;
 		}
+
+		/**
+		 * Turns an absolute time into a time shift which starts from the absolute time now and
+		 * then advances with the real time, instead of freezing the clock.
+		 *
+		 * @return
+		 * 		A relative time shift moving the current time to the absolute time, or this if
+		 * 		the time is relative or dilated.
+		 */
+		public Milliseconds advancing()
+		{
+			if(isRelative || isDilated)
+				return this;
+			return new Milliseconds(true, time - System.currentTimeMillis());
+		}
+
+		/**
+		 * @return
+		 * 		{@code true}, if the time is dilated.
+		 *
+		 * @see #dilated(long, double)
+		 */
+		public boolean isDilated()
+		{
+			return isDilated;
+		}
+
+		/**
+		 * @return
+		 * 		How fast the time advances compared to the real time: {@code 1} for a relative
+		 * 		time, {@code 0} for an absolute time and the rate of a dilated time.
+		 */
+		public double getRate()
+		{
+			return rate;
+		}
+
+		long getBaseline()
+		{
+			return baseline;
+		}
+
+		long getNanoBaseline()
+		{
+			return nanoBaseline;
+		}
+
+		long getRateWhole()
+		{
+			return rateWhole;
+		}
+
+		long getRateFraction()
+		{
+			return rateFraction;
+		}
+
+		/**
+		 * Applies this time shift to a system time value.
+		 *
+		 * @param millis
+		 * 		The original value of {@code System.currentTimeMillis()}.
+		 *
+		 * @return
+		 * 		The shifted time in milliseconds.
+		 */
+		public long apply(long millis)
+		{
+			if(isRelative)
+				return millis + time;
+			if(isDilated)
+				return time + dilate(millis - baseline, rateWhole, rateFraction);
+			return time;
+		}
+
+		/**
+		 * Applies the rate of a dilated time to a {@code System.nanoTime()} value.
+		 */
+		long dilateNanos(long nanos)
+		{
+			return nanoBaseline + dilate(nanos - nanoBaseline, rateWhole, rateFraction);
+		}
+
+		/**
+		 * Multiplies the elapsed time with a fixed point rate. Uses only integer arithmetic
+		 * and does not allocate.
+		 */
+		static long dilate(long elapsed, long rateWhole, long rateFraction)
+		{
+			return elapsed * rateWhole + (Math.multiplyHigh(elapsed, rateFraction) << 1);
+		}
 		
 		/**
 		 * Returns a string representing {@code Milliseconds}. The returned string has one of
 		 * the following formats depending on {@link Milliseconds#isRelative} property:
 		 * 	<ol>
-		 * 		<li>{@code {date[DATE], ms[XX]}}</li> 
+		 * 		<li>{@code {date[DATE], ms[XX]}} or {@code {date[DATE], rate[R], ms[XX]}}</li> 
 		 * 		<li>{@code {y[YY], m[MM], d[DD], h[HH], ms[XX]}}</li>
 		 * 	</ol>
 		 * where:
@@ -437,6 +1110,8 @@ public class TimeMachineAgentDelegate
 			else {
 				Date d = new Date(time);
 				retVal += "date[" + d + "], ";
+				if(isDilated)
+					retVal += "rate[" + rate + "], ";
 			}
 			retVal += "ms[" + time + "]";
 			retVal += "}";
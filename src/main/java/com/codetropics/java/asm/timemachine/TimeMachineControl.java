@@ -0,0 +1,107 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate.Milliseconds;
+
+
+/**
+ * Exposes {@link TimeMachine} as a JMX MBean.
+ */
+public class TimeMachineControl
+	implements
+		TimeMachineControlMBean
+{
+	public static final String OBJECT_NAME = "com.codetropics.timemachine:type=TimeMachine";
+
+
+	/**
+	 * Registers the MBean to the platform MBean server. The registration is done in
+	 * a background thread to keep the JMX initialisation off the JVM startup path.
+	 */
+	static void registerInBackground()
+	{
+		Thread thread =
+			new Thread(
+				() -> {
+					try {
+						ManagementFactory.getPlatformMBeanServer().registerMBean(
+							new TimeMachineControl(),
+							new ObjectName(OBJECT_NAME)
+						);
+					}
+					catch(JMException e) {
+						System.err.println("Couldn't register TimeMachine MBean. " + e);
+					}
+				},
+				"TimeMachine JMX registration"
+			);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Unregisters the MBean if it is registered.
+	 */
+	static void unregister()
+	{
+		try {
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if(server.isRegistered(name))
+				server.unregisterMBean(name);
+		}
+		catch(JMException e) {
+			System.err.println("Couldn't unregister TimeMachine MBean. " + e);
+		}
+	}
+
+	@Override
+	public String getTimeShift()
+	{
+		Milliseconds timeShift = TimeMachine.getTimeShift();
+		return timeShift == null ? null : timeShift.toString();
+	}
+
+	@Override
+	public void setTimeShift(String timeShift)
+	{
+		TimeMachine.setTimeShift(timeShift);
+	}
+
+	@Override
+	public String include(String pattern)
+	{
+		return TimeMachine.include(pattern).toString();
+	}
+
+	@Override
+	public String exclude(String pattern)
+	{
+		return TimeMachine.exclude(pattern).toString();
+	}
+
+	@Override
+	public String removeScopeRule(String pattern)
+	{
+		return TimeMachine.removeScopeRule(pattern).toString();
+	}
+
+	@Override
+	public String getRescopeProgress()
+	{
+		RescopeProgress progress = TimeMachine.getRescopeProgress();
+		return progress == null ? null : progress.toString();
+	}
+
+	@Override
+	public String[] getRescopeFailures()
+	{
+		RescopeProgress progress = TimeMachine.getRescopeProgress();
+		return progress == null ? new String[0] : progress.getFailures().toArray(new String[0]);
+	}
+}
@@ -0,0 +1,65 @@
+package com.codetropics.java.asm.timemachine;
+
+
+/**
+ * JMX management interface of {@link TimeMachine}.
+ *
+ * @see TimeMachineControl
+ */
+public interface TimeMachineControlMBean
+{
+	/**
+	 * @return
+	 * 		The current time shift as described in {@code Milliseconds#toString()}.
+	 */
+	String getTimeShift();
+
+	/**
+	 * Changes the time shift.
+	 *
+	 * @param timeShift
+	 * 		Relative or absolute time shift, for example {@code +2d} or
+	 * 		{@code 2026-12-31T23:59:00}.
+	 */
+	void setTimeShift(String timeShift);
+
+	/**
+	 * Starts instrumenting the classes matching a pattern. Needs {@code rescope=true}.
+	 *
+	 * @param pattern
+	 * 		Class name pattern, e.g. {@code org/quartz/**}.
+	 *
+	 * @return
+	 * 		The progress of the retransformation as described in
+	 * 		{@code RescopeProgress#toString()}.
+	 */
+	String include(String pattern);
+
+	/**
+	 * Stops instrumenting the classes matching a pattern. Needs {@code rescope=true}.
+	 *
+	 * @return
+	 * 		The progress of the retransformation.
+	 */
+	String exclude(String pattern);
+
+	/**
+	 * Removes the include and the exclude rule of a pattern. Needs {@code rescope=true}.
+	 *
+	 * @return
+	 * 		The progress of the retransformation.
+	 */
+	String removeScopeRule(String pattern);
+
+	/**
+	 * @return
+	 * 		The progress of the latest scope change or {@code null} if there is none.
+	 */
+	String getRescopeProgress();
+
+	/**
+	 * @return
+	 * 		The classes of the latest scope change which couldn't be retransformed.
+	 */
+	String[] getRescopeFailures();
+}
@@ -3,7 +3,11 @@ package com.codetropics.java.asm.timemachine;
 
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
+import java.lang.instrument.Instrumentation;
 import java.security.ProtectionDomain;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 import org.objectweb.asm.ClassReader;
@@ -17,7 +21,13 @@ import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate.Millisecond
 
 /**
  * Initialises {@link TimeMachineAdapter} for class manipulation.
+ * <p>
  * 
+ * Classes without any system time queries are left untouched and only the methods having
+ * a system time query are run through {@link TimeMachineAdapter}. All the other methods
+ * and the constant pool are copied as is from the original class file.
+ * 
+ * @see TimeCallScanner
  * @see TimeMachineAdapter
  * @see TimeMachineTransformer#transform(ClassLoader, String, Class, ProtectionDomain, byte[])
  *
@@ -28,13 +38,35 @@ public class TimeMachineTransformer
 	implements
 		ClassFileTransformer
 {
-	private Pattern[] _includePatterns;
-	private Pattern[] _exludePatterns;
+	/**
+	 * Version of the byte code rewrite. Must be changed whenever {@link TimeMachineAdapter}
+	 * produces different byte code for the same input, or the {@link TimeCall}s or the layout
+	 * of the {@link TransformCache} entries change, because the version is part of
+	 * the {@link TransformCache} key.
+	 */
+	static final int VERSION = 4;
+
+	private static final Module AGENT_MODULE = TimeMachineTransformer.class.getModule();
+	private static final int TIME_CALLS = TimeCall.values().length;
+
+	private volatile ClassFilter _filter;
 	private final Milliseconds _timeShift;
+	private final RewriteMode _mode;
+	private final Instrumentation _instrumentation;
+	private ShiftRules _rules;
+	private TransformCache _cache;
+	private Warmup _warmup;
+	private boolean _census;
+	private boolean _virtualClock;
+	private LoadedClassIndex _index;
+	private LoadedClassIndex _rewritten;
+	private boolean _recordable;
+	private final TransformMetrics _metrics = TransformMetrics.INSTANCE;
+	private TimeCallScanner _scanner;
 
 	public TimeMachineTransformer()
 	{
-		_timeShift = null;
+		this(new Pattern[0], new Pattern[0], null);
 	}
 	
 	public TimeMachineTransformer(
@@ -43,9 +75,233 @@ public class TimeMachineTransformer
 		Milliseconds timeShift
 	)
 	{
-		_includePatterns = includePatterns;
-		_exludePatterns = excludePatterns;
+		this(
+			new ClassFilter(ClassNameMatcher.fromPatterns(includePatterns, excludePatterns), false),
+			timeShift
+		);
+	}
+	
+	TimeMachineTransformer(ClassFilter filter, Milliseconds timeShift)
+	{
+		this(filter, timeShift, RewriteMode.CONSTANT, null);
+	}
+	
+	/**
+	 * @param filter
+	 * 		Selects the classes to be instrumented.
+	 * 
+	 * @param timeShift
+	 * 		Time shift for {@link RewriteMode#CONSTANT} mode.
+	 * 
+	 * @param mode
+	 * 		How the time shift is applied.
+	 * 
+	 * @param instrumentation
+	 * 		Used for letting named modules read the agent classes in
+	 * 		{@link RewriteMode#DYNAMIC} mode and with the census. Can be {@code null}
+	 * 		otherwise.
+	 */
+	TimeMachineTransformer(
+		ClassFilter filter,
+		Milliseconds timeShift,
+		RewriteMode mode,
+		Instrumentation instrumentation
+	)
+	{
+		_filter = filter;
 		_timeShift = timeShift;
+		_mode = mode;
+		_instrumentation = instrumentation;
+		_scanner = new TimeCallScanner(TimeCall.rewrittenIn(mode));
+	}
+	
+	/**
+	 * Sets the rules giving classes a time shift of their own. Only for
+	 * {@link RewriteMode#CONSTANT} mode (see {@link AgentOptions#checkMode()}). Must be called
+	 * before the cache is set and the transformer is registered.
+	 *
+	 * @param rules
+	 * 		The rules or {@code null} if every class gets the same time shift.
+	 */
+	void setRules(ShiftRules rules)
+	{
+		_rules = rules;
+	}
+	
+	/**
+	 * Sets a cache for the transformed class files. Must be called before the transformer
+	 * is registered.
+	 * 
+	 * @see #rewriteKey()
+	 */
+	void setCache(TransformCache cache)
+	{
+		_cache = cache;
+	}
+	
+	/**
+	 * Makes the rewritten call sites count their executions (see {@link CallSiteCensus}).
+	 * The classes of the bootstrap class loader are not counted because they cannot see
+	 * the agent classes. The cache is not used for the counted classes because the call site
+	 * IDs are different in every JVM run. Must be called before the transformer is
+	 * registered.
+	 */
+	void setCensus(boolean census)
+	{
+		_census = census;
+		if(census)
+			_metrics.censusEnabled();
+	}
+	
+	/**
+	 * Makes the rewritten classes fast-forward their waits with {@link VirtualClock}. Only for
+	 * {@link RewriteMode#DYNAMIC} mode (see {@link AgentOptions#checkMode()}). Must be called
+	 * before the transformer is registered.
+	 */
+	void setVirtualClock(boolean virtualClock)
+	{
+		_virtualClock = virtualClock;
+		_scanner = new TimeCallScanner(TimeCall.rewrittenIn(_mode, virtualClock));
+	}
+	
+	/**
+	 * Makes the transformer record the names of the classes being loaded for
+	 * {@link Rescoper}. Must be called before the transformer is registered.
+	 */
+	void setIndex(LoadedClassIndex index)
+	{
+		_index = index;
+	}
+	
+	/**
+	 * Makes the transformer record the classes it rewrites while they are being loaded, so
+	 * that {@link Retransformer#undo()} restores them too. Must be called before
+	 * the transformer is registered.
+	 */
+	void setRewritten(LoadedClassIndex rewritten)
+	{
+		_rewritten = rewritten;
+	}
+	
+	/**
+	 * Replaces the filter. The classes already loaded keep their byte code until they are
+	 * retransformed (see {@link Rescoper}).
+	 */
+	void setFilter(ClassFilter filter)
+	{
+		_filter = filter;
+	}
+	
+	ClassFilter getFilter()
+	{
+		return _filter;
+	}
+	
+	/**
+	 * Makes the rewritten classes name their call sites so that they can be recorded and
+	 * replayed (see {@link ClockRecorder}). Only for {@link RewriteMode#DYNAMIC} mode (see
+	 * {@link AgentOptions#checkMode()}). Must be called before the transformer is registered.
+	 */
+	void setRecordable(boolean recordable)
+	{
+		_recordable = recordable;
+	}
+	
+	/**
+	 * Sets the classes rewritten ahead of time. Must be called before the transformer is
+	 * registered.
+	 */
+	void setWarmup(Warmup warmup)
+	{
+		_warmup = warmup;
+	}
+	
+	RewriteMode getMode()
+	{
+		return _mode;
+	}
+	
+	/**
+	 * Returns a string identifying the byte code this transformer produces for a given input.
+	 * In {@link RewriteMode#CONSTANT} mode the time shift and the {@link ShiftRules} are
+	 * embedded into the rewritten byte code as constants and thus they are part of the key.
+	 * In {@link RewriteMode#DYNAMIC} mode the byte code does not depend on the time shift.
+	 */
+	String rewriteKey()
+	{
+		String key =
+			"timemachine-" + VERSION + "/"
+				+ TimeMachineTransformer.class.getPackage().getImplementationVersion() + "/";
+		if(_mode == RewriteMode.DYNAMIC)
+			return
+				key + "dynamic" + (_virtualClock ? "/virtual" : "")
+					+ (_recordable ? "/recordable" : "");
+		if(_mode == RewriteMode.JDK)
+			key += "jdk/";
+		if(_rules != null)
+			key += "rules:" + _rules + "/";
+		if(_timeShift.isDilated())
+			return
+				key + "dilated:" + _timeShift.getTime() + "@" + _timeShift.getBaseline()
+					+ "*" + _timeShift.getRate();
+		return key + (_timeShift.isRelative() ? "relative:" : "absolute:") + _timeShift.getTime();
+	}
+	
+	/**
+	 * Tells whether a loaded class is worth retransforming.
+	 *
+	 * @param classFile
+	 * 		The class file of the class or {@code null} if it is not available, in which case
+	 * 		only the filters are checked.
+	 *
+	 * @return
+	 * 		{@code true} if the class passes the filters, it is not to keep the real time by
+	 * 		a rule and it has system time queries.
+	 */
+	boolean accepts(ClassLoader loader, String className, byte[] classFile)
+	{
+		return accepts(_filter, loader, className, classFile);
+	}
+	
+	/**
+	 * Tells whether a loaded class would be worth retransforming with another filter.
+	 */
+	boolean accepts(ClassFilter filter, ClassLoader loader, String className, byte[] classFile)
+	{
+		return
+			filter.accept(loader, className) &&
+			(_rules == null || _rules.find(className) != ShiftRules.NONE) &&
+			(classFile == null || _scanner.scan(classFile) != null);
+	}
+	
+	@Override
+	public byte[] transform(
+		Module module,
+		ClassLoader loader,
+		String className,
+		Class<?> classBeingRedefined,
+		ProtectionDomain protectionDomain,
+		byte[] classFileBuffer
+	)
+		throws IllegalClassFormatException
+	{
+		byte[] transformed =
+			transform(loader, className, classBeingRedefined, protectionDomain, classFileBuffer);
+		if(
+			transformed != null &&
+			(_mode == RewriteMode.DYNAMIC || _census) &&
+			module.isNamed() &&
+			!module.canRead(AGENT_MODULE)
+		)
+			_instrumentation.redefineModule(
+				module,
+				Collections.singleton(AGENT_MODULE),
+				Collections.emptyMap(),
+				Collections.emptyMap(),
+				Collections.emptySet(),
+				Collections.emptyMap()
+			);
+		return transformed;
 	}
 	
 	public byte[] transform(
@@ -57,47 +313,219 @@ public class TimeMachineTransformer
 	)
 		throws IllegalClassFormatException
 	{
-		for(Pattern p : _exludePatterns)
-			if(p.matcher(className).matches())
-				return null;
+		_metrics.classSeen();
+		if(_index != null && classBeingRedefined == null)
+			_index.loaded(loader, className);
+		if(!_filter.accept(loader, className)) {
+			_metrics.classFiltered();
+			return null;
+		}
 		
-		for(Pattern p : _includePatterns) {
-			if(p.matcher(className).matches()) 
-			{
-				try
-				{
-					ClassReader cr = new ClassReader(classFileBuffer);
-					ClassWriter cw = new ClassWriter(0);
-					//ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
-					//ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
-					cr.accept(
-						new ClassVisitor(Opcodes.ASM9, cw)
-						{
-							@Override
-							public MethodVisitor visitMethod(
-								int access,
-								String name,
-								String desc,
-								String signature,
-								String[] exceptions
-							)
-							{
-								MethodVisitor mv =
-									super.visitMethod(access, name, desc, signature, exceptions);	
-								return new TimeMachineAdapter(_timeShift, mv);
-							} 
-						},
-						0
+		long start = System.nanoTime();
+		try {
+			byte[] transformed = null;
+			int[] callSites = new int[TIME_CALLS];
+			if(_warmup != null)
+				transformed = _warmup.take(className, classFileBuffer, callSites);
+			if(transformed == null || transformed == Warmup.MISS)
+				transformed =
+					rewrite(
+						className,
+						classFileBuffer,
+						_census && loader != null,
+						callSites,
+						null
 					);
+			_metrics.transformed(
+				className,
+				classFileBuffer.length,
+				transformed != null,
+				System.nanoTime() - start
+			);
+			if(transformed != null)
+				_metrics.callSitesRewritten(callSites);
+			if(transformed != null && _rewritten != null && classBeingRedefined == null)
+				_rewritten.loaded(loader, className);
+			return transformed;
+		}
+		catch(RuntimeException | Error e) {
+			_metrics.failed(System.nanoTime() - start);
+			throw e;
+		}
+	}
 	
-					return cw.toByteArray();
-				}
-				catch(Throwable e)
-				{
-					throw new Error("Instrumentation of a class " + className + " failed.", e);
-				}
+	/**
+	 * Rewrites a class without checking the filters.
+	 * 
+	 * @return
+	 * 		The rewritten class file or {@code null} if the class has no system time queries
+	 * 		or it is to keep the real time by a rule.
+	 * 
+	 * @throws Error
+	 * 		If the class cannot be rewritten.
+	 */
+	byte[] rewrite(String className, byte[] classFileBuffer)
+	{
+		return rewrite(className, classFileBuffer, _census, null, null);
+	}
+	
+	/**
+	 * Rewrites a class without checking the filters and counts the rewritten call sites.
+	 * 
+	 * @param callSites
+	 * 		Incremented by the number of the rewritten calls of every {@link TimeCall}, indexed
+	 * 		by the ordinal.
+	 * 
+	 * @return
+	 * 		The rewritten class file or {@code null} if the class has no system time queries
+	 * 		or it is to keep the real time by a rule.
+	 * 
+	 * @throws Error
+	 * 		If the class cannot be rewritten.
+	 */
+	byte[] rewrite(String className, byte[] classFileBuffer, int[] callSites)
+	{
+		return rewrite(className, classFileBuffer, _census, callSites, null);
+	}
+	
+	/**
+	 * Rewrites a class without checking the filters and counts the rewritten call sites of
+	 * every method. Used by {@link RewriteAnalyzer}, which has no cache.
+	 * 
+	 * @param callSites
+	 * 		Incremented by the number of the rewritten calls of every {@link TimeCall}, indexed
+	 * 		by the ordinal.
+	 * 
+	 * @param methodCallSites
+	 * 		Filled with the number of the rewritten calls of every {@link TimeCall} for
+	 * 		the methods with a possible system time query, by the name and the descriptor of
+	 * 		the method.
+	 * 
+	 * @return
+	 * 		The rewritten class file or {@code null} if the class has no system time queries
+	 * 		or it is to keep the real time by a rule.
+	 * 
+	 * @throws Error
+	 * 		If the class cannot be rewritten.
+	 */
+	byte[] rewrite(
+		String className,
+		byte[] classFileBuffer,
+		int[] callSites,
+		Map<String, int[]> methodCallSites
+	)
+	{
+		return rewrite(className, classFileBuffer, _census, callSites, methodCallSites);
+	}
+	
+	private byte[] rewrite(
+		final String className,
+		byte[] classFileBuffer,
+		boolean census,
+		int[] callSites,
+		Map<String, int[]> methodCallSites
+	)
+	{
+		// The rule is resolved once per class and the call sites get its time shift as
+		// constants like they get the global one.
+		Milliseconds rule = _rules == null ? null : _rules.find(className);
+		if(rule == ShiftRules.NONE)
+			return null;
+		final Milliseconds timeShift = rule == null ? _timeShift : rule;
+		
+		BitSet methods = _scanner.scan(classFileBuffer);
+		if(methods == null)
+			return null;
+		
+		byte[] key = null;
+		int[] counts = new int[TIME_CALLS];
+		if(_cache != null && !census) {
+			key = _cache.key(classFileBuffer);
+			byte[] cached = _cache.get(key, counts);
+			if(cached != null) {
+				add(callSites, counts);
+				return cached;
 			}
 		}
-		return null;
+		
+		try
+		{
+			ClassReader cr = new ClassReader(classFileBuffer);
+			// Passing the reader lets ASM copy the constant pool and every method
+			// which is not wrapped by TimeMachineAdapter verbatim.
+			ClassWriter cw = new ClassWriter(cr, 0);
+			cr.accept(
+				new ClassVisitor(Opcodes.ASM9, cw)
+				{
+					private int _methodIndex;
+					private int _version;
+					
+					@Override
+					public void visit(
+						int version,
+						int access,
+						String name,
+						String signature,
+						String superName,
+						String[] interfaces
+					)
+					{
+						_version = version;
+						super.visit(version, access, name, signature, superName, interfaces);
+					}
+					
+					@Override
+					public MethodVisitor visitMethod(
+						int access,
+						String name,
+						String desc,
+						String signature,
+						String[] exceptions
+					)
+					{
+						MethodVisitor mv =
+							super.visitMethod(access, name, desc, signature, exceptions);
+						if(!methods.get(_methodIndex++))
+							return mv;
+						int[] methodCounts = counts;
+						if(methodCallSites != null) {
+							methodCounts = new int[TIME_CALLS];
+							methodCallSites.put(name + desc, methodCounts);
+						}
+						TimeMachineAdapter adapter =
+							new TimeMachineAdapter(timeShift, _mode, _version, mv)
+								.countCallsIn(methodCounts);
+						if(rule != null)
+							adapter.fixedClock();
+						if(_virtualClock)
+							adapter.virtualClock();
+						if(_recordable)
+							adapter.recordable(name + desc);
+						return census ? adapter.census(className, name) : adapter;
+					} 
+				},
+				0
+			);
+
+			byte[] transformed = cw.toByteArray();
+			if(methodCallSites != null)
+				for(int[] methodCounts : methodCallSites.values())
+					add(counts, methodCounts);
+			add(callSites, counts);
+			if(key != null)
+				_cache.put(key, transformed, counts);
+			return transformed;
+		}
+		catch(Throwable e)
+		{
+			throw new Error("Instrumentation of a class " + className + " failed.", e);
+		}
+	}
+	
+	private static void add(int[] callSites, int[] counts)
+	{
+		if(callSites != null)
+			for(int i = 0; i < TIME_CALLS; i++)
+				callSites[i] += counts[i];
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,198 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate.Milliseconds;
+
+
+/**
+ * {@code Timeline} changes the time shift according to a schedule, so that one JVM run can go
+ * through several boundary scenarios without restarts. The schedule is a text file with one
+ * entry per line:
+ * <xmp>
+ * 	# real elapsed time   time shift           [rate]
+ * 	5m                    2025-12-31T23:55:00
+ * 	20m                   2026-12-31T23:55:00
+ * 	30m                   +0s
+ * 	40m                   2027-01-01T00:00:00  rate=60
+ * </xmp>
+ *
+ * The first column is the real time elapsed since the agent was started and the second one
+ * the time shift to switch to, both in the format documented in
+ * {@link TimeMachineAgentDelegate}. An optional {@code rate=<number>} makes the time
+ * dilated from then on (see {@link Milliseconds#dilated(long, double)}). An optional
+ * {@code T} in front of the elapsed time is ignored ({@code T+5m}). Empty lines and lines
+ * starting with {@code #} are ignored.
+ * <p>
+ *
+ * The entries are applied by a daemon thread with {@link TimeMachine}, which needs
+ * {@code mode=dynamic}. Every jump is recorded as a {@link TimeJumpEvent}.
+ */
+final class Timeline
+{
+	private final List<Entry> _entries;
+
+
+	private Timeline(List<Entry> entries)
+	{
+		_entries = entries;
+	}
+
+	/**
+	 * Reads a timeline file.
+	 *
+	 * @throws IOException
+	 * 		If the file cannot be read.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the file has an invalid entry.
+	 */
+	static Timeline read(Path file)
+		throws
+			IOException
+	{
+		return parse(Files.readAllLines(file, StandardCharsets.UTF_8), file.toString());
+	}
+
+	/**
+	 * @param lines
+	 * 		Lines of a timeline file.
+	 *
+	 * @param source
+	 * 		Name of the timeline for the error messages and the events.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If a line is not a valid entry.
+	 */
+	static Timeline parse(List<String> lines, String source)
+	{
+		List<Entry> entries = new ArrayList<>();
+		for(int i = 0; i < lines.size(); i++) {
+			String line = lines.get(i).trim();
+			if(line.isEmpty() || line.startsWith("#"))
+				continue;
+
+			String location = source + ":" + (i + 1);
+			try {
+				Entry entry = parseEntry(line, location);
+				if(!entries.isEmpty() && entry.elapsed < entries.get(entries.size() - 1).elapsed)
+					throw new IllegalArgumentException("The entries are not in time order.");
+				entries.add(entry);
+			}
+			catch(IllegalArgumentException e) {
+				throw new IllegalArgumentException(location + ": " + e.getMessage(), e);
+			}
+		}
+		return new Timeline(Collections.unmodifiableList(entries));
+	}
+
+	private static Entry parseEntry(String line, String location)
+	{
+		String[] columns = line.split("\\s+");
+		if(columns.length < 2 || columns.length > 3)
+			throw new IllegalArgumentException("Expected <elapsed time> <time shift> [rate=<n>]");
+
+		String elapsed = columns[0];
+		if(elapsed.startsWith("T") || elapsed.startsWith("t"))
+			elapsed = elapsed.substring(1);
+		Milliseconds elapsedTime = TimeMachineAgentDelegate.parseTime(elapsed);
+		if(!elapsedTime.isRelative() || elapsedTime.getTime() < 0)
+			throw new IllegalArgumentException("Invalid elapsed time: " + columns[0]);
+
+		Milliseconds timeShift = TimeMachineAgentDelegate.parseTime(columns[1]);
+		double rate = Double.NaN;
+		if(columns.length == 3) {
+			if(!columns[2].startsWith("rate="))
+				throw new IllegalArgumentException("Unknown column: " + columns[2]);
+			try {
+				rate = Double.parseDouble(columns[2].substring(5));
+			}
+			catch(NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid rate: " + columns[2]);
+			}
+			// Fails early on an invalid rate.
+			Milliseconds.dilated(0, rate);
+		}
+		return new Entry(elapsedTime.getTime(), timeShift, rate, location);
+	}
+
+	List<Entry> getEntries()
+	{
+		return _entries;
+	}
+
+	/**
+	 * Starts playing the timeline in a daemon thread. The elapsed times are counted from now.
+	 *
+	 * @return
+	 * 		The started thread, which ends after the last entry.
+	 */
+	Thread start()
+	{
+		long start = System.nanoTime();
+		Thread thread =
+			new Thread(
+				() -> {
+					try {
+						for(Entry entry : _entries) {
+							long wait =
+								start + TimeUnit.MILLISECONDS.toNanos(entry.elapsed)
+									- System.nanoTime();
+							if(wait > 0)
+								TimeUnit.NANOSECONDS.sleep(wait);
+							TimeMachine.setTimeShift(
+								TimeMachine.resolve(entry.timeShift()),
+								entry.location
+							);
+						}
+					}
+					catch(InterruptedException e) {
+						// Stopped.
+					}
+				},
+				"TimeMachine timeline"
+			);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+
+	static final class Entry
+	{
+		final long elapsed;
+		final String location;
+		private final Milliseconds _timeShift;
+		private final double _rate;
+
+		Entry(long elapsed, Milliseconds timeShift, double rate, String location)
+		{
+			this.elapsed = elapsed;
+			this.location = location;
+			_timeShift = timeShift;
+			_rate = rate;
+		}
+
+		/**
+		 * @return
+		 * 		The time shift to switch to. A dilated time starts when this is called.
+		 */
+		Milliseconds timeShift()
+		{
+			if(Double.isNaN(_rate))
+				return _timeShift;
+			long start =
+				_timeShift.isRelative()
+					? _timeShift.apply(System.currentTimeMillis())
+					: _timeShift.getTime();
+			return Milliseconds.dilated(start, _rate);
+		}
+	}
+}
@@ -0,0 +1,485 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+
+/**
+ * {@code TransformCache} stores the class files produced by {@link TimeMachineTransformer}
+ * in a directory so that later JVM runs can skip the byte code manipulation altogether.
+ * <p>
+ *
+ * The key of an entry is a SHA-256 hash over the original class file, the transformer
+ * version and the rewrite configuration (see {@link TimeMachineTransformer#rewriteKey()}).
+ * As long as the rewrite embeds the time shift as a constant, the shift is part of the
+ * rewrite configuration and changing the shift simply leads to new entries.
+ * <p>
+ *
+ * Every entry is a file of its own written atomically with a {@code CRC32} trailer, so
+ * several JVMs can share the directory without any locking: a reader either sees a complete
+ * entry or no entry at all. The number of the rewritten calls of every {@link TimeCall} is
+ * stored with the class file, so that a hit is counted in {@link TransformMetrics} like
+ * a rewrite. A memory mapped {@code index} file records which keys exist and
+ * when they were last used, and the total size of the entries. A lookup of a missing entry
+ * returns without touching the file system, and a hit only reads the entry file. The index is
+ * only a hint; the entry files are always authoritative.
+ * <p>
+ *
+ * The total size of the entries is kept under the configured limit by deleting the least
+ * recently used entries. The eviction runs in a background thread, and the directory is only
+ * walked when the size in the index exceeds the limit or the index is new.
+ */
+final class TransformCache
+{
+	/**
+	 * The hash of the key and the last access time of an entry.
+	 */
+	private static final int SLOT_SIZE = 16;
+	private static final int SLOT_COUNT = 1 << 16;
+	private static final int MAX_PROBES = 16;
+	private static final String INDEX = "index";
+
+	/**
+	 * The index starts with {@link #MAGIC} and the total size of the entries.
+	 */
+	private static final int HEADER_SIZE = 16;
+	private static final int SIZE = 8;
+	private static final long MAGIC = 0x544d2d494e444558L;
+
+	/**
+	 * An entry file ends with the non-zero call site counts, each of which is
+	 * the {@link TimeCall} ordinal as a byte and the count, the number of the counts as
+	 * a byte and the {@code CRC32} of all the preceding bytes.
+	 */
+	private static final int COUNT_SIZE = 5;
+
+	/**
+	 * The last access time in the index is refreshed only if it is older than this, so that
+	 * the JVMs sharing the cache don't keep writing to the same pages.
+	 */
+	private static final long TOUCH_INTERVAL = 60L * 1000;
+
+	/**
+	 * A temporary file younger than this may still be written by {@link #put} of some JVM,
+	 * so the eviction leaves it alone.
+	 */
+	private static final long TMP_GRACE = 60L * 1000;
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private final Path _directory;
+	private final long _maxSize;
+	private final byte[] _rewriteKey;
+	private final MappedByteBuffer _index;
+	private final AtomicBoolean _evicting = new AtomicBoolean();
+
+	/**
+	 * Keeps an eviction from counting the files another one is deleting.
+	 */
+	private final Object _evictionLock = new Object();
+
+
+	/**
+	 * Opens (or creates) a cache directory.
+	 *
+	 * @param directory
+	 * 		The cache directory.
+	 *
+	 * @param maxSize
+	 * 		Maximum total size of the cached class files in bytes.
+	 *
+	 * @param rewriteKey
+	 * 		Transformer version and rewrite configuration. Entries made with a different
+	 * 		rewrite key are never returned.
+	 *
+	 * @throws IOException
+	 * 		If the directory or the index cannot be created.
+	 */
+	TransformCache(Path directory, long maxSize, String rewriteKey)
+		throws
+			IOException
+	{
+		_directory = directory;
+		_maxSize = maxSize;
+		_rewriteKey = rewriteKey.getBytes(StandardCharsets.UTF_8);
+		Files.createDirectories(directory);
+		try(
+			FileChannel channel =
+				FileChannel.open(
+					directory.resolve(INDEX),
+					StandardOpenOption.CREATE,
+					StandardOpenOption.READ,
+					StandardOpenOption.WRITE
+				)
+		) {
+			_index =
+				channel.map(
+					FileChannel.MapMode.READ_WRITE,
+					0,
+					HEADER_SIZE + (long)SLOT_SIZE * SLOT_COUNT
+				);
+		}
+		// A new index, or one of an older layout, doesn't know the size of the entries yet.
+		if(_index.getLong(0) != MAGIC) {
+			for(int i = 0; i < _index.capacity(); i += 8)
+				_index.putLong(i, 0);
+			_index.putLong(0, MAGIC);
+			evictInBackground();
+		}
+		else if(_index.getLong(SIZE) > maxSize)
+			evictInBackground();
+	}
+
+	/**
+	 * @param key
+	 * 		Key of the original class file (see {@link #key(byte[])}).
+	 *
+	 * @param callSites
+	 * 		Incremented by the number of the rewritten calls of every {@link TimeCall} stored
+	 * 		with the entry, indexed by the ordinal. Left as is if there is no entry.
+	 *
+	 * @return
+	 * 		The cached transformed class file or {@code null} if there is none.
+	 */
+	byte[] get(byte[] key, int[] callSites)
+	{
+		int slot = findSlot(hash(key));
+		if(slot < 0)
+			return null;
+
+		try(FileChannel channel = FileChannel.open(file(key), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if(size < 5 || size > Integer.MAX_VALUE)
+				return null;
+			ByteBuffer end = ByteBuffer.allocate(5);
+			while(end.hasRemaining())
+				if(channel.read(end, size - end.remaining()) < 0)
+					return null;
+			int counts = end.get(0) & 0xFF;
+			int classFileLength = (int)size - 5 - counts * COUNT_SIZE;
+			if(classFileLength < 0)
+				return null;
+
+			// Read straight into the returned array.
+			byte[] classFile = new byte[classFileLength];
+			ByteBuffer content = ByteBuffer.wrap(classFile);
+			ByteBuffer trailer = ByteBuffer.allocate(counts * COUNT_SIZE);
+			ByteBuffer[] buffers = { content, trailer };
+			while(content.hasRemaining() || trailer.hasRemaining())
+				if(channel.read(buffers) < 0)
+					return null;
+			CRC32 crc = new CRC32();
+			crc.update(classFile);
+			crc.update(trailer.array());
+			crc.update(end.get(0));
+			if((int)crc.getValue() != end.getInt(1))
+				return null;
+
+			long now = System.currentTimeMillis();
+			if(now - _index.getLong(slot + 8) > TOUCH_INTERVAL)
+				_index.putLong(slot + 8, now);
+
+			trailer.flip();
+			for(int i = 0; i < counts; i++) {
+				int call = trailer.get() & 0xFF;
+				int count = trailer.getInt();
+				if(call < callSites.length)
+					callSites[call] += count;
+			}
+			return classFile;
+		}
+		catch(IOException e) {
+			// Evicted by some other JVM or not readable. Either way, it's a miss.
+			return null;
+		}
+	}
+
+	/**
+	 * Stores a transformed class file. Failures are ignored because the cache is only an
+	 * optimisation.
+	 *
+	 * @param key
+	 * 		Key of the original class file (see {@link #key(byte[])}).
+	 *
+	 * @param transformed
+	 * 		The transformed class file.
+	 *
+	 * @param callSites
+	 * 		The number of the rewritten calls of every {@link TimeCall}, indexed by
+	 * 		the ordinal.
+	 */
+	void put(byte[] key, byte[] transformed, int[] callSites)
+	{
+		Path file = file(key);
+		Path tmp = null;
+		try {
+			Files.createDirectories(file.getParent());
+			tmp = Files.createTempFile(file.getParent(), null, TMP_SUFFIX);
+
+			ByteBuffer trailer = ByteBuffer.allocate(callSites.length * COUNT_SIZE + 5);
+			int counts = 0;
+			for(int i = 0; i < callSites.length; i++)
+				if(callSites[i] != 0) {
+					trailer.put((byte)i).putInt(callSites[i]);
+					counts++;
+				}
+			trailer.put((byte)counts);
+			CRC32 crc = new CRC32();
+			crc.update(transformed);
+			crc.update(trailer.array(), 0, trailer.position());
+			trailer.putInt((int)crc.getValue()).flip();
+			long size = transformed.length + trailer.limit();
+			try(FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+				channel.write(new ByteBuffer[] { ByteBuffer.wrap(transformed), trailer });
+			}
+			try {
+				Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch(AtomicMoveNotSupportedException e) {
+				Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+			tmp = null;
+			addSlot(hash(key));
+
+			if(addSize(size) > _maxSize)
+				evictInBackground();
+		}
+		catch(IOException e) {
+			// Ignored. The class is just transformed again next time.
+		}
+		finally {
+			if(tmp != null)
+				try {
+					Files.deleteIfExists(tmp);
+				}
+				catch(IOException e) {
+					// Ignored.
+				}
+		}
+	}
+
+	/**
+	 * @param classFileBuffer
+	 * 		The original class file.
+	 *
+	 * @return
+	 * 		The key of the class file for the rewrite configuration of this cache.
+	 */
+	byte[] key(byte[] classFileBuffer)
+	{
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(_rewriteKey);
+			digest.update((byte)0);
+			digest.update(classFileBuffer);
+			return digest.digest();
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is always supported.", e);
+		}
+	}
+
+	private Path file(byte[] key)
+	{
+		StringBuilder name = new StringBuilder(32);
+		for(int i = 0; i < 16; i++)
+			name.append(Character.forDigit((key[i] >> 4) & 0xF, 16))
+				.append(Character.forDigit(key[i] & 0xF, 16));
+		return _directory.resolve(name.substring(0, 2)).resolve(name.substring(2));
+	}
+
+	/**
+	 * @return
+	 * 		First 64 bits of the key. Zero is reserved for empty index slots.
+	 */
+	private static long hash(byte[] key)
+	{
+		long hash = ByteBuffer.wrap(key).getLong();
+		return hash == 0 ? 1 : hash;
+	}
+
+	/**
+	 * @return
+	 * 		The offset of the slot of a hash in the index or {@code -1} if there is none.
+	 */
+	private int findSlot(long hash)
+	{
+		int start = (int)(hash & (SLOT_COUNT - 1));
+		for(int i = 0; i < MAX_PROBES; i++) {
+			int slot = HEADER_SIZE + ((start + i) & (SLOT_COUNT - 1)) * SLOT_SIZE;
+			long slotHash = _index.getLong(slot);
+			if(slotHash == hash)
+				return slot;
+			if(slotHash == 0)
+				return -1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Adds a key to the index. If all the probed slots are taken, the first one is reused.
+	 * Concurrent writers (threads or other JVMs) may overwrite each other's slots, which only
+	 * causes cache misses.
+	 */
+	private void addSlot(long hash)
+	{
+		int start = (int)(hash & (SLOT_COUNT - 1));
+		int slot = HEADER_SIZE + start * SLOT_SIZE;
+		for(int i = 0; i < MAX_PROBES; i++) {
+			int probed = HEADER_SIZE + ((start + i) & (SLOT_COUNT - 1)) * SLOT_SIZE;
+			long slotHash = _index.getLong(probed);
+			if(slotHash == hash || slotHash == 0) {
+				slot = probed;
+				break;
+			}
+		}
+		_index.putLong(slot + 8, System.currentTimeMillis());
+		_index.putLong(slot, hash);
+	}
+
+	/**
+	 * Adds to the total size in the index. The JVMs sharing the cache may lose each other's
+	 * updates, which the next eviction corrects.
+	 *
+	 * @return
+	 * 		The new total size.
+	 */
+	private synchronized long addSize(long size)
+	{
+		long total = _index.getLong(SIZE) + size;
+		_index.putLong(SIZE, total);
+		return total;
+	}
+
+	/**
+	 * @return
+	 * 		The last access time of an entry file from the index or, if the index doesn't know
+	 * 		the entry, the modification time of the file.
+	 */
+	private long lastAccess(Path file)
+		throws
+			IOException
+	{
+		String name = file.getParent().getFileName().toString() + file.getFileName();
+		if(name.length() == 32)
+			try {
+				long hash = Long.parseUnsignedLong(name.substring(0, 16), 16);
+				int slot = findSlot(hash == 0 ? 1 : hash);
+				if(slot >= 0)
+					return _index.getLong(slot + 8);
+			}
+			catch(NumberFormatException e) {
+				// Not an entry file.
+			}
+		return Files.getLastModifiedTime(file).toMillis();
+	}
+
+	private void evictInBackground()
+	{
+		if(!_evicting.compareAndSet(false, true))
+			return;
+
+		Thread thread =
+			new Thread(
+				() -> {
+					try {
+						evict();
+					}
+					catch(IOException e) {
+						// Ignored. Tried again when the cache grows.
+					}
+					finally {
+						_evicting.set(false);
+					}
+				},
+				"TimeMachine cache eviction"
+			);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Deletes the least recently used entries until the total size is at most 90% of
+	 * the maximum size, and records the total size in the index. The temporary files younger
+	 * than {@link #TMP_GRACE} are left out.
+	 */
+	void evict()
+		throws
+			IOException
+	{
+		synchronized(_evictionLock) {
+			evictLocked();
+		}
+	}
+
+	private void evictLocked()
+		throws
+			IOException
+	{
+		List<Entry> entries = new ArrayList<>();
+		long total = 0;
+		long now = System.currentTimeMillis();
+		try(Stream<Path> stream = Files.walk(_directory, 2)) {
+			for(Path file : (Iterable<Path>)stream::iterator) {
+				if(!Files.isRegularFile(file) || file.getParent().equals(_directory))
+					continue;
+				try {
+					if(
+						file.getFileName().toString().endsWith(TMP_SUFFIX) &&
+						now - Files.getLastModifiedTime(file).toMillis() < TMP_GRACE
+					)
+						continue;
+					Entry entry = new Entry(file, lastAccess(file), Files.size(file));
+					entries.add(entry);
+					total += entry.size;
+				}
+				catch(NoSuchFileException e) {
+					// Deleted by some other JVM.
+				}
+			}
+		}
+
+		if(total > _maxSize) {
+			entries.sort(Comparator.comparingLong(e -> e.lastAccess));
+			long target = _maxSize / 10 * 9;
+			for(int i = 0; i < entries.size() && total > target; i++) {
+				Files.deleteIfExists(entries.get(i).file);
+				total -= entries.get(i).size;
+			}
+		}
+		synchronized(this) {
+			_index.putLong(SIZE, total);
+		}
+	}
+
+
+	private static final class Entry
+	{
+		final Path file;
+		final long lastAccess;
+		final long size;
+
+		Entry(Path file, long lastAccess, long size)
+		{
+			this.file = file;
+			this.lastAccess = lastAccess;
+			this.size = size;
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package com.codetropics.java.asm.timemachine;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+
+/**
+ * JFR event recorded for every class {@link TimeMachineTransformer} looks into, i.e. every
+ * class passing the filters. Only referred to when {@link TransformMetrics#JFR} is
+ * {@code true}.
+ */
+@Name("com.codetropics.timemachine.Transform")
+@Label("Class Transform")
+@Category("TimeMachine")
+@Description("A class was checked and possibly rewritten by the TimeMachine agent")
+final class TransformEvent
+	extends
+		Event
+{
+	@Label("Class")
+	String className;
+
+	@Label("Class File Size")
+	@DataAmount
+	int classFileSize;
+
+	@Label("Transformed")
+	boolean transformed;
+
+	@Label("Transform Time")
+	@Timespan(Timespan.NANOSECONDS)
+	long transformTime;
+
+
+	static void record(String className, int classFileSize, boolean transformed, long nanos)
+	{
+		TransformEvent event = new TransformEvent();
+		if(event.shouldCommit()) {
+			event.className = className;
+			event.classFileSize = classFileSize;
+			event.transformed = transformed;
+			event.transformTime = nanos;
+			event.commit();
+		}
+	}
+}
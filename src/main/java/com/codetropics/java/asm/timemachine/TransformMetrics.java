@@ -0,0 +1,212 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+
+/**
+ * {@code TransformMetrics} counts what {@link TimeMachineTransformer} does. The counters are
+ * {@link LongAdder}s, which are striped per thread under contention, so parallel class loading
+ * does not contend on them. Every transform of a class passing the filters is also recorded as
+ * a {@link TransformEvent} in a running JFR recording.
+ * <p>
+ *
+ * The counters are always kept. They are registered as the JMX MBean {@value #OBJECT_NAME}
+ * only with the {@code metrics=true} option, because registering an MBean initialises JMX,
+ * which some application servers want to do themselves.
+ */
+public final class TransformMetrics
+	implements
+		TransformMetricsMXBean
+{
+	public static final String OBJECT_NAME = "com.codetropics.timemachine:type=TransformMetrics";
+
+	/**
+	 * The counters of every transformer.
+	 */
+	static final TransformMetrics INSTANCE = new TransformMetrics();
+
+	/**
+	 * {@code true} if the {@code jdk.jfr} module is present. The JFR event classes must not be
+	 * touched otherwise.
+	 */
+	static final boolean JFR = ModuleLayer.boot().findModule("jdk.jfr").isPresent();
+
+	static final int HISTOGRAM_BUCKETS = 24;
+
+	private final LongAdder _seen = new LongAdder();
+	private final LongAdder _filtered = new LongAdder();
+	private final LongAdder _unchanged = new LongAdder();
+	private final LongAdder _transformed = new LongAdder();
+	private final LongAdder _failures = new LongAdder();
+	private final LongAdder _nanos = new LongAdder();
+	private final LongAdder[] _callSites = newAdders(TimeCall.values().length);
+	private final LongAdder[] _histogram = newAdders(HISTOGRAM_BUCKETS);
+	private volatile boolean _census;
+
+
+	TransformMetrics()
+	{
+	}
+
+	private static LongAdder[] newAdders(int n)
+	{
+		LongAdder[] adders = new LongAdder[n];
+		for(int i = 0; i < n; i++)
+			adders[i] = new LongAdder();
+		return adders;
+	}
+
+	/**
+	 * Registers the MBean to the platform MBean server in a background thread.
+	 */
+	static void registerInBackground()
+	{
+		Thread thread =
+			new Thread(
+				() -> {
+					try {
+						ManagementFactory.getPlatformMBeanServer().registerMBean(
+							INSTANCE,
+							new ObjectName(OBJECT_NAME)
+						);
+					}
+					catch(JMException e) {
+						System.err.println("Couldn't register TimeMachine metrics MBean. " + e);
+					}
+				},
+				"TimeMachine JMX registration"
+			);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	void classSeen()
+	{
+		_seen.increment();
+	}
+
+	void classFiltered()
+	{
+		_filtered.increment();
+	}
+
+	/**
+	 * Records a transform of a class which passed the filters.
+	 *
+	 * @param transformed
+	 * 		{@code true} if the class was changed.
+	 */
+	void transformed(String className, int classFileSize, boolean transformed, long nanos)
+	{
+		(transformed ? _transformed : _unchanged).increment();
+		time(nanos);
+		if(JFR)
+			TransformEvent.record(className, classFileSize, transformed, nanos);
+	}
+
+	void failed(long nanos)
+	{
+		_failures.increment();
+		time(nanos);
+	}
+
+	/**
+	 * @param counts
+	 * 		The rewritten calls of a class by {@link TimeCall#ordinal()}.
+	 */
+	void callSitesRewritten(int[] counts)
+	{
+		for(int i = 0; i < counts.length; i++)
+			if(counts[i] != 0)
+				_callSites[i].add(counts[i]);
+	}
+
+	private void time(long nanos)
+	{
+		_nanos.add(nanos);
+		_histogram[bucket(nanos)].increment();
+	}
+
+	/**
+	 * @see TransformMetricsMXBean#getTransformTimeHistogram()
+	 */
+	static int bucket(long nanos)
+	{
+		long micros = Math.max(0, nanos / 1000);
+		return Math.min(HISTOGRAM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+	}
+
+	@Override
+	public long getClassesSeen()
+	{
+		return _seen.sum();
+	}
+
+	@Override
+	public long getClassesFiltered()
+	{
+		return _filtered.sum();
+	}
+
+	@Override
+	public long getClassesUnchanged()
+	{
+		return _unchanged.sum();
+	}
+
+	@Override
+	public long getClassesTransformed()
+	{
+		return _transformed.sum();
+	}
+
+	@Override
+	public long getTransformFailures()
+	{
+		return _failures.sum();
+	}
+
+	@Override
+	public Map<String, Long> getCallSitesRewritten()
+	{
+		Map<String, Long> callSites = new LinkedHashMap<>();
+		for(TimeCall call : TimeCall.values()) {
+			long count = _callSites[call.ordinal()].sum();
+			if(count != 0)
+				callSites.put(call.name(), count);
+		}
+		return callSites;
+	}
+
+	@Override
+	public long getTransformNanos()
+	{
+		return _nanos.sum();
+	}
+
+	@Override
+	public long[] getTransformTimeHistogram()
+	{
+		long[] histogram = new long[HISTOGRAM_BUCKETS];
+		for(int i = 0; i < HISTOGRAM_BUCKETS; i++)
+			histogram[i] = _histogram[i].sum();
+		return histogram;
+	}
+
+	@Override
+	public String getCallSiteCensus()
+	{
+		return _census ? CallSiteCensus.report() : null;
+	}
+
+	void censusEnabled()
+	{
+		_census = true;
+	}
+}
@@ -0,0 +1,69 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.util.Map;
+
+
+/**
+ * JMX management interface of {@link TransformMetrics}.
+ */
+public interface TransformMetricsMXBean
+{
+	/**
+	 * @return
+	 * 		The number of classes given to the transformers.
+	 */
+	long getClassesSeen();
+
+	/**
+	 * @return
+	 * 		The number of classes skipped by the include and exclude rules or because they
+	 * 		are never instrumented (see {@link ClassFilter}).
+	 */
+	long getClassesFiltered();
+
+	/**
+	 * @return
+	 * 		The number of classes left untouched because they have no system time queries.
+	 */
+	long getClassesUnchanged();
+
+	/**
+	 * @return
+	 * 		The number of classes transformed.
+	 */
+	long getClassesTransformed();
+
+	/**
+	 * @return
+	 * 		The number of classes which could not be transformed.
+	 */
+	long getTransformFailures();
+
+	/**
+	 * @return
+	 * 		The number of the rewritten call sites by the called method, e.g.
+	 * 		{@code CURRENT_TIME_MILLIS}, in the classes transformed while being loaded or
+	 * 		retransformed. Classes taken from the cache or from the warm-up are counted too.
+	 */
+	Map<String, Long> getCallSitesRewritten();
+
+	/**
+	 * @return
+	 * 		The total time spent in the transformers on the class loading threads.
+	 */
+	long getTransformNanos();
+
+	/**
+	 * @return
+	 * 		The transform times of the classes passing the filters. The element {@code i}
+	 * 		counts the transforms which took less than {@code 2^i} microseconds and at least
+	 * 		{@code 2^(i-1)}; the last element counts all the longer ones.
+	 */
+	long[] getTransformTimeHistogram();
+
+	/**
+	 * @return
+	 * 		The report of {@link CallSiteCensus} or {@code null} if the census is not enabled.
+	 */
+	String getCallSiteCensus();
+}
@@ -0,0 +1,475 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.time.Duration;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * {@code VirtualClock} fast-forwards the time instead of waiting for it. With
+ * {@code virtual=skip} or {@code virtual=idle}, {@link TimeMachineAdapter} replaces
+ * {@code Thread.sleep}, {@code TimeUnit.sleep}, {@code LockSupport.parkNanos},
+ * {@code LockSupport.parkUntil} and {@code Object.wait(long)} in the instrumented classes with
+ * the methods of this class, which move the clock forward by the time a thread was to wait.
+ * The skipped time is added to every {@code currentTimeMillis} and {@code nanoTime} value
+ * seen by the instrumented classes (see {@link ClockCallSites}), so the clock stays consistent
+ * with the skipped waits.
+ * <p>
+ *
+ * There are two policies:
+ * 	<ul>
+ * 		<li>
+ * 			{@link Policy#SKIP} moves the clock to the end of the wait and returns at once.
+ * 			Threads waiting at the same time share the skipped time: two threads sleeping
+ * 			a second each move the clock by one second. A thread polling in a loop with
+ * 			a sleep makes the time race ahead while it waits for other threads.
+ * 		</li>
+ * 		<li>
+ * 			{@link Policy#IDLE} is a discrete-event simulation. The waiting threads block
+ * 			until the clock reaches the end of their wait. The clock jumps to the earliest
+ * 			end of a wait whenever every thread {@link #register() registered} with
+ * 			the clock is waiting with a timeout. Until then the time runs at the real speed.
+ * 			Without any registered threads, every wait fast-forwards the clock in order.
+ * 		</li>
+ * 	</ul>
+ *
+ * The JDK classes are not instrumented, so waits inside the JDK, such as the delays of
+ * {@code ScheduledThreadPoolExecutor}, run at the real speed. {@code wait(long)} is only
+ * recognised when it is called on a reference of the type {@code Object}. Waits longer than
+ * {@link #FOREVER_NANOS}, such as {@code Thread.sleep(Long.MAX_VALUE)}, mean "until woken up"
+ * and are waited for real, so the clock never jumps to the end of time.
+ * <p>
+ *
+ * This class must be public because the instrumented classes refer to it.
+ */
+public final class VirtualClock
+{
+	/**
+	 * How long an {@code Object.wait(long)} blocks at most before the caller rechecks its
+	 * condition against the virtual clock with {@link Policy#IDLE}. The waiting thread holds
+	 * the monitor of the object, so it cannot be notified by the clock.
+	 */
+	private static final long WAIT_SLICE_MILLIS = 10;
+
+	/**
+	 * Waits longer than this are waited for real. Fast-forwarding through them would leave no
+	 * room in the nano time and the milliseconds after the skipped time is added.
+	 */
+	static final long FOREVER_NANOS = TimeUnit.DAYS.toNanos(365);
+
+	/**
+	 * How the waits are fast-forwarded.
+	 */
+	enum Policy
+	{
+		SKIP,
+		IDLE;
+
+		/**
+		 * @throws IllegalArgumentException
+		 * 		If the name is not {@code skip} or {@code idle}.
+		 */
+		static Policy parse(String name)
+		{
+			try {
+				return valueOf(name.trim().toUpperCase());
+			}
+			catch(IllegalArgumentException e) {
+				throw new IllegalArgumentException("Unknown virtual clock policy: " + name);
+			}
+		}
+	}
+
+	private static final AtomicLong _skipped = new AtomicLong();
+	private static volatile Policy _policy;
+
+	private static final Object LOCK = new Object();
+	private static final PriorityQueue<Sleeper> _sleepers =
+		new PriorityQueue<>((a, b) -> Long.compare(a.deadline, b.deadline));
+	private static final ThreadLocal<Boolean> _registered = new ThreadLocal<>();
+	private static int _registeredCount;
+	private static int _idleCount;
+
+
+	private VirtualClock()
+	{
+	}
+
+	/**
+	 * Starts or stops fast-forwarding. Stopping resets the skipped time.
+	 *
+	 * @param policy
+	 * 		The policy or {@code null} to wait for real.
+	 */
+	static void install(Policy policy)
+	{
+		synchronized(LOCK) {
+			_policy = policy;
+			if(policy == null)
+				_skipped.set(0);
+			ClockCallSites.setVirtualClock(policy != null);
+			LOCK.notifyAll();
+		}
+	}
+
+	static Policy getPolicy()
+	{
+		return _policy;
+	}
+
+	/**
+	 * Registers the current thread as a participant of {@link Policy#IDLE}. The clock jumps
+	 * only when every registered thread is waiting with a timeout. A registered thread must
+	 * {@link #unregister()} itself before it ends.
+	 */
+	public static void register()
+	{
+		if(_registered.get() != null)
+			return;
+		_registered.set(Boolean.TRUE);
+		synchronized(LOCK) {
+			_registeredCount++;
+		}
+	}
+
+	/**
+	 * Unregisters the current thread.
+	 *
+	 * @see #register()
+	 */
+	public static void unregister()
+	{
+		if(_registered.get() == null)
+			return;
+		_registered.remove();
+		synchronized(LOCK) {
+			_registeredCount--;
+			advanceIfIdle();
+		}
+	}
+
+	/**
+	 * @return
+	 * 		The time the clock has been fast-forwarded in nanoseconds.
+	 */
+	public static long skipped()
+	{
+		return _skipped.get();
+	}
+
+	/**
+	 * Adds the skipped time to a {@code System.currentTimeMillis()} value.
+	 */
+	static long millis(long millis)
+	{
+		return millis + _skipped.get() / 1000000L;
+	}
+
+	/**
+	 * Adds the skipped time to a {@code System.nanoTime()} value.
+	 */
+	static long nanos(long nanos)
+	{
+		return nanos + _skipped.get();
+	}
+
+	/**
+	 * Replaces {@link Thread#sleep(long)}.
+	 */
+	public static void sleep(long millis)
+		throws
+			InterruptedException
+	{
+		if(millis < 0)
+			throw new IllegalArgumentException("timeout value is negative");
+		sleepNanos(TimeUnit.MILLISECONDS.toNanos(millis));
+	}
+
+	/**
+	 * Replaces {@link Thread#sleep(long, int)}.
+	 */
+	public static void sleep(long millis, int nanos)
+		throws
+			InterruptedException
+	{
+		if(millis < 0)
+			throw new IllegalArgumentException("timeout value is negative");
+		if(nanos < 0 || nanos > 999999)
+			throw new IllegalArgumentException("nanosecond timeout value out of range");
+		sleepNanos(saturatedAdd(TimeUnit.MILLISECONDS.toNanos(millis), nanos));
+	}
+
+	/**
+	 * Replaces {@code Thread.sleep(Duration)}.
+	 */
+	public static void sleep(Duration duration)
+		throws
+			InterruptedException
+	{
+		long nanos;
+		try {
+			nanos = duration.toNanos();
+		}
+		catch(ArithmeticException e) {
+			nanos = duration.isNegative() ? 0 : Long.MAX_VALUE;
+		}
+		sleepNanos(nanos);
+	}
+
+	/**
+	 * Replaces {@link TimeUnit#sleep(long)}.
+	 */
+	public static void sleep(TimeUnit unit, long timeout)
+		throws
+			InterruptedException
+	{
+		if(timeout > 0)
+			sleepNanos(unit.toNanos(timeout));
+	}
+
+	/**
+	 * Replaces {@link LockSupport#parkNanos(long)}.
+	 */
+	public static void parkNanos(long nanos)
+	{
+		parkNanos(null, nanos);
+	}
+
+	/**
+	 * Replaces {@link LockSupport#parkNanos(Object, long)}. Like the original, this may return
+	 * before the time is up, and it returns when the thread is unparked or interrupted.
+	 */
+	public static void parkNanos(Object blocker, long nanos)
+	{
+		if(nanos <= 0)
+			return;
+		Policy policy = _policy;
+		if(policy == null || nanos > FOREVER_NANOS)
+			LockSupport.parkNanos(blocker, nanos);
+		else if(policy == Policy.SKIP)
+			skip(nanos);
+		else {
+			Sleeper sleeper = enter(nanos, true);
+			try {
+				long remaining = sleeper.deadline - now();
+				if(remaining > 0)
+					LockSupport.parkNanos(blocker, remaining);
+			}
+			finally {
+				exit(sleeper);
+			}
+		}
+	}
+
+	/**
+	 * Replaces {@link LockSupport#parkUntil(long)}.
+	 */
+	public static void parkUntil(long deadline)
+	{
+		parkUntil(null, deadline);
+	}
+
+	/**
+	 * Replaces {@link LockSupport#parkUntil(Object, long)}. The deadline is compared with
+	 * the time seen by the instrumented classes.
+	 */
+	public static void parkUntil(Object blocker, long deadline)
+	{
+		long remaining = deadline - ClockCallSites.millis(System.currentTimeMillis());
+		if(remaining > 0)
+			parkNanos(blocker, TimeUnit.MILLISECONDS.toNanos(remaining));
+	}
+
+	/**
+	 * Replaces {@link Object#wait(long)}. Like the original, this may return before the time
+	 * is up. With {@link Policy#SKIP} the monitor is released for a millisecond to let other
+	 * threads notify the waiting thread.
+	 */
+	public static void wait(Object monitor, long millis)
+		throws
+			InterruptedException
+	{
+		Policy policy = _policy;
+		if(millis <= 0 || policy == null || TimeUnit.MILLISECONDS.toNanos(millis) > FOREVER_NANOS) {
+			monitor.wait(millis);
+			return;
+		}
+		if(!Thread.holdsLock(monitor))
+			throw new IllegalMonitorStateException("current thread is not owner");
+		if(Thread.interrupted())
+			throw new InterruptedException();
+
+		long nanos = TimeUnit.MILLISECONDS.toNanos(millis);
+		if(policy == Policy.SKIP) {
+			skip(nanos);
+			monitor.wait(1);
+			return;
+		}
+		Sleeper sleeper = enter(nanos, false);
+		try {
+			long remaining = TimeUnit.NANOSECONDS.toMillis(sleeper.deadline - now()) + 1;
+			if(remaining > 0)
+				monitor.wait(Math.min(remaining, WAIT_SLICE_MILLIS));
+		}
+		finally {
+			exit(sleeper);
+		}
+	}
+
+	/**
+	 * Replaces {@link Object#wait(long, int)}.
+	 */
+	public static void wait(Object monitor, long millis, int nanos)
+		throws
+			InterruptedException
+	{
+		if(millis < 0)
+			throw new IllegalArgumentException("timeout value is negative");
+		if(nanos < 0 || nanos > 999999)
+			throw new IllegalArgumentException("nanosecond timeout value out of range");
+		wait(monitor, nanos > 0 && millis < Long.MAX_VALUE ? millis + 1 : millis);
+	}
+
+	private static void sleepNanos(long nanos)
+		throws
+			InterruptedException
+	{
+		Policy policy = _policy;
+		if(policy == null || nanos > FOREVER_NANOS) {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+			return;
+		}
+		if(Thread.interrupted())
+			throw new InterruptedException("sleep interrupted");
+		if(nanos <= 0)
+			return;
+
+		if(policy == Policy.SKIP) {
+			skip(nanos);
+			Thread.yield();
+			return;
+		}
+		Sleeper sleeper = enter(nanos, false);
+		try {
+			synchronized(LOCK) {
+				for(long remaining; (remaining = sleeper.deadline - now()) > 0; )
+					LOCK.wait(remaining / 1000000L, (int)(remaining % 1000000L));
+			}
+		}
+		finally {
+			exit(sleeper);
+		}
+	}
+
+	/**
+	 * @return
+	 * 		The virtual nano time.
+	 */
+	private static long now()
+	{
+		return System.nanoTime() + _skipped.get();
+	}
+
+	/**
+	 * Moves the clock forward by the given time with {@link Policy#SKIP}. The real time that
+	 * passes while the clock is moved is not subtracted, so the clock always moves at least
+	 * as much as a real wait would.
+	 */
+	private static void skip(long nanos)
+	{
+		long skipped = _skipped.get();
+		_skipped.accumulateAndGet(saturatedAdd(skipped, nanos), Math::max);
+	}
+
+	/**
+	 * Moves the clock forward to a virtual nano time unless it is there already.
+	 */
+	private static void advance(long deadline)
+	{
+		long skipped = deadline - System.nanoTime();
+		_skipped.accumulateAndGet(skipped, Math::max);
+	}
+
+	/**
+	 * Starts a wait with {@link Policy#IDLE}.
+	 */
+	private static Sleeper enter(long nanos, boolean parked)
+	{
+		Sleeper sleeper =
+			new Sleeper(
+				Thread.currentThread(),
+				saturatedAdd(now(), nanos),
+				_registered.get() != null,
+				parked
+			);
+		synchronized(LOCK) {
+			_sleepers.add(sleeper);
+			if(sleeper.registered)
+				_idleCount++;
+			advanceIfIdle();
+		}
+		return sleeper;
+	}
+
+	/**
+	 * Ends a wait with {@link Policy#IDLE}.
+	 */
+	private static void exit(Sleeper sleeper)
+	{
+		synchronized(LOCK) {
+			_sleepers.remove(sleeper);
+			if(sleeper.registered)
+				_idleCount--;
+			advanceIfIdle();
+		}
+	}
+
+	/**
+	 * Moves the clock to the earliest end of a wait and wakes up the thread if every
+	 * registered thread is waiting. Nothing is done while a thread whose time is up has not
+	 * woken up yet, because it is not idle any more.
+	 */
+	private static void advanceIfIdle()
+	{
+		Sleeper next = _sleepers.peek();
+		if(_policy != Policy.IDLE || next == null || _idleCount < _registeredCount)
+			return;
+		if(next.deadline - now() <= 0)
+			return;
+		advance(next.deadline);
+		long now = now();
+		for(Sleeper sleeper : _sleepers)
+			if(sleeper.parked && sleeper.deadline - now <= 0)
+				LockSupport.unpark(sleeper.thread);
+		LOCK.notifyAll();
+	}
+
+	private static long saturatedAdd(long a, long b)
+	{
+		long sum = a + b;
+		return ((a ^ sum) & (b ^ sum)) < 0 ? Long.MAX_VALUE : sum;
+	}
+
+
+	private static final class Sleeper
+	{
+		final Thread thread;
+		final long deadline;
+		final boolean registered;
+
+		/**
+		 * {@code true} if the thread is parked and has to be unparked instead of notified.
+		 */
+		final boolean parked;
+
+		Sleeper(Thread thread, long deadline, boolean registered, boolean parked)
+		{
+			this.thread = thread;
+			this.deadline = deadline;
+			this.registered = registered;
+			this.parked = parked;
+		}
+	}
+}
@@ -0,0 +1,325 @@
+package com.codetropics.java.asm.timemachine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+
+/**
+ * {@code Warmup} rewrites the classes of the application class path ahead of time while
+ * the JVM is starting. Class loading is often single threaded during startup, so the other
+ * cores are used for running {@link TimeMachineTransformer} on the classes before they are
+ * loaded, and the transformation on the class loading thread becomes a map lookup.
+ * <p>
+ *
+ * The jar files are read with {@link MappedJar} by a {@link ForkJoinPool} of daemon threads.
+ * Every jar is split into slices of entries, so that a few large jars are spread over all
+ * the threads too. Only the rewritten class files are kept, and a class file is handed out
+ * once, after which it is dropped from the map. A class is only taken from the map if its
+ * class file has the same size and {@code CRC32} as the jar entry, so a class of the same
+ * name from another source is transformed as usual. Directories and nested jars on
+ * the class path are left to the normal path.
+ * <p>
+ *
+ * Classes which have been loaded already are not prepared, and the prepared class files are
+ * limited to {@link #MAX_BYTES}. Startup is considered over a grace period after the warm-up
+ * has finished; the class files that have not been taken by then are dropped.
+ */
+final class Warmup
+{
+	/**
+	 * Returned by {@link #take(String, byte[], int[])} when the class has not been rewritten
+	 * ahead of time.
+	 */
+	static final byte[] MISS = new byte[0];
+
+	/**
+	 * Time after the warm-up after which the classes not loaded yet are dropped.
+	 */
+	static final long GRACE_MILLIS = 10L * 1000;
+
+	private static final long MAX_BYTES = 64L * 1024 * 1024;
+	private static final int SLICE = 256;
+	private static final String CLASS_SUFFIX = ".class";
+
+	private final TimeMachineTransformer _transformer;
+	private final Map<String, Prepared> _prepared = new ConcurrentHashMap<>();
+	private final Set<String> _loaded = ConcurrentHashMap.newKeySet();
+	private final AtomicLong _bytes = new AtomicLong();
+	private volatile boolean _closed;
+
+
+	Warmup(TimeMachineTransformer transformer)
+	{
+		_transformer = transformer;
+	}
+
+	/**
+	 * @return
+	 * 		The jar files of the {@code java.class.path} system property.
+	 */
+	static List<Path> classPathJars()
+	{
+		List<Path> jars = new ArrayList<>();
+		String classPath = System.getProperty("java.class.path", "");
+		for(String element : classPath.split(File.pathSeparator)) {
+			if(!element.toLowerCase().endsWith(".jar"))
+				continue;
+			Path jar = Paths.get(element);
+			if(Files.isRegularFile(jar))
+				jars.add(jar);
+		}
+		return jars;
+	}
+
+	/**
+	 * Starts rewriting the classes of the given jar files in the background.
+	 *
+	 * @param parallelism
+	 * 		Number of the threads.
+	 *
+	 * @return
+	 * 		The task, which completes when all the jars have been processed.
+	 */
+	ForkJoinTask<?> start(List<Path> jars, int parallelism)
+	{
+		return start(jars, parallelism, GRACE_MILLIS);
+	}
+
+	/**
+	 * @param graceMillis
+	 * 		Time after the warm-up after which the class files not taken are dropped.
+	 */
+	ForkJoinTask<?> start(List<Path> jars, int parallelism, long graceMillis)
+	{
+		ForkJoinPool pool =
+			new ForkJoinPool(
+				parallelism,
+				p -> {
+					ForkJoinWorkerThread thread =
+						ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+					thread.setName("TimeMachine warm-up " + thread.getPoolIndex());
+					thread.setDaemon(true);
+					return thread;
+				},
+				null,
+				false
+			);
+		ForkJoinTask<?> task =
+			pool.submit(
+				new RecursiveAction()
+				{
+					@Override
+					protected void compute()
+					{
+						List<JarTask> tasks = new ArrayList<>(jars.size());
+						for(Path jar : jars)
+							tasks.add(new JarTask(jar));
+						invokeAll(tasks);
+					}
+				}
+			);
+		pool.shutdown();
+
+		Thread expiry =
+			new Thread(
+				() -> {
+					try {
+						task.quietlyJoin();
+						TimeUnit.MILLISECONDS.sleep(graceMillis);
+					}
+					catch(InterruptedException e) {
+						// Dropped right away.
+					}
+					close();
+				},
+				"TimeMachine warm-up expiry"
+			);
+		expiry.setDaemon(true);
+		expiry.start();
+		return task;
+	}
+
+	/**
+	 * Takes the rewritten class file prepared ahead of time.
+	 *
+	 * @param callSites
+	 * 		Incremented by the number of the rewritten calls of every {@link TimeCall} of
+	 * 		the class, indexed by the ordinal. Left as is on a miss.
+	 *
+	 * @return
+	 * 		The rewritten class file or {@link #MISS} if the class has not been prepared.
+	 */
+	byte[] take(String className, byte[] classFileBuffer, int[] callSites)
+	{
+		if(_closed)
+			return MISS;
+		// Marked before the lookup, so that a slice preparing the class concurrently either
+		// hands it out here or sees the mark and drops it.
+		_loaded.add(className);
+		Prepared prepared = _prepared.remove(className);
+		if(prepared == null)
+			return MISS;
+		_bytes.addAndGet(-prepared.transformed.length);
+		if(prepared.size != classFileBuffer.length)
+			return MISS;
+		CRC32 crc = new CRC32();
+		crc.update(classFileBuffer);
+		if((int)crc.getValue() != prepared.crc)
+			return MISS;
+		for(int i = 0; i < callSites.length; i++)
+			callSites[i] += prepared.callSites[i];
+		return prepared.transformed;
+	}
+
+	int size()
+	{
+		return _prepared.size();
+	}
+
+	/**
+	 * Drops the class files which have not been taken and stops preparing classes.
+	 */
+	void close()
+	{
+		_closed = true;
+		_prepared.clear();
+		_loaded.clear();
+		_bytes.set(0);
+	}
+
+	private void prepare(String className, Prepared prepared)
+	{
+		int length = prepared.transformed.length;
+		if(_bytes.addAndGet(length) > MAX_BYTES) {
+			_bytes.addAndGet(-length);
+			return;
+		}
+		if(_prepared.putIfAbsent(className, prepared) != null)
+			_bytes.addAndGet(-length);
+		else if(_loaded.contains(className) || _closed) {
+			// Loaded, or startup ended, while the class was being rewritten.
+			if(_prepared.remove(className, prepared))
+				_bytes.addAndGet(-length);
+		}
+	}
+
+
+	private final class JarTask
+		extends
+			RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final Path _jar;
+
+		JarTask(Path jar)
+		{
+			_jar = jar;
+		}
+
+		@Override
+		protected void compute()
+		{
+			MappedJar jar;
+			try {
+				jar = MappedJar.open(_jar);
+			}
+			catch(IOException e) {
+				// The class loader reads the jar as usual.
+				return;
+			}
+
+			List<MappedJar.Entry> classes = new ArrayList<>();
+			for(MappedJar.Entry entry : jar.getEntries())
+				if(
+					entry.name.endsWith(CLASS_SUFFIX) &&
+					!entry.name.startsWith("META-INF/") &&
+					entry.size > 0
+				)
+					classes.add(entry);
+
+			List<SliceTask> slices = new ArrayList<>();
+			for(int i = 0; i < classes.size(); i += SLICE)
+				slices.add(
+					new SliceTask(jar, classes.subList(i, Math.min(i + SLICE, classes.size())))
+				);
+			invokeAll(slices);
+		}
+	}
+
+	private final class SliceTask
+		extends
+			RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final MappedJar _jar;
+		private final List<MappedJar.Entry> _entries;
+
+		SliceTask(MappedJar jar, List<MappedJar.Entry> entries)
+		{
+			_jar = jar;
+			_entries = entries;
+		}
+
+		@Override
+		protected void compute()
+		{
+			ClassLoader loader = ClassLoader.getSystemClassLoader();
+			for(MappedJar.Entry entry : _entries) {
+				String className =
+					entry.name.substring(0, entry.name.length() - CLASS_SUFFIX.length());
+				if(_closed)
+					return;
+				if(_loaded.contains(className) || !_transformer.accepts(loader, className, null))
+					continue;
+				try {
+					int[] callSites = new int[TimeCall.values().length];
+					byte[] transformed =
+						_transformer.rewrite(className, _jar.read(entry), callSites);
+					if(transformed != null)
+						prepare(
+							className,
+							new Prepared(entry.size, entry.crc, transformed, callSites)
+						);
+				}
+				catch(IOException | RuntimeException | Error e) {
+					// Left to the class loading thread, which reports the failure if the class
+					// is ever loaded.
+				}
+			}
+		}
+	}
+
+
+	private static final class Prepared
+	{
+		final int size;
+		final int crc;
+		final byte[] transformed;
+		final int[] callSites;
+
+		Prepared(int size, int crc, byte[] transformed, int[] callSites)
+		{
+			this.size = size;
+			this.crc = crc;
+			this.transformed = transformed;
+			this.callSites = callSites;
+		}
+	}
+}
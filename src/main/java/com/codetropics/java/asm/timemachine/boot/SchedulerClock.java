@@ -0,0 +1,173 @@
+package com.codetropics.java.asm.timemachine.boot;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * {@code SchedulerClock} is the clock of the JDK schedulers hooked by
+ * {@code SchedulerHook}. The hooked classes call it instead of {@code System.nanoTime()},
+ * {@code System.currentTimeMillis()} and their waits for the next deadline.
+ * <p>
+ *
+ * This class is loaded by the bootstrap class loader, because the hooked classes are, and so
+ * it must not refer to any other class of the agent. The agent keeps the offset of the clock
+ * equal to the time shift and calls {@link #wakeUp()} after a forward jump.
+ * <p>
+ *
+ * Every lock condition and monitor a hooked class has waited on is remembered weakly, so that
+ * {@link #wakeUp()} finds also the waits which start while it runs: it must acquire the lock
+ * of the queue, which the waiting thread holds until it waits. A scheduler waits on the same
+ * condition or monitor every time, so it is remembered once, and the waits after that only
+ * look it up in an array without any locking.
+ */
+public final class SchedulerClock
+{
+	private static volatile long _offset;
+
+	/**
+	 * The conditions, each followed by its lock, and the monitors, each followed by
+	 * {@code null}. Copied on write.
+	 */
+	private static volatile WeakReference<?>[] _waits = new WeakReference<?>[0];
+
+
+	private SchedulerClock()
+	{
+	}
+
+	/**
+	 * Sets the offset of the clock.
+	 *
+	 * @param nanos
+	 * 		The offset in nanoseconds.
+	 *
+	 * @return
+	 * 		{@code true} if the clock jumped forward.
+	 */
+	public static boolean setOffset(long nanos)
+	{
+		long old = _offset;
+		_offset = nanos;
+		return nanos > old;
+	}
+
+	public static long getOffset()
+	{
+		return _offset;
+	}
+
+	public static long nanoTime()
+	{
+		return System.nanoTime() + _offset;
+	}
+
+	public static long currentTimeMillis()
+	{
+		return System.currentTimeMillis() + _offset / 1000000L;
+	}
+
+	/**
+	 * Replaces {@code condition.awaitNanos(nanos)}.
+	 *
+	 * @param lock
+	 * 		The lock of the condition, held by the calling thread.
+	 */
+	public static long awaitNanos(Condition condition, long nanos, ReentrantLock lock)
+		throws
+			InterruptedException
+	{
+		remember(condition, lock);
+		return condition.awaitNanos(nanos);
+	}
+
+	/**
+	 * Replaces {@code condition.await()}.
+	 *
+	 * @param lock
+	 * 		The lock of the condition, held by the calling thread.
+	 */
+	public static void await(Condition condition, ReentrantLock lock)
+		throws
+			InterruptedException
+	{
+		remember(condition, lock);
+		condition.await();
+	}
+
+	/**
+	 * Replaces {@code monitor.wait(millis)}.
+	 */
+	public static void wait(Object monitor, long millis)
+		throws
+			InterruptedException
+	{
+		remember(monitor, null);
+		monitor.wait(millis);
+	}
+
+	/**
+	 * Wakes every thread waiting in a hooked class, so that the threads evaluate their
+	 * deadlines again. All the waiting workers of a scheduler are woken at once, and every one
+	 * of them takes a due task.
+	 */
+	public static void wakeUp()
+	{
+		WeakReference<?>[] waits = _waits;
+		for(int i = 0; i < waits.length; i += 2) {
+			Object waitingOn = waits[i].get();
+			ReentrantLock lock = waits[i + 1] == null ? null : (ReentrantLock)waits[i + 1].get();
+			if(waitingOn == null || (lock == null && waits[i + 1] != null))
+				continue;
+			if(lock == null)
+				synchronized(waitingOn) {
+					waitingOn.notifyAll();
+				}
+			else {
+				lock.lock();
+				try {
+					((Condition)waitingOn).signalAll();
+				}
+				finally {
+					lock.unlock();
+				}
+			}
+		}
+	}
+
+	private static void remember(Object waitingOn, ReentrantLock lock)
+	{
+		if(!isRemembered(_waits, waitingOn))
+			add(waitingOn, lock);
+	}
+
+	private static boolean isRemembered(WeakReference<?>[] waits, Object waitingOn)
+	{
+		for(int i = 0; i < waits.length; i += 2)
+			if(waits[i].get() == waitingOn)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Adds a condition or a monitor, and drops the collected ones.
+	 */
+	private static synchronized void add(Object waitingOn, ReentrantLock lock)
+	{
+		WeakReference<?>[] waits = _waits;
+		if(isRemembered(waits, waitingOn))
+			return;
+		List<WeakReference<?>> added = new ArrayList<>(waits.length + 2);
+		for(int i = 0; i < waits.length; i += 2)
+			if(waits[i].get() != null) {
+				added.add(waits[i]);
+				added.add(waits[i + 1]);
+			}
+		added.add(new WeakReference<>(waitingOn));
+		added.add(lock == null ? null : new WeakReference<>(lock));
+		_waits = added.toArray(new WeakReference<?>[0]);
+	}
+}
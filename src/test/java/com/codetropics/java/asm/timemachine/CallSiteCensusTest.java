@@ -0,0 +1,84 @@
+package com.codetropics.java.asm.timemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.objectweb.asm.Opcodes.*;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+
+import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate.Milliseconds;
+
+
+public class CallSiteCensusTest
+{
+	@Test
+	public void countHits() throws Exception
+	{
+		TimeMachineTransformer transformer =
+			new TimeMachineTransformer(
+				new ClassFilter(
+					ClassNameMatcher.compile(
+						Collections.<String>emptyList(),
+						Collections.<String>emptyList()
+					),
+					false
+				),
+				new Milliseconds(true, 1000L)
+			);
+		transformer.setCensus(true);
+		byte[] b =
+			transformer.transform(
+				getClass().getClassLoader(),
+				"census/Clock",
+				null,
+				null,
+				createClass()
+			);
+		Class<?> c =
+			new ClassLoader(getClass().getClassLoader())
+			{
+				Class<?> define()
+				{
+					return defineClass(null, b, 0, b.length);
+				}
+			}.define();
+		Method now = c.getMethod("now");
+
+		long expected = System.currentTimeMillis() + 1000L;
+		for(int i = 0; i < 1000; i++)
+			assertTrue((Long)now.invoke(null) >= expected);
+
+		String report = CallSiteCensus.report();
+		assertTrue(report, report.contains("census.Clock.now:42  CURRENT_TIME_MILLIS"));
+		String line = report.substring(0, report.indexOf("census.Clock.now:42")).trim();
+		line = line.substring(line.lastIndexOf('\n') + 1).trim();
+		assertEquals(1000L, Long.parseLong(line));
+	}
+
+	/**
+	 * Creates {@code census/Clock} with a method {@code now()} calling
+	 * {@code System.currentTimeMillis()} on line 42.
+	 */
+	private static byte[] createClass()
+	{
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(V17, ACC_PUBLIC, "census/Clock", null, "java/lang/Object", null);
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "now", "()J", null, null);
+		mv.visitCode();
+		Label start = new Label();
+		mv.visitLabel(start);
+		mv.visitLineNumber(42, start);
+		mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "currentTimeMillis", "()J", false);
+		mv.visitInsn(LRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+}
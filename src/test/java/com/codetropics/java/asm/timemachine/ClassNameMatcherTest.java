@@ -0,0 +1,115 @@
+package com.codetropics.java.asm.timemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+
+public class ClassNameMatcherTest
+{
+	@Test
+	public void includeEverythingByDefault()
+	{
+		ClassNameMatcher matcher =
+			ClassNameMatcher.compile(
+				Collections.<String>emptyList(),
+				Arrays.asList("com/acme/log/**")
+			);
+		assertTrue(matcher.matches("Foo"));
+		assertTrue(matcher.matches("com/acme/Foo"));
+		assertFalse(matcher.matches("com/acme/log/Logger"));
+		assertFalse(matcher.matches("com/acme/log/impl/Logger"));
+	}
+
+	@Test
+	public void mostSpecificRuleWins()
+	{
+		ClassNameMatcher matcher =
+			ClassNameMatcher.compile(
+				Arrays.asList("com/acme/**", "com/acme/log/audit/*", "com.acme.log.Special"),
+				Arrays.asList("com/acme/log/**", "com/acme/Foo*")
+			);
+		assertFalse(matcher.matches("org/acme/Foo"));
+		assertTrue(matcher.matches("com/acme/Bar"));
+		assertFalse(matcher.matches("com/acme/Foo"));
+		assertFalse(matcher.matches("com/acme/Foo$Inner"));
+		assertTrue(matcher.matches("com/acme/sub/Foo"));
+		assertFalse(matcher.matches("com/acme/log/Logger"));
+		assertTrue(matcher.matches("com/acme/log/Special"));
+		assertTrue(matcher.matches("com/acme/log/audit/Audit"));
+		assertFalse(matcher.matches("com/acme/log/audit/sub/Audit"));
+	}
+
+	@Test
+	public void excludeWinsOverSameInclude()
+	{
+		ClassNameMatcher matcher =
+			ClassNameMatcher.compile(Arrays.asList("com/acme/**"), Arrays.asList("com/acme/**"));
+		assertFalse(matcher.matches("com/acme/Foo"));
+	}
+
+	@Test
+	public void trieRemove()
+	{
+		ClassNameTrie<String> trie = new ClassNameTrie<>();
+		trie.put("com/acme/**", "a");
+		trie.put("com/acme/Foo", "b");
+		assertEquals("b", trie.find("com/acme/Foo"));
+		assertTrue(trie.remove("com/acme/Foo"));
+		assertFalse(trie.remove("com/acme/Foo"));
+		assertEquals("a", trie.find("com/acme/Foo"));
+		assertTrue(trie.remove("com/acme/**"));
+		assertNull(trie.find("com/acme/Foo"));
+		assertEquals(0, trie.size());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void wildcardInTheMiddle()
+	{
+		ClassNameMatcher.compile(Arrays.asList("com/*/Foo"), Collections.<String>emptyList());
+	}
+
+	@Test
+	public void filterSkipsGeneratedAndBootstrapClasses()
+	{
+		ClassFilter filter =
+			new ClassFilter(
+				ClassNameMatcher.compile(
+					Collections.<String>emptyList(),
+					Collections.<String>emptyList()
+				),
+				false
+			);
+		ClassLoader loader = getClass().getClassLoader();
+		assertTrue(filter.accept(loader, "com/acme/Foo"));
+		assertFalse(filter.accept(null, "com/acme/Foo"));
+		assertFalse(filter.accept(loader, null));
+		assertFalse(filter.accept(loader, "com/acme/Foo$$Lambda$14"));
+		assertFalse(filter.accept(loader, "com/codetropics/java/asm/timemachine/TimeMachineAdapter"));
+	}
+
+	@Test
+	public void agentOptions()
+	{
+		AgentOptions options =
+			AgentOptions.parse("shift=+2d; include=com/acme/**,org/acme/**;exclude=com/acme/log/**");
+		assertEquals("+2d", options.getShift());
+		assertEquals(Arrays.asList("com/acme/**", "org/acme/**"), options.getIncludes());
+		assertEquals(Arrays.asList("com/acme/log/**"), options.getExcludes());
+		assertFalse(options.isBootstrapClasses());
+
+		assertEquals("2025-06-10T14:00:00", AgentOptions.parse("2025-06-10T14:00:00").getShift());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void unknownAgentOption()
+	{
+		AgentOptions.parse("shift=+2d;foo=bar");
+	}
+}
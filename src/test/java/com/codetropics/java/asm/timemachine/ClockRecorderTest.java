@@ -0,0 +1,153 @@
+package com.codetropics.java.asm.timemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.objectweb.asm.Opcodes.*;
+
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+
+import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate.Milliseconds;
+
+
+public class ClockRecorderTest
+{
+	private static final long DAY = 24L * 60 * 60 * 1000;
+
+	@After
+	public void reset()
+	{
+		TimeMachine.install(RewriteMode.DYNAMIC, new Milliseconds(true, 0));
+	}
+
+	@Test
+	public void recordAndReplay() throws Exception
+	{
+		Path log = Files.createTempFile("timemachine", ".clock");
+		try {
+			TimeMachine.install(RewriteMode.DYNAMIC, new Milliseconds(true, DAY));
+			ClockCallSites.setRecorder(ClockRecorder.open(log, 1024));
+			Class<?> c = load();
+			Method now = c.getMethod("now");
+			long[] recorded = new long[3];
+			for(int i = 0; i < recorded.length; i++) {
+				recorded[i] = (Long)now.invoke(null);
+				Thread.sleep(5);
+			}
+			long nanos = (Long)c.getMethod("nanos").invoke(null);
+			ClockCallSites.setRecorder(null);
+
+			ClockReplay replay = ClockReplay.read(log);
+			assertEquals(3, replay.size("test/Clocked.now()J#0"));
+			assertEquals(1, replay.size("test/Clocked.nanos()J#0"));
+			assertEquals(0, replay.dropped());
+
+			TimeMachine.install(RewriteMode.DYNAMIC, new Milliseconds(true, 0));
+			ClockCallSites.setReplay(replay);
+			c = load();
+			now = c.getMethod("now");
+			for(long value : recorded)
+				assertEquals(value, (long)(Long)now.invoke(null));
+			assertEquals(nanos, (long)(Long)c.getMethod("nanos").invoke(null));
+			// The live time once the recording is used up.
+			long live = (Long)now.invoke(null);
+			assertTrue(Math.abs(live - System.currentTimeMillis()) < DAY / 2);
+		}
+		finally {
+			Files.delete(log);
+		}
+	}
+
+	@Test
+	public void fullBufferDropsValues() throws Exception
+	{
+		Path log = Files.createTempFile("timemachine", ".clock");
+		try {
+			ClockCallSites.setRecorder(ClockRecorder.open(log, 2));
+			Method now = load().getMethod("now");
+			int calls = 100000;
+			for(int i = 0; i < calls; i++)
+				now.invoke(null);
+			ClockCallSites.setRecorder(null);
+
+			ClockReplay replay = ClockReplay.read(log);
+			assertTrue(replay.dropped() > 0);
+			assertEquals(calls, replay.size("test/Clocked.now()J#0") + replay.dropped());
+		}
+		finally {
+			Files.delete(log);
+		}
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void onlyDynamicMode()
+	{
+		AgentOptions.parse("shift=+1d;mode=constant;record=clock.rec").checkMode();
+	}
+
+	private static ClassFilter filter()
+	{
+		return
+			new ClassFilter(
+				ClassNameMatcher.compile(
+					Collections.<String>emptyList(),
+					Collections.<String>emptyList()
+				),
+				false
+			);
+	}
+
+	private Class<?> load()
+	{
+		TimeMachineTransformer transformer =
+			new TimeMachineTransformer(
+				filter(),
+				new Milliseconds(true, 0),
+				RewriteMode.DYNAMIC,
+				null
+			);
+		transformer.setRecordable(true);
+		byte[] b = transformer.rewrite("test/Clocked", createClass());
+		return
+			new ClassLoader(getClass().getClassLoader())
+			{
+				Class<?> define()
+				{
+					return defineClass(null, b, 0, b.length);
+				}
+			}.define();
+	}
+
+	/**
+	 * Creates {@code test/Clocked} with the methods {@code now()} and {@code nanos()}.
+	 */
+	private static byte[] createClass()
+	{
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(V17, ACC_PUBLIC, "test/Clocked", null, "java/lang/Object", null);
+
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "now", "()J", null, null);
+		mv.visitCode();
+		mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "currentTimeMillis", "()J", false);
+		mv.visitInsn(LRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "nanos", "()J", null, null);
+		mv.visitCode();
+		mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+		mv.visitInsn(LRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+}
@@ -0,0 +1,20 @@
+package com.codetropics.java.asm.timemachine;
+
+import static org.junit.Assert.assertNotNull;
+
+import org.junit.Test;
+
+
+public class JdkHookTest
+{
+	@Test
+	public void hookedClassesCallTheClock()
+	{
+		TimeCallScanner scanner = new TimeCallScanner(TimeCall.rewrittenIn(RewriteMode.JDK));
+		for(String name : JdkHook.CLASSES) {
+			byte[] classFile = JdkHook.readClassFile(name);
+			assertNotNull(name, classFile);
+			assertNotNull(name, scanner.scan(classFile));
+		}
+	}
+}
@@ -0,0 +1,204 @@
+package com.codetropics.java.asm.timemachine;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate.Milliseconds;
+
+
+public class OfflineInstrumenterTest
+{
+	private static final long DAY = 24L * 60 * 60 * 1000;
+
+	private Path directory;
+
+	@Before
+	public void createDirectory() throws IOException
+	{
+		directory = Files.createTempDirectory("timemachine");
+	}
+
+	@After
+	public void deleteDirectory() throws IOException
+	{
+		try(Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+
+	@Test
+	public void instrumentJar() throws Exception
+	{
+		Path input = directory.resolve("in.jar");
+		try(ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(input))) {
+			byte[] clock = TimeCallScannerTest.createClass(true, true);
+			put(out, "META-INF/MANIFEST.MF", "Manifest-Version: 1.0\n".getBytes(StandardCharsets.UTF_8));
+			put(out, "META-INF/SIGNER.SF", new byte[1]);
+			put(out, "test/", null);
+			put(out, "test/Clock.class", clock);
+			put(out, "test/Plain.class", TimeCallScannerTest.createClass(false, false));
+			put(out, "META-INF/versions/11/test/Clock.class", clock);
+			put(out, "excluded/Clock.class", clock);
+			put(out, "test/data.txt", "data".getBytes(StandardCharsets.UTF_8));
+		}
+
+		Path output = directory.resolve("out.jar");
+		OfflineInstrumenter instrumenter = instrumenter(new Milliseconds(true, DAY));
+		assertEquals(2, instrumenter.instrument(input, output));
+		assertEquals(
+			"[META-INF/MANIFEST.MF, test/, test/Clock.class, test/Plain.class,"
+				+ " META-INF/versions/11/test/Clock.class, excluded/Clock.class, test/data.txt,"
+				+ " " + OfflineInstrumenter.CALLS + ", " + OfflineInstrumenter.PROPERTIES + "]",
+			entries(output).toString()
+		);
+		assertEquals(
+			" CURRENT_TIME_MILLIS=1 CALENDAR_GET_INSTANCE=1",
+			instrumenter.getCalls().get("test/Clock.class")
+		);
+		assertEquals(2, instrumenter.getCalls().size());
+
+		URL[] classPath = { output.toUri().toURL() };
+		try(URLClassLoader loader = new URLClassLoader(classPath, null)) {
+			Milliseconds timeShift = OfflineInstrumenter.timeShift(loader);
+			assertTrue(timeShift.isRelative());
+			assertEquals(DAY, (long)timeShift.getTime());
+		}
+		try(URLClassLoader loader = new URLClassLoader(classPath, getClass().getClassLoader())) {
+			long before = System.currentTimeMillis();
+			long shifted = (Long)loader.loadClass("test.Clock").getMethod("b").invoke(null);
+			assertTrue(shifted >= before + DAY && shifted <= System.currentTimeMillis() + DAY);
+		}
+
+		try {
+			instrumenter(new Milliseconds(true, DAY))
+				.instrument(output, directory.resolve("again.jar"));
+			fail();
+		}
+		catch(IllegalArgumentException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void instrumentDirectory() throws Exception
+	{
+		Path input = directory.resolve("classes");
+		Files.createDirectories(input.resolve("test"));
+		byte[] clock = TimeCallScannerTest.createClass(true, true);
+		byte[] plain = TimeCallScannerTest.createClass(false, false);
+		Files.write(input.resolve("test/Clock.class"), clock);
+		Files.write(input.resolve("test/Plain.class"), plain);
+
+		Path output = directory.resolve("instrumented");
+		assertEquals(1, instrumenter(new Milliseconds(false, 1000L)).instrument(input, output));
+		assertFalse(Arrays.equals(clock, Files.readAllBytes(output.resolve("test/Clock.class"))));
+		assertArrayEquals(plain, Files.readAllBytes(output.resolve("test/Plain.class")));
+		assertTrue(Files.exists(output.resolve(OfflineInstrumenter.CALLS)));
+		assertTrue(Files.exists(output.resolve(OfflineInstrumenter.PROPERTIES)));
+	}
+
+	@Test
+	public void conflictingTimeShifts() throws Exception
+	{
+		Path input = directory.resolve("classes");
+		Files.createDirectories(input.resolve("test"));
+		Files.write(input.resolve("test/Clock.class"), TimeCallScannerTest.createClass(true, true));
+		Path day = directory.resolve("day");
+		Path sameDay = directory.resolve("same-day");
+		Path week = directory.resolve("week");
+		instrumenter(new Milliseconds(true, DAY)).instrument(input, day);
+		instrumenter(new Milliseconds(true, DAY)).instrument(input, sameDay);
+		instrumenter(new Milliseconds(true, 7 * DAY)).instrument(input, week);
+
+		URL[] classPath = { day.toUri().toURL(), sameDay.toUri().toURL() };
+		try(URLClassLoader loader = new URLClassLoader(classPath, null)) {
+			assertEquals(DAY, (long)OfflineInstrumenter.timeShift(loader).getTime());
+		}
+		classPath = new URL[] { day.toUri().toURL(), week.toUri().toURL() };
+		try(URLClassLoader loader = new URLClassLoader(classPath, null)) {
+			OfflineInstrumenter.timeShift(loader);
+			fail();
+		}
+		catch(IllegalStateException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("week"));
+		}
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void onlyConstantMode()
+	{
+		new OfflineInstrumenter(
+			new TimeMachineTransformer(
+				filter(),
+				new Milliseconds(true, DAY),
+				RewriteMode.DYNAMIC,
+				null
+			),
+			new Milliseconds(true, DAY),
+			1
+		);
+	}
+
+	private static OfflineInstrumenter instrumenter(Milliseconds timeShift)
+	{
+		return
+			new OfflineInstrumenter(
+				new TimeMachineTransformer(filter(), timeShift, RewriteMode.CONSTANT, null),
+				timeShift,
+				2
+			);
+	}
+
+	private static ClassFilter filter()
+	{
+		return
+			new ClassFilter(
+				ClassNameMatcher.compile(
+					Collections.<String>emptyList(),
+					Collections.singletonList("excluded/**")
+				),
+				false
+			);
+	}
+
+	private static void put(ZipOutputStream out, String name, byte[] bytes) throws IOException
+	{
+		out.putNextEntry(new ZipEntry(name));
+		if(bytes != null)
+			out.write(bytes);
+		out.closeEntry();
+	}
+
+	private static List<String> entries(Path jar) throws IOException
+	{
+		List<String> names = new ArrayList<>();
+		try(ZipInputStream in = new ZipInputStream(Files.newInputStream(jar))) {
+			for(ZipEntry entry; (entry = in.getNextEntry()) != null; )
+				names.add(entry.getName());
+		}
+		return names;
+	}
+}
@@ -0,0 +1,165 @@
+package com.codetropics.java.asm.timemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate.Milliseconds;
+
+
+public class RescoperTest
+{
+	private final List<List<Class<?>>> _batches = Collections.synchronizedList(new ArrayList<>());
+
+	@Test
+	public void indexFindsByPrefix()
+	{
+		LoadedClassIndex index = index();
+		index.loaded(null, "java/util/Date");
+		index.loaded(null, "java/util/NoSuchClass");
+		index.loaded(null, "java/util/ArrayList$$Lambda/0x1234");
+		assertEquals(5, index.size());
+		assertEquals(
+			Arrays.asList(java.util.Date.class, GregorianCalendar.class, HashMap.class),
+			index.find("java/util/")
+		);
+		assertEquals(Arrays.asList(String.class), index.find("java/lang/String"));
+		assertEquals(4, index.size());
+	}
+
+	@Test
+	public void onlyChangedClassesAreRetransformed() throws Exception
+	{
+		TimeMachineTransformer transformer = transformer(Arrays.asList("java/util/**"));
+		Rescoper rescoper = rescoper(transformer, Arrays.asList("java/util/**"));
+
+		RescopeProgress progress = rescoper.exclude("java/util/Gregorian*");
+		assertFalse(transformer.accepts(null, "java/util/GregorianCalendar", null));
+		assertTrue(progress.await(10, TimeUnit.SECONDS));
+		assertEquals(1, progress.getCandidates());
+		assertEquals(1, progress.getTotal());
+		assertEquals(1, progress.getRetransformed());
+		assertEquals(Arrays.asList(Arrays.asList(GregorianCalendar.class)), _batches);
+
+		_batches.clear();
+		progress = rescoper.remove("java/util/Gregorian*");
+		assertTrue(progress.await(10, TimeUnit.SECONDS));
+		assertTrue(transformer.accepts(null, "java/util/GregorianCalendar", null));
+		assertEquals(Arrays.asList(Arrays.asList(GregorianCalendar.class)), _batches);
+		assertEquals(Arrays.asList("java/util/**"), rescoper.getIncludes());
+		assertEquals(Collections.emptyList(), rescoper.getExcludes());
+	}
+
+	@Test
+	public void firstIncludeAffectsEveryClass() throws Exception
+	{
+		TimeMachineTransformer transformer = transformer(Collections.<String>emptyList());
+		Rescoper rescoper = rescoper(transformer, Collections.<String>emptyList());
+
+		RescopeProgress progress = rescoper.include("java/util/Date");
+		assertTrue(progress.await(10, TimeUnit.SECONDS));
+		assertEquals(4, progress.getCandidates());
+		assertEquals(Arrays.asList(Arrays.asList(GregorianCalendar.class)), _batches);
+		assertTrue(progress.getFailures().isEmpty());
+		assertEquals("include java/util/Date - 1/1 retransformed, 0 failed", progress.toString());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void invalidPattern()
+	{
+		TimeMachineTransformer transformer = transformer(Collections.<String>emptyList());
+		rescoper(transformer, Collections.<String>emptyList()).include("java/*/Date");
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void needsRescopeOption()
+	{
+		TimeMachine.install(RewriteMode.DYNAMIC, new Milliseconds(true, 0));
+		TimeMachine.include("java/util/**");
+	}
+
+	private static TimeMachineTransformer transformer(List<String> includes)
+	{
+		return
+			new TimeMachineTransformer(
+				new ClassFilter(
+					ClassNameMatcher.compile(includes, Collections.<String>emptyList()),
+					true
+				),
+				new Milliseconds(true, 1000L)
+			);
+	}
+
+	private Rescoper rescoper(TimeMachineTransformer transformer, List<String> includes)
+	{
+		return
+			new Rescoper(
+				transformer,
+				index(),
+				new Retransformer(instrumentation(), transformer, 10, 0),
+				includes,
+				Collections.<String>emptyList()
+			);
+	}
+
+	private static LoadedClassIndex index()
+	{
+		LoadedClassIndex index =
+			new LoadedClassIndex(
+				(Instrumentation)Proxy.newProxyInstance(
+					RescoperTest.class.getClassLoader(),
+					new Class<?>[] { Instrumentation.class },
+					(proxy, method, args) -> {
+						if(!method.getName().equals("getInitiatedClasses") || args[0] != null)
+							throw new UnsupportedOperationException(method.getName());
+						return new Class<?>[] { java.util.Date.class, java.util.ArrayList.class };
+					}
+				)
+			);
+		index.addAll(
+			new Class<?>[] {
+				java.util.Date.class,
+				HashMap.class,
+				String[].class,
+				GregorianCalendar.class,
+				String.class
+			}
+		);
+		return index;
+	}
+
+	/**
+	 * A fake {@code Instrumentation} which records the retransformed batches.
+	 */
+	private Instrumentation instrumentation()
+	{
+		return
+			(Instrumentation)Proxy.newProxyInstance(
+				getClass().getClassLoader(),
+				new Class<?>[] { Instrumentation.class },
+				(proxy, method, args) -> {
+					switch(method.getName()) {
+						case "isModifiableClass":
+							return true;
+						case "retransformClasses":
+							_batches.add(Arrays.asList((Class<?>[])args[0]));
+							return null;
+						default:
+							throw new UnsupportedOperationException(method.getName());
+					}
+				}
+			);
+	}
+}
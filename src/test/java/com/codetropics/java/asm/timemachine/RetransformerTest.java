@@ -0,0 +1,202 @@
+package com.codetropics.java.asm.timemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate.Milliseconds;
+
+
+public class RetransformerTest
+{
+	private final List<List<Class<?>>> _batches = new ArrayList<>();
+	private final List<String> _calls = new ArrayList<>();
+	private Class<?>[] _loaded =
+		new Class<?>[] {
+			java.util.Date.class,
+			HashMap.class,
+			String[].class,
+			GregorianCalendar.class
+		};
+
+	@Test
+	public void retransformInBatches() throws Exception
+	{
+		Retransformer retransformer =
+			new Retransformer(
+				instrumentation(),
+				new TimeMachineTransformer(
+					new ClassFilter(
+						ClassNameMatcher.compile(
+							Arrays.asList("java/util/**"),
+							Collections.<String>emptyList()
+						),
+						true
+					),
+					new Milliseconds(true, 1000L)
+				),
+				1,
+				1
+			);
+
+		assertEquals(2, retransformer.retransform());
+		assertEquals(
+			Arrays.asList(
+				Arrays.asList(java.util.Date.class),
+				Arrays.asList(GregorianCalendar.class)
+			),
+			_batches
+		);
+		assertEquals(Arrays.asList("add:true"), _calls);
+
+		_batches.clear();
+		retransformer.undo();
+		assertEquals(2, _batches.size());
+		assertEquals(Arrays.asList("add:true", "remove"), _calls);
+	}
+
+	@Test
+	public void interruptedBackgroundRetransformationIsUndone() throws Exception
+	{
+		Retransformer retransformer =
+			new Retransformer(
+				instrumentation(),
+				new TimeMachineTransformer(
+					new ClassFilter(
+						ClassNameMatcher.compile(
+							Arrays.asList("java/util/**"),
+							Collections.<String>emptyList()
+						),
+						true
+					),
+					new Milliseconds(true, 1000L)
+				),
+				1,
+				60000
+			);
+
+		Thread thread = retransformer.start();
+		while(thread.getState() != Thread.State.TIMED_WAITING)
+			Thread.sleep(1);
+		thread.interrupt();
+		thread.join(10000);
+		assertEquals(Arrays.asList(Arrays.asList(java.util.Date.class)), _batches);
+
+		_batches.clear();
+		retransformer.undo();
+		assertEquals(Arrays.asList(Arrays.asList(java.util.Date.class)), _batches);
+		assertEquals(Arrays.asList("add:true", "remove"), _calls);
+	}
+
+	@Test
+	public void classesLoadedAfterwardsAreUndone() throws Exception
+	{
+		TimeMachineTransformer transformer =
+			new TimeMachineTransformer(
+				new ClassFilter(
+					ClassNameMatcher.compile(
+						Arrays.asList("java/util/**"),
+						Collections.<String>emptyList()
+					),
+					true
+				),
+				new Milliseconds(true, 1000L)
+			);
+		Retransformer retransformer = new Retransformer(instrumentation(), transformer, 10, 0);
+		_loaded = new Class<?>[] { java.util.Date.class };
+		assertEquals(1, retransformer.retransform());
+
+		_loaded = new Class<?>[] { java.util.Date.class, GregorianCalendar.class };
+		transformer.transform(
+			null,
+			"java/util/GregorianCalendar",
+			null,
+			null,
+			Retransformer.readClassFile(GregorianCalendar.class)
+		);
+		_batches.clear();
+		retransformer.undo();
+		assertEquals(
+			Arrays.asList(Arrays.asList(java.util.Date.class, GregorianCalendar.class)),
+			_batches
+		);
+	}
+
+	@Test
+	public void unmodifiableClassIsSkipped() throws Exception
+	{
+		Retransformer retransformer =
+			new Retransformer(
+				instrumentation(),
+				new TimeMachineTransformer(
+					new ClassFilter(
+						ClassNameMatcher.compile(
+							Arrays.asList("java/util/**"),
+							Collections.<String>emptyList()
+						),
+						true
+					),
+					new Milliseconds(true, 1000L)
+				),
+				10,
+				0
+			);
+		_calls.add("fail:" + GregorianCalendar.class.getName());
+
+		assertEquals(1, retransformer.retransform());
+		assertTrue(_batches.contains(Arrays.asList(java.util.Date.class)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidBatchSize()
+	{
+		new Retransformer(instrumentation(), new TimeMachineTransformer(), 0, 0);
+	}
+
+	/**
+	 * A fake {@code Instrumentation} having a few loaded classes, which records the calls.
+	 */
+	private Instrumentation instrumentation()
+	{
+		return
+			(Instrumentation)Proxy.newProxyInstance(
+				getClass().getClassLoader(),
+				new Class<?>[] { Instrumentation.class },
+				(proxy, method, args) -> {
+					switch(method.getName()) {
+						case "getAllLoadedClasses":
+						case "getInitiatedClasses":
+							return _loaded;
+						case "isModifiableClass":
+							return true;
+						case "addTransformer":
+							_calls.add("add:" + (args.length > 1 && (Boolean)args[1]));
+							return null;
+						case "removeTransformer":
+							_calls.add("remove");
+							return true;
+						case "retransformClasses":
+							List<Class<?>> batch = Arrays.asList((Class<?>[])args[0]);
+							for(Class<?> c : batch)
+								if(_calls.contains("fail:" + c.getName()))
+									throw new UnmodifiableClassException(c.getName());
+							_batches.add(batch);
+							return null;
+						default:
+							throw new UnsupportedOperationException(method.getName());
+					}
+				}
+			);
+	}
+}
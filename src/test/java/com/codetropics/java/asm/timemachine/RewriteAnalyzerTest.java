@@ -0,0 +1,147 @@
+package com.codetropics.java.asm.timemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.objectweb.asm.Opcodes.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+
+import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate.Milliseconds;
+
+
+public class RewriteAnalyzerTest
+{
+	private static final long DAY = 24L * 60 * 60 * 1000;
+
+	private Path directory;
+
+	@Before
+	public void createDirectory() throws IOException
+	{
+		directory = Files.createTempDirectory("timemachine");
+	}
+
+	@After
+	public void deleteDirectory() throws IOException
+	{
+		try(Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+
+	@Test
+	public void reportsTheCallSitesOfJarsAndDirectories() throws Exception
+	{
+		Path jar = directory.resolve("app.jar");
+		byte[] clock = TimeCallScannerTest.createClass(true, true);
+		try(ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(jar))) {
+			put(out, "test/Clock.class", clock);
+			put(out, "test/Plain.class", TimeCallScannerTest.createClass(false, false));
+			put(out, "META-INF/versions/11/test/Clock.class", clock);
+			put(out, "excluded/Clock.class", clock);
+			put(out, "module-info.class", new byte[1]);
+		}
+		Path classes = directory.resolve("classes");
+		Files.createDirectories(classes.resolve("test"));
+		Files.write(classes.resolve("test/Inline.class"), createInlineClass());
+
+		RewriteAnalyzer analyzer =
+			new RewriteAnalyzer(
+				new TimeMachineTransformer(
+					new ClassFilter(
+						ClassNameMatcher.compile(
+							Collections.<String>emptyList(),
+							Collections.singletonList("excluded/**")
+						),
+						false
+					),
+					new Milliseconds(true, DAY),
+					RewriteMode.CONSTANT,
+					null
+				),
+				2
+			);
+		assertEquals(
+			3,
+			analyzer.analyze(Arrays.asList(jar, classes, directory.resolve("missing.jar")))
+		);
+		assertEquals(3, analyzer.getCallSites()[TimeCall.CURRENT_TIME_MILLIS.ordinal()]);
+		assertEquals(2, analyzer.getCallSites()[TimeCall.CALENDAR_GET_INSTANCE.ordinal()]);
+		assertEquals(1, analyzer.getOverLimits()[0]);
+		assertEquals(0, analyzer.getOverLimits()[1]);
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try(PrintStream out = new PrintStream(output, true, StandardCharsets.UTF_8)) {
+			analyzer.print(out);
+		}
+		String report = output.toString(StandardCharsets.UTF_8);
+		assertTrue(
+			report,
+			report.contains("\ttest/Clock CURRENT_TIME_MILLIS=1 CALENDAR_GET_INSTANCE=1,")
+		);
+		assertTrue(
+			report,
+			report.contains("\tMETA-INF/versions/11/test/Clock CURRENT_TIME_MILLIS=1")
+		);
+		assertTrue(report, report.contains("\t\tb()J CURRENT_TIME_MILLIS=1, 4 -> "));
+		assertTrue(report, report.contains("\t\tnow()J CURRENT_TIME_MILLIS=1, 34 -> "));
+		assertTrue(report, report.contains(" bytes, over MaxInlineSize\n"));
+		assertTrue(report, report.contains("missing.jar does not exist."));
+		assertTrue(report, report.contains("TimeMachine would rewrite 3 of 5 classes."));
+	}
+
+	@Test
+	public void codeLengths()
+	{
+		Map<String, Integer> lengths =
+			RewriteAnalyzer.codeLengths(TimeCallScannerTest.createClass(true, true));
+		assertEquals(3, lengths.size());
+		assertEquals(1, (int)lengths.get("a()V"));
+		assertEquals(4, (int)lengths.get("b()J"));
+		assertEquals(5, (int)lengths.get("c()V"));
+	}
+
+	/**
+	 * Creates a class whose method is just small enough to be inlined before the rewrite.
+	 */
+	private static byte[] createInlineClass()
+	{
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(V17, ACC_PUBLIC, "test/Inline", null, "java/lang/Object", null);
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "now", "()J", null, null);
+		mv.visitCode();
+		for(int i = 0; i < RewriteAnalyzer.MAX_INLINE_SIZE - 5; i++)
+			mv.visitInsn(NOP);
+		mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "currentTimeMillis", "()J", false);
+		mv.visitInsn(LRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	private static void put(ZipOutputStream out, String name, byte[] bytes) throws IOException
+	{
+		out.putNextEntry(new ZipEntry(name));
+		out.write(bytes);
+		out.closeEntry();
+	}
+}
@@ -0,0 +1,135 @@
+package com.codetropics.java.asm.timemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.objectweb.asm.Opcodes.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+
+
+public class ScenarioLauncherTest
+{
+	private static final long G = 1024L * 1024 * 1024;
+
+	@Test
+	public void agentIsAddedAfterTheLauncher()
+	{
+		ScenarioLauncher launcher =
+			new ScenarioLauncher(
+				Arrays.asList("/opt/java/bin/java", "-jar", "app.jar", "--out", "{shift}.log"),
+				Arrays.asList("+1d"),
+				Paths.get("/agent.jar"),
+				"mode=dynamic",
+				1,
+				System.out
+			);
+		assertEquals(
+			Arrays.asList(
+				"/opt/java/bin/java",
+				"-javaagent:/agent.jar=shift=+1d;mode=dynamic",
+				"-jar",
+				"app.jar",
+				"--out",
+				"+1d.log"
+			),
+			launcher.command("+1d")
+		);
+	}
+
+	@Test
+	public void parallelismIsBoundedByCoresAndMemory()
+	{
+		assertEquals(8, ScenarioLauncher.parallelism(8, 32, 64 * G, G));
+		assertEquals(32, ScenarioLauncher.parallelism(100, 32, 64 * G, G));
+		assertEquals(16, ScenarioLauncher.parallelism(32, 32, 64 * G, 4 * G));
+		assertEquals(1, ScenarioLauncher.parallelism(32, 32, G, 4 * G));
+		assertEquals(4, ScenarioLauncher.parallelism(8, 4, 0, G));
+		assertEquals(
+			"2g",
+			ScenarioLauncher.memory(Arrays.asList("java", "-Xmx2g", "-jar", "a.jar"))
+		);
+		assertEquals(
+			ScenarioLauncher.DEFAULT_MEMORY,
+			ScenarioLauncher.memory(Arrays.asList("java", "-jar", "a.jar"))
+		);
+	}
+
+	@Test
+	public void runsEveryShiftAndReportsTheExitCodes() throws Exception
+	{
+		Path agent = agentJar();
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try(PrintStream out = new PrintStream(output, true, StandardCharsets.UTF_8)) {
+			List<ScenarioLauncher.Result> results =
+				new ScenarioLauncher(
+					Arrays.asList("-cp", "{shift}", "NoSuchClass"),
+					Arrays.asList("+1d", "-1d"),
+					agent,
+					null,
+					2,
+					out
+				).run();
+			assertEquals(2, results.size());
+			assertEquals("+1d", results.get(0).shift);
+			assertEquals("-1d", results.get(1).shift);
+			assertEquals(1, results.get(0).exit);
+			assertEquals(1, results.get(1).exit);
+			String summary = ScenarioLauncher.summary(results);
+			assertTrue(summary, summary.endsWith("0 passed, 2 failed." + System.lineSeparator()));
+			assertTrue(ScenarioLauncher.csv(results).startsWith("shift,exit,millis\n+1d,1,"));
+		}
+		finally {
+			Files.delete(agent);
+		}
+		String printed = output.toString(StandardCharsets.UTF_8);
+		assertTrue(printed, printed.contains("[+1d] Error: Could not find or load main class"));
+		assertTrue(printed, printed.contains("[-1d] Exited with 1 after"));
+	}
+
+	/**
+	 * Creates an agent jar whose {@code premain} does nothing.
+	 */
+	private static Path agentJar() throws Exception
+	{
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(V17, ACC_PUBLIC, "test/NoOpAgent", null, "java/lang/Object", null);
+		MethodVisitor mv =
+			cw.visitMethod(
+				ACC_PUBLIC | ACC_STATIC,
+				"premain",
+				"(Ljava/lang/String;)V",
+				null,
+				null
+			);
+		mv.visitCode();
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		cw.visitEnd();
+
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		manifest.getMainAttributes().putValue("Premain-Class", "test.NoOpAgent");
+		Path jar = Files.createTempFile("agent", ".jar");
+		try(JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar), manifest)) {
+			out.putNextEntry(new JarEntry("test/NoOpAgent.class"));
+			out.write(cw.toByteArray());
+		}
+		return jar;
+	}
+}
@@ -0,0 +1,169 @@
+package com.codetropics.java.asm.timemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.junit.After;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import com.codetropics.java.asm.timemachine.boot.SchedulerClock;
+
+
+public class SchedulerHookTest
+{
+	private static final long HOUR_NANOS = TimeUnit.HOURS.toNanos(1);
+
+	@After
+	public void reset()
+	{
+		SchedulerClock.setOffset(0);
+	}
+
+	@Test
+	public void schedulersUseSchedulerClock()
+	{
+		for(String name : SchedulerHook.CLASSES) {
+			byte[] classFile = SchedulerHook.rewrite(name, JdkHook.readClassFile(name));
+			assertNotNull(name, classFile);
+			List<String> calls = calls(classFile);
+			assertFalse(name, calls.contains("java/lang/System.nanoTime"));
+			assertFalse(name, calls.contains("java/lang/System.currentTimeMillis"));
+			assertFalse(name, calls.contains("java/util/concurrent/locks/Condition.awaitNanos"));
+			assertFalse(name, calls.contains("java/lang/Object.wait(J)V"));
+		}
+		String clock = SchedulerClock.class.getName().replace('.', '/');
+		List<String> calls =
+			calls(
+				SchedulerHook.rewrite(
+					"java/util/concurrent/DelayQueue",
+					JdkHook.readClassFile("java/util/concurrent/DelayQueue")
+				)
+			);
+		assertTrue(calls.contains(clock + ".awaitNanos"));
+		assertTrue(calls.contains(clock + ".await"));
+	}
+
+	@Test
+	public void forwardJumpMovesTheClock()
+	{
+		long before = System.nanoTime();
+		assertTrue(SchedulerClock.setOffset(HOUR_NANOS));
+		assertTrue(SchedulerClock.nanoTime() - before >= HOUR_NANOS);
+		assertTrue(SchedulerClock.currentTimeMillis() - System.currentTimeMillis() >= 3599000);
+		assertFalse(SchedulerClock.setOffset(0));
+	}
+
+	@Test
+	public void wakeUpReleasesEveryWaiter() throws Exception
+	{
+		ReentrantLock lock = new ReentrantLock();
+		Condition available = lock.newCondition();
+		Object monitor = new Object();
+		int waiters = 3;
+		CountDownLatch waiting = new CountDownLatch(waiters + 1);
+		CountDownLatch woken = new CountDownLatch(waiters + 1);
+		List<Thread> threads = new ArrayList<>();
+		for(int i = 0; i < waiters; i++)
+			threads.add(
+				new Thread(
+					() -> {
+						lock.lock();
+						try {
+							waiting.countDown();
+							SchedulerClock.awaitNanos(available, HOUR_NANOS, lock);
+							woken.countDown();
+						}
+						catch(InterruptedException e) {
+						}
+						finally {
+							lock.unlock();
+						}
+					}
+				)
+			);
+		threads.add(
+			new Thread(
+				() -> {
+					synchronized(monitor) {
+						try {
+							waiting.countDown();
+							SchedulerClock.wait(monitor, TimeUnit.HOURS.toMillis(1));
+							woken.countDown();
+						}
+						catch(InterruptedException e) {
+						}
+					}
+				}
+			)
+		);
+		for(Thread thread : threads)
+			thread.start();
+		assertTrue(waiting.await(10, TimeUnit.SECONDS));
+		for(Thread thread : threads)
+			while(thread.getState() != Thread.State.TIMED_WAITING)
+				Thread.sleep(1);
+
+		SchedulerClock.wakeUp();
+		assertTrue(woken.await(10, TimeUnit.SECONDS));
+		for(Thread thread : threads)
+			thread.join();
+		assertEquals(0, woken.getCount());
+	}
+
+	/**
+	 * @return
+	 * 		The {@code owner.name} of every method call, and {@code owner.name(desc)} of
+	 * 		the calls of {@code Object.wait}.
+	 */
+	private static List<String> calls(byte[] classFile)
+	{
+		List<String> calls = new ArrayList<>();
+		new ClassReader(classFile).accept(
+			new ClassVisitor(Opcodes.ASM9)
+			{
+				@Override
+				public MethodVisitor visitMethod(
+					int access,
+					String name,
+					String desc,
+					String signature,
+					String[] exceptions
+				)
+				{
+					return
+						new MethodVisitor(Opcodes.ASM9)
+						{
+							@Override
+							public void visitMethodInsn(
+								int opcode,
+								String owner,
+								String name,
+								String desc,
+								boolean itf
+							)
+							{
+								calls.add(
+									owner + "." + name + (name.equals("wait") ? desc : "")
+								);
+							}
+						};
+				}
+			},
+			0
+		);
+		return calls;
+	}
+}
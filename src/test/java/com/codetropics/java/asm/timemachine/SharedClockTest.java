@@ -0,0 +1,129 @@
+package com.codetropics.java.asm.timemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate.Milliseconds;
+
+
+public class SharedClockTest
+{
+	private static final long DAY = 24L * 60 * 60 * 1000;
+
+	private Path file;
+
+	@Before
+	public void createFile() throws IOException
+	{
+		file = Files.createTempFile("timemachine", ".clock");
+		Files.delete(file);
+	}
+
+	@After
+	public void reset() throws IOException
+	{
+		TimeMachine.install(RewriteMode.DYNAMIC, new Milliseconds(true, 0));
+		Files.deleteIfExists(file);
+	}
+
+	@Test
+	public void writeAndRead() throws IOException
+	{
+		SharedClock clock = SharedClock.open(file, new Milliseconds(true, DAY));
+		assertEquals(SharedClock.SIZE, Files.size(file));
+		assertEquals(DAY, (long)clock.read().getTime());
+
+		long sequence = clock.sequence();
+		clock.write(new Milliseconds(false, 1000L));
+		assertFalse(clock.isCurrent(sequence));
+		assertEquals(sequence + 2, clock.sequence());
+		assertEquals(null, clock.read(sequence));
+
+		// A second mapping sees the change and keeps the time shift of the existing file.
+		Milliseconds timeShift = SharedClock.open(file, new Milliseconds(true, 0)).read();
+		assertFalse(timeShift.isRelative());
+		assertEquals(1000L, (long)timeShift.getTime());
+
+		clock.write(Milliseconds.dilated(5000L, 60));
+		timeShift = SharedClock.open(file, new Milliseconds(true, 0)).read();
+		assertTrue(timeShift.isDilated());
+		assertEquals(5000L, (long)timeShift.getTime());
+		assertEquals(60, timeShift.getRate(), 0);
+	}
+
+	@Test
+	public void abandonedChange() throws Exception
+	{
+		SharedClock clock = SharedClock.open(file, new Milliseconds(true, DAY));
+		long sequence = clock.sequence();
+		// Like a writer killed in the middle of a change.
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			ByteBuffer odd = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+			channel.write(odd.putLong(0, sequence + 1), 8);
+		}
+		assertEquals(sequence + 1, clock.sequence());
+
+		TimeMachine.install(RewriteMode.DYNAMIC, new Milliseconds(true, 0));
+		ClockCallSites.setSharedClock(clock);
+		assertEquals(DAY, (long)TimeMachine.getTimeShift().getTime());
+
+		clock.write(new Milliseconds(true, 2 * DAY));
+		assertEquals(sequence + 4, clock.sequence());
+		assertEquals(2 * DAY, (long)clock.read().getTime());
+		assertShift(2 * DAY, TimeMachineTest.load(RewriteMode.DYNAMIC).getMethod("b"));
+	}
+
+	@Test
+	public void notAClockFile() throws IOException
+	{
+		Files.write(file, new byte[SharedClock.SIZE]);
+		try {
+			SharedClock.open(file, new Milliseconds(true, 0));
+			fail();
+		}
+		catch(IOException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void callSitesFollowTheFile() throws Exception
+	{
+		TimeMachine.install(RewriteMode.DYNAMIC, new Milliseconds(true, 0));
+		ClockCallSites.setSharedClock(SharedClock.open(file, new Milliseconds(true, DAY)));
+		Method b = TimeMachineTest.load(RewriteMode.DYNAMIC).getMethod("b");
+		assertShift(DAY, b);
+
+		// Like another JVM or the command line would do.
+		TimeMachine.setTimeShift(file, "-2d");
+		assertShift(-2 * DAY, b);
+		assertEquals(-2 * DAY, (long)TimeMachine.getTimeShift().getTime());
+
+		TimeMachine.setTimeShift("+1h");
+		assertShift(60L * 60 * 1000, b);
+		assertEquals(60L * 60 * 1000, (long)TimeMachine.getTimeShift(file).getTime());
+	}
+
+	private static void assertShift(long expected, Method method) throws Exception
+	{
+		long before = System.currentTimeMillis();
+		long shifted = (Long)method.invoke(null);
+		long after = System.currentTimeMillis();
+		assertTrue(shifted >= before + expected && shifted <= after + expected);
+	}
+}
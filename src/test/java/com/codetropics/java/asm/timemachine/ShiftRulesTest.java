@@ -0,0 +1,142 @@
+package com.codetropics.java.asm.timemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.objectweb.asm.Opcodes.*;
+
+import java.time.Clock;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+
+import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate.Milliseconds;
+
+
+public class ShiftRulesTest
+{
+	private static final long DAY = 24L * 60 * 60 * 1000;
+	private static final List<String> RULES =
+		Arrays.asList("billing/**@+10d", "billing/Frozen@2020-01-01T00:00:00", "log/**@none");
+
+	@Test
+	public void mostSpecificRuleWins()
+	{
+		ShiftRules rules = ShiftRules.parse(RULES, true);
+		assertEquals(10 * DAY, (long)rules.find("billing/Invoice").getTime());
+		assertTrue(rules.find("billing/sub/Invoice").isRelative());
+		assertFalse(rules.find("billing/Frozen").isRelative());
+		assertSame(ShiftRules.NONE, rules.find("log/Logger"));
+		assertNull(rules.find("app/Main"));
+		assertFalse(rules.isAdvancing());
+
+		rules = ShiftRules.parse(Arrays.asList("a/**@2020-01-01T00:00:00"), false);
+		assertTrue(rules.isAdvancing());
+		assertNull(ShiftRules.parse(Collections.<String>emptyList(), false));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void invalidRule()
+	{
+		ShiftRules.parse(Arrays.asList("billing/**"), false);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void onlyConstantMode()
+	{
+		AgentOptions.parse("shift=+1d;mode=dynamic;rule=billing/**@+10d").checkMode();
+	}
+
+	@Test
+	public void rulesAreEmbedded() throws Exception
+	{
+		TimeMachineTransformer transformer =
+			new TimeMachineTransformer(
+				filter(),
+				new Milliseconds(true, DAY),
+				RewriteMode.CONSTANT,
+				null
+			);
+		String key = transformer.rewriteKey();
+		transformer.setRules(ShiftRules.parse(RULES, true));
+		assertFalse(key.equals(transformer.rewriteKey()));
+
+		long before = System.currentTimeMillis();
+		Class<?> invoice = load(transformer, "billing/Invoice");
+		assertShifted(10 * DAY, before, (Long)invoice.getMethod("now").invoke(null));
+		Clock clock = (Clock)invoice.getMethod("clock").invoke(null);
+		assertShifted(10 * DAY, before, clock.millis());
+		Class<?> main = load(transformer, "app/Main");
+		assertShifted(DAY, before, (Long)main.getMethod("now").invoke(null));
+
+		long frozen = TimeMachineAgentDelegate.parseTime("2020-01-01T00:00:00").getTime();
+		Class<?> c = load(transformer, "billing/Frozen");
+		assertEquals(frozen, (long)(Long)c.getMethod("now").invoke(null));
+		assertEquals(frozen, ((Clock)c.getMethod("clock").invoke(null)).millis());
+
+		assertNull(transformer.rewrite("log/Logger", createClass("log/Logger")));
+		assertFalse(transformer.accepts(null, "log/Logger", null));
+	}
+
+	private static void assertShifted(long shift, long before, long actual)
+	{
+		assertTrue(actual >= before + shift && actual <= System.currentTimeMillis() + shift);
+	}
+
+	private static ClassFilter filter()
+	{
+		return
+			new ClassFilter(
+				ClassNameMatcher.compile(
+					Collections.<String>emptyList(),
+					Collections.<String>emptyList()
+				),
+				false
+			);
+	}
+
+	private Class<?> load(TimeMachineTransformer transformer, String name)
+	{
+		byte[] b = transformer.rewrite(name, createClass(name));
+		return
+			new ClassLoader(getClass().getClassLoader())
+			{
+				Class<?> define()
+				{
+					return defineClass(null, b, 0, b.length);
+				}
+			}.define();
+	}
+
+	/**
+	 * Creates a class with the methods {@code now()} calling {@code System.currentTimeMillis()}
+	 * and {@code clock()} calling {@code Clock.systemUTC()}.
+	 */
+	private static byte[] createClass(String name)
+	{
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(V17, ACC_PUBLIC, name, null, "java/lang/Object", null);
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "now", "()J", null, null);
+		mv.visitCode();
+		mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "currentTimeMillis", "()J", false);
+		mv.visitInsn(LRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "clock", "()Ljava/time/Clock;", null, null);
+		mv.visitCode();
+		mv.visitMethodInsn(
+			INVOKESTATIC, "java/time/Clock", "systemUTC", "()Ljava/time/Clock;", false
+		);
+		mv.visitInsn(ARETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+}
@@ -0,0 +1,109 @@
+package com.codetropics.java.asm.timemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_STATIC;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.LRETURN;
+import static org.objectweb.asm.Opcodes.POP;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.V17;
+
+import java.util.BitSet;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+
+import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate.Milliseconds;
+
+
+public class TimeCallScannerTest
+{
+	private final TimeCallScanner scanner =
+		new TimeCallScanner(TimeCall.rewrittenIn(RewriteMode.CONSTANT));
+
+	@Test
+	public void classWithoutTimeCalls()
+	{
+		assertNull(scanner.scan(createClass(false, false)));
+	}
+
+	@Test
+	public void onlyMethodsWithTimeCalls()
+	{
+		BitSet methods = scanner.scan(createClass(true, false));
+		assertNotNull(methods);
+		assertEquals(1, methods.cardinality());
+		assertEquals(true, methods.get(1));
+
+		methods = scanner.scan(createClass(true, true));
+		assertEquals(2, methods.cardinality());
+		assertEquals(true, methods.get(2));
+	}
+
+	@Test
+	public void brokenClassFile()
+	{
+		assertEquals(TimeCallScanner.EVERY_METHOD, scanner.scan(new byte[] { 1, 2, 3 }));
+	}
+
+	@Test
+	public void transformerSkipsClassesWithoutTimeCalls() throws Exception
+	{
+		TimeMachineTransformer transformer =
+			new TimeMachineTransformer(
+				new Pattern[] { Pattern.compile(".*") },
+				new Pattern[0],
+				new Milliseconds(true, 1000L)
+			);
+		ClassLoader loader = getClass().getClassLoader();
+		assertNull(transformer.transform(loader, "test/Clock", null, null, createClass(false, false)));
+		assertNotNull(transformer.transform(loader, "test/Clock", null, null, createClass(true, true)));
+	}
+
+	/**
+	 * Creates a class with a method {@code a()} not touching the clock, a method {@code b()}
+	 * calling {@code System.currentTimeMillis()} and optionally a method {@code c()} calling
+	 * {@code Calendar.getInstance()}.
+	 */
+	static byte[] createClass(boolean millis, boolean calendar)
+	{
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(V17, ACC_PUBLIC, "test/Clock", null, "java/lang/Object", null);
+
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "a", "()V", null, null);
+		mv.visitCode();
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "b", "()J", null, null);
+		mv.visitCode();
+		if(millis)
+			mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "currentTimeMillis", "()J", false);
+		else
+			mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+		mv.visitInsn(LRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		if(calendar) {
+			mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "c", "()V", null, null);
+			mv.visitCode();
+			mv.visitMethodInsn(
+				INVOKESTATIC, "java/util/Calendar", "getInstance", "()Ljava/util/Calendar;", false
+			);
+			mv.visitInsn(POP);
+			mv.visitInsn(RETURN);
+			mv.visitMaxs(0, 0);
+			mv.visitEnd();
+		}
+
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+}
@@ -1,6 +1,7 @@
 package com.codetropics.java.asm.timemachine;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 
@@ -44,4 +45,41 @@ public class TimeConfigurationTest
 	{
 		TimeMachineAgentDelegate.parseTime("+0-0- 10@0:0:0");
 	}
+
+	@Test
+	public void dilatedTimes()
+	{
+		TimeMachineAgentDelegate.Milliseconds time =
+			TimeMachineAgentDelegate.parseTimeShift(null, "2025-12-31T23:00:00", "60");
+		assertTrue(time.isDilated());
+		assertEquals(60.0, time.getRate(), 0);
+		long baseline = time.getBaseline();
+		assertEquals((long)time.getTime(), time.apply(baseline));
+		assertEquals(time.getTime() + 60000L, time.apply(baseline + 1000));
+
+		long before = System.currentTimeMillis();
+		time = TimeMachineAgentDelegate.parseTimeShift(null, null, "10");
+		assertTrue(time.isDilated());
+		assertEquals(10.0, time.getRate(), 0);
+		assertTrue(time.getTime() >= before && time.getTime() <= System.currentTimeMillis());
+
+		time = TimeMachineAgentDelegate.Milliseconds.dilated(0, 1.5);
+		assertEquals(1500L, time.apply(time.getBaseline() + 1000));
+		assertEquals(-1500L, time.apply(time.getBaseline() - 1000));
+		time = TimeMachineAgentDelegate.Milliseconds.dilated(0, 0.25);
+		assertEquals(250L, time.apply(time.getBaseline() + 1000));
+		assertEquals(0L, TimeMachineAgentDelegate.Milliseconds.dilated(0, 0).apply(123456789L));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public final void shiftAndStart()
+	{
+		TimeMachineAgentDelegate.parseTimeShift("+1d", "2025-12-31T23:00:00", null);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public final void negativeRate()
+	{
+		TimeMachineAgentDelegate.parseTimeShift("+1d", null, "-1");
+	}
 }
@@ -0,0 +1,80 @@
+package com.codetropics.java.asm.timemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate.Milliseconds;
+
+
+public class TimeContextTest
+{
+	private static final long DAY = 24L * 60 * 60 * 1000;
+
+	@After
+	public void reset()
+	{
+		TimeMachine.install(RewriteMode.DYNAMIC, new Milliseconds(true, 0));
+	}
+
+	@Test
+	public void scopedTimeShift() throws Exception
+	{
+		TimeMachine.install(RewriteMode.DYNAMIC, new Milliseconds(true, DAY));
+		Method b = TimeMachineTest.load(RewriteMode.DYNAMIC).getMethod("b");
+
+		assertShift(DAY, b);
+		TimeContext.run(
+			"-2d",
+			() -> {
+				assertShift(-2 * DAY, b);
+				TimeContext.run(new Milliseconds(false, 1000L), () -> assertEquals(1000L, invoke(b)));
+				assertShift(-2 * DAY, b);
+			}
+		);
+		assertShift(DAY, b);
+		assertNull(TimeContext.current());
+		assertEquals(DAY + 5, ClockCallSites.millis(5));
+	}
+
+	@Test
+	public void propagatingExecutor() throws Exception
+	{
+		Method b = TimeMachineTest.load(RewriteMode.DYNAMIC).getMethod("b");
+		ExecutorService executor = TimeContext.propagating(Executors.newSingleThreadExecutor());
+		try {
+			long shifted =
+				TimeContext.call("+3d", () -> executor.submit(() -> invoke(b)).get());
+			assertTrue(shifted > System.currentTimeMillis() + 2 * DAY);
+			assertTrue(executor.submit(() -> invoke(b)).get() < System.currentTimeMillis() + DAY);
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+	private static long invoke(Method method)
+	{
+		try {
+			return (Long)method.invoke(null);
+		}
+		catch(ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void assertShift(long expected, Method method)
+	{
+		long before = System.currentTimeMillis();
+		long shifted = invoke(method);
+		long after = System.currentTimeMillis();
+		assertTrue(shifted >= before + expected && shifted <= after + expected);
+	}
+}
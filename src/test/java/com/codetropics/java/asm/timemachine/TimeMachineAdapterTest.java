@@ -0,0 +1,257 @@
+package com.codetropics.java.asm.timemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_STATIC;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ARETURN;
+import static org.objectweb.asm.Opcodes.DUP;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.LRETURN;
+import static org.objectweb.asm.Opcodes.NEW;
+import static org.objectweb.asm.Opcodes.V17;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Calendar;
+import java.util.Date;
+
+import org.junit.After;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+
+import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate.Milliseconds;
+
+
+public class TimeMachineAdapterTest
+{
+	private static final long DAY = 24L * 60 * 60 * 1000;
+	private static final long TIME = 1893456000000L; // 2030-01-01T00:00:00Z
+
+	@After
+	public void reset()
+	{
+		TimeMachine.install(RewriteMode.DYNAMIC, new Milliseconds(true, 0));
+	}
+
+	@Test
+	public void absoluteTime() throws Exception
+	{
+		Milliseconds timeShift = new Milliseconds(false, TIME);
+		TimeMachine.install(RewriteMode.CONSTANT, timeShift);
+		Class<?> c =
+			TimeMachineTest.load(RewriteMode.CONSTANT, timeShift, "test/Now", createClass());
+		Instant instant = Instant.ofEpochMilli(TIME);
+
+		assertEquals(instant, c.getMethod("instant").invoke(null));
+		assertEquals(
+			LocalDateTime.ofInstant(instant, ZoneId.systemDefault()),
+			c.getMethod("localDateTime").invoke(null)
+		);
+		assertEquals(
+			ZonedDateTime.ofInstant(instant, ZoneOffset.UTC),
+			c.getMethod("zonedDateTime", ZoneId.class).invoke(null, ZoneOffset.UTC)
+		);
+		assertEquals(TIME, ((Date)c.getMethod("date").invoke(null)).getTime());
+		assertEquals(TIME, ((Calendar)c.getMethod("calendar").invoke(null)).getTimeInMillis());
+		assertEquals(TIME, ((Clock)c.getMethod("clock").invoke(null)).millis());
+	}
+
+	@Test
+	public void relativeTime() throws Exception
+	{
+		Milliseconds timeShift = new Milliseconds(true, DAY);
+		TimeMachine.install(RewriteMode.CONSTANT, timeShift);
+		Class<?> c =
+			TimeMachineTest.load(RewriteMode.CONSTANT, timeShift, "test/Now", createClass());
+
+		long before = System.currentTimeMillis() + DAY;
+		long date = ((Date)c.getMethod("date").invoke(null)).getTime();
+		long instant = ((Instant)c.getMethod("instant").invoke(null)).toEpochMilli();
+		long clock = ((Clock)c.getMethod("clock").invoke(null)).millis();
+		long after = System.currentTimeMillis() + DAY;
+		for(long time : new long[] { date, instant, clock })
+			assertTrue(time >= before && time <= after);
+	}
+
+	@Test
+	public void dilatedTime() throws Exception
+	{
+		for(RewriteMode mode : new RewriteMode[] { RewriteMode.CONSTANT, RewriteMode.DYNAMIC }) {
+			assertDilated(mode, Milliseconds.dilated(TIME, 60));
+			assertDilated(mode, Milliseconds.dilated(TIME, 1.5));
+		}
+	}
+
+	@Test
+	public void subMillisecondPrecision() throws Exception
+	{
+		boolean precise = false;
+		for(int i = 0; i < 100 && !precise; i++)
+			precise = isSubMillisecond(Instant.now().getNano());
+		assumeTrue(precise);
+
+		Milliseconds[] timeShifts =
+			{ new Milliseconds(true, DAY), Milliseconds.dilated(TIME, 1.5) };
+		for(RewriteMode mode : new RewriteMode[] { RewriteMode.CONSTANT, RewriteMode.DYNAMIC })
+			for(Milliseconds timeShift : timeShifts) {
+				TimeMachine.install(mode, timeShift);
+				Class<?> c = TimeMachineTest.load(mode, timeShift, "test/Now", createClass());
+				boolean instant = false;
+				boolean localDateTime = false;
+				boolean clock = false;
+				for(int i = 0; i < 100 && !(instant && localDateTime && clock); i++) {
+					Instant now = (Instant)c.getMethod("instant").invoke(null);
+					instant |= isSubMillisecond(now.getNano());
+					LocalDateTime local = (LocalDateTime)c.getMethod("localDateTime").invoke(null);
+					localDateTime |= isSubMillisecond(local.getNano());
+					now = ((Clock)c.getMethod("clock").invoke(null)).instant();
+					clock |= isSubMillisecond(now.getNano());
+				}
+				assertTrue(mode + " " + timeShift, instant && localDateTime && clock);
+			}
+	}
+
+	@Test
+	public void jdkModeLeavesTheHookedApis() throws Exception
+	{
+		Milliseconds timeShift = new Milliseconds(false, TIME);
+		TimeMachine.install(RewriteMode.JDK, timeShift);
+		Class<?> c = TimeMachineTest.load(RewriteMode.JDK, timeShift, "test/Now", createClass());
+		assertTrue(((Date)c.getMethod("date").invoke(null)).getTime() < TIME);
+		assertTrue(((Instant)c.getMethod("instant").invoke(null)).toEpochMilli() < TIME);
+
+		c =
+			TimeMachineTest.load(
+				RewriteMode.JDK,
+				timeShift,
+				"test/Clock",
+				TimeCallScannerTest.createClass(true, true)
+			);
+		assertEquals(TIME, c.getMethod("b").invoke(null));
+	}
+
+	@Test
+	public void nanoTimeFollowsDynamicTimeShift() throws Exception
+	{
+		Class<?> c =
+			TimeMachineTest.load(
+				RewriteMode.DYNAMIC,
+				new Milliseconds(true, 0),
+				"test/Now",
+				createClass()
+			);
+		long start = (Long)c.getMethod("nanos").invoke(null);
+		TimeMachine.setTimeShift("+1d");
+		long end = (Long)c.getMethod("nanos").invoke(null);
+		assertTrue(end - start >= DAY * 1000000L);
+		assertTrue(end - start < (DAY + 60000) * 1000000L);
+	}
+
+	private static boolean isSubMillisecond(int nano)
+	{
+		return nano % 1000000 != 0;
+	}
+
+	private static void assertDilated(RewriteMode mode, Milliseconds timeShift) throws Exception
+	{
+		TimeMachine.install(mode, timeShift);
+		Class<?> c =
+			TimeMachineTest.load(
+				mode,
+				timeShift,
+				"test/Clock",
+				TimeCallScannerTest.createClass(true, true)
+			);
+		for(int i = 0; i < 2; i++) {
+			long before = timeShift.apply(System.currentTimeMillis());
+			long time = (Long)c.getMethod("b").invoke(null);
+			long after = timeShift.apply(System.currentTimeMillis());
+			assertTrue(time >= before && time <= after);
+			assertTrue(time >= TIME && time < TIME + 60000L * 60);
+			Thread.sleep(20);
+		}
+	}
+
+	/**
+	 * Creates a class calling the time APIs rewritten by {@link TimeMachineAdapter}.
+	 */
+	private static byte[] createClass()
+	{
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(V17, ACC_PUBLIC, "test/Now", null, "java/lang/Object", null);
+
+		addStaticCall(cw, "instant", "java/time/Instant", "now", "()Ljava/time/Instant;");
+		addStaticCall(
+			cw, "localDateTime", "java/time/LocalDateTime", "now", "()Ljava/time/LocalDateTime;"
+		);
+		addStaticCall(
+			cw, "calendar", "java/util/Calendar", "getInstance", "()Ljava/util/Calendar;"
+		);
+		addStaticCall(cw, "clock", "java/time/Clock", "systemUTC", "()Ljava/time/Clock;");
+
+		MethodVisitor mv =
+			cw.visitMethod(
+				ACC_PUBLIC | ACC_STATIC,
+				"zonedDateTime",
+				"(Ljava/time/ZoneId;)Ljava/time/ZonedDateTime;",
+				null,
+				null
+			);
+		mv.visitCode();
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitMethodInsn(
+			INVOKESTATIC,
+			"java/time/ZonedDateTime",
+			"now",
+			"(Ljava/time/ZoneId;)Ljava/time/ZonedDateTime;",
+			false
+		);
+		mv.visitInsn(ARETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "date", "()Ljava/util/Date;", null, null);
+		mv.visitCode();
+		mv.visitTypeInsn(NEW, "java/util/Date");
+		mv.visitInsn(DUP);
+		mv.visitMethodInsn(INVOKESPECIAL, "java/util/Date", "<init>", "()V", false);
+		mv.visitInsn(ARETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "nanos", "()J", null, null);
+		mv.visitCode();
+		mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+		mv.visitInsn(LRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	private static void addStaticCall(
+		ClassWriter cw,
+		String method,
+		String owner,
+		String name,
+		String desc
+	)
+	{
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, method, desc, null, null);
+		mv.visitCode();
+		mv.visitMethodInsn(INVOKESTATIC, owner, name, desc, false);
+		mv.visitInsn(ARETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+}
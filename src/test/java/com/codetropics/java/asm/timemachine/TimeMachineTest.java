@@ -0,0 +1,130 @@
+package com.codetropics.java.asm.timemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate.Milliseconds;
+
+
+public class TimeMachineTest
+{
+	private static final long DAY = 24L * 60 * 60 * 1000;
+
+	@After
+	public void reset()
+	{
+		TimeMachine.install(RewriteMode.DYNAMIC, new Milliseconds(true, 0));
+	}
+
+	@Test
+	public void changeTimeShiftAtRuntime() throws Exception
+	{
+		TimeMachine.install(RewriteMode.DYNAMIC, new Milliseconds(true, DAY));
+		Method b = load(RewriteMode.DYNAMIC).getMethod("b");
+
+		assertShift(DAY, b);
+		TimeMachine.setTimeShift("-2d");
+		assertShift(-2 * DAY, b);
+		TimeMachine.setTimeShift(new Milliseconds(false, 1000L));
+		assertEquals(1000L, b.invoke(null));
+		TimeMachine.setTimeShift("+1h");
+		assertShift(60L * 60 * 1000, b);
+	}
+
+	@Test
+	public void absoluteTimeAdvances() throws Exception
+	{
+		long target = TimeMachineAgentDelegate.parseTime("2030-01-01T00:00:00").getTime();
+		Method b = load(RewriteMode.DYNAMIC).getMethod("b");
+
+		TimeMachine.install(RewriteMode.DYNAMIC, new Milliseconds(true, 0), false);
+		TimeMachine.setTimeShift("2030-01-01T00:00:00");
+		long first = (Long)b.invoke(null);
+		Thread.sleep(20);
+		long second = (Long)b.invoke(null);
+		assertTrue(first >= target && first < target + 10000);
+		assertTrue(second >= first + 20);
+
+		TimeMachine.install(RewriteMode.DYNAMIC, new Milliseconds(true, 0), true);
+		TimeMachine.setTimeShift("2030-01-01T00:00:00");
+		assertEquals(target, b.invoke(null));
+		Thread.sleep(20);
+		assertEquals(target, b.invoke(null));
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void constantModeCannotChange()
+	{
+		TimeMachine.install(RewriteMode.CONSTANT, new Milliseconds(true, DAY));
+		TimeMachine.setTimeShift("+1d");
+	}
+
+	private static void assertShift(long expected, Method method) throws Exception
+	{
+		long before = System.currentTimeMillis();
+		long shifted = (Long)method.invoke(null);
+		long after = System.currentTimeMillis();
+		assertTrue(shifted >= before + expected && shifted <= after + expected);
+	}
+
+	/**
+	 * Instruments and loads {@link TimeCallScannerTest#createClass(boolean, boolean)}.
+	 */
+	static Class<?> load(RewriteMode mode) throws Exception
+	{
+		return
+			load(
+				mode,
+				new Milliseconds(true, DAY),
+				"test/Clock",
+				TimeCallScannerTest.createClass(true, true)
+			);
+	}
+
+	/**
+	 * Instruments and loads a class. The class is loaded as such if the transformer leaves it
+	 * untouched.
+	 */
+	static Class<?> load(RewriteMode mode, Milliseconds timeShift, String className, byte[] classFile)
+		throws Exception
+	{
+		TimeMachineTransformer transformer =
+			new TimeMachineTransformer(
+				new ClassFilter(
+					ClassNameMatcher.compile(
+						Collections.<String>emptyList(),
+						Collections.<String>emptyList()
+					),
+					false
+				),
+				timeShift,
+				mode,
+				null
+			);
+		TestClassLoader loader = new TestClassLoader();
+		byte[] b = transformer.transform(loader, className, null, null, classFile);
+		return loader.define(b == null ? classFile : b);
+	}
+
+
+	private static class TestClassLoader
+		extends
+			ClassLoader
+	{
+		TestClassLoader()
+		{
+			super(TimeMachineTest.class.getClassLoader());
+		}
+
+		Class<?> define(byte[] b)
+		{
+			return defineClass(null, b, 0, b.length);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package com.codetropics.java.asm.timemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate.Milliseconds;
+
+
+public class TimelineTest
+{
+	@After
+	public void reset()
+	{
+		TimeMachine.install(RewriteMode.DYNAMIC, new Milliseconds(true, 0));
+	}
+
+	@Test
+	public void parse()
+	{
+		Timeline timeline =
+			Timeline.parse(
+				Arrays.asList(
+					"# comment",
+					"",
+					"T+5m   2025-12-31T23:55:00",
+					"20m    +1d",
+					"1h     2027-01-01T00:00:00  rate=60"
+				),
+				"test"
+			);
+		List<Timeline.Entry> entries = timeline.getEntries();
+		assertEquals(3, entries.size());
+		assertEquals(5 * 60 * 1000L, entries.get(0).elapsed);
+		assertFalse(entries.get(0).timeShift().isRelative());
+		assertEquals("test:3", entries.get(0).location);
+		assertEquals(24L * 60 * 60 * 1000, (long)entries.get(1).timeShift().getTime());
+		assertTrue(entries.get(2).timeShift().isDilated());
+		assertEquals(60.0, entries.get(2).timeShift().getRate(), 0.0);
+	}
+
+	@Test
+	public void invalidEntries()
+	{
+		assertInvalid("5m");
+		assertInvalid("-5m +1d");
+		assertInvalid("2025-01-01T00:00:00 +1d");
+		assertInvalid("5m +1d speed=2");
+		assertInvalid("5m +1d rate=-1");
+		assertInvalid("10m +1d", "5m +2d");
+	}
+
+	@Test
+	public void play() throws Exception
+	{
+		Timeline timeline =
+			Timeline.parse(Arrays.asList("0ms +1d", "50ms +2d", "100ms 2030-01-01T00:00:00"), "test");
+		timeline.start().join(10000);
+
+		long target = TimeMachineAgentDelegate.parseTime("2030-01-01T00:00:00").getTime();
+		Milliseconds timeShift = TimeMachine.getTimeShift();
+		assertTrue(timeShift.isRelative());
+		assertTrue(Math.abs(timeShift.getTime() + System.currentTimeMillis() - target) < 10000);
+	}
+
+	private static void assertInvalid(String... lines)
+	{
+		try {
+			Timeline.parse(Arrays.asList(lines), "test");
+			fail(Arrays.toString(lines));
+		}
+		catch(IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("test:" + lines.length + ": "));
+		}
+	}
+}
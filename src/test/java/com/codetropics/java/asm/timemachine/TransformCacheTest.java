@@ -0,0 +1,143 @@
+package com.codetropics.java.asm.timemachine;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class TransformCacheTest
+{
+	private Path directory;
+
+	@Before
+	public void createDirectory() throws IOException
+	{
+		directory = Files.createTempDirectory("timemachine-cache");
+	}
+
+	@After
+	public void deleteDirectory() throws IOException
+	{
+		try(Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+		}
+	}
+
+	@Test
+	public void storeAndLoad() throws IOException
+	{
+		byte[] original = { 1, 2, 3 };
+		byte[] transformed = { 4, 5, 6, 7 };
+
+		int[] callSites = new int[TimeCall.values().length];
+		callSites[TimeCall.NEW_DATE.ordinal()] = 2;
+		callSites[TimeCall.OBJECT_WAIT_NANOS.ordinal()] = 300;
+
+		TransformCache cache = new TransformCache(directory, 1024 * 1024, "relative:1000");
+		byte[] key = cache.key(original);
+		int[] counts = new int[TimeCall.values().length];
+		assertNull(cache.get(key, counts));
+		cache.put(key, transformed, callSites);
+		assertArrayEquals(transformed, cache.get(key, counts));
+		assertArrayEquals(callSites, counts);
+
+		TransformCache shared = new TransformCache(directory, 1024 * 1024, "relative:1000");
+		assertArrayEquals(transformed, shared.get(shared.key(original), counts));
+		assertEquals(4, counts[TimeCall.NEW_DATE.ordinal()]);
+
+		TransformCache otherShift = new TransformCache(directory, 1024 * 1024, "relative:2000");
+		assertNull(otherShift.get(otherShift.key(original), counts));
+		assertEquals(600, counts[TimeCall.OBJECT_WAIT_NANOS.ordinal()]);
+	}
+
+	@Test
+	public void corruptedEntryIsMiss() throws IOException
+	{
+		TransformCache cache = new TransformCache(directory, 1024 * 1024, "absolute:0");
+		byte[] key = cache.key(new byte[] { 1 });
+		cache.put(key, new byte[] { 2, 3 }, new int[TimeCall.values().length]);
+		try(Stream<Path> files = Files.walk(directory, 2)) {
+			files
+				.filter(f -> Files.isRegularFile(f) && !f.getParent().equals(directory))
+				.forEach(f -> {
+					try {
+						Files.write(f, new byte[] { 2, 3, 0, 0, 0, 0, 0 });
+					}
+					catch(IOException e) {
+						throw new RuntimeException(e);
+					}
+				});
+		}
+		assertNull(cache.get(key, new int[TimeCall.values().length]));
+	}
+
+	@Test
+	public void hitDoesNotWriteToTheEntryFile() throws IOException
+	{
+		TransformCache cache = new TransformCache(directory, 1024 * 1024, "relative:1000");
+		byte[] key = cache.key(new byte[] { 1 });
+		int[] callSites = new int[TimeCall.values().length];
+		cache.put(key, new byte[] { 2, 3 }, callSites);
+		FileTime old = FileTime.fromMillis(0);
+		try(Stream<Path> files = Files.walk(directory, 2)) {
+			files
+				.filter(f -> Files.isRegularFile(f) && !f.getParent().equals(directory))
+				.forEach(f -> {
+					try {
+						Files.setLastModifiedTime(f, old);
+						assertArrayEquals(new byte[] { 2, 3 }, cache.get(key, callSites));
+						assertEquals(old, Files.getLastModifiedTime(f));
+					}
+					catch(IOException e) {
+						throw new RuntimeException(e);
+					}
+				});
+		}
+	}
+
+	@Test
+	public void eviction() throws IOException
+	{
+		TransformCache cache = new TransformCache(directory, 1024 * 1024, "relative:1000");
+		int[] callSites = new int[TimeCall.values().length];
+		// 200 bytes with the trailer.
+		for(int i = 0; i < 10; i++)
+			cache.put(cache.key(new byte[] { (byte)i }), new byte[195], callSites);
+		// An eviction in the background between the puts could leave five entries at the limit.
+		cache = new TransformCache(directory, 1000, "relative:1000");
+		cache.evict();
+
+		int entries = 0;
+		for(int i = 0; i < 10; i++)
+			if(cache.get(cache.key(new byte[] { (byte)i }), callSites) != null)
+				entries++;
+		assertEquals(4, entries);
+	}
+
+	@Test
+	public void evictionKeepsTheFilesBeingWritten() throws IOException
+	{
+		Path written = Files.createDirectories(directory.resolve("00")).resolve("1.tmp");
+		Path abandoned = written.resolveSibling("2.tmp");
+		Files.write(written, new byte[1000]);
+		Files.write(abandoned, new byte[1000]);
+		Files.setLastModifiedTime(abandoned, FileTime.fromMillis(0));
+
+		new TransformCache(directory, 100, "relative:1000").evict();
+		assertTrue(Files.exists(written));
+		assertFalse(Files.exists(abandoned));
+	}
+}
@@ -0,0 +1,152 @@
+package com.codetropics.java.asm.timemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate.Milliseconds;
+
+
+public class TransformMetricsTest
+{
+	@After
+	public void reset()
+	{
+		TimeMachine.install(RewriteMode.DYNAMIC, new Milliseconds(true, 0));
+	}
+
+	@Test
+	public void histogramBuckets()
+	{
+		assertEquals(0, TransformMetrics.bucket(999));
+		assertEquals(1, TransformMetrics.bucket(1000));
+		assertEquals(2, TransformMetrics.bucket(2000));
+		assertEquals(2, TransformMetrics.bucket(3999));
+		assertEquals(11, TransformMetrics.bucket(1500000));
+		assertEquals(TransformMetrics.HISTOGRAM_BUCKETS - 1, TransformMetrics.bucket(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void countersAndEvents() throws Exception
+	{
+		TimeMachine.install(RewriteMode.DYNAMIC, new Milliseconds(true, 0));
+		TransformMetrics metrics = TransformMetrics.INSTANCE;
+		long seen = metrics.getClassesSeen();
+		long filtered = metrics.getClassesFiltered();
+		long unchanged = metrics.getClassesUnchanged();
+		long transformed = metrics.getClassesTransformed();
+		Long millis = metrics.getCallSitesRewritten().get(TimeCall.CURRENT_TIME_MILLIS.name());
+
+		TimeMachineTransformer transformer =
+			new TimeMachineTransformer(
+				new ClassFilter(
+					ClassNameMatcher.compile(
+						Collections.<String>emptyList(),
+						Collections.singletonList("excluded/**")
+					),
+					false
+				),
+				new Milliseconds(true, 1000L)
+			);
+		ClassLoader loader = getClass().getClassLoader();
+		byte[] clock = TimeCallScannerTest.createClass(true, true);
+		byte[] plain = TimeCallScannerTest.createClass(false, false);
+
+		Path file = Files.createTempFile("timemachine", ".jfr");
+		try(Recording recording = new Recording()) {
+			recording.enable("com.codetropics.timemachine.Transform");
+			recording.enable("com.codetropics.timemachine.TimeJump");
+			recording.start();
+			transformer.transform(loader, "test/Clock", null, null, clock);
+			transformer.transform(loader, "test/Plain", null, null, plain);
+			transformer.transform(loader, "excluded/Clock", null, null, clock);
+			TimeMachine.setTimeShift("+1d");
+			recording.stop();
+			recording.dump(file);
+
+			List<String> events = new ArrayList<>();
+			for(RecordedEvent event : RecordingFile.readAllEvents(file))
+				events.add(
+					event.getEventType().getName().equals("com.codetropics.timemachine.Transform")
+						? event.getString("className") + ":" + event.getBoolean("transformed")
+						: event.getString("cause")
+				);
+			Collections.sort(events);
+			assertEquals("[api, test/Clock:true, test/Plain:false]", events.toString());
+		}
+		finally {
+			Files.delete(file);
+		}
+
+		assertEquals(seen + 3, metrics.getClassesSeen());
+		assertEquals(filtered + 1, metrics.getClassesFiltered());
+		assertEquals(unchanged + 1, metrics.getClassesUnchanged());
+		assertEquals(transformed + 1, metrics.getClassesTransformed());
+		assertTrue(
+			metrics.getCallSitesRewritten().get(TimeCall.CURRENT_TIME_MILLIS.name())
+				> (millis == null ? 0 : millis)
+		);
+	}
+
+	@Test
+	public void callSitesOfTheReturnedClassFiles() throws Exception
+	{
+		TransformMetrics metrics = TransformMetrics.INSTANCE;
+		Path directory = Files.createTempDirectory("timemachine-cache");
+		try {
+			TimeMachineTransformer transformer =
+				new TimeMachineTransformer(
+					new ClassFilter(
+						ClassNameMatcher.compile(
+							Collections.<String>emptyList(),
+							Collections.<String>emptyList()
+						),
+						false
+					),
+					new Milliseconds(true, 1000L)
+				);
+			transformer.setCache(
+				new TransformCache(directory, 1024 * 1024, transformer.rewriteKey())
+			);
+			ClassLoader loader = getClass().getClassLoader();
+			byte[] clock = TimeCallScannerTest.createClass(true, true);
+			int[] callSites = new int[TimeCall.values().length];
+			long millis = callSitesRewritten(metrics);
+
+			transformer.rewrite("test/Clock", clock, callSites);
+			assertEquals(millis, callSitesRewritten(metrics));
+			int count = callSites[TimeCall.CURRENT_TIME_MILLIS.ordinal()];
+			assertTrue(count > 0);
+
+			transformer.transform(loader, "test/Clock", null, null, clock);
+			assertEquals(millis + count, callSitesRewritten(metrics));
+			transformer.transform(loader, "test/Clock", null, null, clock);
+			assertEquals(millis + 2 * count, callSitesRewritten(metrics));
+		}
+		finally {
+			try(Stream<Path> files = Files.walk(directory)) {
+				files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+			}
+		}
+	}
+
+	private static long callSitesRewritten(TransformMetrics metrics)
+	{
+		Long count = metrics.getCallSitesRewritten().get(TimeCall.CURRENT_TIME_MILLIS.name());
+		return count == null ? 0 : count;
+	}
+}
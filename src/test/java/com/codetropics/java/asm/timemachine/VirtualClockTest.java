@@ -0,0 +1,250 @@
+package com.codetropics.java.asm.timemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.objectweb.asm.Opcodes.*;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+
+import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate.Milliseconds;
+
+
+public class VirtualClockTest
+{
+	private static final long SECOND = 1000000000L;
+
+	@After
+	public void reset()
+	{
+		TimeMachine.install(RewriteMode.DYNAMIC, new Milliseconds(true, 0));
+	}
+
+	@Test
+	public void skipSleeps() throws Exception
+	{
+		TimeMachine.install(RewriteMode.DYNAMIC, new Milliseconds(true, 0));
+		VirtualClock.install(VirtualClock.Policy.SKIP);
+		Class<?> c = load();
+		Method now = c.getMethod("now");
+		Method nanos = c.getMethod("nanos");
+
+		long start = System.nanoTime();
+		long before = (Long)now.invoke(null);
+		long nanosBefore = (Long)nanos.invoke(null);
+		c.getMethod("sleep").invoke(null);
+		assertTrue((Long)now.invoke(null) - before >= 60000);
+		assertTrue((Long)nanos.invoke(null) - nanosBefore >= 60 * SECOND);
+		c.getMethod("sleepSeconds").invoke(null);
+		assertTrue((Long)now.invoke(null) - before >= 90000);
+		assertTrue(System.nanoTime() - start < 10 * SECOND);
+		assertTrue(VirtualClock.skipped() >= 90 * SECOND);
+
+		VirtualClock.install(null);
+		assertEquals(0, VirtualClock.skipped());
+	}
+
+	@Test
+	public void idleThreadsJumpInOrder() throws Exception
+	{
+		VirtualClock.install(VirtualClock.Policy.IDLE);
+		long start = System.nanoTime();
+		long virtualStart = VirtualClock.nanos(start);
+		// The clock does not jump before both threads are sleeping.
+		VirtualClock.register();
+		Thread a;
+		Thread b;
+		try {
+			a = sleeper(10);
+			b = sleeper(20);
+			awaitSleeping(a);
+			awaitSleeping(b);
+		}
+		finally {
+			VirtualClock.unregister();
+		}
+		a.join(10000);
+		b.join(10000);
+		assertFalse(a.isAlive() || b.isAlive());
+		assertTrue(System.nanoTime() - start < 10 * SECOND);
+		long elapsed = VirtualClock.nanos(System.nanoTime()) - virtualStart;
+		assertTrue(elapsed >= 20 * SECOND && elapsed < 25 * SECOND);
+	}
+
+	@Test
+	public void busyThreadHoldsTheClock() throws Exception
+	{
+		VirtualClock.install(VirtualClock.Policy.IDLE);
+		VirtualClock.register();
+		try {
+			long start = VirtualClock.nanos(System.nanoTime());
+			Thread sleeper = sleeper(60);
+			sleeper.join(200);
+			assertTrue(sleeper.isAlive());
+			assertTrue(VirtualClock.skipped() < SECOND);
+
+			// Waiting makes every registered thread idle.
+			VirtualClock.sleep(1);
+			VirtualClock.unregister();
+			sleeper.join(10000);
+			assertFalse(sleeper.isAlive());
+			assertTrue(VirtualClock.nanos(System.nanoTime()) - start >= 60 * SECOND);
+		}
+		finally {
+			VirtualClock.unregister();
+		}
+	}
+
+	@Test
+	public void foreverSleepsAreReal() throws Exception
+	{
+		VirtualClock.install(VirtualClock.Policy.IDLE);
+		long start = System.nanoTime();
+		long virtualStart = VirtualClock.nanos(start);
+		Thread forever = sleeper(Long.MAX_VALUE);
+		awaitSleeping(forever);
+		Thread sleeper = sleeper(20);
+		sleeper.join(10000);
+		assertFalse(sleeper.isAlive());
+		assertTrue(forever.isAlive());
+		long elapsed = VirtualClock.nanos(System.nanoTime()) - virtualStart;
+		assertTrue(elapsed >= 20 * SECOND && elapsed < 25 * SECOND);
+		forever.interrupt();
+		forever.join(10000);
+		assertFalse(forever.isAlive());
+
+		VirtualClock.install(VirtualClock.Policy.SKIP);
+		long millis = System.currentTimeMillis();
+		forever = sleeper(Long.MAX_VALUE);
+		awaitSleeping(forever);
+		VirtualClock.sleep(TimeUnit.SECONDS, 20);
+		assertTrue(VirtualClock.skipped() >= 20 * SECOND && VirtualClock.skipped() < 60 * SECOND);
+		assertTrue(VirtualClock.nanos(System.nanoTime()) > 0);
+		assertTrue(VirtualClock.millis(System.currentTimeMillis()) - millis < 60000);
+		forever.interrupt();
+		forever.join(10000);
+		assertFalse(forever.isAlive());
+		VirtualClock.install(null);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void onlyDynamicMode()
+	{
+		AgentOptions.parse("shift=+1d;virtual=skip").checkMode();
+	}
+
+	private static Thread sleeper(long seconds)
+	{
+		Thread thread =
+			new Thread(
+				() -> {
+					try {
+						VirtualClock.sleep(TimeUnit.SECONDS, seconds);
+					}
+					catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			);
+		thread.start();
+		return thread;
+	}
+
+	private static void awaitSleeping(Thread thread)
+	{
+		while(thread.getState() != Thread.State.TIMED_WAITING)
+			Thread.yield();
+	}
+
+	private static ClassFilter filter()
+	{
+		return
+			new ClassFilter(
+				ClassNameMatcher.compile(
+					Collections.<String>emptyList(),
+					Collections.<String>emptyList()
+				),
+				false
+			);
+	}
+
+	private Class<?> load()
+	{
+		TimeMachineTransformer transformer =
+			new TimeMachineTransformer(
+				filter(),
+				new Milliseconds(true, 0),
+				RewriteMode.DYNAMIC,
+				null
+			);
+		transformer.setVirtualClock(true);
+		byte[] b = transformer.rewrite("test/Sleeper", createClass());
+		return
+			new ClassLoader(getClass().getClassLoader())
+			{
+				Class<?> define()
+				{
+					return defineClass(null, b, 0, b.length);
+				}
+			}.define();
+	}
+
+	/**
+	 * Creates {@code test/Sleeper} with the methods {@code now()}, {@code nanos()},
+	 * {@code sleep()} sleeping a minute with {@code Thread.sleep} and {@code sleepSeconds()}
+	 * sleeping 30 seconds with {@code TimeUnit.sleep}.
+	 */
+	private static byte[] createClass()
+	{
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(V17, ACC_PUBLIC, "test/Sleeper", null, "java/lang/Object", null);
+
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "now", "()J", null, null);
+		mv.visitCode();
+		mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "currentTimeMillis", "()J", false);
+		mv.visitInsn(LRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "nanos", "()J", null, null);
+		mv.visitCode();
+		mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+		mv.visitInsn(LRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "sleep", "()V", null, null);
+		mv.visitCode();
+		mv.visitLdcInsn(60000L);
+		mv.visitMethodInsn(INVOKESTATIC, "java/lang/Thread", "sleep", "(J)V", false);
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "sleepSeconds", "()V", null, null);
+		mv.visitCode();
+		mv.visitFieldInsn(
+			GETSTATIC,
+			"java/util/concurrent/TimeUnit",
+			"SECONDS",
+			"Ljava/util/concurrent/TimeUnit;"
+		);
+		mv.visitLdcInsn(30L);
+		mv.visitMethodInsn(
+			INVOKEVIRTUAL, "java/util/concurrent/TimeUnit", "sleep", "(J)V", false
+		);
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+}
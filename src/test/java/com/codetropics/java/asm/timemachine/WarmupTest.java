@@ -0,0 +1,136 @@
+package com.codetropics.java.asm.timemachine;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.codetropics.java.asm.timemachine.TimeMachineAgentDelegate.Milliseconds;
+
+
+public class WarmupTest
+{
+	private Path jar;
+
+	@After
+	public void deleteJar() throws Exception
+	{
+		if(jar != null)
+			Files.delete(jar);
+	}
+
+	@Test
+	public void rewriteAheadOfTime() throws Exception
+	{
+		byte[] clock = TimeCallScannerTest.createClass(true, true);
+		byte[] plain = TimeCallScannerTest.createClass(false, false);
+		jar = Files.createTempFile("timemachine-warmup", ".jar");
+		try(JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar))) {
+			out.putNextEntry(new ZipEntry("test/Clock.class"));
+			out.write(clock);
+			out.putNextEntry(stored("test/Stored.class", clock));
+			out.write(clock);
+			out.putNextEntry(new ZipEntry("test/Plain.class"));
+			out.write(plain);
+			out.putNextEntry(new ZipEntry("README.txt"));
+			out.write("text".getBytes());
+		}
+
+		MappedJar mapped = MappedJar.open(jar);
+		assertEquals(4, mapped.getEntries().size());
+		assertArrayEquals(clock, mapped.read(mapped.getEntries().get(0)));
+		assertArrayEquals(clock, mapped.read(mapped.getEntries().get(1)));
+
+		TimeMachineTransformer transformer =
+			new TimeMachineTransformer(
+				new ClassFilter(
+					ClassNameMatcher.compile(
+						Collections.<String>emptyList(),
+						Collections.<String>emptyList()
+					),
+					false
+				),
+				new Milliseconds(true, 1000L)
+			);
+		Warmup warmup = new Warmup(transformer);
+		warmup.start(Arrays.asList(jar), 2).join();
+		assertEquals(2, warmup.size());
+
+		int[] callSites = new int[TimeCall.values().length];
+		byte[] expected = transformer.rewrite("test/Clock", clock, callSites);
+		int[] taken = new int[TimeCall.values().length];
+		assertSame(Warmup.MISS, warmup.take("test/Clock", plain, taken));
+		assertSame(Warmup.MISS, warmup.take("test/Clock", clock, taken));
+		assertArrayEquals(new int[TimeCall.values().length], taken);
+		assertArrayEquals(expected, warmup.take("test/Stored", clock, taken));
+		assertArrayEquals(callSites, taken);
+
+		transformer.setWarmup(warmup);
+		assertArrayEquals(
+			expected,
+			transformer.transform(getClass().getClassLoader(), "test/Stored", null, null, clock)
+		);
+		assertEquals(0, warmup.size());
+		assertSame(Warmup.MISS, warmup.take("test/Plain", plain, taken));
+	}
+
+	@Test
+	public void skipLoadedClassesAndDropTheRestAfterStartup() throws Exception
+	{
+		byte[] clock = TimeCallScannerTest.createClass(true, true);
+		jar = Files.createTempFile("timemachine-warmup", ".jar");
+		try(JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar))) {
+			out.putNextEntry(new ZipEntry("test/Clock.class"));
+			out.write(clock);
+			out.putNextEntry(new ZipEntry("test/Loaded.class"));
+			out.write(clock);
+		}
+
+		TimeMachineTransformer transformer =
+			new TimeMachineTransformer(
+				new ClassFilter(
+					ClassNameMatcher.compile(
+						Collections.<String>emptyList(),
+						Collections.<String>emptyList()
+					),
+					false
+				),
+				new Milliseconds(true, 1000L)
+			);
+		Warmup warmup = new Warmup(transformer);
+		int[] callSites = new int[TimeCall.values().length];
+		assertSame(Warmup.MISS, warmup.take("test/Loaded", clock, callSites));
+		warmup.start(Arrays.asList(jar), 1, 60000).join();
+		assertEquals(1, warmup.size());
+		warmup.close();
+		assertEquals(0, warmup.size());
+		assertSame(Warmup.MISS, warmup.take("test/Clock", clock, callSites));
+
+		warmup = new Warmup(transformer);
+		warmup.start(Arrays.asList(jar), 1, 0).join();
+		for(int i = 0; i < 100 && warmup.size() > 0; i++)
+			Thread.sleep(50);
+		assertEquals(0, warmup.size());
+	}
+
+	private static ZipEntry stored(String name, byte[] content)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(content);
+		ZipEntry entry = new ZipEntry(name);
+		entry.setMethod(ZipEntry.STORED);
+		entry.setSize(content.length);
+		entry.setCrc(crc.getValue());
+		return entry;
+	}
+}